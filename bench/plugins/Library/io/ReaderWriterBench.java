@@ -0,0 +1,110 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import plugins.Library.util.Generators;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermEntryReaderWriter;
+import plugins.Library.index.TermPageEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+** Benchmarks for writing and reading back the objects that make up an index.
+** Each operation is a round-trip of one node of the term table, or of one
+** {@link TermEntry}.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReaderWriterBench {
+
+	final public static int entries = 0x400;
+
+	@State(Scope.Benchmark)
+	public static class Node {
+
+		@Param({"yaml", "binary"})
+		public String format;
+
+		protected ObjectStreamReader reader;
+		protected ObjectStreamWriter writer;
+		protected Map<String, Object> node;
+
+		@Setup public void setUp() {
+			if (format.equals("yaml")) {
+				setReaderWriter(new YamlReaderWriter());
+			} else {
+				setReaderWriter(new BinaryReaderWriter(new YamlReaderWriter()));
+			}
+			node = BinaryReaderWriterTest.rndNode();
+		}
+
+		protected <S extends ObjectStreamReader & ObjectStreamWriter> void setReaderWriter(S rw) {
+			reader = rw;
+			writer = rw;
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class Entries {
+
+		final protected List<TermEntry> in = new ArrayList<TermEntry>();
+
+		@Setup public void setUp() {
+			String key = Generators.rndKey();
+			for (int i=0; i<entries; ++i) {
+				Map<Integer, String> pos = new HashMap<Integer, String>();
+				for (int j=Generators.rand.nextInt(0x10); j>0; --j) {
+					pos.put(Generators.rand.nextInt(0x1000), null);
+				}
+				in.add(new TermPageEntry(key, Generators.rand.nextFloat(), Generators.rndEntry(key).page, pos));
+			}
+		}
+
+	}
+
+	final protected static TermEntryReaderWriter terw = TermEntryReaderWriter.getInstance();
+
+	@Benchmark
+	public long nodeRoundTrip(Node st) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		st.writer.writeObject(st.node, bo);
+		byte[] buf = bo.toByteArray();
+		Object o = st.reader.readObject(new ByteArrayInputStream(buf));
+		return buf.length + ((Map)o).size();
+	}
+
+	@Benchmark @OperationsPerInvocation(entries)
+	public long termEntryRoundTrip(Entries st) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bo);
+		for (TermEntry en: st.in) { terw.writeObject(en, dos); }
+		dos.close();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bo.toByteArray()));
+		long s = 0;
+		for (int i=0; i<entries; ++i) { s += terw.readObject(dis).hashCode(); }
+		return s;
+	}
+
+}
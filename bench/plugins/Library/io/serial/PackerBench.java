@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.util.Generators;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.io.serial.Serialiser.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Benchmarks for {@link Packer#push(Map, Object)} at each aggression level.
+**
+** The bins are kept in memory. Each operation re-pushes a map that was packed
+** earlier, in which some of the elements have changed and the rest are still
+** unloaded, which is what happens when an index is updated.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PackerBench {
+
+	final public static int BIN_CAP = 0x100;
+	final public static int elements = 0x400;
+	final public static int changed = 0x40;
+
+	/**
+	** Keeps bins in memory, by ID. Pushes are not stored, so that every
+	** operation starts from the same state.
+	*/
+	public static class MemoryBins implements IterableSerialiser<Map<String, HashSet<Integer>>> {
+
+		final protected Map<Object, Map<String, HashSet<Integer>>> store = new HashMap<Object, Map<String, HashSet<Integer>>>();
+		protected boolean frozen;
+
+		/*@Override**/ public void pull(PullTask<Map<String, HashSet<Integer>>> task) throws TaskAbortException {
+			Map<String, HashSet<Integer>> bin = store.get(task.meta);
+			if (bin == null) { throw new TaskAbortException("no such bin: " + task.meta, null); }
+			task.data = new HashMap<String, HashSet<Integer>>(bin);
+		}
+
+		/*@Override**/ public void push(PushTask<Map<String, HashSet<Integer>>> task) {
+			if (!frozen) { store.put(task.meta, task.data); }
+		}
+
+		/*@Override**/ public void pull(Iterable<PullTask<Map<String, HashSet<Integer>>>> tasks) throws TaskAbortException {
+			for (PullTask<Map<String, HashSet<Integer>>> task: tasks) { pull(task); }
+		}
+
+		/*@Override**/ public void push(Iterable<PushTask<Map<String, HashSet<Integer>>>> tasks) {
+			for (PushTask<Map<String, HashSet<Integer>>> task: tasks) { push(task); }
+		}
+
+	}
+
+	@Param({"0", "1", "2", "3"})
+	public int aggression;
+
+	final protected MemoryBins bins = new MemoryBins();
+	final protected Packer<String, HashSet<Integer>> srl = new Packer<String, HashSet<Integer>>(
+		bins,
+		new Packer.Scale<HashSet<Integer>>() {
+			@Override public int weigh(HashSet<Integer> elem) {
+				return elem.size();
+			}
+		},
+		BIN_CAP
+	);
+
+	final protected Map<String, HashSet<Integer>> data = new HashMap<String, HashSet<Integer>>();
+	final protected Map<String, Object> meta = new HashMap<String, Object>();
+	final protected List<String> keys = new ArrayList<String>();
+
+	protected static HashSet<Integer> rndElement() {
+		int n = 1 + Generators.rand.nextInt(BIN_CAP >> 2);
+		HashSet<Integer> hs = new HashSet<Integer>(n << 1);
+		for (int i=0; i<n; ++i) { hs.add(i); }
+		return hs;
+	}
+
+	@Setup public void setUp() throws TaskAbortException {
+		Map<String, PushTask<HashSet<Integer>>> tasks = new HashMap<String, PushTask<HashSet<Integer>>>();
+		for (int i=0; i<elements; ++i) {
+			String k = Generators.rndKey();
+			keys.add(k);
+			data.put(k, rndElement());
+			tasks.put(k, new PushTask<HashSet<Integer>>(data.get(k)));
+		}
+		srl.setAggression(0);
+		srl.push(tasks, null);
+		for (Map.Entry<String, PushTask<HashSet<Integer>>> en: tasks.entrySet()) {
+			meta.put(en.getKey(), en.getValue().meta);
+		}
+		bins.frozen = true;
+		srl.setAggression(aggression);
+	}
+
+	@Benchmark
+	public Map<String, PushTask<HashSet<Integer>>> push() throws TaskAbortException {
+		Map<String, PushTask<HashSet<Integer>>> tasks = new HashMap<String, PushTask<HashSet<Integer>>>(keys.size() << 1);
+		for (String k: keys) {
+			tasks.put(k, new PushTask<HashSet<Integer>>(null, meta.get(k)));
+		}
+		for (int i=0; i<changed; ++i) {
+			String k = keys.get(Generators.rand.nextInt(keys.size()));
+			tasks.get(k).data = rndElement();
+		}
+		srl.push(tasks, null);
+		return tasks;
+	}
+
+}
@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.util.Generators;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+import plugins.Library.ui.RelevanceComparator;
+
+import freenet.keys.FreenetURI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Benchmarks for combining the results of the terms of a query, on synthetic
+** posting lists. Each operation is one {@link ResultSet}, or one page of
+** results picked by {@link ResultCursor}.
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResultSetBench {
+
+	final public static int pages = 0x4000;
+
+	/**
+	** Posting lists for some terms over the same {@link #pages} pages.
+	*/
+	abstract public static class Terms {
+
+		final protected List<Set<TermEntry>> sets = new ArrayList<Set<TermEntry>>();
+
+		/**
+		** For each term, the step between the pages it is in, and the offset
+		** of its positions within each page.
+		*/
+		abstract protected int[][] terms();
+
+		@Setup public void setUp() {
+			FreenetURI[] uris = new FreenetURI[pages];
+			for (int i=0; i<pages; ++i) { uris[i] = FreenetURI.generateRandomCHK(Generators.rand); }
+			for (int[] term: terms()) {
+				String subj = Generators.rndKey();
+				Set<TermEntry> set = new HashSet<TermEntry>();
+				for (int p=0; p<pages; p+=term[0]) {
+					Map<Integer, String> pos = new HashMap<Integer, String>();
+					for (int i=0; i<(p&7); ++i) { pos.put(10*i+term[1], null); }
+					set.add(new TermPageEntry(subj, Generators.rand.nextFloat(), uris[p], pos));
+				}
+				sets.add(set);
+			}
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class Op extends Terms {
+
+		@Param({"and", "or", "not", "phrase"})
+		public String op;
+
+		protected ResultOperation operation() {
+			if (op.equals("and")) { return ResultOperation.INTERSECTION; }
+			if (op.equals("or")) { return ResultOperation.UNION; }
+			if (op.equals("not")) { return ResultOperation.REMOVE; }
+			if (op.equals("phrase")) { return ResultOperation.PHRASE; }
+			throw new IllegalArgumentException("unknown operation: " + op);
+		}
+
+		@Override protected int[][] terms() {
+			if (op.equals("and")) { return new int[][]{{2, 0}, {3, 0}, {5, 0}}; }
+			if (op.equals("phrase")) { return new int[][]{{1, 0}, {2, 1}, {1, 2}}; }
+			return new int[][]{{2, 0}, {3, 0}};
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class Top extends Terms {
+
+		@Param({"16", "256"})
+		public int k;
+
+		@Override protected int[][] terms() {
+			return new int[][]{{1, 0}};
+		}
+
+	}
+
+	@Benchmark
+	public ResultSet resultSet(Op st) throws Exception {
+		List<Execution<Set<TermEntry>>> reqs = new ArrayList<Execution<Set<TermEntry>>>();
+		for (Set<TermEntry> set: st.sets) { reqs.add(new ResultSetTest.Done(set)); }
+		ResultSet rs = new ResultSet("result", st.operation(), reqs, false);
+		rs.run();
+		return rs;
+	}
+
+	@Benchmark
+	public Object resultCursorTop(Top st) {
+		return ResultCursor.top(st.sets.get(0), st.k, RelevanceComparator.comparator, null);
+	}
+
+}
@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Benchmarks for the in-memory operations of {@link BTreeMap}. Each operation
+** is one key.
+**
+** Run on its own, this measures the heap taken up by each entry instead,
+** compared to a {@link TreeMap}. The figures depend on the JVM and its
+** garbage collector, so they are only printed.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BTreeMapBench {
+
+	final public static int[] node_mins = new int[]{2, 0x04, 0x10, 0x40, 0x400};
+	final public static int size = 0x4000;
+
+	@Param({"2", "4", "16", "64", "1024"})
+	public int node_min;
+
+	final protected List<String> keys = new ArrayList<String>(size);
+	final protected List<String> shuffled = new ArrayList<String>(size);
+	protected BTreeMap<String, Integer> map;
+
+	@Setup public void setUp() {
+		map = new BTreeMap<String, Integer>(node_min);
+		for (int i=0; i<size; ++i) {
+			String k = Generators.rndKey();
+			keys.add(k);
+			map.put(k, i);
+		}
+		shuffled.addAll(keys);
+		Collections.shuffle(shuffled, Generators.rand);
+	}
+
+	@Benchmark @OperationsPerInvocation(size)
+	public BTreeMap<String, Integer> put() {
+		BTreeMap<String, Integer> m = new BTreeMap<String, Integer>(node_min);
+		for (String k: keys) { m.put(k, 0); }
+		return m;
+	}
+
+	@Benchmark @OperationsPerInvocation(size)
+	public long get() {
+		long s = 0;
+		for (String k: shuffled) { s += map.get(k); }
+		return s;
+	}
+
+	@Benchmark @OperationsPerInvocation(size)
+	public long iterate() {
+		long s = 0;
+		for (Map.Entry<String, Integer> en: map.entrySet()) { s += en.getValue(); }
+		return s;
+	}
+
+	/**
+	** Returns the heap in use, after giving the garbage collector a chance to
+	** clear out everything that it can.
+	*/
+	protected static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i=0; i<4; ++i) {
+			System.gc();
+			try { Thread.sleep(0x10); } catch (InterruptedException e) { }
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	** Heap taken up by a map of {@code keys.length} entries, not counting the
+	** keys and values themselves, in bytes per entry.
+	*/
+	public static double bytesPerEntry(Map<Integer, Integer> map, Integer[] keys) {
+		long m0 = usedMemory();
+		for (Integer k: keys) { map.put(k, k); }
+		long m1 = usedMemory();
+		if (map.size() != keys.length) { throw new AssertionError("map has " + map.size() + " entries, not " + keys.length); }
+		return (double)(m1 - m0) / keys.length;
+	}
+
+	public static void main(String[] args) {
+		Integer[] keys = new Integer[0x40000];
+		for (int i=0; i<keys.length; ++i) { keys[i] = Generators.rand.nextInt(); }
+		// remove duplicates, so that each map ends up with the same size
+		keys = new TreeSet<Integer>(Arrays.asList(keys)).toArray(new Integer[0]);
+		Collections.shuffle(Arrays.asList(keys), Generators.rand);
+
+		System.out.println(String.format("TreeMap: %.1f bytes/entry", bytesPerEntry(new TreeMap<Integer, Integer>(), keys)));
+		for (int node_min: node_mins) {
+			double btree = bytesPerEntry(new BTreeMap<Integer, Integer>(node_min), keys);
+			System.out.println(String.format("BTreeMap(node_min=%d): %.1f bytes/entry", node_min, btree));
+			double skel = bytesPerEntry(new SkeletonBTreeMap<Integer, Integer>(node_min), keys);
+			System.out.println(String.format("SkeletonBTreeMap(node_min=%d): %.1f bytes/entry", node_min, skel));
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import plugins.Library.index.ProtoIndexComponentSerialiser.BTreeNodeSerialiser;
+import plugins.Library.index.ProtoIndexComponentSerialiser.DummySerialiser;
+import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.serial.FileArchiver;
+import plugins.Library.util.concurrent.Executors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.io.File;
+
+/**
+** Benchmarks for merging changes into a {@link SkeletonBTreeMap} that is
+** stored on disk using a {@link FileArchiver}, through {@link
+** SkeletonBTreeSet#update(java.util.SortedSet, java.util.SortedSet)}.
+**
+** Each operation is one update that adds a batch of new keys, or one that
+** removes them again, so the tree stays the same size throughout.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SkeletonBTreeMapBench {
+
+	final public static int size = 0x800;
+
+	@Param({"16", "64"})
+	public int node_min;
+
+	@Param({"16", "256"})
+	public int batch;
+
+	protected File dir;
+	protected SkeletonBTreeSet<Integer> tree;
+
+	@Setup public void setUp() throws Exception {
+		// the default threads are not daemons, and would keep the forked JVM
+		// running for a while after the benchmark has finished
+		Executors.setDefaultExecutor(new ThreadPoolExecutor(
+			0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new ThreadFactory() {
+				/*@Override**/ public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					return t;
+				}
+			}
+		));
+
+		dir = File.createTempFile("library-bench-", "");
+		dir.delete();
+		dir.mkdir();
+		FileArchiver<Map<String, Object>> arx = new FileArchiver<Map<String, Object>>(
+			new YamlReaderWriter(), true, YamlReaderWriter.FILE_EXTENSION, "", "", dir);
+		tree = new SkeletonBTreeSet<Integer>(node_min);
+		tree.setSerialiser(new BTreeNodeSerialiser<Integer, Integer>(
+			"bench entries",
+			arx,
+			tree.makeNodeTranslator(null, new SkeletonBTreeSet.TreeSetTranslator<Integer>())
+		), new DummySerialiser<Integer, Integer>());
+		for (int i=0; i<size; ++i) {
+			tree.add(Generators.rand.nextInt());
+		}
+		tree.deflate();
+	}
+
+	@TearDown public void tearDown() {
+		for (File f: dir.listFiles()) { f.delete(); }
+		dir.delete();
+	}
+
+	@Benchmark @OperationsPerInvocation(2)
+	public int update() throws Exception {
+		TreeSet<Integer> keys = new TreeSet<Integer>();
+		while (keys.size() < batch) { keys.add(Generators.rand.nextInt()); }
+		TreeSet<Integer> none = new TreeSet<Integer>();
+		tree.update(keys, none);
+		int s = tree.size();
+		tree.update(none, keys);
+		return s + tree.size();
+	}
+
+}
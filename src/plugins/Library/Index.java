@@ -10,6 +10,7 @@ import plugins.Library.util.exec.Execution;
 import freenet.keys.FreenetURI;
 
 import java.util.Set;
+import java.util.SortedSet;
 
 /**
 ** Represents the data for an index.
@@ -25,6 +26,18 @@ public interface Index {
 	*/
 	public Execution<Set<TermEntry>> getTermEntries(String term);
 
+	/**
+	** Non-blocking fetch of the terms that start with the given prefix, in
+	** sorted order. Only the part of the index that holds these terms should
+	** be loaded to do this.
+	**
+	** The execution fails if there are more than {@code max} such terms.
+	**
+	** @throws UnsupportedOperationException if the index is not sorted by
+	**         term, and so can't do this efficiently
+	*/
+	public Execution<SortedSet<String>> getTermsWithPrefix(String prefix, int max);
+
 	public Execution<URIEntry> getURIEntry(FreenetURI uri);
 
 }
@@ -0,0 +1,199 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.support.Executor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+** Loads the roots of indexes in the background, and keeps them so that every
+** search on an index can share the same root rather than fetching and parsing
+** it again.
+**
+** Each root is keyed by the URI of the index without its edition, together
+** with the edition. Asking for a newer edition than the one kept loads it and
+** drops the old one; asking for an older one gets the newer one that is kept.
+** Roots which failed to load are dropped, so that the next request tries
+** again. Requests for a root which is still loading share the same load.
+**
+** @param <R> Type of the root
+*/
+public class IndexRootCache<R> {
+
+	/**
+	** Loads the root of an index, blocking until it has.
+	*/
+	public interface Loader<R> {
+		public R load() throws TaskAbortException;
+	}
+
+	/** Default number of roots that are kept */
+	final public static int DEFAULT_CAPACITY = 0x20;
+
+	final protected Executor exec;
+	final protected int capacity;
+
+	/**
+	** Loads, by key, with the least recently used first.
+	*/
+	final protected LinkedHashMap<String, Load> roots = new LinkedHashMap<String, Load>(0x10, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override protected boolean removeEldestEntry(Map.Entry<String, Load> en) {
+			return size() > capacity;
+		}
+	};
+
+	protected int loads = 0;
+	protected int hits = 0;
+
+	/**
+	** @param exec Runs the loads, or null to run each in a new thread
+	** @param capacity Most roots to keep
+	*/
+	public IndexRootCache(Executor exec, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+		}
+		this.exec = exec;
+		this.capacity = capacity;
+	}
+
+	/**
+	** Non-blocking get of the root of an index.
+	**
+	** @param key The URI of the index, without its edition
+	** @param edition The edition of the index, or -1 if it doesn't have any
+	** @param loader Loads the root, if it isn't kept or loading already
+	*/
+	public Execution<R> get(String key, long edition, Loader<R> loader) {
+		Load load;
+		synchronized (this) {
+			load = roots.get(key);
+			if (load != null && load.edition >= edition && !load.isFailed()) {
+				++hits;
+				return load;
+			}
+			load = new Load(key, edition, loader);
+			roots.put(key, load);
+			++loads;
+		}
+		if (exec != null) {
+			exec.execute(load, "Library.IndexRootCache : loading " + key);
+		} else {
+			(new Thread(load, "Library.IndexRootCache : loading " + key)).start();
+		}
+		return load;
+	}
+
+	/**
+	** Drops the root of an index if it is older than the given edition, eg.
+	** when a newer edition is found.
+	**
+	** @return Whether a root was dropped
+	*/
+	public synchronized boolean invalidate(String key, long edition) {
+		Load load = roots.get(key);
+		if (load == null || load.edition >= edition) { return false; }
+		roots.remove(key);
+		return true;
+	}
+
+	/**
+	** Drops the root of an index, whatever its edition.
+	*/
+	public synchronized boolean invalidate(String key) {
+		return roots.remove(key) != null;
+	}
+
+	public synchronized void clear() {
+		roots.clear();
+	}
+
+	/**
+	** @return The edition of the root kept for the index, or null if there is none
+	*/
+	public synchronized Long getEdition(String key) {
+		Load load = roots.get(key);
+		return (load == null)? null: load.edition;
+	}
+
+	public synchronized int size() {
+		return roots.size();
+	}
+
+	/**
+	** Number of roots which have been loaded, or started to.
+	*/
+	public synchronized int getLoads() {
+		return loads;
+	}
+
+	/**
+	** Number of requests answered by a root which was kept, or already loading.
+	*/
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	** Drops a failed load, unless it has already been replaced.
+	*/
+	protected synchronized void dropFailed(Load load) {
+		if (roots.get(load.key) == load) {
+			roots.remove(load.key);
+		}
+	}
+
+	protected class Load extends AbstractExecution<R> implements Runnable {
+
+		final protected String key;
+		final protected long edition;
+		final protected Loader<R> loader;
+
+		protected Load(String key, long edition, Loader<R> loader) {
+			super(key);
+			this.key = key;
+			this.edition = edition;
+			this.loader = loader;
+		}
+
+		/*@Override**/ public void run() {
+			try {
+				setResult(loader.load());
+			} catch (TaskAbortException e) {
+				dropFailed(this);
+				setError(e);
+			} catch (RuntimeException e) {
+				dropFailed(this);
+				setError(new TaskAbortException("Failed to load the root of index " + key, e));
+			}
+		}
+
+		protected boolean isFailed() {
+			try {
+				isDone();
+				return false;
+			} catch (TaskAbortException e) {
+				return true;
+			}
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			return ProgressParts.normalise(isDone()? 1: 0, 1);
+		}
+
+		@Override public String getStatus() {
+			return "Loading the root of index " + key + ((edition < 0)? "": " edition " + edition);
+		}
+
+	}
+
+}
@@ -26,6 +26,7 @@ import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
 import plugins.Library.io.serial.Serialiser.PullTask;
 import plugins.Library.search.InvalidSearchException;
+import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.TaskAbortException;
 
 import freenet.client.FetchContext;
@@ -135,6 +136,7 @@ final public class Library implements URLUpdateHook {
 			this.exec = null;
 			ps = null;
 		}
+		roots = new IndexRootCache<Index>(exec, IndexRootCache.DEFAULT_CAPACITY);
 		USKManager uskManager = pr.getNode().clientCore.clientContext.uskManager;
 		store = ps;
 		if(store != null && store.subStores.containsKey(STOREKEY)) {
@@ -233,26 +235,27 @@ final public class Library implements URLUpdateHook {
 		}
 	}
 	
-	/* FIXME
-	 * Parallel fetch from the same index is not currently supported. This means that the only reliable way to
-	 * do e.g. an intersection search is to run two completely separate fetches. Otherwise we get assertion 
-	 * errors in e.g. BTreePacker.preprocessPullBins from TaskInProgressException's we can't handle from 
-	 * ProgressTracker.addPullProgress, when the terms are in the same bucket. We should make it possible to
-	 * search for multiple terms in the same btree, but for now, turning off caching is the only viable option.
-	 */
+	/**
+	** Holds the read-indexes, by uri and edition. Every search on an edition
+	** of an index shares the same {@link Index}, so the nodes it has loaded
+	** are kept between searches; {@link ProtoIndex} serialises inflating the
+	** same node from several searches at once (see ProtoIndex.inflateTtab).
+	*/
+	private final IndexRootCache<Index> roots;
+
+	/**
+	** The type of each index that has been looked up, by uri without the
+	** edition, so that it is only fetched once.
+	*/
+	private final Map<String, Class<?>> indexTypes = new HashMap<String, Class<?>>();
 
-//	/**
-//	** Holds all the read-indexes.
-//	*/
-//	private Map<String, Index> rtab = new HashMap<String, Index>();
-//
 //	/**
 //	** Holds all the writeable indexes.
 //	*/
 //	private Map<String, WriteableIndex> wtab = new HashMap<String, WriteableIndex>();
 //
 	/**
-	** Holds all the bookmarks (aliases into the rtab).
+	** Holds all the bookmarks (aliases into the roots).
 	*/
 	private Map<String, String> bookmarks = new HashMap<String, String>();
 
@@ -328,7 +331,7 @@ final public class Library implements URLUpdateHook {
 	}
 
 	public Class<?> getIndexTypeFromMIME(String mime) {
-		if (mime.equals(ProtoIndex.MIME_TYPE)) {
+		if (mime.equals(ProtoIndex.MIME_TYPE) || mime.equals(ProtoIndexSerialiser.MIME_TYPE_YAML)) {
 			//return "YAML index";
 			return ProtoIndex.class;
 		} else if (mime.equals(XMLIndex.MIME_TYPE)) {
@@ -446,6 +449,58 @@ final public class Library implements URLUpdateHook {
 		throw new UnsupportedOperationException("Could not determine default index file under the path given: " + f);
 	}
 
+	/**
+	 * Returns the type of the index, without loading its root. At most the
+	 * metadata of the index is fetched, which this blocks for.
+	 *
+	 * @param indexuri index specifier, as for {@link #getIndexAsync(String)}
+	 * @throws InvalidSearchException if indexuri is a bookmark which doesn't exist
+	 * @throws TaskAbortException if the type of indexuri is not recognised
+	 */
+	public Class<?> getIndexType(String indexuri) throws InvalidSearchException, TaskAbortException {
+		indexuri = indexuri.trim();
+		if (indexuri.startsWith(BOOKMARK_PREFIX)){
+			String name = indexuri.substring(BOOKMARK_PREFIX.length());
+			String bookmark = getBookmark(name);
+			if (bookmark != null)
+				return getIndexType(bookmark);
+			else
+				throw new InvalidSearchException("Index bookmark '"+name+" does not exist");
+		}
+
+		try {
+			return indexTypeOf(getAddressTypeFromString(indexuri));
+		} catch (FetchException e) {
+			throw new TaskAbortException("Failed to fetch index " + indexuri+" : "+e, e, true); // can retry
+		} catch (UnsupportedOperationException e) {
+			throw new TaskAbortException("Did not recognise index type in : \""+indexuri+"\"", e);
+		}
+	}
+
+	/**
+	 * Returns the type of the index with the given key, remembering it in
+	 * {@link #indexTypes}
+	 */
+	private Class<?> indexTypeOf(Object indexkey) throws FetchException {
+		String key = rootKey(indexkey);
+		synchronized (indexTypes) {
+			Class<?> type = indexTypes.get(key);
+			if (type != null) { return type; }
+		}
+		Class<?> type;
+		if (indexkey instanceof File) {
+			type = getIndexType((File)indexkey);
+		} else if (indexkey instanceof FreenetURI) {
+			type = getIndexType((FreenetURI)indexkey);
+		} else {
+			throw new AssertionError();
+		}
+		synchronized (indexTypes) {
+			indexTypes.put(key, type);
+		}
+		return type;
+	}
+
 	public Object getAddressTypeFromString(String indexuri) {
 		try {
 			// return KeyExplorerUtils.sanitizeURI(new ArrayList<String>(), indexuri); KEYEXPLORER
@@ -544,6 +599,7 @@ final public class Library implements URLUpdateHook {
 		public BookmarkCallback(String name, String[] allMetaStrings, long origEdition) {
 			this.bookmarkName = name;
 			this.metaStrings = allMetaStrings;
+			this.origEdition = origEdition;
 		}
 
 		public short getPollingPriorityNormal() {
@@ -565,8 +621,11 @@ final public class Library implements URLUpdateHook {
 				return;
 			}
 			if(newKnownGood) {
-				String uri = key.copy(l).getURI().setMetaString(metaStrings).toString();
+				FreenetURI furi = key.copy(l).getURI().setMetaString(metaStrings);
+				String uri = furi.toString();
 				if(logMINOR) Logger.minor(this, "Bookmark "+bookmarkName+" new last known good edition "+l+" uri is now "+uri);
+				// searches from now on load the new edition, those running keep the old one
+				roots.invalidate(rootKey(furi), l);
 				addBookmark(bookmarkName, uri);
 			}
 		}
@@ -606,7 +665,7 @@ final public class Library implements URLUpdateHook {
 		return indices;
 	}
 
-	// See comments near rtab. Can't use in parallel so not acceptable.
+	// Indexes are kept by edition, see comments near roots.
 //	/**
 //	 * Method to get all of the instatiated Indexes
 //	 */
@@ -619,39 +678,51 @@ final public class Library implements URLUpdateHook {
 	}
 
 	/**
-	 * Gets an index using its id in the form {type}:{uri} <br />
-	 * known types are xml, bookmark
-	 * @param indexid
+	 * Returns an Index object for the uri specified, blocking until its root
+	 * has been loaded, see {@link #getIndexAsync(String, String)}
+	 *
+	 * @param indexuri index specifier
 	 * @return Index object
-	 * @throws plugins.Library.util.InvalidSearchException
 	 */
+	public final Index getIndex(String indexuri, String origIndexName) throws InvalidSearchException, TaskAbortException {
+		Execution<Index> index = getIndexAsync(indexuri, origIndexName);
+		try {
+			index.join();
+		} catch (InterruptedException e) {
+			throw new TaskAbortException("Interrupted while loading index " + indexuri, e);
+		}
+		return index.getResult();
+	}
+
+	public final Execution<Index> getIndexAsync(String indexuri) throws InvalidSearchException, TaskAbortException {
+		return getIndexAsync(indexuri, null);
+	}
+
 	/**
-	 * Returns an Index object for the uri specified,
-	 * gets an existing one if its there else makes a new one
+	 * Non-blocking get of an Index object for the uri specified. The root of
+	 * the index is loaded in the background, or shared with other searches on
+	 * the same edition of the index if it has already been loaded, see {@link #roots}
 	 *
 	 * TODO : identify all index types so index doesn't need to refer to them directly
 	 * @param indexuri index specifier
-	 * @return Index object
+	 * @param origIndexName name of the bookmark the index was found through, if any
+	 * @return Execution which finishes with the Index once its root has been loaded
+	 * @throws InvalidSearchException if indexuri is a bookmark which doesn't exist
+	 * @throws TaskAbortException if the type of indexuri is not recognised
 	 */
-	public final Index getIndex(String indexuri, String origIndexName) throws InvalidSearchException, TaskAbortException {
+	public final Execution<Index> getIndexAsync(String indexuri, String origIndexName) throws InvalidSearchException, TaskAbortException {
 		Logger.normal(this, "Getting index "+indexuri);
 		indexuri = indexuri.trim();
 		if (indexuri.startsWith(BOOKMARK_PREFIX)){
 			indexuri = indexuri.substring(BOOKMARK_PREFIX.length());
-			if (bookmarks.containsKey(indexuri))
-				return getIndex(bookmarks.get(indexuri), indexuri);
+			String bookmark = getBookmark(indexuri);
+			if (bookmark != null)
+				return getIndexAsync(bookmark, indexuri);
 			else
 				throw new InvalidSearchException("Index bookmark '"+indexuri+" does not exist");
 		}
 
-		// See comments near rtab. Can't use in parallel so caching is dangerous.
-//		if (rtab.containsKey(indexuri))
-//			return rtab.get(indexuri);
-//
-		Class<?> indextype;
-		Index index;
-		Object indexkey;
-
+		final Object indexkey;
 		try{
 			indexkey = getAddressTypeFromString(indexuri);
 		}catch(UnsupportedOperationException e){
@@ -659,35 +730,57 @@ final public class Library implements URLUpdateHook {
 		}
 
 		long edition = -1;
+		if (indexkey instanceof FreenetURI && ((FreenetURI)indexkey).isUSK())
+			edition = ((FreenetURI)indexkey).getEdition();
+
+		final String uri = indexuri;
+		final long ed = edition;
+		final String name = origIndexName;
+		return roots.get(rootKey(indexkey), edition, new IndexRootCache.Loader<Index>() {
+			/*@Override**/ public Index load() throws TaskAbortException {
+				return loadRoot(uri, indexkey, ed, name);
+			}
+		});
+	}
+
+	/**
+	 * The key of an index in {@link #roots}, its uri without the edition
+	 */
+	private static String rootKey(Object indexkey) {
+		if (indexkey instanceof FreenetURI) {
+			FreenetURI uri = (FreenetURI)indexkey;
+			return (uri.isUSK()? uri.setSuggestedEdition(0): uri).toString();
+		} else if (indexkey instanceof File) {
+			return ((File)indexkey).getPath();
+		} else {
+			throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Fetches the root of an index and constructs the index from it, blocking
+	 * until it has
+	 */
+	private Index loadRoot(String indexuri, final Object indexkey, long edition, String origIndexName) throws TaskAbortException {
+		Class<?> indextype;
+		Index index;
 
 		try {
-			if (indexkey instanceof File) {
-				indextype = getIndexType((File)indexkey);
-			} else if (indexkey instanceof FreenetURI) {
-				// TODO HIGH make this non-blocking
-				FreenetURI uri = (FreenetURI)indexkey;
-				if(uri.isUSK())
-					edition = uri.getEdition();
-				indextype = getIndexType(uri);
-			} else {
-				throw new AssertionError();
-			}
+			indextype = indexTypeOf(indexkey);
 
 			if (indextype == ProtoIndex.class) {
-				// TODO HIGH this *must* be non-blocking as it fetches the whole index root
 				PullTask<ProtoIndex> task = new PullTask<ProtoIndex>(indexkey);
 				ProtoIndexSerialiser.forIndex(indexkey, RequestStarter.INTERACTIVE_PRIORITY_CLASS).pull(task);
 				index = task.data;
 
 			} else if (indextype == XMLIndex.class) {
+				// XMLIndex fetches its own root when it is first searched
 				index = new XMLIndex(indexuri, edition, pr, this, origIndexName);
 
 			} else {
 				throw new AssertionError();
 			}
 
-			// See comments near rtab. Can't use in parallel so caching is dangerous.
-			//rtab.put(indexuri, index);
 			Logger.normal(this, "Loaded index type " + indextype.getName() + " at " + indexuri);
 
 			return index;
@@ -707,6 +800,9 @@ final public class Library implements URLUpdateHook {
 		} catch (MetadataParseException e) {
 			throw new TaskAbortException("Failed to parse index  " + indexuri, e);
 */
+		} catch (InvalidSearchException e) {
+			throw new TaskAbortException("Failed to load index  " + indexuri+" : "+e, e);
+
 		} catch (UnsupportedOperationException e) {
 			throw new TaskAbortException("Failed to parse index  " + indexuri+" : "+e, e);
 
@@ -716,7 +812,6 @@ final public class Library implements URLUpdateHook {
 		}
 	}
 
-
 	/**
 	** Create a {@link FreenetArchiver} connected to the core of the
 	** singleton's {@link PluginRespirator}.
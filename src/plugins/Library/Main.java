@@ -141,8 +141,11 @@ public class Main implements FredPlugin, FredPluginVersioned, freenet.pluginmana
 		Main.pr = pr;
 		Executor exec = pr.getNode().executor;
 		library = Library.init(pr);
+		// searches read index blocks through this too, not just the uploader
+		FreenetArchiver.setupDefaultCache();
 		Search.setup(library, exec);
-		Executors.setDefaultExecutor(exec);
+		// run the plugin's tasks on the node's threads, unless asked for virtual threads
+		if (!Executors.useVirtualThreads()) { Executors.setDefaultExecutor(exec); }
 		webinterface = new WebInterface(library, pr);
 		webinterface.load();
 		uploader = new SpiderIndexUploader(pr);
@@ -13,7 +13,6 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -27,12 +26,16 @@ import plugins.Library.index.ProtoIndexComponentSerialiser;
 import plugins.Library.index.ProtoIndexSerialiser;
 import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermEntryReaderWriter;
+import plugins.Library.index.TermEntrySorter;
+import plugins.Library.io.MergeJournal;
 import plugins.Library.io.serial.LiveArchiver;
 import plugins.Library.io.serial.Serialiser.PullTask;
 import plugins.Library.io.serial.Serialiser.PushTask;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
 import plugins.Library.util.TaskAbortExceptionConvertor;
+import plugins.Library.util.concurrent.PriorityExecutor;
+import plugins.Library.util.concurrent.PriorityExecutor.TaskClass;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.func.Closure;
@@ -171,9 +174,33 @@ public class SpiderIndexUploader {
 
 	// This is a member variable because it is huge, and having huge stuff in local variables seems to upset the default garbage collector.
 	// It doesn't need to be synchronized because it's always used from mergeToDisk, which never runs in parallel.
-	private Map<String, SortedSet<TermEntry>> newtrees;
+	// Only spillEntries of the entries are held in memory at once, the rest are sorted on disk.
+	private TermEntrySorter newtrees;
 	// Ditto
 	private SortedSet<String> terms;
+
+	/** Number of new entries to hold in memory while reading a bucket from Spider. Beyond this,
+	 * entries are written to disk in sorted runs and merged before updating idxDisk, so memory use
+	 * does not depend on the size of the bucket. */
+	static final int DEFAULT_SPILL_ENTRIES = 100*1000;
+	/** System property to override spillEntries with. */
+	static final String SPILL_ENTRIES_PROPERTY = "plugins.Library.spillEntries";
+	/** System property to override spillDir with. */
+	static final String SPILL_DIR_PROPERTY = "plugins.Library.spillDir";
+	private int spillEntries = Integer.getInteger(SPILL_ENTRIES_PROPERTY, DEFAULT_SPILL_ENTRIES);
+	/** Directory the sorted runs are written to. This needs room for a copy of the bucket being
+	 * merged, in a less compact form. */
+	private File spillDir = new File(System.getProperty(SPILL_DIR_PROPERTY, "."));
+
+	public synchronized void setSpillEntries(int entries) {
+		if(entries <= 0) throw new IllegalArgumentException("spillEntries must be positive: "+entries);
+		spillEntries = entries;
+	}
+
+	public synchronized void setSpillDir(File dir) {
+		if(dir == null) throw new NullPointerException();
+		spillDir = dir;
+	}
 	
 	ProtoIndexSerialiser srlDisk = null;
 	private ProtoIndexComponentSerialiser leafsrlDisk;
@@ -193,11 +220,27 @@ public class SpiderIndexUploader {
 		if(!makeDiskDirSerialiser()) return;
 		
 		// Read data into newtrees and trees.
-		long entriesAdded = readTermsFrom(data);
+		long entriesAdded;
+		try {
+			entriesAdded = readTermsFrom(data);
+		} catch (TaskAbortException e) {
+			// Don't merge what we have, the bucket would be freed and the rest lost.
+			Logger.error(this, "Failed to read bucket from spider: "+e, e);
+			synchronized(this) {
+				if(newtrees != null) newtrees.close();
+				newtrees = null;
+				terms = null;
+			}
+			synchronized(freenetMergeSync) {
+				pushBroken = true;
+			}
+			return;
+		}
 		
-		if(terms.size() == 0) {
+		if(terms == null || terms.size() == 0) {
 			Logger.debug(this, "Nothing to merge");
 			synchronized(this) {
+				if(newtrees != null) newtrees.close();
 				newtrees = null;
 				terms = null;
 			}
@@ -224,6 +267,7 @@ public class SpiderIndexUploader {
 			}		
 			// Synchronize anyway so garbage collector knows about it.
 			synchronized(this) {
+				newtrees.close();
 				newtrees = null;
 				terms = null;
 			}
@@ -250,6 +294,12 @@ public class SpiderIndexUploader {
 			synchronized(freenetMergeSync) {
 				pushBroken = true;
 			}
+		} finally {
+			synchronized(this) {
+				if(newtrees != null) newtrees.close();
+				newtrees = null;
+				terms = null;
+			}
 		}
 	}
 
@@ -320,7 +370,7 @@ public class SpiderIndexUploader {
             }
             
         };
-        pr.getNode().executor.execute(r, "Library: Merge data from disk to Freenet");
+        pr.getNode().executor.execute(PriorityExecutor.as(TaskClass.MERGE, r), "Library: Merge data from disk to Freenet");
         } else {
             Logger.debug(this, "Not merging to Freenet yet: "+idxDisk.ttab.size()+" terms in index, "+mergedToDisk+" merges, "+(lastMergedToFreenet <= 0 ? "never merged to Freenet" : ("last merged to Freenet "+TimeUtil.formatTime(System.currentTimeMillis() - lastMergedToFreenet))+"ago"));
         }
@@ -399,14 +449,13 @@ public class SpiderIndexUploader {
                     entry.setValue(tree = makeEntryTree(leafsrlDisk));
                 }
                 assert(tree.isBare());
-                SortedSet<TermEntry> toMerge = newtrees.get(key);
+                SortedSet<TermEntry> toMerge = takeNewEntries(key);
                 tree.update(toMerge, null);
                 if(toMerge.size() > MAX_DISK_ENTRY_SIZE)
                     synchronized(maxDiskEntrySizeExceeded) {
                         maxDiskEntrySizeExceeded.value = true;
                     }
                 toMerge = null;
-                newtrees.remove(key);
                 assert(tree.isBare());
                 if(logMINOR) Logger.minor(this, "Updated: "+key+" : "+tree);
                 //System.out.println("handled " + key);
@@ -425,7 +474,7 @@ public class SpiderIndexUploader {
         // FIXME throw in update() if it will deadlock.
         for(String key : terms) {
             SkeletonBTreeSet<TermEntry> tree = makeEntryTree(leafsrlDisk);
-            SortedSet<TermEntry> toMerge = newtrees.get(key);
+            SortedSet<TermEntry> toMerge = takeNewEntries(key);
             tree.addAll(toMerge);
             if(toMerge.size() > MAX_DISK_ENTRY_SIZE)
                 tooBig = true;
@@ -438,15 +487,29 @@ public class SpiderIndexUploader {
         return tooBig;
     }
 
+    /** Get the new entries for a term from newtrees.
+     * @throws TaskAbortException If they could not be read back from disk. */
+    private SortedSet<TermEntry> takeNewEntries(String key) throws TaskAbortException {
+        try {
+            return newtrees.take(key);
+        } catch (IOException e) {
+            throw new TaskAbortException("Failed to read spilled entries for "+key, e);
+        }
+    }
+
     /** Read the TermEntry's from the Bucket into newtrees and terms, and set up the index
-	 * properties.
+	 * properties. Once more than spillEntries have been read, they are sorted on disk, so
+	 * the whole bucket doesn't need to fit into memory.
 	 * @param data The Bucket containing TermPageEntry's etc serialised with TermEntryReaderWriter.
+	 * @throws TaskAbortException If the entries could not be spilled to disk or merged back.
 	 */
-    private long readTermsFrom(Bucket data) {
+    private long readTermsFrom(Bucket data) throws TaskAbortException {
         FileWriter w = null;
-        newtrees = new HashMap<String, SortedSet<TermEntry>>();
-        terms = new TreeSet<String>();
-        int entriesAdded = 0;
+        synchronized(this) {
+            newtrees = new TermEntrySorter(spillDir, spillEntries);
+        }
+        terms = null;
+        long entriesAdded = 0;
         InputStream is = null;
         try {
             Logger.normal(this, "Bucket of buffer received, "+data.size()+" bytes");
@@ -459,11 +522,11 @@ public class SpiderIndexUploader {
             try{
                 while(true){    // Keep going til an EOFExcepiton is thrown
                     TermEntry readObject = TermEntryReaderWriter.getInstance().readObject(is);
-                    SortedSet<TermEntry> set = newtrees.get(readObject.subj);
-                    if(set == null)
-                        newtrees.put(readObject.subj, set = new TreeSet<TermEntry>());
-                    set.add(readObject);
-                    terms.add(readObject.subj);
+                    try {
+                        newtrees.add(readObject);
+                    } catch (IOException e) {
+                        throw new TaskAbortException("Unable to spill entries to "+spillDir, e);
+                    }
                     entriesAdded++;
                 }
             }catch(EOFException e){
@@ -474,6 +537,14 @@ public class SpiderIndexUploader {
         } finally {
             Closer.close(is);
         }
+        try {
+            if(newtrees.runs() > 0)
+                Logger.normal(this, "Spilled "+entriesAdded+" entries to disk in "+newtrees.runs()+" runs, merging...");
+            newtrees.finish();
+            terms = newtrees.subjects();
+        } catch (IOException ex) {
+            throw new TaskAbortException("Unable to merge spilled entries", ex);
+        }
         return entriesAdded;
     }
 
@@ -577,7 +648,90 @@ public class SpiderIndexUploader {
 	}
 
 	private final Object inflateSync = new Object();
-	
+
+	static final String MERGE_JOURNAL_FILENAME = "library.index.merge-journal";
+
+	/** How often to commit the nodes pushed by a merge to its journal */
+	static final long MERGE_JOURNAL_COMMIT_INTERVAL = 5*60*1000;
+
+	/** Open the journal of the merge of an on-disk index, so that if the merge
+	 * is interrupted, the next attempt can reuse the nodes already pushed.
+	 * The journal is only valid for a merge into the same on-Freenet index.
+	 * @return The journal, or null if it could not be opened.
+	 */
+	private MergeJournal openMergeJournal(File diskDir) {
+		try {
+			MergeJournal journal = new MergeJournal(new File(diskDir, MERGE_JOURNAL_FILENAME),
+					diskDir.getName() + " " + lastUploadURI);
+			if(journal.size() > 0)
+				Logger.normal(this, "Resuming merge of "+diskDir+": "+journal);
+			return journal;
+		} catch (IOException e) {
+			Logger.error(this, "Unable to open merge journal for "+diskDir+", merging without one: "+e, e);
+			return null;
+		}
+	}
+
+	/** Periodically commit the nodes pushed so far to the journal, once the
+	 * inserts they were pushed to have completed, until the merge is done.
+	 * If an insert fails for good, the nodes pushed before it was started
+	 * are still committed.
+	 */
+	private class MergeJournalCommitter implements Runnable {
+
+		private final MergeJournal journal;
+		private boolean done;
+
+		MergeJournalCommitter(MergeJournal journal, final FreenetArchiver<?> arch) {
+			this.journal = journal;
+			// a node is pushed after everything it points to, so its data
+			// is stored once all the inserts started before then have been
+			journal.setBarrier(new MergeJournal.Barrier() {
+				@Override
+				public long mark() {
+					return arch.getInsertsStarted();
+				}
+
+				@Override
+				public long await(long mark) throws TaskAbortException {
+					return arch.waitForInserts(mark);
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				synchronized(this) {
+					long end = System.currentTimeMillis() + MERGE_JOURNAL_COMMIT_INTERVAL;
+					long now;
+					while(!done && (now = System.currentTimeMillis()) < end) {
+						try {
+							wait(end - now);
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					if(done) return;
+				}
+				try {
+					int n = journal.commit();
+					Logger.debug(this, "Committed "+n+" entries: "+journal);
+				} catch (TaskAbortException e) {
+					Logger.normal(this, "Unable to commit merge journal this time: "+e);
+				} catch (IOException e) {
+					Logger.error(this, "Unable to write merge journal: "+e, e);
+					return;
+				}
+			}
+		}
+
+		synchronized void finish() {
+			done = true;
+			notifyAll();
+		}
+	}
+
 	/** Merge from an on-disk index to an on-Freenet index.
 	 * @param diskToMerge The on-disk index.
 	 * @param diskDir The folder the on-disk index is stored in.
@@ -600,6 +754,16 @@ public class SpiderIndexUploader {
 		// async merge
 		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo =
 		    createMergeFromTreeClosure(newtrees);
+		FreenetArchiver<Map<String, Object>> arch = 
+		    (FreenetArchiver<Map<String, Object>>) srl.getChildSerialiser();
+		// Journal of the nodes pushed, kept if the merge fails so it can be resumed.
+		MergeJournal journal = openMergeJournal(diskDir);
+		MergeJournalCommitter committer = null;
+		if(journal != null) {
+		    idxFreenet.ttab.setJournal(journal);
+		    committer = new MergeJournalCommitter(journal, arch);
+		    pr.getNode().executor.execute(PriorityExecutor.as(TaskClass.MERGE, committer), "Library: Commit merge journal");
+		}
 		try {
 		    long mergeStartTime = System.currentTimeMillis();
 		    assert(idxFreenet.ttab.isBare());
@@ -625,15 +789,24 @@ public class SpiderIndexUploader {
 			srl.push(task4);
 
 			// Now wait for the inserts to finish. They are started asynchronously in the above merge.
-			FreenetArchiver<Map<String, Object>> arch = 
-			    (FreenetArchiver<Map<String, Object>>) srl.getChildSerialiser();
 			arch.waitForAsyncInserts();
+			if(committer != null) committer.finish();
+			if(journal != null) {
+			    // The merge is complete, nothing to resume.
+			    try {
+			        journal.delete();
+			    } catch (IOException e) {
+			        Logger.error(this, "Unable to delete merge journal: "+e, e);
+			    }
+			}
 			
 			long mergeEndTime = System.currentTimeMillis();
 			Logger.debug(this, entriesAdded + " entries merged in " + (mergeEndTime-mergeStartTime) + " ms, root at " + task4.meta + ", ");
 			FreenetURI uri = (FreenetURI)task4.meta;
 			lastUploadURI = uri;
 			Logger.debug(this, "Uploaded new index to "+uri);
+			if(FreenetArchiver.getCache() != null)
+			    Logger.normal(this, "After merge: "+FreenetArchiver.getCache());
 			if(writeURITo(new File(LAST_URL_FILENAME), uri)) {
                 newtrees.deflate();
                 diskToMerge = null;
@@ -651,6 +824,16 @@ public class SpiderIndexUploader {
 		    synchronized(freenetMergeSync) {
 		        pushBroken = true;
 		    }
+		} finally {
+		    if(committer != null) committer.finish();
+		    idxFreenet.ttab.setJournal(null);
+		    if(journal != null) {
+		        try {
+		            journal.close();
+		        } catch (IOException e) {
+		            Logger.error(this, "Unable to close merge journal: "+e, e);
+		        }
+		    }
 		}
 	}
 
@@ -777,11 +960,7 @@ public class SpiderIndexUploader {
     /** Set up the on-disk cache, which keeps a copy of everything we upload to Freenet, so we 
 	 * won't need to re-download it, which can be very slow and doesn't always succeed. */
     private void setupFreenetCacheDir() {
-        if(FreenetArchiver.getCacheDir() == null) {
-            File dir = new File("library-spider-pushed-data-cache");
-            dir.mkdir();
-            FreenetArchiver.setCacheDir(dir);
-        }
+        FreenetArchiver.setupDefaultCache();
     }
 
     protected static SkeletonBTreeSet<TermEntry> makeEntryTree(ProtoIndexComponentSerialiser leafsrl) {
@@ -807,6 +986,21 @@ public class SpiderIndexUploader {
 				
 			});
 		}
+		// Left over from a merge to disk that didn't finish, the data will be read again.
+		File spills;
+		synchronized(this) {
+			spills = spillDir;
+		}
+		File[] oldSpills = spills.listFiles(new FilenameFilter() {
+			
+			public boolean accept(File arg0, String arg1) {
+				return arg1.startsWith(TermEntrySorter.FILE_PREFIX);
+			}
+			
+		});
+		if(oldSpills != null) {
+			for(File f : oldSpills) f.delete();
+		}
 		final String[] dirsToMerge;
 		synchronized(freenetMergeSync) {
 			dirsToMerge = new File(".").list(new FilenameFilter() {
@@ -836,7 +1030,7 @@ public class SpiderIndexUploader {
 				}
 				
 			};
-			pr.getNode().executor.execute(r, "Library: handle index data from previous run");
+			pr.getNode().executor.execute(PriorityExecutor.as(TaskClass.MERGE, r), "Library: handle index data from previous run");
 		}
 		if(dirsToMerge != null && dirsToMerge.length > 0) {
 			Logger.debug(this, "Found "+dirsToMerge.length+" disk trees of old index data to merge...");
@@ -873,7 +1067,7 @@ public class SpiderIndexUploader {
 				}
 				
 			};
-			pr.getNode().executor.execute(r, "Library: handle trees from previous run");
+			pr.getNode().executor.execute(PriorityExecutor.as(TaskClass.MERGE, r), "Library: handle trees from previous run");
 		}
 	}
 
@@ -948,7 +1142,7 @@ public class SpiderIndexUploader {
 			}
 			
 		};
-		pr.getNode().executor.execute(r, "Library: Handle data from Spider");
+		pr.getNode().executor.execute(PriorityExecutor.as(TaskClass.MERGE, r), "Library: Handle data from Spider");
 	}
 
 	public FreenetURI getPublicUSKURI() {
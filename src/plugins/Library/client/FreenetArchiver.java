@@ -9,14 +9,24 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import plugins.Library.Library;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.io.BlockCache;
 import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.AsyncArchiver;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.PriorityExecutor;
+import plugins.Library.util.concurrent.PriorityExecutor.TaskClass;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 import freenet.client.ClientMetadata;
 import freenet.client.FetchException;
@@ -28,6 +38,8 @@ import freenet.client.InsertContext;
 import freenet.client.InsertException;
 import freenet.client.async.BaseClientPutter;
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientGetCallback;
+import freenet.client.async.ClientGetter;
 import freenet.client.async.ClientPutCallback;
 import freenet.client.async.ClientPutter;
 import freenet.client.async.PersistenceDisabledException;
@@ -48,7 +60,6 @@ import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileBucket;
 import freenet.support.io.ResumeFailedException;
 
 /**
@@ -57,13 +68,17 @@ import freenet.support.io.ResumeFailedException;
 ** used to do the hard work once the relevant streams have been established,
 ** from temporary {@link Bucket}s.
 **
-** Supports a local cache.
-** FIXME: NOT GARBAGE COLLECTED! Eventually will fill up all available disk space!
+** Supports a local {@link BlockCache}, shared by all instances. Everything
+** pushed, and every CHK pulled, is written to the cache; pulls are served
+** from it where possible.
+**
+** As an {@link AsyncArchiver}, requests and inserts can be started on the
+** node without a thread waiting for each of them.
 **
 ** @author infinity0
 */
 public class FreenetArchiver<T>
-implements LiveArchiver<T, SimpleProgress> {
+implements AsyncArchiver<T, SimpleProgress> {
 
 	final protected NodeClientCore core;
 	final protected ObjectStreamReader reader;
@@ -73,7 +88,32 @@ implements LiveArchiver<T, SimpleProgress> {
 	final protected int expected_bytes;
 	public final short priorityClass;
 	public final boolean realTimeFlag;
-	private static File cacheDir;
+	private static volatile BlockCache cache;
+
+	/**
+	** Directory of the cache set up by {@link #setupDefaultCache()}.
+	*/
+	final public static String DEFAULT_CACHE_DIR = "library-block-cache";
+
+	/**
+	** Directory of the flat, unbounded cache used by older versions. Blocks
+	** in it are moved into the new cache in the background, or as soon as
+	** they are used.
+	*/
+	final public static String LEGACY_CACHE_DIR = "library-spider-pushed-data-cache";
+
+	/**
+	** Default size of the cache, in bytes.
+	*/
+	public static long DEFAULT_CACHE_BUDGET = 1L<<30;
+
+	/**
+	** Time in ms between logging the statistics of the cache set up by
+	** {@link #setupDefaultCache()}.
+	*/
+	public static long CACHE_STATS_INTERVAL = 60*60*1000;
+
+	private static Timer statsTimer;
 	/** If true, we will insert data semi-asynchronously. That is, we will start the
 	 * insert, with ForceEncode enabled, and return the URI as soon as possible. The
 	 * inserts will continue in the background, and before inserting the final USK,
@@ -93,13 +133,89 @@ implements LiveArchiver<T, SimpleProgress> {
 	private final HashSet<PushCallback> semiAsyncPushes = new HashSet<PushCallback>();
 	private final ArrayList<InsertException> pushesFailed = new ArrayList<InsertException>();
 	private long totalBytesPushing;
+	/** Number of asynchronous inserts started, which numbers each one */
+	private long pushesStarted;
+	/** Number of the first asynchronous insert to fail for good */
+	private long firstPushFailed = Long.MAX_VALUE;
+
+	/**
+	** Number of times to start an asynchronous insert again if it fails
+	** after its URI has been handed out. Since the data is the same, so is
+	** the CHK, so the URI is still good if the insert succeeds.
+	*/
+	public static int ASYNC_INSERT_RETRIES = 5;
+
+	/**
+	** Time in ms before the first retry of an asynchronous insert; this is
+	** doubled for each retry after that, up to {@link
+	** #ASYNC_INSERT_RETRY_MAX_DELAY}.
+	*/
+	public static long ASYNC_INSERT_RETRY_DELAY = 60*1000;
+
+	public static long ASYNC_INSERT_RETRY_MAX_DELAY = 30*60*1000;
+
+	private static final Timer retryTimer = new Timer("Library.FreenetArchiver insert retries", true);
 	
+	/**
+	** Use a cache in the given directory, with the default budget.
+	*/
 	public static void setCacheDir(File dir) {
-		cacheDir = dir;
+		try {
+			setCache(new BlockCache(dir, DEFAULT_CACHE_BUDGET));
+		} catch (IOException e) {
+			Logger.error(FreenetArchiver.class, "Could not open block cache in "+dir, e);
+		}
 	}
 	
 	public static File getCacheDir() {
-		return cacheDir;
+		BlockCache c = cache;
+		return (c == null)? null: c.getDir();
+	}
+
+	public static void setCache(BlockCache c) {
+		cache = c;
+	}
+
+	public static BlockCache getCache() {
+		return cache;
+	}
+
+	/**
+	** Sets up the cache in {@link #DEFAULT_CACHE_DIR}, if there isn't one
+	** already, and imports the blocks from {@link #LEGACY_CACHE_DIR} in the
+	** background. Its hit rate and the amount of data it served are logged
+	** every {@link #CACHE_STATS_INTERVAL}, so that its budget can be sized.
+	**
+	** @return The cache, or {@code null} if it could not be opened
+	*/
+	public static synchronized BlockCache setupDefaultCache() {
+		if (cache == null) {
+			setCacheDir(new File(DEFAULT_CACHE_DIR));
+			if (cache == null) { return null; }
+			final BlockCache c = cache;
+			final File legacy = new File(LEGACY_CACHE_DIR);
+			if (legacy.isDirectory()) {
+				c.setLegacyDir(legacy);
+				(new Thread(new Runnable() {
+					/*@Override**/ public void run() {
+						int n = c.importLegacyDir();
+						Logger.normal(FreenetArchiver.class, "Moved " + n + " blocks from " + legacy + " into the block cache: " + c);
+					}
+				}, "Library.FreenetArchiver : importing " + legacy)).start();
+			}
+			if (statsTimer == null) {
+				statsTimer = new Timer("Library.FreenetArchiver cache statistics", true);
+				statsTimer.schedule(new TimerTask() {
+					@Override public void run() {
+						BlockCache c = cache;
+						if (c == null) { return; }
+						Logger.normal(FreenetArchiver.class, "Block cache hit rate " + Math.round(c.getHitRate() * 100) + "%, "
+						  + c.getBytesServed() + " bytes served: " + c);
+					}
+				}, CACHE_STATS_INTERVAL, CACHE_STATS_INTERVAL);
+			}
+		}
+		return cache;
 	}
 
 	public FreenetArchiver(NodeClientCore c, ObjectStreamReader r, ObjectStreamWriter w, String mime, int size, short priority) {
@@ -127,24 +243,30 @@ implements LiveArchiver<T, SimpleProgress> {
 	** {@inheritDoc}
 	**
 	** This implementation expects metdata of type {@link FreenetURI}.
-	*
-	* FIXME OPT NORM: Two-phase pull: First pull to a bucket, then construct the data.
-	* The reason for this is memory usage: We can limit the number in the second
-	* phase according to downstream demand (e.g. blocking queues in ObjectProcessor's),
-	* so that the amount of stuff kept in memory is limited, while still allowing an
-	* (almost?) unlimited number in the fetching data phase. See comments in ParallelSerialiser.createPullJob.
 	*/
 	/*@Override**/ public void pullLive(PullTask<T> task, final SimpleProgress progress) throws TaskAbortException {
+		pullDecode(task, progress, pullFetch(task, progress));
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation expects metdata of type {@link FreenetURI}, and
+	** returns the temporary {@link Bucket} that the data was fetched to (or
+	** the file in the local cache that it was found in).
+	*/
+	/*@Override**/ public Object pullFetch(PullTask<T> task, final SimpleProgress progress) throws TaskAbortException {
 		// FIXME make retry count configgable by client metadata somehow
 		// clearly a web UI fetch wants it limited; a merge might want it unlimited
 		HighLevelSimpleClient hlsc = core.makeClient(priorityClass, false, false);
-		Bucket tempB = null; InputStream is = null;
+		Bucket tempB = null;
 
 		long startTime = System.currentTimeMillis();
 		
 		FreenetURI u;
 		byte[] initialMetadata;
 		String cacheKey;
+		BlockCache c = cache;
 		
 		if(task.meta instanceof FreenetURI) {
 			u = (FreenetURI) task.meta;
@@ -162,10 +284,9 @@ implements LiveArchiver<T, SimpleProgress> {
 		try {
 			try {
 
-				if(cacheDir != null && cacheDir.exists() && cacheDir.canRead()) {
-					File cached = new File(cacheDir, cacheKey);
-					if(cached.exists() && cached.length() != 0) {
-						tempB = new FileBucket(cached, true, false, false, false);
+				if(c != null) {
+					tempB = getCache(c, cacheKey);
+					if(tempB != null) {
 						Logger.debug(this, "Fetching block for FreenetArchiver from disk cache: "+cacheKey);
 					}
 				}
@@ -212,6 +333,10 @@ implements LiveArchiver<T, SimpleProgress> {
 					}
 					
 					tempB = res.asBucket();
+					// only CHKs (and metadata, which is made of them) are immutable
+					if(c != null && (initialMetadata != null || u.isCHK())) {
+						putCache(c, cacheKey, tempB);
+					}
 				} else {
 					// Make sure SimpleProgress.join() doesn't stall.
 					if(progress != null) {
@@ -221,9 +346,7 @@ implements LiveArchiver<T, SimpleProgress> {
 				}
 				long endTime = System.currentTimeMillis();
 				Logger.debug(this, "Fetched block for FreenetArchiver in "+(endTime-startTime)+"ms.");
-				is = tempB.getInputStream();
-				task.data = (T)reader.readObject(is);
-				is.close();
+				return tempB;
 
 			} catch (FetchException e) {
 				if(e.mode == FetchExceptionMode.PERMANENT_REDIRECT && e.newURI != null) {
@@ -232,6 +355,37 @@ implements LiveArchiver<T, SimpleProgress> {
 				}
 				throw new TaskAbortException("Failed to fetch content", e, true);
 
+			} catch (RuntimeException e) {
+				throw new TaskAbortException("Failed to complete task: ", e);
+
+			}
+		} catch (TaskAbortException e) {
+			Closer.close(tempB);
+			if (progress != null) { progress.abort(e); }
+			throw e;
+
+		}
+		}
+		TaskAbortException e = new TaskAbortException("Too many redirects: " + task.meta, null, false);
+		if (progress != null) { progress.abort(e); }
+		throw e;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation reads the data from the {@link Bucket} returned by
+	** {@link #pullFetch(PullTask, SimpleProgress)}, then frees it.
+	*/
+	/*@Override**/ public void pullDecode(PullTask<T> task, final SimpleProgress progress, Object fetched) throws TaskAbortException {
+		Bucket tempB = (Bucket)fetched;
+		InputStream is = null;
+		try {
+			try {
+				is = tempB.getInputStream();
+				task.data = (T)reader.readObject(is);
+				is.close();
+
 			} catch (IOException e) {
 				throw new TaskAbortException("Failed to read content from local tempbucket", e, true);
 
@@ -247,8 +401,128 @@ implements LiveArchiver<T, SimpleProgress> {
 			Closer.close(is);
 			Closer.close(tempB);
 		}
-		break;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation serves the block from the cache straight away if it
+	** can, otherwise it starts a request on the node. Redirects are followed
+	** as for {@link #pullFetch(PullTask, SimpleProgress)}.
+	*/
+	/*@Override**/ public void startPull(PullTask<T> task, SimpleProgress progress, SafeClosure<X2<Object, TaskAbortException>> done) {
+		new PullCallback(task, progress, done).start();
+	}
+
+	/**
+	** Callback for a request started by {@link #startPull(PullTask,
+	** SimpleProgress, SafeClosure)}.
+	*/
+	private class PullCallback implements ClientGetCallback {
+
+		private final SimpleProgress progress;
+		private final SafeClosure<X2<Object, TaskAbortException>> done;
+		private final HighLevelSimpleClient hlsc = core.makeClient(priorityClass, false, false);
+		private final long startTime = System.currentTimeMillis();
+		private FreenetURI uri;
+		private byte[] initialMetadata;
+		private int redirects;
+
+		PullCallback(PullTask<T> task, SimpleProgress progress, SafeClosure<X2<Object, TaskAbortException>> done) {
+			this.progress = progress;
+			this.done = done;
+			if(task.meta instanceof FreenetURI) {
+				uri = (FreenetURI) task.meta;
+			} else {
+				initialMetadata = (byte[]) task.meta;
+				uri = FreenetURI.EMPTY_CHK_URI;
+			}
+			if (progress != null) {
+				hlsc.addEventHook(new SimpleProgressUpdater(progress));
+			}
+		}
+
+		private String cacheKey() {
+			return (initialMetadata == null)? uri.toString(false, true): Base64.encode(SHA256.digest(initialMetadata));
 		}
+
+		void start() {
+			try {
+				BlockCache c = cache;
+				if(c != null) {
+					Bucket cached = getCache(c, cacheKey());
+					if(cached != null) {
+						Logger.debug(this, "Fetching block for FreenetArchiver from disk cache: "+cacheKey());
+						// Make sure SimpleProgress.join() doesn't stall.
+						if(progress != null) {
+							progress.addPartKnown(1, true);
+							progress.addPartDone();
+						}
+						done.invoke(X2((Object)cached, (TaskAbortException)null));
+						return;
+					}
+				}
+				if(initialMetadata != null) {
+					Logger.debug(this, "Fetching block for FreenetArchiver from metadata ("+cacheKey()+")");
+					core.clientContext.start(new ClientGetter(this, FreenetURI.EMPTY_CHK_URI, hlsc.getFetchContext(),
+							priorityClass, null, null, new SimpleReadOnlyArrayBucket(initialMetadata)));
+				} else {
+					Logger.debug(this, "Fetching block for FreenetArchiver from network: "+uri);
+					hlsc.fetch(uri, -1, this, hlsc.getFetchContext(), priorityClass);
+				}
+			} catch (FetchException e) {
+				onFailure(e, null);
+			} catch (PersistenceDisabledException e) {
+				// Impossible
+			} catch (RuntimeException e) {
+				fail(new TaskAbortException("Failed to complete task: ", e));
+			}
+		}
+
+		private void fail(TaskAbortException e) {
+			if (progress != null) { progress.abortQuietly(e); }
+			done.invoke(X2((Object)null, e));
+		}
+
+		@Override
+		public void onSuccess(FetchResult result, ClientGetter state) {
+			Bucket tempB = result.asBucket();
+			// only CHKs (and metadata, which is made of them) are immutable
+			BlockCache c = cache;
+			if(c != null && (initialMetadata != null || uri.isCHK())) {
+				putCache(c, cacheKey(), tempB);
+			}
+			if (progress != null) { progress.addPartKnown(0, true); }
+			Logger.debug(this, "Fetched block for FreenetArchiver in "+(System.currentTimeMillis()-startTime)+"ms.");
+			done.invoke(X2((Object)tempB, (TaskAbortException)null));
+		}
+
+		@Override
+		public void onFailure(FetchException e, ClientGetter state) {
+			// USK redirects should not happen really but can occasionally due to race conditions.
+			if(e.mode == FetchExceptionMode.PERMANENT_REDIRECT && e.newURI != null) {
+				if(++redirects < 10) {
+					uri = e.newURI;
+					initialMetadata = null;
+					start();
+				} else {
+					fail(new TaskAbortException("Too many redirects: " + uri, null, false));
+				}
+				return;
+			}
+			fail(new TaskAbortException("Failed to fetch content", e, true));
+		}
+
+		@Override
+		public void onResume(ClientContext context) throws ResumeFailedException {
+			// Ignore.
+		}
+
+		@Override
+		public RequestClient getRequestClient() {
+			return Library.REQUEST_CLIENT;
+		}
+
 	}
 
 	/**
@@ -263,13 +537,52 @@ implements LiveArchiver<T, SimpleProgress> {
 	** incremented.
 	*/
 	/*@Override**/ public void pushLive(PushTask<T> task, final SimpleProgress progress) throws TaskAbortException {
+		PushCallback cb = beginPush(task, progress, null);
+		cb.waitFor();
+		finishPush(task, progress, cb);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation completes as soon as the insert has generated a
+	** URI, as {@link #pushLive(PushTask, SimpleProgress)} does. That is
+	** reported on the node's threads, so the rest of the work, which copies
+	** the data to the cache, is run on {@link Executors#DEFAULT_EXECUTOR} at
+	** the priority of the caller.
+	*/
+	/*@Override**/ public void startPush(final PushTask<T> task, final SimpleProgress progress, final SafeClosure<TaskAbortException> done) {
+		final TaskClass cls = PriorityExecutor.getCurrentClass();
+		try {
+			beginPush(task, progress, new SafeClosure<PushCallback>() {
+				/*@Override**/ public void invoke(final PushCallback cb) {
+					Executors.DEFAULT_EXECUTOR.execute(PriorityExecutor.as(cls, new Runnable() {
+						public void run() {
+							TaskAbortException ex = null;
+							try { finishPush(task, progress, cb); }
+							catch (TaskAbortException e) { ex = e; }
+							done.invoke(ex);
+						}
+					}));
+				}
+			});
+		} catch (TaskAbortException e) {
+			done.invoke(e);
+		}
+	}
+
+	/**
+	** Writes the data of a push to a temporary bucket, and starts inserting
+	** it.
+	**
+	** @param generated Called when the insert has generated a URI or
+	**        metadata, or has failed; may be {@code null}
+	*/
+	private PushCallback beginPush(PushTask<T> task, final SimpleProgress progress, SafeClosure<PushCallback> generated) throws TaskAbortException {
 		HighLevelSimpleClient hlsc = core.makeClient(priorityClass, false, false);
 		RandomAccessBucket tempB = null; OutputStream os = null;
 
-		
 		try {
-			ClientPutter putter = null;
-			PushCallback cb = null;
 			try {
 				tempB = core.tempBucketFactory.makeBucket(expected_bytes, 2);
 				os = tempB.getOutputStream();
@@ -290,21 +603,7 @@ implements LiveArchiver<T, SimpleProgress> {
 				InsertBlock ib = new InsertBlock(tempB, new ClientMetadata(default_mime), target);
 
 				Logger.debug(this, "Inserting block for FreenetArchiver...");
-				long startTime = System.currentTimeMillis();
 				
-				// code for async insert - maybe be useful elsewhere
-				//ClientContext cctx = core.clientContext;
-				//InsertContext ictx = hlsc.getInsertContext(true);
-				//PutWaiter pw = new PutWaiter();
-				//ClientPutter pu = hlsc.insert(ib, false, null, false, ictx, pw);
-				//pu.setPriorityClass(RequestStarter.INTERACTIVE_PRIORITY_CLASS, cctx, null);
-				//FreenetURI uri = pw.waitForCompletion();
-
-				// bookkeeping. detects bugs in the SplitfileProgressEvent handler
-				ProgressParts prog_old = null;
-				if(progress != null)
-					prog_old = progress.getParts();
-					
 				// FIXME make retry count configgable by client metadata somehow
 				// unlimited for push/merge
 				InsertContext ctx = hlsc.getInsertContext(false);
@@ -313,55 +612,70 @@ implements LiveArchiver<T, SimpleProgress> {
                 // Hopefully it isn't here.
 				ctx.earlyEncode = true;
 				
+				// Do NOT report progress. Pretend we are done as soon as
+				// we have the URI. This allows us to minimise memory usage
+				// without yet splitting up IterableSerialiser.push() and
+				// doing it properly. FIXME
+				PushCallback cb = new PushCallback(progress, ib, generated);
+				if(progress != null) {
+					cb.progressBefore = progress.getParts();
+					progress.addPartKnown(1, true);
+				}
+				cb.start(ctx, insertAsMetadata);
+				// the insert continues in the background, and frees the
+				// data when it finishes
+				tempB = null;
+				return cb;
+
+			} catch (IOException e) {
+				throw new TaskAbortException("Failed to write content to local tempbucket", e, true);
+
+			} catch (RuntimeException e) {
+				throw new TaskAbortException("Failed to complete task: ", e);
+
+			}
+		} catch (TaskAbortException e) {
+			if (progress != null) { progress.abort(e); }
+			throw e;
+
+		} finally {
+			Closer.close(os);
+			Closer.close(tempB);
+		}
+	}
+
+	/**
+	** Records the URI or metadata generated by a push started by {@link
+	** #beginPush(PushTask, SimpleProgress, SafeClosure)}, and copies the data
+	** to the cache. This must only be called once the insert has generated
+	** it, or failed.
+	*/
+	private void finishPush(PushTask<T> task, final SimpleProgress progress, PushCallback cb) throws TaskAbortException {
+		try {
+			try {
 				String cacheKey = null;
-				
-//				if(!SEMI_ASYNC_PUSH) {
-//					// Actually report progress.
-//					if (progress != null) {
-//						hlsc.addEventHook(new SimpleProgressUpdater(progress));
-//					}
-//					uri = hlsc.insert(ib, false, null, priorityClass, ctx);
-//					if (progress != null)
-//						progress.addPartKnown(0, true);
-//				} else {
-					// Do NOT report progress. Pretend we are done as soon as
-					// we have the URI. This allows us to minimise memory usage
-					// without yet splitting up IterableSerialiser.push() and
-					// doing it properly. FIXME
-					if(progress != null)
-						progress.addPartKnown(1, true);
-					cb = new PushCallback(progress, ib);
-					putter = new ClientPutter(cb, ib.getData(), FreenetURI.EMPTY_CHK_URI, ib.clientMetadata,
-							ctx, priorityClass,
-							false, null, false, core.clientContext, null, insertAsMetadata ? CHKBlock.DATA_LENGTH : -1);
-					cb.setPutter(putter);
-					long tStart = System.currentTimeMillis();
-					try {
-						core.clientContext.start(putter);
-					} catch (PersistenceDisabledException e) {
-						// Impossible
-					}
-					WAIT_STATUS status = cb.waitFor();
-					if(status == WAIT_STATUS.FAILED) {
-						cb.throwError();
-					} else if(status == WAIT_STATUS.GENERATED_URI) {
-						FreenetURI uri = cb.getURI();
-						task.meta = uri;
-						cacheKey = uri.toString(false, true);
-						Logger.debug(this, "Got URI for asynchronous insert: "+uri+" size "+tempB.size()+" in "+(System.currentTimeMillis() - cb.startTime));
-					} else {
-						Bucket data = cb.getGeneratedMetadata();
-						byte[] buf = BucketTools.toByteArray(data);
-						data.free();
-						task.meta = buf;
-						cacheKey = Base64.encode(SHA256.digest(buf));
-						Logger.debug(this, "Got generated metadata ("+buf.length+" bytes) for asynchronous insert size "+tempB.size()+" in "+(System.currentTimeMillis() - cb.startTime));
-					}
-					if(progress != null)
-						progress.addPartDone();
-//				}
-					
+				WAIT_STATUS status = cb.waitFor();
+				if(status == WAIT_STATUS.FAILED) {
+					cb.throwError();
+				} else if(status == WAIT_STATUS.GENERATED_URI) {
+					FreenetURI uri = cb.getURI();
+					task.meta = uri;
+					cacheKey = uri.toString(false, true);
+					Logger.debug(this, "Got URI for asynchronous insert: "+uri+" size "+cb.size()+" in "+(System.currentTimeMillis() - cb.startTime));
+				} else {
+					Bucket data = cb.getGeneratedMetadata();
+					byte[] buf = BucketTools.toByteArray(data);
+					data.free();
+					task.meta = buf;
+					cacheKey = Base64.encode(SHA256.digest(buf));
+					Logger.debug(this, "Got generated metadata ("+buf.length+" bytes) for asynchronous insert size "+cb.size()+" in "+(System.currentTimeMillis() - cb.startTime));
+				}
+				if(progress != null)
+					progress.addPartDone();
+
+				// bookkeeping. detects bugs in the SplitfileProgressEvent handler
 				if(progress != null) {
+					ProgressParts prog_old = cb.progressBefore;
 					ProgressParts prog_new = progress.getParts();
 					if (prog_old.known - prog_old.done != prog_new.known - prog_new.done) {
 						Logger.error(this, "Inconsistency when tracking split file progress (pushing): "+prog_old.known+" of "+prog_old.done+" -> "+prog_new.known+" of "+prog_new.done);
@@ -371,26 +685,20 @@ implements LiveArchiver<T, SimpleProgress> {
 
 				task.data = null;
 				
-				if(cacheKey != null && cacheDir != null && cacheDir.exists() && cacheDir.canRead()) {
-					File cached = new File(cacheDir, cacheKey);
-					Bucket cachedBucket = new FileBucket(cached, false, false, false, false);
-					BucketTools.copy(tempB, cachedBucket);
+				BlockCache c = cache;
+				if(cacheKey != null && c != null) {
+					putCache(c, cacheKey, cb.getData());
 				}
-				
-				if(SEMI_ASYNC_PUSH)
-					tempB = null; // Don't free it here.
 
 			} catch (InsertException e) {
-				if(cb != null) {
-					synchronized(this) {
-						if(semiAsyncPushes.remove(cb))
-							totalBytesPushing -= cb.size();
-					}
+				synchronized(this) {
+					if(semiAsyncPushes.remove(cb))
+						totalBytesPushing -= cb.size();
 				}
 				throw new TaskAbortException("Failed to insert content", e, true);
 
 			} catch (IOException e) {
-				throw new TaskAbortException("Failed to write content to local tempbucket", e, true);
+				throw new TaskAbortException("Failed to read generated metadata", e, true);
 
 			} catch (RuntimeException e) {
 				throw new TaskAbortException("Failed to complete task: ", e);
@@ -400,9 +708,6 @@ implements LiveArchiver<T, SimpleProgress> {
 			if (progress != null) { progress.abort(e); }
 			throw e;
 
-		} finally {
-			Closer.close(os);
-			Closer.close(tempB);
 		}
 	}
 	
@@ -424,26 +729,111 @@ implements LiveArchiver<T, SimpleProgress> {
 //		private final SimpleProgress progress;
 		private final long size;
 		private final InsertBlock ib;
+		/** Progress when the push started, for bookkeeping. */
+		ProgressParts progressBefore;
+		/** Called once, when the URI or metadata is generated or the insert fails. */
+		private SafeClosure<PushCallback> generated;
+		/** Number of this insert, see {@link #waitForInserts(long)} */
+		private long seq = -1;
+		private InsertContext ctx;
+		private boolean insertAsMetadata;
+		/** Number of times the insert has been started again */
+		private int retries;
 		
 		public PushCallback(SimpleProgress progress, InsertBlock ib) {
+			this(progress, ib, null);
+		}
+
+		public PushCallback(SimpleProgress progress, InsertBlock ib, SafeClosure<PushCallback> gen) {
 //			this.progress = progress;
 			this.ib = ib;
 			size = ib.getData().size();
+			generated = gen;
 		}
 
 		public long size() {
 			return size;
 		}
 
+		public Bucket getData() {
+			return ib.getData();
+		}
+
+		private void fireGenerated() {
+			SafeClosure<PushCallback> gen;
+			synchronized(this) {
+				gen = generated;
+				generated = null;
+			}
+			if(gen != null)
+				gen.invoke(this);
+		}
+
 		public synchronized void setPutter(ClientPutter put) {
 			putter = put;
 			synchronized(FreenetArchiver.this) {
+				if(seq < 0)
+					seq = pushesStarted++;
 				if(semiAsyncPushes.add(this))
 					totalBytesPushing += size;
 				Logger.debug(this, "Pushing "+totalBytesPushing+" bytes on "+semiAsyncPushes.size()+" inserters");
 			}
 		}
 
+		/**
+		** Starts inserting the data.
+		*/
+		void start(InsertContext ctx, boolean insertAsMetadata) {
+			synchronized(this) {
+				this.ctx = ctx;
+				this.insertAsMetadata = insertAsMetadata;
+			}
+			restart();
+		}
+
+		/**
+		** Starts inserting the data again, with the same settings.
+		*/
+		private void restart() {
+			ClientPutter putter = new ClientPutter(this, ib.getData(), FreenetURI.EMPTY_CHK_URI, ib.clientMetadata,
+					ctx, priorityClass,
+					false, null, false, core.clientContext, null, insertAsMetadata ? CHKBlock.DATA_LENGTH : -1);
+			setPutter(putter);
+			try {
+				core.clientContext.start(putter);
+			} catch (InsertException e) {
+				onFailure(e, putter);
+			} catch (PersistenceDisabledException e) {
+				// Impossible
+			}
+		}
+
+		/**
+		** If the URI or metadata has already been handed out, the insert
+		** must succeed for it to be any good, so schedule it to be started
+		** again, unless it has been too many times already.
+		**
+		** @return Whether the insert will be started again
+		*/
+		private synchronized boolean retry(final InsertException e) {
+			if(generatedURI == null && generatedMetadata == null) return false;
+			if(retries >= ASYNC_INSERT_RETRIES) return false;
+			++retries;
+			long delay = Math.min(ASYNC_INSERT_RETRY_DELAY << Math.min(retries-1, 30), ASYNC_INSERT_RETRY_MAX_DELAY);
+			Logger.error(this, "Failed background insert ("+generatedURI+"), retry "+retries+" in "+delay+"ms: "+e, e);
+			retryTimer.schedule(new TimerTask() {
+				@Override public void run() {
+					try {
+						restart();
+					} catch (RuntimeException ex) {
+						Logger.error(PushCallback.this, "Unable to retry background insert ("+generatedURI+"): "+ex, ex);
+						fail(e);
+					}
+				}
+			}, delay);
+			return true;
+		}
+
 		public synchronized WAIT_STATUS waitFor() {
 			while(generatedURI == null && generatedMetadata == null && failed == null) {
 				try {
@@ -464,6 +854,10 @@ implements LiveArchiver<T, SimpleProgress> {
 		public synchronized FreenetURI getURI() {
 			return generatedURI;
 		}
+
+		public synchronized boolean hasFailed() {
+			return failed != null;
+		}
 		
 		public synchronized Bucket getGeneratedMetadata() {
 			return generatedMetadata;
@@ -471,17 +865,30 @@ implements LiveArchiver<T, SimpleProgress> {
 
 		@Override
 		public void onFailure(InsertException e, BaseClientPutter state) {
+			// still counted as running while it is waiting to be retried
+			if(retry(e)) return;
+			fail(e);
+		}
+
+		private void fail(InsertException e) {
 			Logger.error(this, "Failed background insert ("+generatedURI+"), now running: "+semiAsyncPushes.size()+" ("+SizeUtil.formatSize(totalBytesPushing)+").");
+			boolean handedOut;
 			synchronized(this) {
+				handedOut = generatedURI != null || generatedMetadata != null;
 				failed = e;
 				notifyAll();
 			}
 			synchronized(FreenetArchiver.this) {
 				if(semiAsyncPushes.remove(this))
 					totalBytesPushing -= size;
-				pushesFailed.add(e);
+				// if the URI was not handed out, the push itself fails instead
+				if(handedOut) {
+					pushesFailed.add(e);
+					if(seq < firstPushFailed) firstPushFailed = seq;
+				}
 				FreenetArchiver.this.notifyAll();
 			}
+			fireGenerated();
 			if(ib != null)
 				ib.free();
 		}
@@ -492,9 +899,14 @@ implements LiveArchiver<T, SimpleProgress> {
 		}
 
 		@Override
-		public synchronized void onGeneratedURI(FreenetURI uri, BaseClientPutter state) {
-			generatedURI = uri;
-			notifyAll();
+		public void onGeneratedURI(FreenetURI uri, BaseClientPutter state) {
+			synchronized(this) {
+				if(generatedURI != null && !generatedURI.equals(uri))
+					Logger.error(this, "Retried insert generated "+uri+" rather than "+generatedURI);
+				generatedURI = uri;
+				notifyAll();
+			}
+			fireGenerated();
 		}
 
 		@Override
@@ -512,10 +924,13 @@ implements LiveArchiver<T, SimpleProgress> {
 		}
 
 		@Override
-		public synchronized void onGeneratedMetadata(Bucket metadata,
+		public void onGeneratedMetadata(Bucket metadata,
 				BaseClientPutter state) {
-			generatedMetadata = metadata;
-			notifyAll();
+			synchronized(this) {
+				generatedMetadata = metadata;
+				notifyAll();
+			}
+			fireGenerated();
 		}
 
         @Override
@@ -532,6 +947,50 @@ implements LiveArchiver<T, SimpleProgress> {
 
 
 
+	/**
+	** Copies a block from the cache into a temporary bucket, so that it is
+	** held in memory no more than a block fetched from Freenet would be.
+	**
+	** @return The bucket, or {@code null} if the block is not in the cache
+	**         or could not be copied
+	*/
+	private Bucket getCache(BlockCache c, String cacheKey) {
+		Bucket tempB = null; OutputStream os = null;
+		try {
+			tempB = core.tempBucketFactory.makeBucket(expected_bytes, 2);
+			os = tempB.getOutputStream();
+			boolean found = c.get(cacheKey, os);
+			os.close(); os = null;
+			if(!found) return null;
+			tempB.setReadOnly();
+			Bucket b = tempB;
+			tempB = null;
+			return b;
+		} catch (IOException e) {
+			Logger.error(this, "Could not read block from cache: "+cacheKey, e);
+			return null;
+		} finally {
+			Closer.close(os);
+			Closer.close(tempB);
+		}
+	}
+
+	/**
+	** Copies a block to the cache. Failures are logged rather than thrown,
+	** since the block is still available from Freenet.
+	*/
+	private void putCache(BlockCache c, String cacheKey, Bucket data) {
+		InputStream is = null;
+		try {
+			is = data.getInputStream();
+			c.put(cacheKey, is);
+		} catch (IOException e) {
+			Logger.error(this, "Could not write block to cache: "+cacheKey, e);
+		} finally {
+			Closer.close(is);
+		}
+	}
+
 	/*@Override**/ public void pull(PullTask<T> task) throws TaskAbortException {
 		pullLive(task, null);
 	}
@@ -604,5 +1063,43 @@ implements LiveArchiver<T, SimpleProgress> {
 			}
 		}
 	}
+
+	/**
+	 * @return The number of asynchronous inserts started so far, see
+	 * waitForInserts(long).
+	 */
+	public synchronized long getInsertsStarted() {
+		return pushesStarted;
+	}
+
+	/**
+	 * Wait for the asynchronous inserts numbered below the given count (see
+	 * getInsertsStarted()) to complete, including any retries. Unlike
+	 * waitForAsyncInserts(), this doesn't clear the failures, so that the
+	 * caller of that still sees them.
+	 * @return The number of inserts, up to the given count, before the first
+	 * that failed for good; if none did, the count itself. Everything pushed
+	 * before that many inserts were started is stored.
+	 */
+	public long waitForInserts(long started) throws TaskAbortException {
+		synchronized(this) {
+			while(true) {
+				boolean running = false;
+				for(PushCallback cb : semiAsyncPushes) {
+					if(cb.seq < started) {
+						running = true;
+						break;
+					}
+				}
+				if(!running) break;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new TaskAbortException("Interrupted waiting for inserts", e, true);
+				}
+			}
+			return Math.min(started, firstPushFailed);
+		}
+	}
 	
 }
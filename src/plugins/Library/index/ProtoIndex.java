@@ -10,6 +10,7 @@ import plugins.Library.util.Skeleton;
 import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.SkeletonCache;
 import plugins.Library.util.DataNotLoadedException;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
@@ -18,6 +19,7 @@ import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.AbstractExecution;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.PriorityExecutor.TaskClass;
 
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
@@ -26,6 +28,8 @@ import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.Map;
 import java.util.SortedSet;
@@ -58,9 +62,39 @@ final public class ProtoIndex implements Index {
 	/*final*/ public static int BTREE_NODE_MIN = 0x400;
 	final public static int BTREE_ENT_MAX = (BTREE_NODE_MIN<<1) - 1;
 
-	protected static Executor exec = Executors.DEFAULT_EXECUTOR;
+	protected static Executor exec = Executors.SCHEDULER.getExecutor(TaskClass.QUERY);
 	public static void setExecutor(Executor e) { exec = e; }
 
+	/**
+	** Rough number of bytes taken up by each entry of a node of the ''term
+	** table'', including the key and the (unloaded) value.
+	*/
+	final public static int TTAB_ENTRY_WEIGHT = 0x80;
+
+	/**
+	** Rough number of bytes taken up by each entry of a search result that
+	** could not be stored as a {@link TermPostingList}.
+	*/
+	final public static int TERM_ENTRY_WEIGHT = 0x100;
+
+	/**
+	** Default budget for {@link #cache}, in bytes.
+	*/
+	final public static long CACHE_BUDGET_DEFAULT = 0x4000000;
+
+	/**
+	** Cache shared by all instances, that holds the nodes of the ''term
+	** table'' loaded by searches, and the results of those searches. Items
+	** are weighed in (rough estimates of) bytes.
+	**
+	** Only structures that are never modified are put into the cache, since
+	** evicting a node reverts it to the {@link SkeletonBTreeMap.GhostNode}
+	** it was loaded from, discarding any changes.
+	*/
+	final protected static SkeletonCache<Object> cache = new SkeletonCache<Object>(CACHE_BUDGET_DEFAULT);
+	public static SkeletonCache<Object> getCache() { return cache; }
+	public static void setCacheBudget(long b) { cache.setBudget(b); }
+
 	/**
 	** Request ID for this index
 	*/
@@ -145,19 +179,127 @@ final public class ProtoIndex implements Index {
 
 
 
+	/**
+	** Requests for term entries. Successful requests are also in {@link
+	** #cache}, and are removed from here when they are evicted from it;
+	** failed requests are removed straight away.
+	*/
 	private Map<String, Execution<Set<TermEntry>>> getTermEntriesProgress = new
 	HashMap<String, Execution<Set<TermEntry>>>();
 
 	public Execution<Set<TermEntry>> getTermEntries(String term) {
-		Execution<Set<TermEntry>> request = getTermEntriesProgress.get(term);
-		if (request == null) {
-			request = new getTermEntriesHandler(term);
-			getTermEntriesProgress.put(term, request);
+		Execution<Set<TermEntry>> request;
+		boolean created = false;
+		synchronized (getTermEntriesProgress) {
+			request = getTermEntriesProgress.get(term);
+			if (request == null) {
+				request = new getTermEntriesHandler(term);
+				getTermEntriesProgress.put(term, request);
+				created = true;
+			}
+		}
+		cache.touch(request);
+		if (created) {
 			exec.execute((getTermEntriesHandler)request);
 		}
 		return request;
 	}
 
+	/**
+	** Number of nodes or values of the ''term table'' being inflated by
+	** searches. Inflating one modifies its parent, so nothing is unloaded from
+	** the table while this is non-zero; see {@link #unloadPending}. Guarded by
+	** the lock on {@link #ttab}.
+	*/
+	private int inflating;
+
+	/**
+	** Nodes and terms whose unloading was put off because a search was
+	** inflating part of the ''term table'' at the time. They are unloaded by
+	** the last search to finish inflating. Guarded by the lock on {@link
+	** #ttab}.
+	*/
+	private List<Object> unloadPending = new ArrayList<Object>();
+
+	/**
+	** Inflate the part of the ''term table'' that was found to be missing.
+	** Unloading is held off until this has finished.
+	**
+	** Several searches can run on the same index at once. Inflates of the
+	** same node are run one at a time, since the serialiser can't pull the
+	** same bin twice at once; the later ones then find that what they wanted
+	** has already been loaded. Inflates of different nodes run in parallel,
+	** but what they pull is only attached to the tree under the lock on
+	** {@link #ttab}, which the searches hold while they walk it.
+	*/
+	protected void inflateTtab(DataNotLoadedException d) throws TaskAbortException {
+		synchronized (ttab) {
+			++inflating;
+		}
+		List<Object> detached = new ArrayList<Object>();
+		try {
+			Skeleton parent = d.getParent();
+			synchronized (parent) {
+				if (parent instanceof SkeletonBTreeMap.SkeletonNode) {
+					((SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>>.SkeletonNode)parent).inflate((String)d.getKey(), ttab);
+				} else if (parent instanceof SkeletonTreeMap) {
+					((SkeletonTreeMap<String, SkeletonBTreeSet<TermEntry>>)parent).inflate((String)d.getKey(), ttab);
+				} else {
+					synchronized (ttab) {
+						parent.inflate(d.getKey());
+					}
+				}
+			}
+		} finally {
+			synchronized (ttab) {
+				if (--inflating == 0 && !unloadPending.isEmpty()) {
+					for (Object o: unloadPending) {
+						// skip anything that was used, and so cached again, meanwhile
+						if (cache.contains(o)) { continue; }
+						if (o instanceof String) {
+							ttab.unloadValue((String)o);
+						} else {
+							((SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>>.SkeletonNode)o).unload(detached);
+						}
+					}
+					unloadPending.clear();
+				}
+			}
+		}
+		for (Object n: detached) { cache.remove(n); }
+	}
+
+	/**
+	** Put the loaded nodes on the path to the given term into {@link #cache},
+	** or mark them as recently-used if they are already there.
+	*/
+	protected void cacheTermPath(String term) {
+		List<SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>>.SkeletonNode> path;
+		synchronized (ttab) {
+			path = ttab.loadedPath(term);
+		}
+		// the root isn't loaded from anywhere, so it can't be unloaded
+		for (int i=1; i<path.size(); ++i) {
+			final SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>>.SkeletonNode node = path.get(i);
+			if (cache.touch(node)) { continue; }
+			cache.put(node, new SkeletonCache.Item((long)node.nodeSize() * TTAB_ENTRY_WEIGHT) {
+				@Override public boolean unload() {
+					List<Object> detached = new ArrayList<Object>();
+					boolean unloaded;
+					synchronized (ttab) {
+						if (inflating > 0) {
+							unloadPending.add(node);
+							return true;
+						}
+						unloaded = node.unload(detached);
+					}
+					for (Object n: detached) { cache.remove(n); }
+					return unloaded;
+				}
+			});
+		}
+	}
+
 
 
 
@@ -165,6 +307,29 @@ final public class ProtoIndex implements Index {
 		throw new UnsupportedOperationException("not implemented");
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This scans the ''term table'' from the prefix to {@link
+	** #prefixEnd(String)}, loading only the nodes that cover that range.
+	*/
+	public Execution<SortedSet<String>> getTermsWithPrefix(String prefix, int max) {
+		getTermsWithPrefixHandler request = new getTermsWithPrefixHandler(prefix, max);
+		exec.execute(request);
+		return request;
+	}
+
+	/**
+	** Returns the least string that is greater than every string starting
+	** with the given prefix, or {@code null} if there is no such string.
+	*/
+	public static String prefixEnd(String prefix) {
+		int i = prefix.length();
+		while (i > 0 && prefix.charAt(i-1) == Character.MAX_VALUE) { --i; }
+		if (i == 0) { return null; }
+		return prefix.substring(0, i-1) + (char)(prefix.charAt(i-1) + 1);
+	}
+
 
 	public class getTermEntriesHandler extends AbstractExecution<Set<TermEntry>> implements Runnable, ChainedProgress {
 		// TODO NORM have a Runnable field instead of extending Runnable
@@ -209,15 +374,19 @@ final public class ProtoIndex implements Index {
 				SkeletonBTreeSet<TermEntry> root;
 				for (;;) {
 					try {
-						root = ttab.get(subject);
+						synchronized (ttab) {
+							root = ttab.get(subject);
+						}
 						break;
 					} catch (DataNotLoadedException d) {
 						Skeleton p = d.getParent();
 						trackers.put(current_meta = d.getValue(), current_tracker = ((Serialiser.Trackable)p.getSerialiser()).getTracker());
-						p.inflate(d.getKey());
+						inflateTtab(d);
 					}
 				}
 
+				cacheTermPath(subject);
+
 				if (root == null) {
 					// TODO HIGH better way to handle this
 					throw new TaskAbortException("Index does not contain term " + subject, new Exception("Index does not contain term " + subject));
@@ -237,16 +406,71 @@ final public class ProtoIndex implements Index {
 					} else
 						Logger.normal(this, "Correcting results: "+multiplier);
 				}
-				Set<TermEntry> entries = wrapper(root, multiplier);
-				
+				// store the result column-wise if we can, which takes much less
+				// memory and lets consumers scan it without creating objects
+				TermPostingList postings = TermPostingList.fromEntries(root, multiplier);
+				Set<TermEntry> entries;
+				long weight;
+				if (postings != null) {
+					entries = postings.asSet();
+					weight = postings.sizeEstimate();
+					// the result holds everything we need, so drop the
+					// postings from the tree rather than hold them twice
+					unloadTerm();
+				} else {
+					entries = wrapper(root, multiplier);
+					weight = (long)root.size() * TERM_ENTRY_WEIGHT;
+				}
+
 				setResult(entries);
+				cacheResult(weight);
 
 			} catch (TaskAbortException e) {
 				setError(e);
+				// don't keep failures around, so the next request tries again
+				forget();
 				return;
 			}
 		}
 
+		/**
+		** Unload the postings for this term from the node of the ''term
+		** table'' that holds them.
+		*/
+		protected void unloadTerm() {
+			synchronized (ttab) {
+				if (inflating > 0) {
+					unloadPending.add(subject);
+				} else {
+					ttab.unloadValue(subject);
+				}
+			}
+		}
+
+		/**
+		** Put this request into {@link #cache}. When it is evicted, it is
+		** forgotten, so the next request for the same term starts afresh.
+		*/
+		protected void cacheResult(long weight) {
+			cache.put(this, new SkeletonCache.Item(weight) {
+				@Override public boolean unload() {
+					return forget();
+				}
+			});
+		}
+
+		/**
+		** Remove this request from {@link #getTermEntriesProgress}, if it is
+		** still the current one for its term.
+		*/
+		protected boolean forget() {
+			synchronized (getTermEntriesProgress) {
+				if (getTermEntriesProgress.get(subject) != this) { return false; }
+				getTermEntriesProgress.remove(subject);
+			}
+			return true;
+		}
+
 		private Set<TermEntry> wrapper(final SkeletonBTreeSet<TermEntry> root, final double relAdjustment) {
 			return new AbstractSet<TermEntry>() {
 
@@ -319,6 +543,80 @@ final public class ProtoIndex implements Index {
 	}
 
 
+	public class getTermsWithPrefixHandler extends AbstractExecution<SortedSet<String>> implements Runnable, ChainedProgress {
+
+		final String prefix;
+		final int max;
+
+		/**
+		** Number of nodes of the ''term table'' loaded so far.
+		*/
+		volatile int loaded;
+		Object current_meta;
+		ProgressTracker current_tracker;
+
+		protected getTermsWithPrefixHandler(String p, int m) {
+			super(p + "*");
+			prefix = p;
+			max = m;
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			int done = loaded;
+			if (getResult() != null) {
+				return new ProgressParts(done, done, done, ProgressParts.TOTAL_FINALIZED);
+			}
+			return new ProgressParts(done, done+1, done+1, ProgressParts.ESTIMATE_UNKNOWN);
+		}
+
+		@Override public String getStatus() {
+			Progress cur = getCurrentProgress();
+			return (cur == null)? "Starting next stage...": cur.getSubject() + ": " + cur.getStatus();
+		}
+
+		/*@Override**/ public Progress getCurrentProgress() {
+			return current_tracker == null? null: current_tracker.getPullProgressFor(current_meta);
+		}
+
+		/*@Override**/ public void run() {
+			try {
+				String end = prefixEnd(prefix);
+				SortedSet<String> terms = new TreeSet<String>();
+				boolean complete;
+				for (;;) {
+					try {
+						terms.clear();
+						synchronized (ttab) {
+							complete = ttab.keysInRange(prefix, end, max, terms);
+						}
+						break;
+					} catch (DataNotLoadedException d) {
+						Skeleton p = d.getParent();
+						current_meta = d.getValue();
+						current_tracker = ((Serialiser.Trackable)p.getSerialiser()).getTracker();
+						inflateTtab(d);
+						++loaded;
+					}
+				}
+
+				// the nodes that were loaded are on the paths to the terms, or to
+				// the prefix if there aren't any
+				cacheTermPath(prefix);
+				for (String term: terms) { cacheTermPath(term); }
+
+				if (!complete) {
+					throw new TaskAbortException("More than " + max + " terms start with \"" + prefix + "\"; please use a longer prefix", null, false);
+				}
+				setResult(Collections.unmodifiableSortedSet(terms));
+
+			} catch (TaskAbortException e) {
+				setError(e);
+			}
+		}
+
+	}
+
+
 	public void setName(String indexName) {
 		this.name = indexName;
 	}
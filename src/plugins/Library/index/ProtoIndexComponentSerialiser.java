@@ -23,11 +23,15 @@ import plugins.Library.io.serial.IterableSerialiser;
 import plugins.Library.io.serial.MapSerialiser;
 import plugins.Library.io.serial.LiveArchiver;
 import plugins.Library.io.serial.ParallelSerialiser;
+import plugins.Library.io.serial.AsyncArchiver;
 import plugins.Library.io.serial.Packer;
 import plugins.Library.io.serial.Packer.Scale; // WORKAROUND javadoc bug #4464323
 import plugins.Library.io.serial.FileArchiver;
 import plugins.Library.io.DataFormatException;
 import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.BinaryReaderWriter;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 import freenet.keys.FreenetURI;
 import freenet.node.RequestStarter;
@@ -57,15 +61,23 @@ public class ProtoIndexComponentSerialiser {
 	srl_fmt = new HashMap<Integer, ProtoIndexComponentSerialiser>();
 
 	final protected static int FMT_FREENET_SIMPLE = 0x2db3c940;
+	final protected static int FMT_FREENET_BINARY = 0x5e0b8c17;
 	public final static int FMT_FILE_LOCAL = 0xd439e29a;
 
-	public final static int FMT_DEFAULT = FMT_FREENET_SIMPLE;
+	public final static int FMT_DEFAULT = FMT_FREENET_BINARY;
 
 	/**
 	** Converts between a low-level object and a byte stream.
 	*/
 	final protected static YamlReaderWriter yamlrw = new YamlReaderWriter();
 
+	/**
+	** Converts between a low-level object and a byte stream, in binary. This
+	** can also read everything written by {@link #yamlrw}, so use this for any
+	** archiver that might be given an existing index.
+	*/
+	final protected static BinaryReaderWriter binrw = new BinaryReaderWriter(yamlrw);
+
 	/**
 	** Translator for the local entries of a node of the ''term table''.
 	*/
@@ -77,7 +89,7 @@ public class ProtoIndexComponentSerialiser {
 	** ''term''.
 	*/
 	final protected static Translator<SkeletonTreeMap<TermEntry, TermEntry>, Collection<TermEntry>>
-	term_data_mtr = new SkeletonBTreeSet.TreeSetTranslator<TermEntry>();
+	term_data_mtr = new TermPostingList.NodeTranslator();
 
 	/**
 	** Translator for {@link URIKey}.
@@ -203,15 +215,20 @@ public class ProtoIndexComponentSerialiser {
 		if(archiver != null) {
 			leaf_arx = archiver;
 		} else {
+			short priorityClass = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
+			if(archiver instanceof FreenetArchiver)
+				priorityClass = ((FreenetArchiver)archiver).priorityClass;
 			switch (fmtid) {
 			case FMT_FREENET_SIMPLE:
-				short priorityClass = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
-				if(archiver instanceof FreenetArchiver)
-					priorityClass = ((FreenetArchiver)archiver).priorityClass;
-				leaf_arx = Library.makeArchiver(yamlrw, ProtoIndex.MIME_TYPE, 0x180 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
+				leaf_arx = Library.makeArchiver(yamlrw, YamlReaderWriter.MIME_TYPE, 0x180 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
+				break;
+			case FMT_FREENET_BINARY:
+				leaf_arx = Library.makeArchiver(binrw, BinaryReaderWriter.MIME_TYPE, 0x180 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
 				break;
 			case FMT_FILE_LOCAL:
-				leaf_arx = new FileArchiver<Map<String, Object>>(yamlrw, true, YamlReaderWriter.FILE_EXTENSION, "", "", null);
+				// keep the old extension so we can still find files written by
+				// previous versions of the plugin
+				leaf_arx = new FileArchiver<Map<String, Object>>(binrw, true, YamlReaderWriter.FILE_EXTENSION, "", "", null);
 				break;
 			default:
 				throw new UnsupportedOperationException("Unknown serial format id");
@@ -338,6 +355,7 @@ public class ProtoIndexComponentSerialiser {
 	public static class BTreeNodeSerialiser<K, V>
 	extends ParallelSerialiser<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>
 	implements Archiver<SkeletonBTreeMap<K, V>.SkeletonNode>,
+	           AsyncArchiver<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>,
 	           Serialiser.Translate<SkeletonBTreeMap<K, V>.SkeletonNode, Map<String, Object>>,
 	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
 
@@ -371,12 +389,56 @@ public class ProtoIndexComponentSerialiser {
 		}
 
 		/*@Override**/ public void pullLive(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
+			pullDecode(task, p, pullFetch(task, p));
+		}
+
+		/*@Override**/ public Object pullFetch(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
+			PullTask<Map<String, Object>> serialisable = enterPull(task, p);
+			try {
+				return X2(serialisable, pullFetchFrom(subsrl, serialisable, p));
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not pull B-tree node", e));
+				return null; // abort() always throws
+			}
+		}
+
+		/*@Override**/ public void startPull(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p, final SafeClosure<X2<Object, TaskAbortException>> done) {
+			final PullTask<Map<String, Object>> serialisable;
+			try {
+				serialisable = enterPull(task, p);
+			} catch (TaskAbortException e) {
+				done.invoke(X2((Object)null, e));
+				return;
+			}
+			startPullFrom(subsrl, serialisable, p, new SafeClosure<X2<Object, TaskAbortException>>() {
+				/*@Override**/ public void invoke(X2<Object, TaskAbortException> res) {
+					done.invoke(X2((res._1 == null)? (Object)X2(serialisable, res._0): null, res._1));
+				}
+			});
+		}
+
+		/**
+		** Enters the serialiser for a pull, and creates the task for the child
+		** serialiser.
+		*/
+		protected PullTask<Map<String, Object>> enterPull(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
 			p.enteredSerialiser();
 			try {
 				SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap.GhostNode)task.meta;
 				p.setSubject("Pulling " + name + ": " + ghost.getRange());
-				PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(ghost.getMeta());
-				subsrl.pullLive(serialisable, p);
+				return new PullTask<Map<String, Object>>(ghost.getMeta());
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not pull B-tree node", e));
+				return null; // abort() always throws
+			}
+		}
+
+		/*@Override**/ public void pullDecode(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p, Object fetched) throws TaskAbortException {
+			try {
+				X2<PullTask<Map<String, Object>>, Object> f = (X2<PullTask<Map<String, Object>>, Object>)fetched;
+				PullTask<Map<String, Object>> serialisable = f._0;
+				pullDecodeFrom(subsrl, serialisable, p, f._1);
+				SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap.GhostNode)task.meta;
 				ghost.setMeta(serialisable.meta); task.data = trans.rev(serialisable.data);
 				p.exitingSerialiser();
 			} catch (RuntimeException e) {
@@ -387,12 +449,56 @@ public class ProtoIndexComponentSerialiser {
 		}
 
 		/*@Override**/ public void pushLive(PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
+			PushTask<Map<String, Object>> serialisable = enterPush(task, p);
+			try {
+				subsrl.pushLive(serialisable, p);
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not push B-tree node", e));
+			}
+			exitPush(task, p, serialisable);
+		}
+
+		/*@Override**/ public void startPush(final PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, final SimpleProgress p, final SafeClosure<TaskAbortException> done) {
+			final PushTask<Map<String, Object>> serialisable;
+			try {
+				serialisable = enterPush(task, p);
+			} catch (TaskAbortException e) {
+				done.invoke(e);
+				return;
+			}
+			startPushFrom(subsrl, serialisable, p, new SafeClosure<TaskAbortException>() {
+				/*@Override**/ public void invoke(TaskAbortException ex) {
+					if (ex == null) {
+						try { exitPush(task, p, serialisable); }
+						catch (TaskAbortException e) { ex = e; }
+					}
+					done.invoke(ex);
+				}
+			});
+		}
+
+		/**
+		** Enters the serialiser for a push, and creates the task for the child
+		** serialiser.
+		*/
+		protected PushTask<Map<String, Object>> enterPush(PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
 			p.enteredSerialiser();
 			try {
 				p.setSubject("Pushing " + name + ": " + task.data.getRange());
 				Map<String, Object> intermediate = trans.app(task.data);
-				PushTask<Map<String, Object>> serialisable = new PushTask<Map<String, Object>>(intermediate, task.meta);
-				subsrl.pushLive(serialisable, p);
+				return new PushTask<Map<String, Object>>(intermediate, task.meta);
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not push B-tree node", e));
+				return null; // abort() always throws
+			}
+		}
+
+		/**
+		** Exits the serialiser after the child serialiser has pushed the task
+		** created by {@link #enterPush(Serialiser.PushTask, SimpleProgress)}.
+		*/
+		protected void exitPush(PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p, PushTask<Map<String, Object>> serialisable) throws TaskAbortException {
+			try {
 				task.meta = task.data.makeGhost(serialisable.meta);
 				p.exitingSerialiser();
 			} catch (RuntimeException e) {
@@ -464,6 +570,7 @@ public class ProtoIndexComponentSerialiser {
 	public static class EntryGroupSerialiser<K, V>
 	extends ParallelSerialiser<Map<K, V>, SimpleProgress>
 	implements IterableSerialiser<Map<K, V>>,
+	           AsyncArchiver<Map<K, V>, SimpleProgress>,
 	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
 
 		final protected LiveArchiver<Map<String, Object>, SimpleProgress> subsrl;
@@ -482,11 +589,54 @@ public class ProtoIndexComponentSerialiser {
 		}
 
 		/*@Override**/ public void pullLive(PullTask<Map<K, V>> task, SimpleProgress p) throws TaskAbortException {
+			pullDecode(task, p, pullFetch(task, p));
+		}
+
+		/*@Override**/ public Object pullFetch(PullTask<Map<K, V>> task, SimpleProgress p) throws TaskAbortException {
+			PullTask<Map<String, Object>> t = enterPull(task, p);
+			try {
+				return X2(t, pullFetchFrom(subsrl, t, p));
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
+				return null; // abort() always throws
+			}
+		}
+
+		/*@Override**/ public void startPull(PullTask<Map<K, V>> task, SimpleProgress p, final SafeClosure<X2<Object, TaskAbortException>> done) {
+			final PullTask<Map<String, Object>> t;
+			try {
+				t = enterPull(task, p);
+			} catch (TaskAbortException e) {
+				done.invoke(X2((Object)null, e));
+				return;
+			}
+			startPullFrom(subsrl, t, p, new SafeClosure<X2<Object, TaskAbortException>>() {
+				/*@Override**/ public void invoke(X2<Object, TaskAbortException> res) {
+					done.invoke(X2((res._1 == null)? (Object)X2(t, res._0): null, res._1));
+				}
+			});
+		}
+
+		/**
+		** Enters the serialiser for a pull, and creates the task for the child
+		** serialiser.
+		*/
+		protected PullTask<Map<String, Object>> enterPull(PullTask<Map<K, V>> task, SimpleProgress p) throws TaskAbortException {
 			p.enteredSerialiser();
 			try {
 				p.setSubject("Pulling root container " + task.meta);
-				PullTask<Map<String, Object>> t = new PullTask<Map<String, Object>>(task.meta);
-				subsrl.pullLive(t, p);
+				return new PullTask<Map<String, Object>>(task.meta);
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
+				return null; // abort() always throws
+			}
+		}
+
+		/*@Override**/ public void pullDecode(PullTask<Map<K, V>> task, SimpleProgress p, Object fetched) throws TaskAbortException {
+			try {
+				X2<PullTask<Map<String, Object>>, Object> f = (X2<PullTask<Map<String, Object>>, Object>)fetched;
+				PullTask<Map<String, Object>> t = f._0;
+				pullDecodeFrom(subsrl, t, p, f._1);
 
 				Map<K, V> map = new HashMap<K, V>(t.data.size()<<1);
 				try {
@@ -508,6 +658,40 @@ public class ProtoIndexComponentSerialiser {
 		}
 
 		/*@Override**/ public void pushLive(PushTask<Map<K, V>> task, SimpleProgress p) throws TaskAbortException {
+			PushTask<Map<String, Object>> t = enterPush(task, p);
+			try {
+				subsrl.pushLive(t, p);
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
+			}
+			task.meta = t.meta;
+			p.exitingSerialiser();
+		}
+
+		/*@Override**/ public void startPush(final PushTask<Map<K, V>> task, final SimpleProgress p, final SafeClosure<TaskAbortException> done) {
+			final PushTask<Map<String, Object>> t;
+			try {
+				t = enterPush(task, p);
+			} catch (TaskAbortException e) {
+				done.invoke(e);
+				return;
+			}
+			startPushFrom(subsrl, t, p, new SafeClosure<TaskAbortException>() {
+				/*@Override**/ public void invoke(TaskAbortException ex) {
+					if (ex == null) {
+						task.meta = t.meta;
+						p.exitingSerialiser();
+					}
+					done.invoke(ex);
+				}
+			});
+		}
+
+		/**
+		** Enters the serialiser for a push, and creates the task for the child
+		** serialiser.
+		*/
+		protected PushTask<Map<String, Object>> enterPush(PushTask<Map<K, V>> task, SimpleProgress p) throws TaskAbortException {
 			p.enteredSerialiser();
 			try {
 				p.setSubject("Pushing root container for keys " + task.data);
@@ -515,12 +699,10 @@ public class ProtoIndexComponentSerialiser {
 				for (Map.Entry<K, V> mp: task.data.entrySet()) {
 					conv.put((ktr == null)? (String)mp.getKey(): ktr.app(mp.getKey()), btr.app(mp.getValue()));
 				}
-				PushTask<Map<String, Object>> t = new PushTask<Map<String, Object>>(conv, task.meta);
-				subsrl.pushLive(t, p);
-				task.meta = t.meta;
-				p.exitingSerialiser();
+				return new PushTask<Map<String, Object>>(conv, task.meta);
 			} catch (RuntimeException e) {
 				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
+				return null; // abort() always throws
 			}
 		}
 
@@ -16,6 +16,7 @@ import plugins.Library.io.serial.Translator;
 import plugins.Library.io.serial.Archiver;
 import plugins.Library.io.serial.FileArchiver;
 import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.BinaryReaderWriter;
 import plugins.Library.io.DataFormatException;
 
 import freenet.keys.FreenetURI;
@@ -45,7 +46,12 @@ implements Archiver<ProtoIndex>,
            Serialiser.Translate<ProtoIndex, Map<String, Object>>/*,
            Serialiser.Trackable<Index>*/ {
 
-	final public static String MIME_TYPE = YamlReaderWriter.MIME_TYPE;
+	final public static String MIME_TYPE = BinaryReaderWriter.MIME_TYPE;
+	/**
+	** MIME type of indexes written before the binary format, which are still
+	** read by the same serialiser.
+	*/
+	final public static String MIME_TYPE_YAML = YamlReaderWriter.MIME_TYPE;
 	final public static String FILE_EXTENSION = YamlReaderWriter.FILE_EXTENSION;
 
 	final protected Translator<ProtoIndex, Map<String, Object>>
@@ -88,7 +94,7 @@ implements Archiver<ProtoIndex>,
 		
 		// One serialiser per application. See comments above re srl_cls.
 		// java's type-inference isn't that smart, see
-		FreenetArchiver<Map<String, Object>> arx = Library.makeArchiver(ProtoIndexComponentSerialiser.yamlrw, MIME_TYPE, 0x80 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
+		FreenetArchiver<Map<String, Object>> arx = Library.makeArchiver(ProtoIndexComponentSerialiser.binrw, MIME_TYPE, 0x80 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
 		return new ProtoIndexSerialiser(arx);
 	}
 
@@ -100,7 +106,7 @@ implements Archiver<ProtoIndex>,
 //		return srl;
 		
 		// One serialiser per application. See comments above re srl_cls.
-		return new ProtoIndexSerialiser(new FileArchiver<Map<String, Object>>(ProtoIndexComponentSerialiser.yamlrw, true, FILE_EXTENSION, "", "", prefix));
+		return new ProtoIndexSerialiser(new FileArchiver<Map<String, Object>>(ProtoIndexComponentSerialiser.binrw, true, FILE_EXTENSION, "", "", prefix));
 	}
 
 	/*@Override**/ public LiveArchiver<Map<String, Object>, SimpleProgress> getChildSerialiser() {
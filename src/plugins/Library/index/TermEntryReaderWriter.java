@@ -11,6 +11,7 @@ import freenet.keys.FreenetURI;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -62,7 +63,8 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 				title = dis.readUTF();
 				size = ~size;
 			}
-			Map<Integer, String> pos = new HashMap<Integer, String>(size<<1);
+			// size is only a hint here, each position is read one by one
+			Map<Integer, String> pos = new HashMap<Integer, String>(Math.min(size, 0x100)<<1);
 			for (int i=0; i<size; ++i) {
 				int index = dis.readInt();
 				String val = dis.readUTF();
@@ -121,4 +123,152 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 		}
 	}
 
+	/**
+	** Reads a {@link TermPostingList} written by {@link
+	** #writePostings(TermPostingList, DataOutputStream)}.
+	**
+	** @param limit Number of bytes left in the input. No size read from the
+	**        stream may imply more data than this.
+	*/
+	@SuppressWarnings("unchecked")
+	public TermPostingList readPostings(DataInputStream dis, int limit) throws IOException {
+		long svuid = dis.readLong();
+		if (svuid != TermEntry.serialVersionUID) {
+			throw new DataFormatException("Incorrect serialVersionUID", null, svuid);
+		}
+		String subj = dis.readUTF();
+		// each posting takes at least a float and three varints
+		int size = readSize(dis, 7, limit);
+		int flags = dis.readUnsignedByte();
+
+		// each URI takes at least its length
+		FreenetURI[] pages = new FreenetURI[readSize(dis, 2, limit)];
+		for (int i=0; i<pages.length; ++i) {
+			pages[i] = FreenetURI.readFullBinaryKeyWithLength(dis).intern();
+		}
+
+		float[] rel = new float[size];
+		int[] page = new int[size];
+		int[] posOff = new int[size + 1];
+		int[] posCount = new int[size];
+		String[] titles = ((flags & POSTINGS_TITLES) != 0)? new String[size]: null;
+		Map<Integer, String>[] frags = ((flags & POSTINGS_FRAGMENTS) != 0)? (Map<Integer, String>[])new Map[size]: null;
+
+		int off = 0;
+		for (int i=0; i<size; ++i) {
+			rel[i] = dis.readFloat();
+			page[i] = readSize(dis);
+			if (page[i] >= pages.length) {
+				throw new DataFormatException("Page index out of range", null, page[i]);
+			}
+			posCount[i] = readVarInt(dis) - 1;
+			posOff[i] = off;
+			int len = readSize(dis);
+			if (len > limit - off) {
+				throw new DataFormatException("Positions are larger than the input left", null, len);
+			}
+			off += len;
+			if (titles != null && dis.readBoolean()) {
+				titles[i] = dis.readUTF().intern();
+			}
+			if (frags != null) {
+				// each fragment takes at least an int and a string length
+				int n = readSize(dis, 6, limit);
+				if (n > 0) {
+					frags[i] = new LinkedHashMap<Integer, String>(n<<1);
+					for (int j=0; j<n; ++j) {
+						int k = dis.readInt();
+						String val = dis.readUTF();
+						frags[i].put(k, "".equals(val) ? null : val);
+					}
+				}
+			}
+		}
+		posOff[size] = off;
+		byte[] posData = new byte[off];
+		dis.readFully(posData);
+		return new TermPostingList(subj, rel, page, pages, titles, posOff, posCount, posData, frags);
+	}
+
+	/**
+	** Writes a {@link TermPostingList} in columnar form. Positions are copied
+	** as-is, without being decoded.
+	*/
+	public void writePostings(TermPostingList list, DataOutputStream dos) throws IOException {
+		dos.writeLong(TermEntry.serialVersionUID);
+		dos.writeUTF(list.subj);
+		int size = list.size();
+		writeVarInt(size, dos);
+		dos.writeByte(((list.titles != null)? POSTINGS_TITLES: 0) | ((list.frags != null)? POSTINGS_FRAGMENTS: 0));
+
+		writeVarInt(list.pages.length, dos);
+		for (FreenetURI u: list.pages) {
+			u.writeFullBinaryKeyWithLength(dos);
+		}
+
+		for (int i=0; i<size; ++i) {
+			dos.writeFloat(list.rel[i]);
+			writeVarInt(list.page[i], dos);
+			writeVarInt(list.posCount[i] + 1, dos);
+			writeVarInt(list.posOff[i+1] - list.posOff[i], dos);
+			if (list.titles != null) {
+				String t = list.titles[i];
+				dos.writeBoolean(t != null);
+				if (t != null) { dos.writeUTF(t); }
+			}
+			if (list.frags != null) {
+				Map<Integer, String> f = list.frags[i];
+				writeVarInt((f == null)? 0: f.size(), dos);
+				if (f != null) {
+					for (Map.Entry<Integer, String> p: f.entrySet()) {
+						dos.writeInt(p.getKey());
+						dos.writeUTF((p.getValue() == null)? "": p.getValue());
+					}
+				}
+			}
+		}
+		dos.write(list.posData);
+	}
+
+	final protected static int POSTINGS_TITLES = 0x01;
+	final protected static int POSTINGS_FRAGMENTS = 0x02;
+
+	protected static void writeVarInt(int i, DataOutputStream dos) throws IOException {
+		while ((i & ~0x7f) != 0) {
+			dos.writeByte((i & 0x7f) | 0x80);
+			i >>>= 7;
+		}
+		dos.writeByte(i);
+	}
+
+	protected static int readVarInt(DataInputStream dis) throws IOException {
+		int i = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = dis.readUnsignedByte();
+			i |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) { return i; }
+		}
+		throw new DataFormatException("Malformed variable-length integer", null, i);
+	}
+
+	protected static int readSize(DataInputStream dis) throws IOException {
+		int size = readVarInt(dis);
+		if (size < 0) {
+			throw new DataFormatException("Negative size", null, size);
+		}
+		return size;
+	}
+
+	/**
+	** Reads the size of something whose elements each take at least {@code
+	** unit} bytes, and checks that it fits into {@code limit} bytes.
+	*/
+	protected static int readSize(DataInputStream dis, int unit, int limit) throws IOException {
+		int size = readSize(dis);
+		if ((long)size * unit > limit) {
+			throw new DataFormatException("Size is larger than the input left", null, size);
+		}
+		return size;
+	}
+
 }
@@ -0,0 +1,343 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+** Groups a stream of {@link TermEntry}s by subject, using a bounded amount of
+** memory. Entries are collected in memory until there are {@link #spillSize}
+** of them; these are then written to disk in subject order as a sorted run,
+** using {@link TermEntryReaderWriter}. {@link #finish()} merges all the runs
+** into a single file, in which the entries for each subject are contiguous,
+** and remembers where each subject starts.
+**
+** After that, {@link #take(String)} returns all the entries for a subject.
+** This may be called in any order and from any thread, so it can be used
+** from the value closure of {@link plugins.Library.util.SkeletonBTreeMap},
+** which is not called in key order.
+** At any one time, only the entries of the subjects being taken, and of the
+** subject being merged, need to be in memory.
+**
+** Remembering where each subject starts takes memory for every subject. If
+** the subjects are only needed in order, {@link #finishInOrder()} can be
+** used instead, after which {@link #next()} reads them back one at a time,
+** and only the entries of that subject are held in memory.
+**
+** If nothing was ever spilled, the entries are simply kept in memory.
+*/
+public class TermEntrySorter {
+
+	final protected static TermEntryReaderWriter terw = TermEntryReaderWriter.getInstance();
+
+	final public static String FILE_PREFIX = "library-spill-";
+
+	/** Directory to spill runs into. */
+	final protected File dir;
+	/** Number of entries to keep in memory before spilling a run. */
+	final protected int spillSize;
+
+	/** Entries not yet spilled. */
+	protected TreeMap<String, SortedSet<TermEntry>> buffer = new TreeMap<String, SortedSet<TermEntry>>();
+	protected int buffered;
+	protected long added;
+
+	final protected List<File> runs = new ArrayList<File>();
+	final protected List<Integer> runSizes = new ArrayList<Integer>();
+
+	/** All the entries, grouped by subject, once {@link #finish()} has merged the runs. */
+	protected File merged;
+	protected RandomAccessFile mergedFile;
+	protected long mergedLength;
+	protected long mergedEntries;
+	/** Where each subject starts in {@link #merged}, unless {@link #finishInOrder()} was used. */
+	protected TreeMap<String, Long> offsets;
+
+	/** Cursor over {@link #merged}, if {@link #finishInOrder()} was used. */
+	protected Run cursor;
+	protected boolean inOrder;
+
+	protected boolean finished;
+
+	/**
+	** @param d Directory to write temporary files into
+	** @param s Number of entries to keep in memory before writing them out
+	*/
+	public TermEntrySorter(File d, int s) {
+		if (s < 1) { throw new IllegalArgumentException("spill size must be positive"); }
+		dir = d;
+		spillSize = s;
+	}
+
+	/**
+	** Add an entry. Entries that are equal to one already added for the same
+	** subject since the last spill are dropped; duplicates in different runs
+	** are dropped by {@link #finish()}.
+	*/
+	public void add(TermEntry en) throws IOException {
+		if (finished) { throw new IllegalStateException("Already finished"); }
+		SortedSet<TermEntry> set = buffer.get(en.subj);
+		if (set == null) { buffer.put(en.subj, set = new TreeSet<TermEntry>()); }
+		if (set.add(en)) { ++buffered; }
+		++added;
+		if (buffered >= spillSize) { spill(); }
+	}
+
+	/**
+	** Number of entries added, including duplicates.
+	*/
+	public long size() {
+		return added;
+	}
+
+	/**
+	** Number of sorted runs written to disk so far.
+	*/
+	public int runs() {
+		return runs.size();
+	}
+
+	protected void spill() throws IOException {
+		File f = File.createTempFile(FILE_PREFIX, ".run", dir);
+		runs.add(f);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 0x10000));
+		try {
+			for (SortedSet<TermEntry> set: buffer.values()) {
+				for (TermEntry en: set) { terw.writeObject(en, dos); }
+			}
+		} finally {
+			dos.close();
+		}
+		runSizes.add(buffered);
+		buffer = new TreeMap<String, SortedSet<TermEntry>>();
+		buffered = 0;
+	}
+
+	/**
+	** Finish adding entries, and merge everything that was spilled to disk.
+	*/
+	public void finish() throws IOException {
+		if (finished) { return; }
+		merge(false);
+		if (merged != null) { mergedFile = new RandomAccessFile(merged, "r"); }
+	}
+
+	/**
+	** Finish adding entries, and merge everything that was spilled to disk,
+	** without remembering where each subject starts. The subjects can then
+	** only be read in order, with {@link #next()}.
+	*/
+	public void finishInOrder() throws IOException {
+		if (finished) { return; }
+		merge(true);
+		if (merged != null) {
+			cursor = new Run(merged, mergedEntries);
+			cursor.next();
+		}
+	}
+
+	protected void merge(boolean order) throws IOException {
+		finished = true;
+		inOrder = order;
+		if (runs.isEmpty()) { return; }
+		if (buffered > 0) { spill(); }
+		buffer = null;
+
+		PriorityQueue<Run> heads = new PriorityQueue<Run>();
+		try {
+			for (int i=0; i<runs.size(); ++i) {
+				Run r = new Run(runs.get(i), runSizes.get(i));
+				if (r.next()) { heads.add(r); } else { r.close(); }
+			}
+
+			merged = File.createTempFile(FILE_PREFIX, ".merged", dir);
+			if (!order) { offsets = new TreeMap<String, Long>(); }
+			CountingOutputStream cos = new CountingOutputStream(new FileOutputStream(merged));
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(cos, 0x10000));
+			try {
+				while (!heads.isEmpty()) {
+					String subj = heads.peek().head.subj;
+					SortedSet<TermEntry> set = new TreeSet<TermEntry>();
+					// pull everything for this subject out of all the runs
+					while (!heads.isEmpty() && heads.peek().head.subj.equals(subj)) {
+						Run r = heads.poll();
+						do {
+							set.add(r.head);
+						} while (r.next() && r.head.subj.equals(subj));
+						if (r.head != null) { heads.add(r); } else { r.close(); }
+					}
+					if (!order) {
+						dos.flush();
+						offsets.put(subj, cos.count);
+					}
+					for (TermEntry en: set) { terw.writeObject(en, dos); }
+					mergedEntries += set.size();
+				}
+			} finally {
+				dos.close();
+			}
+			mergedLength = cos.count;
+		} finally {
+			for (Run r: heads) { r.close(); }
+			for (File f: runs) { f.delete(); }
+			runs.clear();
+		}
+	}
+
+	/**
+	** Returns all the subjects of the entries, in order. Must be called after
+	** {@link #finish()}.
+	*/
+	public SortedSet<String> subjects() {
+		if (!finished) { throw new IllegalStateException("Not finished yet"); }
+		if (inOrder) { throw new IllegalStateException("Finished in order"); }
+		return (offsets == null)? new TreeSet<String>(buffer.keySet()): offsets.navigableKeySet();
+	}
+
+	/**
+	** Returns all the entries for the given subject, or {@code null} if there
+	** are none. If the entries are only held in memory, they are released, so
+	** this should only be called once for each subject.
+	*/
+	public SortedSet<TermEntry> take(String subj) throws IOException {
+		if (!finished) { throw new IllegalStateException("Not finished yet"); }
+		if (inOrder) { throw new IllegalStateException("Finished in order"); }
+		if (offsets == null) {
+			synchronized (buffer) { return buffer.remove(subj); }
+		}
+		Long start = offsets.get(subj);
+		if (start == null) { return null; }
+		Map.Entry<String, Long> next = offsets.higherEntry(subj);
+		long end = (next == null)? mergedLength: next.getValue();
+		byte[] buf = new byte[(int)(end - start)];
+		synchronized (mergedFile) {
+			mergedFile.seek(start);
+			mergedFile.readFully(buf);
+		}
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+		SortedSet<TermEntry> set = new TreeSet<TermEntry>();
+		while (dis.available() > 0) { set.add(terw.readObject(dis)); }
+		return set;
+	}
+
+	/**
+	** Returns all the entries for the next subject, in subject order, or
+	** {@code null} if there are no more. Must be called after {@link
+	** #finishInOrder()}.
+	*/
+	public SortedSet<TermEntry> next() throws IOException {
+		if (!finished || !inOrder) { throw new IllegalStateException("Not finished in order"); }
+		if (cursor == null) {
+			Map.Entry<String, SortedSet<TermEntry>> en = buffer.pollFirstEntry();
+			return (en == null)? null: en.getValue();
+		}
+		if (cursor.head == null) { return null; }
+		String subj = cursor.head.subj;
+		SortedSet<TermEntry> set = new TreeSet<TermEntry>();
+		do {
+			set.add(cursor.head);
+		} while (cursor.next() && cursor.head.subj.equals(subj));
+		return set;
+	}
+
+	/**
+	** Delete all temporary files. This object cannot be used afterwards.
+	*/
+	public void close() {
+		try {
+			if (mergedFile != null) { mergedFile.close(); }
+		} catch (IOException e) {
+			// ignore
+		}
+		if (cursor != null) { cursor.close(); }
+		if (merged != null) { merged.delete(); }
+		for (File f: runs) { f.delete(); }
+		runs.clear();
+		buffer = null;
+		offsets = null;
+	}
+
+	/**
+	** Cursor over a sorted run on disk.
+	*/
+	protected static class Run implements Comparable<Run> {
+
+		final protected DataInputStream dis;
+		protected long remaining;
+		protected TermEntry head;
+
+		public Run(File f, long size) throws IOException {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 0x10000));
+			remaining = size;
+		}
+
+		/**
+		** Advance to the next entry.
+		**
+		** @return Whether there was one
+		*/
+		public boolean next() throws IOException {
+			if (remaining == 0) { head = null; return false; }
+			--remaining;
+			head = terw.readObject(dis);
+			return true;
+		}
+
+		public void close() {
+			try {
+				dis.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+
+		/*@Override**/ public int compareTo(Run r) {
+			return head.subj.compareTo(r.head.subj);
+		}
+
+	}
+
+	/**
+	** Keeps track of how many bytes have been written, so that we know the
+	** offset of each subject in the merged file.
+	*/
+	protected static class CountingOutputStream extends FilterOutputStream {
+
+		protected long count;
+
+		public CountingOutputStream(OutputStream os) {
+			super(os);
+		}
+
+		@Override public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+	}
+
+}
@@ -0,0 +1,484 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.SkeletonTreeMap;
+
+import freenet.keys.FreenetURI;
+import freenet.support.SortedIntSet;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+** An immutable list of {@link TermPageEntry}s for a single subject, stored
+** column-wise in primitive arrays instead of as one object per posting.
+**
+** Each page is stored once in a dictionary, and each posting refers to it by
+** its index in that dictionary. Positions are stored as delta-encoded
+** varints in one shared byte array. {@link TermPageEntry} objects are only
+** created by {@link #get(int)}, ie. when the list is iterated; code that only
+** needs the relevance, page or positions of each posting should use {@link
+** #relevance(int)}, {@link #page(int)} and {@link #positions(int, int[])},
+** which do not allocate.
+**
+** This is the form in which the postings of a node are serialised, and in
+** which {@link ProtoIndex#getTermEntries(String)} caches its results. The
+** nodes of a term's B-tree also keep their postings in this form when they
+** are loaded, as a {@link TermPostingMap}, until they are changed; {@link
+** NodeTranslator} converts between the two.
+**
+** If the postings are in the order of {@link TermEntry#compareTo(TermEntry)},
+** as they are when built from a sorted set, {@link #indexOf(Object)} and
+** {@link #contains(Object)} use a binary search.
+*/
+final public class TermPostingList extends AbstractList<TermEntry> implements RandomAccess {
+
+	final public String subj;
+
+	final protected float[] rel;
+	final protected int[] page;
+	final protected FreenetURI[] pages;
+	/** Title of each posting, or {@code null} if none of them have one. */
+	final protected String[] titles;
+
+	/**
+	** Offset of the positions of each posting in {@link #posData}. This has
+	** one more element than there are postings.
+	*/
+	final protected int[] posOff;
+	/** Number of positions of each posting, or -1 if it has no position data. */
+	final protected int[] posCount;
+	final protected byte[] posData;
+	/** Fragments of each posting, or {@code null} if none of them have any. */
+	final protected Map<Integer, String>[] frags;
+
+	/**
+	** Whether the postings are in strictly ascending order, or {@code null}
+	** if this hasn't been checked yet.
+	*/
+	protected volatile Boolean sorted;
+
+	protected TermPostingList(String s, float[] r, int[] p, FreenetURI[] ps, String[] t, int[] po, int[] pc, byte[] pd, Map<Integer, String>[] f) {
+		subj = s;
+		rel = r;
+		page = p;
+		pages = ps;
+		titles = t;
+		posOff = po;
+		posCount = pc;
+		posData = pd;
+		frags = f;
+	}
+
+	/**
+	** Returns the given entries in columnar form, in iteration order, or
+	** {@code null} if they are not all {@link TermPageEntry}s with the same
+	** subject.
+	*/
+	public static TermPostingList fromEntries(Collection<? extends TermEntry> src) {
+		return fromEntries(src, 1.0);
+	}
+
+	/**
+	** Returns the given entries in columnar form, in iteration order, with
+	** the relevance of each multiplied by the given factor, or {@code null}
+	** if they are not all {@link TermPageEntry}s with the same subject.
+	*/
+	public static TermPostingList fromEntries(Collection<? extends TermEntry> src, double relAdjustment) {
+		if (src instanceof TermPostingList && relAdjustment == 1.0) {
+			return (TermPostingList)src;
+		}
+		Builder b = null;
+		for (TermEntry en: src) {
+			if (!(en instanceof TermPageEntry)) { return null; }
+			if (b == null) {
+				b = new Builder(en.subj, src.size());
+			} else if (!b.subj.equals(en.subj)) {
+				return null;
+			}
+			b.add((TermPageEntry)en, (float)(relAdjustment * en.rel));
+		}
+		return (b == null)? null: b.build();
+	}
+
+	/*========================================================================
+	  public class AbstractList
+	 ========================================================================*/
+
+	@Override public int size() {
+		return rel.length;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This creates a new {@link TermPageEntry} on each call.
+	*/
+	@Override public TermEntry get(int i) {
+		if (frags != null && frags[i] != null) {
+			// positions are the keys of the fragments map
+			return new TermPageEntry(subj, rel[i], pages[page[i]], title(i), frags[i]);
+		}
+		return new TermPageEntry(subj, rel[i], pages[page[i]], title(i), positionSet(i), null);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation compares columns directly and does not create any
+	** {@link TermPageEntry}s. If the postings are sorted, this takes time
+	** logarithmic in the size of the list.
+	*/
+	@Override public int indexOf(Object o) {
+		if (!(o instanceof TermPageEntry)) { return -1; }
+		TermPageEntry en = (TermPageEntry)o;
+		if (!subj.equals(en.subj)) { return -1; }
+		if (isSorted()) {
+			String key = en.page.toString();
+			int lo = 0, hi = rel.length - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int c = compare(mid, en.rel, key);
+				if (c < 0) {
+					lo = mid + 1;
+				} else if (c > 0) {
+					hi = mid - 1;
+				} else {
+					return pages[page[mid]].equals(en.page)? mid: -1;
+				}
+			}
+			return -1;
+		}
+		for (int i=0; i<rel.length; ++i) {
+			if (rel[i] == en.rel && pages[page[i]].equals(en.page)) { return i; }
+		}
+		return -1;
+	}
+
+	/**
+	** Compares the given posting with a {@link TermPageEntry} of the same
+	** subject, as {@link TermPageEntry#compareTo(TermEntry)} does.
+	**
+	** @param r The relevance of the entry
+	** @param key The string form of the page of the entry
+	*/
+	protected int compare(int i, float r, String key) {
+		if (rel[i] != r) { return (rel[i] > r)? -1: 1; }
+		return pages[page[i]].toString().compareTo(key);
+	}
+
+	/**
+	** Whether the postings are in strictly ascending order. This is checked
+	** the first time it is needed, and remembered.
+	*/
+	protected boolean isSorted() {
+		Boolean s = sorted;
+		if (s == null) {
+			boolean ok = true;
+			for (int i=1; ok && i<rel.length; ++i) {
+				ok = compare(i-1, rel[i], pages[page[i]].toString()) < 0;
+			}
+			sorted = s = ok;
+		}
+		return s;
+	}
+
+	@Override public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+
+	/*========================================================================
+	  columnar access
+	 ========================================================================*/
+
+	public float relevance(int i) {
+		return rel[i];
+	}
+
+	/**
+	** Returns the index of the page of the given posting in the page
+	** dictionary. Postings for the same page have the same index.
+	*/
+	public int pageID(int i) {
+		return page[i];
+	}
+
+	public FreenetURI page(int i) {
+		return pages[page[i]];
+	}
+
+	/**
+	** Number of distinct pages in this list.
+	*/
+	public int pageCount() {
+		return pages.length;
+	}
+
+	public FreenetURI pageForID(int id) {
+		return pages[id];
+	}
+
+	public String title(int i) {
+		return (titles == null)? null: titles[i];
+	}
+
+	public boolean hasPositions(int i) {
+		return posCount[i] >= 0;
+	}
+
+	public int positionsSize(int i) {
+		return (posCount[i] < 0)? 0: posCount[i];
+	}
+
+	/**
+	** Decodes the positions of the given posting into the given array, which
+	** must be at least {@link #positionsSize(int)} long.
+	**
+	** @return The number of positions written
+	*/
+	public int positions(int i, int[] dst) {
+		int n = posCount[i];
+		int off = posOff[i];
+		int last = 0;
+		for (int j=0; j<n; ++j) {
+			int d = 0;
+			for (int shift=0;; shift+=7) {
+				byte b = posData[off++];
+				d |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) { break; }
+			}
+			dst[j] = last += d;
+		}
+		return (n < 0)? 0: n;
+	}
+
+	/**
+	** Returns the positions of the given posting, or {@code null} if it has
+	** no position data.
+	*/
+	public int[] positions(int i) {
+		if (posCount[i] < 0) { return null; }
+		int[] pos = new int[posCount[i]];
+		positions(i, pos);
+		return pos;
+	}
+
+	protected SortedIntSet positionSet(int i) {
+		int[] pos = positions(i);
+		return (pos == null)? null: new SortedIntSet(pos);
+	}
+
+	/**
+	** Returns a rough estimate of the number of bytes taken up by this list.
+	*/
+	public long sizeEstimate() {
+		long s = 0x40 + posData.length + (long)rel.length * 0x14 + (long)pages.length * 0x80;
+		if (titles != null) { s += (long)titles.length * 0x08; }
+		if (frags != null) {
+			for (Map<Integer, String> f: frags) {
+				if (f != null) { s += 0x40 + (long)f.size() * 0x80; }
+			}
+		}
+		return s;
+	}
+
+	/**
+	** Returns an unmodifiable {@link Set} view of this list. Entries are
+	** assumed to be distinct, which is true if it was built from a {@link
+	** Set}.
+	*/
+	public Set<TermEntry> asSet() {
+		return new SetView(this);
+	}
+
+
+	/************************************************************************
+	** {@link Set} view of a {@link TermPostingList}.
+	*/
+	public static class SetView extends AbstractSet<TermEntry> {
+
+		final protected TermPostingList list;
+
+		protected SetView(TermPostingList l) {
+			list = l;
+		}
+
+		public TermPostingList getPostings() {
+			return list;
+		}
+
+		@Override public int size() {
+			return list.size();
+		}
+
+		@Override public boolean contains(Object o) {
+			return list.contains(o);
+		}
+
+		@Override public Iterator<TermEntry> iterator() {
+			final Iterator<TermEntry> it = list.iterator();
+			return new Iterator<TermEntry>() {
+				/*@Override**/ public boolean hasNext() { return it.hasNext(); }
+				/*@Override**/ public TermEntry next() { return it.next(); }
+				/*@Override**/ public void remove() { throw new UnsupportedOperationException(); }
+			};
+		}
+
+	}
+
+
+	/************************************************************************
+	** Builds a {@link TermPostingList} one posting at a time.
+	*/
+	public static class Builder {
+
+		final public String subj;
+
+		protected int size;
+		protected float[] rel;
+		protected int[] page;
+		final protected Map<FreenetURI, Integer> pageIDs = new HashMap<FreenetURI, Integer>();
+		final protected ArrayList<FreenetURI> pages = new ArrayList<FreenetURI>();
+		protected String[] titles;
+		protected int[] posOff;
+		protected int[] posCount;
+		protected byte[] posData = new byte[0x40];
+		protected int posLen;
+		protected Map<Integer, String>[] frags;
+
+		public Builder(String s, int capacity) {
+			subj = s;
+			if (capacity < 1) { capacity = 1; }
+			rel = new float[capacity];
+			page = new int[capacity];
+			posOff = new int[capacity + 1];
+			posCount = new int[capacity];
+		}
+
+		protected void grow() {
+			int cap = rel.length << 1;
+			rel = Arrays.copyOf(rel, cap);
+			page = Arrays.copyOf(page, cap);
+			posOff = Arrays.copyOf(posOff, cap + 1);
+			posCount = Arrays.copyOf(posCount, cap);
+			if (titles != null) { titles = Arrays.copyOf(titles, cap); }
+			if (frags != null) { frags = Arrays.copyOf(frags, cap); }
+		}
+
+		protected int pageID(FreenetURI u) {
+			Integer id = pageIDs.get(u);
+			if (id == null) {
+				id = pages.size();
+				pageIDs.put(u, id);
+				pages.add(u);
+			}
+			return id;
+		}
+
+		protected void writePosition(int d) {
+			if (posLen + 5 > posData.length) {
+				posData = Arrays.copyOf(posData, Math.max(posLen + 5, posData.length << 1));
+			}
+			while ((d & ~0x7f) != 0) {
+				posData[posLen++] = (byte)((d & 0x7f) | 0x80);
+				d >>>= 7;
+			}
+			posData[posLen++] = (byte)d;
+		}
+
+		public Builder add(TermPageEntry en) {
+			return add(en, en.rel);
+		}
+
+		public Builder add(TermPageEntry en, float r) {
+			return add(r, en.page, en.title, en.hasPositions()? en.positionsRaw(): null, en.hasFragments()? en.posFragments: null);
+		}
+
+		/**
+		** @param pos Positions, ideally in ascending order, or {@code null}
+		*/
+		@SuppressWarnings("unchecked")
+		public Builder add(float r, FreenetURI u, String t, int[] pos, Map<Integer, String> f) {
+			if (size == rel.length) { grow(); }
+			rel[size] = r;
+			page[size] = pageID(u);
+			if (t != null) {
+				if (titles == null) { titles = new String[rel.length]; }
+				titles[size] = t;
+			}
+			if (f != null) {
+				if (frags == null) { frags = (Map<Integer, String>[])new Map[rel.length]; }
+				frags[size] = f;
+			}
+			posOff[size] = posLen;
+			if (pos == null) {
+				posCount[size] = -1;
+			} else {
+				posCount[size] = pos.length;
+				int last = 0;
+				for (int p: pos) {
+					// wraps around correctly if they're not in order; just
+					// takes more space
+					writePosition(p - last);
+					last = p;
+				}
+			}
+			++size;
+			posOff[size] = posLen;
+			return this;
+		}
+
+		public TermPostingList build() {
+			return new TermPostingList(subj,
+				Arrays.copyOf(rel, size),
+				Arrays.copyOf(page, size),
+				pages.toArray(new FreenetURI[pages.size()]),
+				(titles == null)? null: Arrays.copyOf(titles, size),
+				Arrays.copyOf(posOff, size + 1),
+				Arrays.copyOf(posCount, size),
+				Arrays.copyOf(posData, posLen),
+				(frags == null)? null: Arrays.copyOf(frags, size)
+			);
+		}
+
+	}
+
+
+	/************************************************************************
+	** Translator for the local entries of a node of the B-tree for a term,
+	** which writes them as a {@link TermPostingList} where possible, and
+	** reads such a list back as a {@link TermPostingMap}.
+	*/
+	public static class NodeTranslator extends SkeletonBTreeSet.TreeSetTranslator<TermEntry> {
+
+		@Override public Collection<TermEntry> app(SkeletonTreeMap<TermEntry, TermEntry> src) {
+			if (src instanceof TermPostingMap) {
+				// not changed since it was loaded
+				TermPostingList list = ((TermPostingMap)src).getPostings();
+				if (list != null) { return list; }
+			}
+			TermPostingList list = fromEntries(src.keySet());
+			return (list == null)? super.app(src): list;
+		}
+
+		@Override public SkeletonTreeMap<TermEntry, TermEntry> rev(Collection<TermEntry> src) {
+			if (src instanceof TermPostingList && ((TermPostingList)src).isSorted()) {
+				return new TermPostingMap((TermPostingList)src);
+			}
+			return super.rev(src);
+		}
+
+	}
+
+}
@@ -0,0 +1,429 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.util.DataNotLoadedException;
+import plugins.Library.util.SkeletonTreeMap;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+** The local entries of a node of the B-tree for a term, kept as a {@link
+** TermPostingList} for as long as possible.
+**
+** {@link TermPostingList.NodeTranslator} creates these for nodes that were
+** written as a {@link TermPostingList}. Counting and looking up entries,
+** iterating over them, and inflating or deflating the map, all work on the
+** list directly. Iterating creates a {@link TermPageEntry} for each posting
+** as it is reached, and does not keep it. A node that is written out again
+** without having been changed gives back the same list.
+**
+** Anything else, such as changing the node when it is merged, or taking a
+** submap of it, first expands the list into the {@link SkeletonTreeMap}
+** that this extends. From then on, this behaves exactly like one.
+**
+** Inflating or deflating the list directly only works with the dummy
+** serialiser that {@link ProtoIndexComponentSerialiser} uses for the values
+** of these nodes, since each value is then the key itself; with any other
+** serialiser, the list is expanded first.
+*/
+public class TermPostingMap extends SkeletonTreeMap<TermEntry, TermEntry> {
+
+	/**
+	** The entries of this map, or {@code null} once they have been expanded.
+	** While this is set, either all the values are loaded, or none are,
+	** depending on {@link #ghosts}.
+	*/
+	protected volatile TermPostingList postings;
+
+	/**
+	** Create a bare map of the given postings.
+	**
+	** @throws IllegalArgumentException if the postings are not in order (see
+	**         {@link TermPostingList#isSorted()})
+	*/
+	public TermPostingMap(TermPostingList list) {
+		if (!list.isSorted()) {
+			throw new IllegalArgumentException("TermPostingMap: postings for " + list.subj + " are not in order");
+		}
+		postings = list;
+		ghosts = list.size();
+	}
+
+	/**
+	** Returns the postings of this map, or {@code null} if they have been
+	** expanded.
+	*/
+	public TermPostingList getPostings() {
+		return postings;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The entries are all put into the backing map before {@link #postings}
+	** is cleared, so that anything reading the map meanwhile still sees it
+	** complete.
+	*/
+	@Override protected synchronized void expand() {
+		TermPostingList list = postings;
+		if (list == null) { return; }
+		boolean loaded = (ghosts == 0);
+		for (int i=0; i<list.size(); ++i) {
+			TermEntry en = list.get(i);
+			if (loaded) {
+				super.put(en, en);
+			} else {
+				super.putGhost(en, en);
+			}
+		}
+		ghosts = loaded? 0: list.size();
+		postings = null;
+	}
+
+	protected void verifyLoaded(Object key, TermEntry en) {
+		if (ghosts > 0) {
+			throw new DataNotLoadedException("TermPostingMap: Data not loaded for key " + key + ": " + en, this, key, en);
+		}
+	}
+
+	/*========================================================================
+	  public interface SkeletonMap
+	 ========================================================================*/
+
+	@Override public boolean isBare() {
+		TermPostingList list = postings;
+		return (list == null)? super.isBare(): ghosts == list.size();
+	}
+
+	@Override public void inflate() throws TaskAbortException {
+		if (postings != null && serialiser == ProtoIndexComponentSerialiser.term_dummy) {
+			// each value is its own key, so there is nothing to pull
+			ghosts = 0;
+			return;
+		}
+		expand();
+		super.inflate();
+	}
+
+	@Override public void deflate() throws TaskAbortException {
+		TermPostingList list = postings;
+		if (list != null && serialiser == ProtoIndexComponentSerialiser.term_dummy) {
+			ghosts = list.size();
+			return;
+		}
+		expand();
+		super.deflate();
+	}
+
+	@Override public void inflate(TermEntry key) throws TaskAbortException {
+		expand();
+		super.inflate(key);
+	}
+
+	@Override public void inflate(TermEntry key, Object lock) throws TaskAbortException {
+		expand();
+		super.inflate(key, lock);
+	}
+
+	@Override public void deflate(TermEntry key) throws TaskAbortException {
+		expand();
+		super.deflate(key);
+	}
+
+	@Override public Object putGhost(TermEntry key, Object o) {
+		expand();
+		return super.putGhost(key, o);
+	}
+
+	@Override public boolean unload(TermEntry key) {
+		expand();
+		return super.unload(key);
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		TermPostingList list = postings;
+		return (list == null)? super.size(): list.size();
+	}
+
+	@Override public boolean isEmpty() {
+		TermPostingList list = postings;
+		return (list == null)? super.isEmpty(): list.isEmpty();
+	}
+
+	@Override public void clear() {
+		expand();
+		super.clear();
+	}
+
+	@Override public boolean containsKey(Object key) {
+		TermPostingList list = postings;
+		return (list == null)? super.containsKey(key): list.contains(key);
+	}
+
+	@Override public boolean containsValue(Object value) {
+		expand();
+		return super.containsValue(value);
+	}
+
+	@Override public TermEntry get(Object key) {
+		TermPostingList list = postings;
+		if (list == null) { return super.get(key); }
+		int i = list.indexOf(key);
+		if (i < 0) { return null; }
+		TermEntry en = list.get(i);
+		verifyLoaded(key, en);
+		return en;
+	}
+
+	@Override public TermEntry put(TermEntry key, TermEntry value) {
+		expand();
+		return super.put(key, value);
+	}
+
+	@Override public void putAll(Map<? extends TermEntry, ? extends TermEntry> map) {
+		expand();
+		super.putAll(map);
+	}
+
+	@Override public TermEntry remove(Object key) {
+		expand();
+		return super.remove(key);
+	}
+
+	private transient Set<Map.Entry<TermEntry, TermEntry>> entries;
+	@Override public Set<Map.Entry<TermEntry, TermEntry>> entrySet() {
+		if (entries == null) {
+			entries = new AbstractSet<Map.Entry<TermEntry, TermEntry>>() {
+
+				@Override public int size() { return TermPostingMap.this.size(); }
+
+				@Override public Iterator<Map.Entry<TermEntry, TermEntry>> iterator() {
+					TermPostingList list = postings;
+					if (list == null) { return TermPostingMap.super.entrySet().iterator(); }
+					return new PostingIterator<Map.Entry<TermEntry, TermEntry>>(list) {
+						@Override protected Map.Entry<TermEntry, TermEntry> item(TermEntry en) {
+							return new PostingEntry(en);
+						}
+					};
+				}
+
+				@Override public void clear() { TermPostingMap.this.clear(); }
+
+				@Override public boolean contains(Object o) {
+					if (postings == null) { return TermPostingMap.super.entrySet().contains(o); }
+					if (!(o instanceof Map.Entry)) { return false; }
+					Map.Entry en = (Map.Entry)o;
+					TermEntry val = TermPostingMap.this.get(en.getKey());
+					return val != null && val.equals(en.getValue());
+				}
+
+				@Override public boolean remove(Object o) {
+					expand();
+					return TermPostingMap.super.entrySet().remove(o);
+				}
+
+			};
+		}
+		return entries;
+	}
+
+	private transient Set<TermEntry> keys;
+	@Override public Set<TermEntry> keySet() {
+		if (keys == null) {
+			keys = new AbstractSet<TermEntry>() {
+
+				@Override public int size() { return TermPostingMap.this.size(); }
+
+				@Override public Iterator<TermEntry> iterator() {
+					TermPostingList list = postings;
+					if (list == null) { return TermPostingMap.super.keySet().iterator(); }
+					return new PostingIterator<TermEntry>(list) {
+						@Override protected TermEntry item(TermEntry en) {
+							return en;
+						}
+					};
+				}
+
+				@Override public void clear() { TermPostingMap.this.clear(); }
+
+				@Override public boolean contains(Object o) {
+					return TermPostingMap.this.containsKey(o);
+				}
+
+				@Override public boolean remove(Object o) {
+					boolean c = contains(o);
+					TermPostingMap.this.remove(o);
+					return c;
+				}
+
+			};
+		}
+		return keys;
+	}
+
+	private transient Collection<TermEntry> values;
+	@Override public Collection<TermEntry> values() {
+		if (values == null) {
+			values = new AbstractCollection<TermEntry>() {
+
+				@Override public int size() { return TermPostingMap.this.size(); }
+
+				@Override public Iterator<TermEntry> iterator() {
+					TermPostingList list = postings;
+					if (list == null) { return TermPostingMap.super.values().iterator(); }
+					return new PostingIterator<TermEntry>(list) {
+						@Override protected TermEntry item(TermEntry en) {
+							verifyLoaded(en, en);
+							return en;
+						}
+					};
+				}
+
+				@Override public void clear() { TermPostingMap.this.clear(); }
+
+			};
+		}
+		return values;
+	}
+
+	@Override public TermEntry firstKey() {
+		TermPostingList list = postings;
+		if (list == null) { return super.firstKey(); }
+		if (list.isEmpty()) { throw new NoSuchElementException(); }
+		return list.get(0);
+	}
+
+	@Override public TermEntry lastKey() {
+		TermPostingList list = postings;
+		if (list == null) { return super.lastKey(); }
+		if (list.isEmpty()) { throw new NoSuchElementException(); }
+		return list.get(list.size()-1);
+	}
+
+	@Override public SortedMap<TermEntry, TermEntry> subMap(TermEntry fr, TermEntry to) {
+		expand();
+		return super.subMap(fr, to);
+	}
+
+	@Override public SortedMap<TermEntry, TermEntry> headMap(TermEntry to) {
+		expand();
+		return super.headMap(to);
+	}
+
+	@Override public SortedMap<TermEntry, TermEntry> tailMap(TermEntry fr) {
+		expand();
+		return super.tailMap(fr);
+	}
+
+	/*========================================================================
+	  public class Object
+	 ========================================================================*/
+
+	@Override public boolean equals(Object o) {
+		expand();
+		return super.equals(o);
+	}
+
+	@Override public Object clone() {
+		TermPostingList list = postings;
+		if (list == null) { return super.clone(); }
+		TermPostingMap map = new TermPostingMap(list);
+		map.ghosts = ghosts;
+		return map;
+	}
+
+
+	/************************************************************************
+	** Iterator over a {@link TermPostingList}, which creates the item for each
+	** posting as it is reached. Removing an item expands the map first; the
+	** iteration carries on over the list, which does not change.
+	*/
+	abstract protected class PostingIterator<T> implements Iterator<T> {
+
+		final protected TermPostingList list;
+		protected int next;
+		protected TermEntry last;
+
+		protected PostingIterator(TermPostingList l) {
+			list = l;
+		}
+
+		abstract protected T item(TermEntry en);
+
+		/*@Override**/ public boolean hasNext() {
+			return next < list.size();
+		}
+
+		/*@Override**/ public T next() {
+			if (next >= list.size()) { throw new NoSuchElementException(); }
+			TermEntry en = list.get(next);
+			// item() may throw, in which case we stay where we are
+			T it = item(en);
+			++next;
+			last = en;
+			return it;
+		}
+
+		/*@Override**/ public void remove() {
+			if (last == null) { throw new IllegalStateException("Iteration has not started yet, or last item has already been removed."); }
+			TermPostingMap.this.remove(last);
+			last = null;
+		}
+
+	}
+
+
+	/************************************************************************
+	** Entry for a posting, whose value is its key.
+	*/
+	protected class PostingEntry implements Map.Entry<TermEntry, TermEntry> {
+
+		final protected TermEntry key;
+
+		protected PostingEntry(TermEntry k) {
+			key = k;
+		}
+
+		/*@Override**/ public TermEntry getKey() {
+			return key;
+		}
+
+		/*@Override**/ public TermEntry getValue() {
+			verifyLoaded(key, key);
+			return key;
+		}
+
+		/*@Override**/ public TermEntry setValue(TermEntry value) {
+			return TermPostingMap.this.put(key, value);
+		}
+
+		@Override public int hashCode() {
+			verifyLoaded(key, key);
+			// the key and value are equal
+			return 0;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			verifyLoaded(key, key);
+			Map.Entry en = (Map.Entry)o;
+			return key.equals(en.getKey()) && key.equals(en.getValue());
+		}
+
+	}
+
+}
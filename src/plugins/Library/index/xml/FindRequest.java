@@ -79,9 +79,10 @@ public class FindRequest extends AbstractExecution<Set<TermEntry>> implements Co
 	 * TODO get rid of this way of doing it
 	 */
 	public void setFinished(){
+		// set the stage first, so anything told of the result sees that it's done
+		setStage(Stages.DONE);
 		super.setResult(Collections.<TermEntry>unmodifiableSet(resultnotfinished));
 		resultnotfinished = null;
-		setStage(Stages.DONE);
 	}
 
 	public int compareTo(Execution right){
@@ -106,8 +107,7 @@ public class FindRequest extends AbstractExecution<Set<TermEntry>> implements Co
 
 	@Override
 	public boolean isDone() throws TaskAbortException{
-		super.isDone();
-		return currentProgress.stage==Stages.DONE;
+		return super.isDone() && currentProgress.stage==Stages.DONE;
 	}
 
 	/**
@@ -0,0 +1,409 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import plugins.Library.index.TermPageEntry;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The contents of one subindex of an {@link XMLIndex}, compiled from its XML
+ * so that any number of words can be looked up in it without parsing it again.
+ *
+ * The words are held as a table from each word to the ids of the files it is
+ * in, with its positions in each, and the files as a table from each id to its
+ * uri, title and word count. Ids are numbered from 0 in the order they appear
+ * in the XML, so that both are compact.
+ *
+ * A table can be written to a stream and read back, eg. to keep it in a local
+ * cache, which is much quicker than compiling it again.
+ */
+public class SubIndexTable {
+
+	/** Identifies the format written by {@link #writeTo(OutputStream)} */
+	final static int MAGIC = 0x58495431; // "XIT1"
+
+	/**
+	 * The files a word is in
+	 */
+	static class Word {
+		/** Number of files the word is in, as given by the index */
+		final int fileCount;
+		/** Ids of the files */
+		final int[] files;
+		/** Positions of the word in each file */
+		final int[][] positions;
+
+		Word(int fileCount, int[] files, int[][] positions) {
+			this.fileCount = fileCount;
+			this.files = files;
+			this.positions = positions;
+		}
+	}
+
+	final int totalFileCount;
+	/** uri of each file, or null if the file isn't listed in the subindex */
+	final String[] uris;
+	final String[] titles;
+	/** Number of words in each file, or -1 if not known */
+	final int[] wordCounts;
+	final Map<String, Word> words;
+
+	SubIndexTable(int totalFileCount, String[] uris, String[] titles, int[] wordCounts, Map<String, Word> words) {
+		this.totalFileCount = totalFileCount;
+		this.uris = uris;
+		this.titles = titles;
+		this.wordCounts = wordCounts;
+		this.words = words;
+	}
+
+	/**
+	 * Compile a subindex from its XML
+	 * @throws SAXException if the XML can't be parsed
+	 */
+	public static SubIndexTable compile(InputStream is) throws SAXException, IOException {
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			SAXParser saxParser = factory.newSAXParser();
+			CompileHandler handler = new CompileHandler();
+			saxParser.parse(is, handler);
+			return handler.getTable();
+		} catch (ParserConfigurationException e) {
+			Logger.error(SubIndexTable.class, "SAX ParserConfigurationException", e);
+			throw new SAXException(e);
+		}
+	}
+
+	/**
+	 * @return the number of words in the table
+	 */
+	public int size() {
+		return words.size();
+	}
+
+	/**
+	 * @return the words in the table
+	 */
+	public Set<String> words() {
+		return Collections.unmodifiableSet(words.keySet());
+	}
+
+	/**
+	 * @return the number of files in the table
+	 */
+	public int fileCount() {
+		return uris.length;
+	}
+
+	/**
+	 * Look up a word, ranking each file it is in by how often the word
+	 * appears in it, and how rare the word is in the whole index.
+	 * @return the entries for the files the word is in, empty if it isn't in
+	 * this subindex
+	 */
+	public Set<TermPageEntry> lookup(String word) {
+		Set<TermPageEntry> result = new HashSet<TermPageEntry>();
+		Word w = words.get(word);
+		if (w == null)
+			return result;
+		for (int i = 0; i < w.files.length; i++) {
+			int file = w.files[i];
+			if (uris[file] == null)
+				continue;
+			HashMap<Integer, String> termpositions = new HashMap<Integer, String>();
+			for (int pos : w.positions[i])
+				termpositions.put(pos, null);
+			float relevance = 0;
+			int wordCount = wordCounts[file];
+			if (termpositions.size() > 0 && wordCount > 0) {
+				relevance = termpositions.size() / (float)wordCount;
+				if (totalFileCount > 0 && w.fileCount > 0)
+					relevance *= Math.log((float)totalFileCount / (float)w.fileCount);
+			}
+			try {
+				result.add(new TermPageEntry(word, relevance, new FreenetURI(uris[file]), titles[file], termpositions));
+			} catch (MalformedURLException e) {
+				Logger.error(this, "File key could not be parsed: " + uris[file], e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return roughly how many bytes of memory the table takes up
+	 */
+	public long estimateSize() {
+		long size = 64;
+		for (int i = 0; i < uris.length; i++) {
+			size += 16 + stringSize(uris[i]) + stringSize(titles[i]);
+		}
+		for (Map.Entry<String, Word> en : words.entrySet()) {
+			Word w = en.getValue();
+			size += 64 + stringSize(en.getKey()) + 4 * w.files.length;
+			for (int[] pos : w.positions)
+				size += 16 + 4 * pos.length;
+		}
+		return size;
+	}
+
+	private static long stringSize(String s) {
+		return (s == null) ? 0 : 40 + 2 * s.length();
+	}
+
+	/**
+	 * Write the table to a stream, which is not closed
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(totalFileCount);
+		out.writeInt(uris.length);
+		for (int i = 0; i < uris.length; i++) {
+			writeString(out, uris[i]);
+			writeString(out, titles[i]);
+			out.writeInt(wordCounts[i]);
+		}
+		out.writeInt(words.size());
+		for (Map.Entry<String, Word> en : words.entrySet()) {
+			Word w = en.getValue();
+			out.writeUTF(en.getKey());
+			out.writeInt(w.fileCount);
+			out.writeInt(w.files.length);
+			for (int i = 0; i < w.files.length; i++) {
+				out.writeInt(w.files[i]);
+				out.writeInt(w.positions[i].length);
+				for (int pos : w.positions[i])
+					out.writeInt(pos);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Read a table written by {@link #writeTo(OutputStream)}
+	 * @throws IOException if the stream doesn't hold a valid table
+	 */
+	public static SubIndexTable readFrom(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a compiled subindex");
+		int totalFileCount = in.readInt();
+		int n = in.readInt();
+		if (n < 0)
+			throw new IOException("Bad file count: " + n);
+		String[] uris = new String[n];
+		String[] titles = new String[n];
+		int[] wordCounts = new int[n];
+		for (int i = 0; i < n; i++) {
+			uris[i] = readString(in);
+			titles[i] = readString(in);
+			wordCounts[i] = in.readInt();
+		}
+		int nwords = in.readInt();
+		if (nwords < 0)
+			throw new IOException("Bad word count: " + nwords);
+		Map<String, Word> words = new HashMap<String, Word>(nwords * 4 / 3 + 1);
+		for (int i = 0; i < nwords; i++) {
+			String word = in.readUTF();
+			int fileCount = in.readInt();
+			int nfiles = in.readInt();
+			if (nfiles < 0)
+				throw new IOException("Bad file count for " + word + ": " + nfiles);
+			int[] files = new int[nfiles];
+			int[][] positions = new int[nfiles][];
+			for (int j = 0; j < nfiles; j++) {
+				files[j] = in.readInt();
+				if (files[j] < 0 || files[j] >= n)
+					throw new IOException("Bad file id for " + word + ": " + files[j]);
+				int npos = in.readInt();
+				if (npos < 0)
+					throw new IOException("Bad position count for " + word + ": " + npos);
+				positions[j] = new int[npos];
+				for (int k = 0; k < npos; k++)
+					positions[j][k] = in.readInt();
+			}
+			words.put(word, new Word(fileCount, files, positions));
+		}
+		return new SubIndexTable(totalFileCount, uris, titles, wordCounts, words);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Builds the table in one pass over the subindex, whichever order its
+	 * &lt;keywords&gt; and &lt;files&gt; are in.
+	 */
+	static class CompileHandler extends DefaultHandler {
+
+		private final Map<String, Integer> ids = new HashMap<String, Integer>();
+		private final List<String> uris = new ArrayList<String>();
+		private final List<String> titles = new ArrayList<String>();
+		private final List<Integer> wordCounts = new ArrayList<Integer>();
+		private final Map<String, Word> words = new HashMap<String, Word>();
+		private int totalFileCount = -1;
+
+		private boolean inKeywords, inFiles;
+
+		// The word being processed
+		private String word;
+		private int wordFileCount;
+		private final List<Integer> wordFiles = new ArrayList<Integer>();
+		private final List<int[]> wordPositions = new ArrayList<int[]>();
+
+		// The file of the word being processed
+		private int file = -1;
+		private StringBuilder characters;
+
+		/**
+		 * @return the number for the file id, assigning the next one if it
+		 * hasn't been seen yet
+		 */
+		private int getId(String id) {
+			Integer i = ids.get(id);
+			if (i == null) {
+				i = uris.size();
+				ids.put(id, i);
+				uris.add(null);
+				titles.add(null);
+				wordCounts.add(-1);
+			}
+			return i;
+		}
+
+		@Override public void startElement(String nameSpaceURI, String localName, String rawName, Attributes attrs)
+		throws SAXException {
+			if (rawName == null) {
+				rawName = localName;
+			}
+			String elt_name = rawName;
+
+			if (elt_name.equals("keywords")) {
+				inKeywords = true;
+			} else if (elt_name.equals("files")) {
+				inFiles = true;
+				String fileCount = attrs.getValue("", "totalFileCount");
+				try {
+					if (fileCount != null)
+						totalFileCount = Integer.parseInt(fileCount);
+				} catch (NumberFormatException e) {
+					Logger.error(this, "totalFileCount in index not an integer: " + fileCount, e);
+				}
+			} else if (inKeywords && elt_name.equals("word")) {
+				word = attrs.getValue("v");
+				wordFileCount = 0;
+				String fileCount = attrs.getValue("fileCount");
+				try {
+					if (fileCount != null)
+						wordFileCount = Integer.parseInt(fileCount);
+				} catch (NumberFormatException e) {
+					Logger.error(this, "fileCount in index not an integer: " + fileCount, e);
+				}
+				wordFiles.clear();
+				wordPositions.clear();
+			} else if (inKeywords && elt_name.equals("file")) {
+				String id = attrs.getValue("id");
+				if (word != null && id != null) {
+					file = getId(id);
+					characters = new StringBuilder();
+				}
+			} else if (inFiles && elt_name.equals("file")) {
+				String id = attrs.getValue("id");
+				if (id == null)
+					return;
+				int i = getId(id);
+				uris.set(i, attrs.getValue("key"));
+				titles.set(i, attrs.getValue("title"));
+				String wordCount = attrs.getValue("wordCount");
+				try {
+					if (wordCount != null)
+						wordCounts.set(i, Integer.parseInt(wordCount));
+				} catch (NumberFormatException e) {
+					// no word count, as in older indexes
+				}
+			}
+		}
+
+		@Override public void characters(char[] ch, int start, int length) {
+			if (characters != null)
+				characters.append(ch, start, length);
+		}
+
+		@Override public void endElement(String namespaceURI, String localName, String qName) {
+			if (qName.equals("keywords")) {
+				inKeywords = false;
+			} else if (qName.equals("files")) {
+				inFiles = false;
+			} else if (inKeywords && qName.equals("file") && characters != null) {
+				String[] termposs = characters.toString().split(",");
+				int[] positions = new int[termposs.length];
+				int n = 0;
+				for (String pos : termposs) {
+					if (pos.length() == 0)
+						continue;
+					try {
+						positions[n] = Integer.parseInt(pos);
+						n++;
+					} catch (NumberFormatException e) {
+						Logger.error(this, "Position in index not an integer :" + pos, e);
+					}
+				}
+				if (n < positions.length) {
+					int[] p = new int[n];
+					System.arraycopy(positions, 0, p, 0, n);
+					positions = p;
+				}
+				wordFiles.add(file);
+				wordPositions.add(positions);
+				characters = null;
+			} else if (inKeywords && qName.equals("word") && word != null) {
+				int[] files = new int[wordFiles.size()];
+				for (int i = 0; i < files.length; i++)
+					files[i] = wordFiles.get(i);
+				words.put(word, new Word(wordFileCount, files, wordPositions.toArray(new int[wordPositions.size()][])));
+				word = null;
+			}
+		}
+
+		SubIndexTable getTable() {
+			int[] counts = new int[wordCounts.size()];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = wordCounts.get(i);
+			return new SubIndexTable(totalFileCount, uris.toArray(new String[uris.size()]),
+					titles.toArray(new String[titles.size()]), counts, words);
+		}
+	}
+
+}
@@ -8,13 +8,16 @@ import plugins.Library.Index;
 import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermPageEntry;
 import plugins.Library.index.URIEntry;
+import plugins.Library.client.FreenetArchiver;
+import plugins.Library.io.BlockCache;
 import plugins.Library.search.InvalidSearchException;
+import plugins.Library.util.SkeletonCache;
 import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.TaskAbortException;
 
-import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.io.ResumeFailedException;
 import freenet.client.async.ClientGetCallback;
@@ -36,29 +39,24 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
-import org.xml.sax.Attributes;
-import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.File;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.logging.Level;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.HashMap;
 
 
@@ -332,6 +330,14 @@ public class XMLIndex implements Index, ClientGetCallback {
 		}
 	}
 
+	/**
+	 * Not supported, as the subindexes are split by the MD5 of the terms, so
+	 * the terms with a given prefix could be in any of them
+	 */
+	public Execution<SortedSet<String>> getTermsWithPrefix(String prefix, int max){
+		throw new UnsupportedOperationException("getTermsWithPrefix not Implemented in XMLIndex");
+	}
+
 	public Execution<URIEntry> getURIEntry(FreenetURI uri){
 		throw new UnsupportedOperationException("getURIEntry not Implemented in XMLIndex");
 	}
@@ -369,13 +375,36 @@ public class XMLIndex implements Index, ClientGetCallback {
 		return indexuri;
 	}
 
+	/**
+	 * Default budget, in bytes, for the compiled subindices held in memory
+	 */
+	final public static long DEFAULT_TABLE_CACHE_BUDGET = 0x2000000;
+
+	/**
+	 * Compiled subindices of all XMLIndexes, least recently used first
+	 */
+	final static SkeletonCache<SubIndex> tables = new SkeletonCache<SubIndex>(DEFAULT_TABLE_CACHE_BUDGET);
+
+	/**
+	 * Prefix of the keys of compiled subindices in the local {@link BlockCache}
+	 */
+	final static String TABLE_CACHE_PREFIX = "XMLIndex.SubIndexTable:";
+
+	/**
+	 * Set the budget, in bytes, for the compiled subindices held in memory
+	 */
+	public static void setTableCacheBudget(long budget) {
+		tables.setBudget(budget);
+	}
+
 	private class SubIndex implements Runnable {
 		String indexuri, filename;
 		private final ArrayList<FindRequest> waitingOnSubindex=new ArrayList<FindRequest>();
 		private final ArrayList<FindRequest> parsingSubindex = new ArrayList<FindRequest>();
 		FetchStatus fetchStatus = FetchStatus.UNFETCHED;
 		HighLevelSimpleClient hlsc;
-		Bucket bucket;
+		/** The compiled subindex, or null if it isn't loaded */
+		private volatile SubIndexTable table;
 		Exception error;
 
 		/**
@@ -432,25 +461,13 @@ public class XMLIndex implements Index, ClientGetCallback {
 		public synchronized void run(){
 			try{
 				while(waitingOnSubindex.size()>0){
-					if(fetchStatus==FetchStatus.UNFETCHED || fetchStatus == FetchStatus.FAILED){
-						try {
-							fetchStatus = FetchStatus.FETCHING;
-							// TODO tidy the fetch stuff
-							bucket = Util.fetchBucket(indexuri + filename, hlsc);
-							fetchStatus = FetchStatus.FETCHED;
-
-						} catch (Exception e) {		// TODO tidy the exceptions
-							//java.net.MalformedURLException
-							//freenet.client.FetchException
-							String msg = indexuri + filename + " could not be opened: " + e.toString();
-							Logger.error(this, msg, e);
-							throw new TaskAbortException(msg, e);
-						}
-					}else if(fetchStatus==FetchStatus.FETCHED){
-						parseSubIndex();
-					} else {
-						break;
+					SubIndexTable t = getTable();
+					if(t == null){
+						fetchStatus = FetchStatus.FETCHING;
+						t = loadTable();
+						setTable(t);
 					}
+					lookup(t);
 				}
 			} catch (TaskAbortException e) {
 				fetchStatus = FetchStatus.FAILED;
@@ -460,392 +477,134 @@ public class XMLIndex implements Index, ClientGetCallback {
 					r.setError(e);
 				for (FindRequest r : waitingOnSubindex)
 					r.setError(e);
-			}
-		}
-		
-		public void parseSubIndex() throws TaskAbortException {
-			synchronized(parsingSubindex){
-				// Transfer all requests waiting on this subindex to the parsing list
-				synchronized (waitingOnSubindex){
-					parsingSubindex.addAll(waitingOnSubindex);
-					waitingOnSubindex.removeAll(parsingSubindex);
-				}
-				// Set status of all those about to be parsed to PARSE
-				for(FindRequest r : parsingSubindex)
-					r.setStage(FindRequest.Stages.PARSE);
-				
-				// Multi-stage parse to minimise memory usage.
-				
-				// Stage 1: Extract the declaration (first tag), copy everything before "<files " to one bucket, plus everything after "</files>".
-				// Copy the declaration, plus everything between the two (inclusive) to another bucket.
-				
-				Bucket mainBucket, filesBucket;
-				
-				try {
-				InputStream is = bucket.getInputStream();
-				mainBucket = pr.getNode().clientCore.tempBucketFactory.makeBucket(-1);
-				filesBucket = pr.getNode().clientCore.tempBucketFactory.makeBucket(-1);
-				OutputStream mainOS = new BufferedOutputStream(mainBucket.getOutputStream());
-				OutputStream filesOS = new BufferedOutputStream(filesBucket.getOutputStream());
-				//OutputStream mainOS = new BufferedOutputStream(new FileOutputStream("main.tmp"));
-				//OutputStream filesOS = new BufferedOutputStream(new FileOutputStream("files.tmp"));
-				
-				BufferedInputStream bis = new BufferedInputStream(is);
-
-				byte greaterThan = ">".getBytes("UTF-8")[0];
-				byte[] filesPrefix = "<files ".getBytes("UTF-8");
-				byte[] filesPrefixAlt = "<files>".getBytes("UTF-8");
-				assert(filesPrefix.length == filesPrefixAlt.length);
-				byte[] filesEnd = "</files>".getBytes("UTF-8");
-				
-				final int MODE_SEEKING_DECLARATION = 1;
-				final int MODE_SEEKING_FILES = 2;
-				final int MODE_COPYING_FILES = 3;
-				final int MODE_COPYING_REST = 4;
-				int mode = MODE_SEEKING_DECLARATION;
-				int b;
-				byte[] declarationBuf = new byte[100];
-				int declarationPtr = 0;
-				byte[] prefixBuffer = new byte[filesPrefix.length];
-				int prefixPtr = 0;
-				byte[] endBuffer = new byte[filesEnd.length];
-				int endPtr = 0;
-				while((b = bis.read()) != -1) {
-					if(mode == MODE_SEEKING_DECLARATION) {
-						if(declarationPtr == declarationBuf.length)
-							throw new TaskAbortException("Could not split up XML: declaration too long", new Exception("bad xml"));
-						declarationBuf[declarationPtr++] = (byte)b;
-						mainOS.write(b);
-						filesOS.write(b);
-						if(b == greaterThan) {
-							mode = MODE_SEEKING_FILES;
-						}
-					} else if(mode == MODE_SEEKING_FILES) {
-						if(prefixPtr != prefixBuffer.length) {
-							prefixBuffer[prefixPtr++] = (byte)b;
-						} else {
-							if(Fields.byteArrayEqual(filesPrefix, prefixBuffer)
-									|| Fields.byteArrayEqual(filesPrefixAlt, prefixBuffer)) {
-								mode = MODE_COPYING_FILES;
-								filesOS.write(prefixBuffer);
-								filesOS.write(b);
-							} else {
-								mainOS.write(prefixBuffer[0]);
-								System.arraycopy(prefixBuffer, 1, prefixBuffer, 0, prefixBuffer.length-1);
-								prefixBuffer[prefixBuffer.length-1] = (byte)b;
-							}
-						}
-					} else if(mode == MODE_COPYING_FILES) {
-						if(endPtr != endBuffer.length) {
-							endBuffer[endPtr++] = (byte)b;
-						} else {
-							if(Fields.byteArrayEqual(filesEnd, endBuffer)) {
-								mode = MODE_COPYING_REST;
-								filesOS.write(endBuffer);
-								mainOS.write(b);
-							} else {
-								filesOS.write(endBuffer[0]);
-								System.arraycopy(endBuffer, 1, endBuffer, 0, endBuffer.length-1);
-								endBuffer[endBuffer.length-1] = (byte)b;
-							}
-						}
-					} else if(mode == MODE_COPYING_REST) {
-						mainOS.write(b);
-					}
-				}
-				
-				if(mode != MODE_COPYING_REST)
-					throw new TaskAbortException("Could not split up XML: Last mode was "+mode, new Exception("bad xml"));
-				
-				mainOS.close();
-				filesOS.close();
-				} catch (IOException e) {
-					throw new TaskAbortException("Could not split XML: ", e);
-				}
-				
-				if(logMINOR) Logger.minor(this, "Finished splitting XML");
-				
-				try {
-				
-					SAXParserFactory factory = SAXParserFactory.newInstance();
-					factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-					SAXParser saxParser = factory.newSAXParser();
-					
-					// Stage 2: Parse the first bucket, find the keyword we want, find the file id's.
-					
-					InputStream is = mainBucket.getInputStream();
-					StageTwoHandler stageTwoHandler = new StageTwoHandler();
-					saxParser.parse(is, stageTwoHandler);
-					if(logMINOR) Logger.minor(this, "Finished stage two XML parse");
-					is.close();
-				
-					// Stage 3: Parse the second bucket, extract the <file>'s for the specific ID's.
-					
-					is = filesBucket.getInputStream();
-					StageThreeHandler stageThreeHandler = new StageThreeHandler();
-					saxParser.parse(is, stageThreeHandler);
-					if(logMINOR) Logger.minor(this, "Finished stage three XML parse");
-					is.close();
-					
-					Logger.minor(this, "parsing finished "+ parsingSubindex.toString());
-					for (FindRequest findRequest : parsingSubindex) {
-						findRequest.setFinished();
-					}
-					parsingSubindex.clear();
-				} catch (Exception err) {
-					Logger.error(this, "Error parsing "+filename, err);
-					throw new TaskAbortException("Could not parse XML: ", err);
+				parsingSubindex.clear();
+				synchronized(waitingOnSubindex){
+					waitingOnSubindex.clear();
 				}
 			}
 		}
-		
-		class WordMatch {
-			public WordMatch(ArrayList<FindRequest> searches, int inWordFileCount) {
-				this.searches = searches;
-				this.inWordFileCount = inWordFileCount;
-			}
-			final List<FindRequest> searches;
-			int inWordFileCount;
-		}
-		
-		class FileMatch {
-			public FileMatch(String id2, HashMap<Integer, String> termpositions2, WordMatch thisWordMatch) {
-				id = id2;
-				termpositions = termpositions2;
-				word = thisWordMatch;
-			}
-			final String id;
-			final HashMap<Integer, String> termpositions;
-			final WordMatch word;
+
+		/**
+		 * @return the compiled subindex if it is loaded, marking it as recently
+		 * used, or null
+		 */
+		SubIndexTable getTable(){
+			SubIndexTable t = table;
+			if(t != null && !tables.touch(this))
+				t = null;
+			return t;
 		}
-		
-		Map<String, ArrayList<FileMatch>> idToFileMatches = new HashMap<String, ArrayList<FileMatch>>();
-		
-		int totalFileCount = -1;
-		
-		// Parse the main XML file, including the keywords list.
-		// We do not see the files list.
-		class StageTwoHandler extends DefaultHandler {
-			
-			private boolean processingWord;
-			
-			// Requests and matches being made
-			private List<FindRequest> requests;
-			private List<FindRequest> wordMatches;
-
-			private int inWordFileCount;
-			
-			// About the file tag being processed
-			private StringBuilder characters;
-			
-			private String match;
-			
-			private ArrayList<FileMatch> fileMatches = new ArrayList<FileMatch>();
-			
-			private String id;
-			
-			private WordMatch thisWordMatch;
-
-			StageTwoHandler() {
-				this.requests = new ArrayList(parsingSubindex);
-				for (FindRequest r : parsingSubindex){
-					r.setResult(new HashSet<TermPageEntry>());
-				}
-			}
-			
-			@Override public void setDocumentLocator(Locator value) {
 
-			}
+		private void setTable(SubIndexTable t){
+			table = t;
+			fetchStatus = FetchStatus.FETCHED;
+			tables.put(this, new SkeletonCache.Item(t.estimateSize()) {
+				@Override public boolean unload() {
+					table = null;
+					fetchStatus = FetchStatus.UNFETCHED;
+					return true;
+				}
+			});
+		}
 
-			@Override public void endDocument() throws SAXException {
+		/**
+		 * The key of the compiled subindex in the local {@link BlockCache}, or
+		 * null if it may change and so mustn't be kept there
+		 */
+		private String getCacheKey(){
+			try{
+				FreenetURI furi = new FreenetURI(indexuri);
+				if(furi.isCHK() || furi.isSSK())
+					return TABLE_CACHE_PREFIX + indexuri + filename;
+			}catch(MalformedURLException e){
+				// a local file, which may be changed
 			}
+			return null;
+		}
 
-			@Override public void startDocument() throws SAXException {
-				// Do nothing
-			}
-			
-			@Override public void startElement(String nameSpaceURI, String localName, String rawName, Attributes attrs)
-	        throws SAXException {
-				if(requests.size()==0&&(wordMatches == null || wordMatches.size()==0))
-					return;
-				if (rawName == null) {
-					rawName = localName;
-				}
-				String elt_name = rawName;
-
-				if (elt_name.equals("keywords"))
-					processingWord = true;
-				
-				/*
-				 * looks for the word in the given subindex file if the word is found then the parser
-				 * fetches the corresponding fileElements
-				 */
-				if (elt_name.equals("word")) {
+		/**
+		 * Get the compiled subindex from the local cache, or else fetch and
+		 * compile it, and store it in the local cache
+		 */
+		private SubIndexTable loadTable() throws TaskAbortException {
+			String cacheKey = getCacheKey();
+			BlockCache c = FreenetArchiver.getCache();
+			if(c != null && cacheKey != null){
+				byte[] data = c.get(cacheKey);
+				if(data != null){
 					try {
-						fileMatches.clear();
-						wordMatches = null;
-						match = attrs.getValue("v");
-						if (requests!=null){
-							
-							for (Iterator<FindRequest> it = requests.iterator(); it.hasNext();) {
-								FindRequest r = it.next();
-								if (match.equals(r.getSubject())){
-									if(wordMatches == null)
-										wordMatches = new ArrayList<FindRequest>();
-									wordMatches.add(r);
-									it.remove();
-									Logger.minor(this, "found word match "+wordMatches);
-								}
-							}
-							if(wordMatches != null) {
-								if (attrs.getValue("fileCount")!=null)
-									inWordFileCount = Integer.parseInt(attrs.getValue("fileCount"));
-								thisWordMatch = new WordMatch(new ArrayList<FindRequest>(wordMatches), inWordFileCount);
-							}
-						}
-					} catch (Exception e) {
-						throw new SAXException(e);
+						SubIndexTable t = SubIndexTable.readFrom(new ByteArrayInputStream(data));
+						if(logMINOR) Logger.minor(this, "Loaded compiled subindex "+filename+" from cache");
+						return t;
+					} catch (IOException e) {
+						Logger.error(this, "Bad compiled subindex in cache: "+cacheKey, e);
+						c.remove(cacheKey);
 					}
 				}
-
-				if (elt_name.equals("file")) {
-					if (processingWord == true &&  wordMatches!=null) {
-						try{
-							id = attrs.getValue("id");
-							characters = new StringBuilder();
-						}
-						catch (Exception e) {
-							Logger.error(this, "Index format may be outdated " + e.toString(), e);
-						}
-
-					}
-				}
-			}
-			
-			@Override public void characters(char[] ch, int start, int length) {
-				if(processingWord && wordMatches!= null && characters!=null){
-					characters.append(ch, start, length);
-				}
 			}
-			
-			@Override
-			public void endElement(String namespaceURI, String localName, String qName) {
-				if(processingWord && wordMatches != null && qName.equals("file")){
-					HashMap<Integer, String> termpositions = null;
-					if(characters!=null){
-						String[] termposs = characters.toString().split(",");
-						termpositions = new HashMap<Integer, String>();
-						for (String pos : termposs) {
-							try{
-								termpositions.put(Integer.valueOf(pos), null);
-							}catch(NumberFormatException e){
-								Logger.error(this, "Position in index not an integer :"+pos, e);
-							}
-						}
-						characters = null;
-					}
-					
-					FileMatch thisFile = new FileMatch(id, termpositions, thisWordMatch);
-					
-					ArrayList<FileMatch> matchList = idToFileMatches.get(id);
-					if(matchList == null) {
-						matchList = new ArrayList<FileMatch>();
-						idToFileMatches.put(id, matchList);
-					}
-					if(logMINOR) Logger.minor(this, "Match: id="+id+" for word "+match);
-					matchList.add(thisFile);
-				}
-				
-			}
-			
-		}
-		
-		class StageThreeHandler extends DefaultHandler {
-			
-			@Override public void setDocumentLocator(Locator value) {
 
+			Bucket bucket;
+			try {
+				// TODO tidy the fetch stuff
+				bucket = Util.fetchBucket(indexuri + filename, hlsc);
+			} catch (Exception e) {		// TODO tidy the exceptions
+				//java.net.MalformedURLException
+				//freenet.client.FetchException
+				String msg = indexuri + filename + " could not be opened: " + e.toString();
+				Logger.error(this, msg, e);
+				throw new TaskAbortException(msg, e);
 			}
 
-			@Override public void endDocument() throws SAXException {
+			synchronized(waitingOnSubindex){
+				for(FindRequest r : waitingOnSubindex)
+					r.setStage(FindRequest.Stages.PARSE);
+			}
+			SubIndexTable t;
+			InputStream is = null;
+			try {
+				is = new BufferedInputStream(bucket.getInputStream());
+				t = SubIndexTable.compile(is);
+				if(logMINOR) Logger.minor(this, "Compiled "+filename+": "+t.size()+" words, "+t.fileCount()+" files");
+			} catch (Exception err) {
+				Logger.error(this, "Error parsing "+filename, err);
+				throw new TaskAbortException("Could not parse XML: ", err);
+			} finally {
+				Closer.close(is);
+				bucket.free();
 			}
 
-			@Override public void startElement(String nameSpaceURI, String localName, String rawName, Attributes attrs)
-	        throws SAXException {
-				
-				if(idToFileMatches.isEmpty())
-					return;
-				if (rawName == null) {
-					rawName = localName;
+			if(c != null && cacheKey != null){
+				try {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					t.writeTo(bytes);
+					c.put(cacheKey, bytes.toByteArray());
+				} catch (IOException e) {
+					Logger.error(this, "Could not write compiled subindex to cache: "+cacheKey, e);
 				}
-				String elt_name = rawName;
+			}
+			return t;
+		}
 
-				if (elt_name.equals("files")){
-					String fileCount = attrs.getValue("", "totalFileCount");
-					if(fileCount != null)
-						totalFileCount = Integer.parseInt(fileCount);
-					Logger.minor(this, "totalfilecount = "+totalFileCount);
+		/**
+		 * Answer all the requests waiting on this subindex from the compiled
+		 * subindex
+		 */
+		private void lookup(SubIndexTable t) {
+			synchronized(parsingSubindex){
+				// Transfer all requests waiting on this subindex to the parsing list
+				synchronized (waitingOnSubindex){
+					parsingSubindex.addAll(waitingOnSubindex);
+					waitingOnSubindex.removeAll(parsingSubindex);
 				}
-
-				if (elt_name.equals("file")) {
-					try {
-						String id = attrs.getValue("id");
-						
-						ArrayList<FileMatch> matches = idToFileMatches.get(id);
-						
-						if(matches != null) {
-							
-							for(FileMatch match : matches) {
-								
-								String key = attrs.getValue("key");
-								int l = attrs.getLength();
-								String title = null;
-								int wordCount = -1;
-								if (l >= 3) {
-									try {
-										title = attrs.getValue("title");
-									} catch (Exception e) {
-										Logger.error(this, "Index Format not compatible " + e.toString(), e);
-									}
-									try {
-										String wordCountString = attrs.getValue("wordCount");
-										if(wordCountString != null) {
-											wordCount = Integer.parseInt(attrs.getValue("wordCount"));
-										}
-									} catch (Exception e) {
-										//Logger.minor(this, "No wordcount found " + e.toString(), e);
-									}
-								}
-								
-								for(FindRequest req : match.word.searches) {
-									
-									Set<TermPageEntry> result = req.getUnfinishedResult();
-									float relevance = 0;
-									
-									if(logDEBUG) Logger.debug(this, "termcount "+(match.termpositions == null ? 0 : match.termpositions.size())+" filewordcount = "+wordCount);
-									if(match.termpositions!=null && match.termpositions.size()>0 && wordCount>0 ){
-										relevance = (float)(match.termpositions.size()/(float)wordCount);
-										if( totalFileCount > 0 && match.word.inWordFileCount > 0)
-											relevance *=  Math.log( (float)totalFileCount/(float)match.word.inWordFileCount);
-										if(logDEBUG) Logger.debug(this, "Set relevance of "+title+" to "+relevance+" - "+key);
-									}
-									
-									TermPageEntry pageEntry = new TermPageEntry(req.getSubject(), relevance, new FreenetURI(key), title, match.termpositions);
-									result.add(pageEntry);
-									//Logger.minor(this, "added "+inFileURI+ " to "+ match);
-								}
-								
-							}
-						}
-						
-					}
-					catch (Exception e) {
-						Logger.error(this, "File id and key could not be retrieved. May be due to format clash", e);
-					}
+				for (FindRequest r : parsingSubindex){
+					r.setStage(FindRequest.Stages.PARSE);
+					r.setResult(t.lookup(r.getSubject()));
+					r.setFinished();
 				}
+				parsingSubindex.clear();
 			}
-
 		}
-		
+
 	}
 
     @Override
@@ -0,0 +1,331 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import plugins.Library.index.ProtoIndex;
+import plugins.Library.index.ProtoIndexComponentSerialiser;
+import plugins.Library.index.ProtoIndexSerialiser;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermEntrySorter;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.Serialiser.PushTask;
+import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.TaskAbortExceptionConvertor;
+import plugins.Library.util.func.Closure;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Converts an XML index into a {@link ProtoIndex} written to a local
+ * directory, from where it can be served or uploaded like the indexes the
+ * spider writes.
+ *
+ * The subindices are read one at a time, and the entries for their words are
+ * grouped by word in a {@link TermEntrySorter}, which spills them to disk, so
+ * the whole index never has to fit into memory. The B-tree of each word is
+ * then bulk-loaded from the sorted entries, and written out before the next
+ * one is built. The bare trees are added to the term table in batches of
+ * {@link #TTAB_BATCH_SIZE} words, and the table is written out after each batch.
+ *
+ * So the memory used is bounded by the spill size, the entries of the
+ * largest single word, and one batch of the term table; it does not grow with
+ * the number of words.
+ *
+ * This can be run on its own as a batch job, see {@link #main(String[])}.
+ */
+public class XMLIndexConverter {
+
+	static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(XMLIndexConverter.class);
+	}
+
+	/** Number of entries to hold in memory before spilling them to disk */
+	final public static int DEFAULT_SPILL_SIZE = 0x10000;
+
+	/** Default number of words to add to the term table before writing it out */
+	final public static int TTAB_BATCH_SIZE = 0x1000;
+
+	/** Base URI of the index, ending in "/" */
+	final protected String indexuri;
+	/** Client to fetch the index with, or null if it is on disk */
+	final protected HighLevelSimpleClient hlsc;
+	/** Directory for the spilled entries */
+	final protected File tmpDir;
+	final protected int spillSize;
+	/** Number of words to add to the term table before writing it out */
+	protected int batchSize = TTAB_BATCH_SIZE;
+
+	protected String title;
+	protected String owner;
+	protected String ownerEmail;
+
+	protected int subIndices;
+	protected long entries;
+	protected int terms;
+
+	/**
+	 * @param baseURI Base URI or directory of the index, with or without the
+	 * <tt>index.xml</tt> part
+	 * @param hlsc Client to fetch the index from Freenet with, or null if it is
+	 * on disk
+	 * @param tmpDir Directory to spill entries into while they are sorted
+	 * @param spillSize Number of entries to hold in memory before spilling them
+	 */
+	public XMLIndexConverter(String baseURI, HighLevelSimpleClient hlsc, File tmpDir, int spillSize) {
+		if (baseURI.endsWith(XMLIndex.DEFAULT_FILE))
+			baseURI = baseURI.substring(0, baseURI.length() - XMLIndex.DEFAULT_FILE.length());
+		if (!baseURI.endsWith("/"))
+			baseURI += "/";
+		this.indexuri = baseURI;
+		this.hlsc = hlsc;
+		this.tmpDir = tmpDir;
+		this.spillSize = spillSize;
+	}
+
+	/**
+	 * Convert the index, writing it into the given directory.
+	 * @return the name of the root of the index in that directory, as for
+	 * {@link plugins.Library.io.serial.FileArchiver}
+	 */
+	public String convert(File outDir) throws TaskAbortException {
+		if (!outDir.isDirectory() && !outDir.mkdirs())
+			throw new TaskAbortException("Could not create " + outDir, null, false);
+
+		MainIndexParser parser = parseMain();
+		title = parser.getHeader("title");
+		owner = parser.getHeader("owner");
+		ownerEmail = parser.getHeader("email");
+
+		String stillbase;
+		try {
+			FreenetURI furi = new FreenetURI(indexuri);
+			stillbase = ( furi.isUSK() ? furi.sskForUSK() : furi ).toString();
+		} catch (MalformedURLException e) {
+			stillbase = indexuri;
+		}
+
+		TermEntrySorter sorter = new TermEntrySorter(tmpDir, spillSize);
+		try {
+			for (String key : new TreeSet<String>(parser.getSubIndice())) {
+				addSubIndex(stillbase, "index_" + key + ".xml", sorter);
+			}
+			try {
+				sorter.finishInOrder();
+			} catch (IOException e) {
+				throw new TaskAbortException("Could not sort the entries of " + indexuri, e);
+			}
+			Logger.normal(this, "Read " + entries + " entries from " + subIndices + " subindices of " + indexuri + ", spilled " + sorter.runs() + " runs");
+			return writeIndex(outDir, sorter);
+		} finally {
+			sorter.close();
+		}
+	}
+
+	/**
+	 * Fetch and parse the main index file.
+	 */
+	protected MainIndexParser parseMain() throws TaskAbortException {
+		Bucket bucket = fetch(XMLIndex.DEFAULT_FILE);
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(bucket.getInputStream());
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setFeature("http://xml.org/sax/features/namespaces", true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			SAXParser saxParser = factory.newSAXParser();
+			MainIndexParser parser = new MainIndexParser();
+			saxParser.parse(is, parser);
+			if (parser.getVersion() != 1)
+				throw new TaskAbortException("Unsupported XML index version " + parser.getVersion() + ": " + indexuri, null, false);
+			return parser;
+		} catch (TaskAbortException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new TaskAbortException("Could not parse the main index of " + indexuri, e);
+		} finally {
+			Closer.close(is);
+			bucket.free();
+		}
+	}
+
+	/**
+	 * Read one subindex, and add the entries for all its words to the sorter.
+	 * Only this subindex is held in memory.
+	 */
+	protected void addSubIndex(String base, String filename, TermEntrySorter sorter) throws TaskAbortException {
+		Bucket bucket = fetch(base, filename);
+		SubIndexTable t;
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(bucket.getInputStream());
+			t = SubIndexTable.compile(is);
+		} catch (Exception e) {
+			throw new TaskAbortException("Could not parse " + base + filename, e);
+		} finally {
+			Closer.close(is);
+			bucket.free();
+		}
+		if(logMINOR) Logger.minor(this, "Converting " + filename + ": " + t.size() + " words, " + t.fileCount() + " files");
+
+		try {
+			for (String word : t.words()) {
+				for (TermPageEntry en : t.lookup(word)) {
+					sorter.add(en);
+					++entries;
+				}
+			}
+		} catch (IOException e) {
+			throw new TaskAbortException("Could not spill the entries of " + filename, e);
+		}
+		++subIndices;
+	}
+
+	/**
+	 * Build the index from the sorted entries, and write it out.
+	 */
+	protected String writeIndex(File outDir, TermEntrySorter sorter) throws TaskAbortException {
+		ProtoIndexSerialiser srl = ProtoIndexSerialiser.forIndex(outDir);
+		LiveArchiver<Map<String,Object>,SimpleProgress> archiver = srl.getChildSerialiser();
+		ProtoIndexComponentSerialiser leafsrl = ProtoIndexComponentSerialiser.get(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL, archiver);
+
+		ProtoIndex idx;
+		try {
+			idx = new ProtoIndex(new FreenetURI("CHK@"), (title == null)? indexuri: title, owner, ownerEmail, 0L);
+		} catch (MalformedURLException e) {
+			throw new AssertionError(e);
+		}
+		// the trees must be written by the same archiver as the index
+		leafsrl.setSerialiserFor(idx);
+
+		// each tree is written out as soon as it is built, and only one batch
+		// of the bare trees is kept until it is added to the table
+		final SortedMap<String, SkeletonBTreeSet<TermEntry>> batch = new TreeMap<String, SkeletonBTreeSet<TermEntry>>();
+		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo = new
+		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> entry) {
+				entry.setValue(batch.get(entry.getKey()));
+			}
+		};
+		boolean done = false;
+		while (!done) {
+			SortedSet<TermEntry> set;
+			try {
+				set = sorter.next();
+			} catch (IOException e) {
+				throw new TaskAbortException("Could not read the spilled entries of " + indexuri, e);
+			}
+			done = (set == null);
+			if (!done) {
+				SkeletonBTreeSet<TermEntry> tree = new SkeletonBTreeSet<TermEntry>(ProtoIndex.BTREE_NODE_MIN);
+				leafsrl.setSerialiserFor(tree);
+				tree.addAll(set);
+				tree.deflate();
+				assert(tree.isBare());
+				batch.put(set.first().subj, tree);
+				++terms;
+			}
+			if (batch.size() >= batchSize || done && !batch.isEmpty()) {
+				idx.ttab.update(new TreeSet<String>(batch.keySet()), null, clo, new TaskAbortExceptionConvertor());
+				assert(idx.ttab.isBare());
+				if(logMINOR) Logger.minor(this, "Added " + terms + " terms of " + indexuri);
+				batch.clear();
+			}
+		}
+		if (terms == 0) { idx.ttab.deflate(); }
+
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+		Logger.normal(this, "Converted " + indexuri + ": " + terms + " terms, root at " + task.meta);
+		// FileArchiver gives the name of the file, without the prefix or suffix
+		return (String)task.meta;
+	}
+
+	protected Bucket fetch(String filename) throws TaskAbortException {
+		return fetch(indexuri, filename);
+	}
+
+	// XMLIndex fetches its subindices with the same deprecated helper, and
+	// there is no other way yet to read them from a file or from Freenet
+	@SuppressWarnings("deprecation")
+	protected Bucket fetch(String base, String filename) throws TaskAbortException {
+		try {
+			return Util.fetchBucket(base + filename, hlsc);
+		} catch (Exception e) {
+			throw new TaskAbortException(base + filename + " could not be opened: " + e.toString(), e);
+		}
+	}
+
+	/**
+	 * @return the number of subindices read
+	 */
+	public int getSubIndices() {
+		return subIndices;
+	}
+
+	/**
+	 * @return the number of entries read, before duplicates are dropped
+	 */
+	public long getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the number of terms in the converted index
+	 */
+	public int getTerms() {
+		return terms;
+	}
+
+	/**
+	 * Convert an XML index on disk, outside of the node.
+	 *
+	 * Arguments: the directory of the XML index, the directory to write the
+	 * index into, and optionally the directory to spill entries into, which
+	 * is the output directory by default.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: XMLIndexConverter <XML index directory> <output directory> [temporary directory]");
+			System.exit(2);
+		}
+		File outDir = new File(args[1]);
+		File tmpDir = (args.length > 2)? new File(args[2]): outDir;
+		XMLIndexConverter conv = new XMLIndexConverter(args[0], null, tmpDir, DEFAULT_SPILL_SIZE);
+		try {
+			long start = System.currentTimeMillis();
+			String root = conv.convert(outDir);
+			System.out.println("Converted " + conv.getSubIndices() + " subindices, " + conv.getEntries() + " entries, "
+				+ conv.getTerms() + " terms in " + (System.currentTimeMillis() - start) + " ms");
+			System.out.println(new File(outDir, root + ProtoIndexSerialiser.FILE_EXTENSION));
+		} catch (TaskAbortException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
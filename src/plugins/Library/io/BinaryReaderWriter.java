@@ -0,0 +1,374 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import plugins.Library.io.DataFormatException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/* class definitions added to the binary format */
+import plugins.Library.io.serial.Packer;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermEntryReaderWriter;
+import plugins.Library.index.TermPostingList;
+import freenet.keys.FreenetURI;
+
+
+/**
+** Converts between an object and a stream containing a compact binary
+** encoding of it. This handles the intermediate data structures produced by
+** the translators of the Library plugin - nested {@link Map}s, {@link List}s
+** and {@link Set}s of strings, numbers, {@link Date}s, {@link FreenetURI}s,
+** {@link Packer.BinInfo}s and {@link TermEntry}s; the latter are written
+** using {@link TermEntryReaderWriter}, as are {@link TermPostingList}s.
+**
+** Unlike {@link YamlReaderWriter}, this class holds no per-call state, so any
+** number of threads may use the same instance at once.
+**
+** Streams that do not start with {@link #MAGIC} are passed to a {@link
+** YamlReaderWriter}, so data written in the old format can still be read.
+** Likewise, objects that contain something this format cannot represent are
+** written as YAML.
+*/
+public class BinaryReaderWriter
+implements ObjectStreamReader, ObjectStreamWriter {
+
+	/**
+	** MIME type of data in this format. It is specific to Library, so that
+	** other binary data is never mistaken for an index.
+	*/
+	final public static String MIME_TYPE = "application/x-freenet-library-index";
+
+	/**
+	** Header of the binary format. The leading NUL never starts a YAML
+	** document, so this is enough to tell the two formats apart.
+	*/
+	final public static int MAGIC = 0x004c4942;
+	final public static int VERSION = 1;
+
+	/**
+	** Largest number of elements in a collection, or bytes in a string, that
+	** will be read. Sizes are also checked against the input that is left, so
+	** a corrupt size can't make us allocate much more than the input itself.
+	*/
+	final public static int MAX_SIZE = 0x1000000;
+
+	final protected static byte T_NULL = 0x00;
+	final protected static byte T_TRUE = 0x01;
+	final protected static byte T_FALSE = 0x02;
+	final protected static byte T_INT = 0x03;
+	final protected static byte T_LONG = 0x04;
+	final protected static byte T_FLOAT = 0x05;
+	final protected static byte T_DOUBLE = 0x06;
+	final protected static byte T_STRING = 0x07;
+	final protected static byte T_DATE = 0x08;
+	final protected static byte T_URI = 0x09;
+	final protected static byte T_BININFO = 0x0a;
+	final protected static byte T_TERMENTRY = 0x0b;
+	final protected static byte T_MAP = 0x0c;
+	final protected static byte T_LIST = 0x0d;
+	final protected static byte T_SET = 0x0e;
+	final protected static byte T_POSTINGS = 0x0f;
+
+	final protected static TermEntryReaderWriter terw = TermEntryReaderWriter.getInstance();
+
+	/**
+	** Used for streams and objects that are not in the binary format.
+	*/
+	final protected YamlReaderWriter yamlrw;
+
+	public BinaryReaderWriter(YamlReaderWriter y) {
+		yamlrw = y;
+	}
+
+	public BinaryReaderWriter() {
+		this(new YamlReaderWriter());
+	}
+
+	/*@Override**/ public Object readObject(InputStream is) throws IOException {
+		// FileArchiver gives us an unbuffered stream, and DataInputStream reads
+		// a few bytes at a time, so we always need this
+		BufferedInputStream bis = new BufferedInputStream(is, 0x4000);
+		bis.mark(4);
+		DataInputStream dis = new DataInputStream(bis);
+		int magic;
+		try {
+			magic = dis.readInt();
+		} catch (EOFException e) {
+			magic = ~MAGIC;
+		}
+		if (magic != MAGIC) {
+			bis.reset();
+			return yamlrw.readObject(bis);
+		}
+		int version = dis.readUnsignedByte();
+		if (version != VERSION) {
+			throw new DataFormatException("Unrecognised binary format version", null, version);
+		}
+		// read the rest in first, so we know how much input is left when we
+		// read each size. this only ever allocates as much as was actually read
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(0x4000);
+		byte[] buf = new byte[0x4000];
+		for (int n; (n = bis.read(buf)) != -1;) {
+			bos.write(buf, 0, n);
+		}
+		return new Decoder(bos.toByteArray()).readValue();
+	}
+
+	/*@Override**/ public void writeObject(Object o, OutputStream os) throws IOException {
+		// buffer it all, so we can still write YAML if we meet something we
+		// can't handle halfway through, and so the underlying stream gets one
+		// big write instead of lots of small ones
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(0x4000);
+		DataOutputStream dos = new DataOutputStream(bos);
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeByte(VERSION);
+			writeValue(o, dos);
+			dos.flush();
+		} catch (UnrepresentableException e) {
+			yamlrw.writeObject(o, os);
+			return;
+		} catch (UTFDataFormatException e) {
+			// TermEntryReaderWriter can't write strings longer than 64KiB
+			yamlrw.writeObject(o, os);
+			return;
+		}
+		bos.writeTo(os);
+	}
+
+	protected void writeValue(Object o, DataOutputStream dos) throws IOException {
+		if (o == null) {
+			dos.writeByte(T_NULL);
+		} else if (o instanceof String) {
+			dos.writeByte(T_STRING);
+			writeString((String)o, dos);
+		} else if (o instanceof Integer) {
+			dos.writeByte(T_INT);
+			writeVarInt(zigzag((Integer)o), dos);
+		} else if (o instanceof Long) {
+			dos.writeByte(T_LONG);
+			dos.writeLong((Long)o);
+		} else if (o instanceof Boolean) {
+			dos.writeByte((Boolean)o? T_TRUE: T_FALSE);
+		} else if (o instanceof Float) {
+			dos.writeByte(T_FLOAT);
+			dos.writeFloat((Float)o);
+		} else if (o instanceof Double) {
+			dos.writeByte(T_DOUBLE);
+			dos.writeDouble((Double)o);
+		} else if (o instanceof Date) {
+			dos.writeByte(T_DATE);
+			dos.writeLong(((Date)o).getTime());
+		} else if (o instanceof FreenetURI) {
+			dos.writeByte(T_URI);
+			((FreenetURI)o).writeFullBinaryKeyWithLength(dos);
+		} else if (o instanceof Packer.BinInfo) {
+			Packer.BinInfo inf = (Packer.BinInfo)o;
+			dos.writeByte(T_BININFO);
+			writeValue(inf.getID(), dos);
+			writeVarInt(inf.getWeight(), dos);
+		} else if (o instanceof TermEntry) {
+			dos.writeByte(T_TERMENTRY);
+			terw.writeObject((TermEntry)o, dos);
+		} else if (o instanceof TermPostingList) {
+			dos.writeByte(T_POSTINGS);
+			terw.writePostings((TermPostingList)o, dos);
+		} else if (o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>)o;
+			dos.writeByte(T_MAP);
+			writeVarInt(map.size(), dos);
+			for (Map.Entry<?, ?> en: map.entrySet()) {
+				writeValue(en.getKey(), dos);
+				writeValue(en.getValue(), dos);
+			}
+		} else if (o instanceof List || o instanceof Set) {
+			Collection<?> col = (Collection<?>)o;
+			dos.writeByte((o instanceof Set)? T_SET: T_LIST);
+			writeVarInt(col.size(), dos);
+			for (Object e: col) {
+				writeValue(e, dos);
+			}
+		} else {
+			throw new UnrepresentableException(o);
+		}
+	}
+
+	protected static void writeString(String s, DataOutputStream dos) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		writeVarInt(b.length, dos);
+		dos.write(b);
+	}
+
+	/**
+	** Writes a non-negative int in 7-bit groups, least significant first.
+	*/
+	protected static void writeVarInt(int i, DataOutputStream dos) throws IOException {
+		while ((i & ~0x7f) != 0) {
+			dos.writeByte((i & 0x7f) | 0x80);
+			i >>>= 7;
+		}
+		dos.writeByte(i);
+	}
+
+	protected static int zigzag(int i) {
+		return (i << 1) ^ (i >> 31);
+	}
+
+	protected static int unzigzag(int i) {
+		return (i >>> 1) ^ -(i & 1);
+	}
+
+
+	/**
+	** Initial capacity of a hash table that will hold the given number of
+	** elements without being resized.
+	*/
+	protected static int capacity(int size) {
+		return size + size/3 + 1;
+	}
+
+
+	/************************************************************************
+	** Reads a single document. This holds a scratch buffer for strings, so
+	** one is needed for each call to {@link #readObject(InputStream)}.
+	*/
+	protected static class Decoder {
+
+		final protected ByteArrayInputStream bis;
+		final protected DataInputStream dis;
+		protected byte[] buf = new byte[0x100];
+
+		public Decoder(byte[] data) {
+			bis = new ByteArrayInputStream(data);
+			dis = new DataInputStream(bis);
+		}
+
+		/**
+		** Number of bytes of the document not yet read.
+		*/
+		protected int remaining() {
+			return bis.available();
+		}
+
+		public Object readValue() throws IOException {
+			byte tag = dis.readByte();
+			switch (tag) {
+			case T_NULL:
+				return null;
+			case T_TRUE:
+				return Boolean.TRUE;
+			case T_FALSE:
+				return Boolean.FALSE;
+			case T_INT:
+				return unzigzag(readVarInt());
+			case T_LONG:
+				return dis.readLong();
+			case T_FLOAT:
+				return dis.readFloat();
+			case T_DOUBLE:
+				return dis.readDouble();
+			case T_STRING:
+				return readString();
+			case T_DATE:
+				return new Date(dis.readLong());
+			case T_URI:
+				return FreenetURI.readFullBinaryKeyWithLength(dis);
+			case T_BININFO:
+				Object id = readValue();
+				return new Packer.BinInfo(id, readVarInt());
+			case T_TERMENTRY:
+				return terw.readObject(dis);
+			case T_POSTINGS:
+				return terw.readPostings(dis, remaining());
+			case T_MAP:
+				// each entry takes at least a tag for its key and its value
+				int msize = readSize(2);
+				Map<Object, Object> map = new LinkedHashMap<Object, Object>(capacity(msize));
+				for (int i=0; i<msize; ++i) {
+					Object k = readValue();
+					map.put(k, readValue());
+				}
+				return map;
+			case T_LIST:
+				int lsize = readSize(1);
+				List<Object> list = new ArrayList<Object>(lsize);
+				for (int i=0; i<lsize; ++i) {
+					list.add(readValue());
+				}
+				return list;
+			case T_SET:
+				int ssize = readSize(1);
+				Set<Object> set = new LinkedHashSet<Object>(capacity(ssize));
+				for (int i=0; i<ssize; ++i) {
+					set.add(readValue());
+				}
+				return set;
+			default:
+				throw new DataFormatException("Unrecognised type tag in binary data", null, tag);
+			}
+		}
+
+		protected String readString() throws IOException {
+			int len = readSize(1);
+			if (len > buf.length) { buf = new byte[Math.max(len, buf.length<<1)]; }
+			dis.readFully(buf, 0, len);
+			return new String(buf, 0, len, "UTF-8");
+		}
+
+		protected int readVarInt() throws IOException {
+			int i = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = dis.readUnsignedByte();
+				i |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) { return i; }
+			}
+			throw new DataFormatException("Malformed variable-length integer in binary data", null, i);
+		}
+
+		/**
+		** Reads the size of something whose elements each take at least the
+		** given number of bytes, and checks it against the input that is left.
+		*/
+		protected int readSize(int unit) throws IOException {
+			int size = readVarInt();
+			if (size < 0 || size > MAX_SIZE) {
+				throw new DataFormatException("Bad size in binary data", null, size);
+			}
+			if ((long)size * unit > remaining()) {
+				throw new DataFormatException("Size in binary data is larger than the input left", null, size);
+			}
+			return size;
+		}
+
+	}
+
+
+	/************************************************************************
+	** Thrown when an object has no binary representation.
+	*/
+	protected static class UnrepresentableException extends IOException {
+		public UnrepresentableException(Object o) {
+			super("No binary representation for " + o.getClass().getName());
+		}
+	}
+
+}
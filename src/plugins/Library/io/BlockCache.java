@@ -0,0 +1,571 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+** A size-bounded, least-recently-used cache of immutable blocks on disk, such
+** as the serialised nodes of an index.
+**
+** Each block is stored in its own file, named by the SHA-256 hash of its key,
+** in one of 256 subdirectories named by the first byte of that hash, so no
+** directory gets too big. The file holds the data followed by its SHA-256
+** hash, which is checked on every read; blocks that fail the check are
+** deleted and treated as missing. Blocks are written to a temporary file and
+** then renamed into place, so a crash can't leave a partial block behind.
+**
+** The index of blocks and their sizes is kept in memory, and rebuilt from the
+** directory when the cache is opened, in order of last modification; reading
+** a block updates its modification time, so the order survives restarts.
+** When the total size goes over the budget, the least-recently-used blocks
+** are deleted until it is back under.
+**
+** Older versions of this plugin kept one file per key directly in a flat
+** directory, with no index. If a {@linkplain #setLegacyDir(File) legacy
+** directory} is set, a block that is missing from the cache is looked for
+** there too, and moved into the cache if it is found. {@link
+** #importLegacyDir()} moves all of them at once, so that they are counted
+** against the budget.
+*/
+public class BlockCache {
+
+	final public static String HASH = "SHA-256";
+	final public static int HASH_LENGTH = 32;
+	final protected static String TMP_SUFFIX = ".tmp";
+	final protected static char[] HEX = "0123456789abcdef".toCharArray();
+
+	final protected File dir;
+
+	/**
+	** Hash of each key, in order of access, mapped to the size of its file.
+	*/
+	final protected LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(0x100, 0.75f, true);
+
+	final protected Random rand = new Random();
+
+	protected volatile File legacy;
+
+	protected long budget;
+	protected long bytes;
+
+	protected long hits;
+	protected long misses;
+	protected long bytesServed;
+	protected long evictions;
+	protected long corrupt;
+
+	/**
+	** Opens the cache in the given directory, creating it if necessary, and
+	** rebuilds its index. Any blocks that don't fit in the budget are deleted.
+	**
+	** @param d The directory to keep the blocks in
+	** @param b Maximum total size of the blocks, in bytes
+	** @throws IOException if the directory could not be created
+	*/
+	public BlockCache(File d, long b) throws IOException {
+		if (b < 0) { throw new IllegalArgumentException("negative budget"); }
+		dir = d;
+		budget = b;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create cache directory " + dir);
+		}
+		scan();
+		evict(null);
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public void setLegacyDir(File d) {
+		legacy = d;
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	** Set the budget. If this is smaller than the current size, blocks are
+	** deleted straight away.
+	*/
+	public void setBudget(long b) {
+		if (b < 0) { throw new IllegalArgumentException("negative budget"); }
+		synchronized (this) { budget = b; }
+		evict(null);
+	}
+
+	/**
+	** @return Total size of the blocks in the cache, in bytes
+	*/
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	** @return Number of blocks in the cache
+	*/
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	** @return Fraction of lookups that were hits, or 0 if there were none
+	*/
+	public synchronized double getHitRate() {
+		long n = hits + misses;
+		return (n == 0)? 0: (double)hits / n;
+	}
+
+	/**
+	** @return Total size of the blocks returned by {@link #get(String)}
+	*/
+	public synchronized long getBytesServed() {
+		return bytesServed;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	** @return Number of blocks that failed verification and were deleted
+	*/
+	public synchronized long getCorrupt() {
+		return corrupt;
+	}
+
+	public synchronized boolean contains(String key) {
+		return index.containsKey(hash(key));
+	}
+
+	/**
+	** Retrieves a block, and marks it as recently used.
+	**
+	** @return The data of the block, or {@code null} if it is not in the
+	**         cache or failed verification
+	*/
+	public byte[] get(String key) {
+		String h = hash(key);
+		boolean present;
+		// get(), not containsKey(), so that the access order is updated
+		synchronized (this) { present = index.get(h) != null; }
+		byte[] data = present? read(h): null;
+		if (data == null && legacy != null) {
+			data = importLegacy(key);
+		}
+		synchronized (this) {
+			if (data == null) {
+				++misses;
+			} else {
+				++hits;
+				bytesServed += data.length;
+			}
+		}
+		return data;
+	}
+
+	/**
+	** Copies a block into the given stream, and marks it as recently used.
+	** Unlike {@link #get(String)}, this never holds the whole block in
+	** memory. The block is verified as it is copied, so if this returns
+	** {@code false}, anything already written to the stream must be thrown
+	** away.
+	**
+	** @param os Stream to write the data to; this is not closed
+	** @return Whether the block was in the cache and passed verification
+	** @throws IOException if writing to the stream failed
+	*/
+	public boolean get(String key, OutputStream os) throws IOException {
+		String h = hash(key);
+		boolean present;
+		synchronized (this) { present = index.get(h) != null; }
+		long served = present? copy(h, os): -1;
+		if (served < 0 && legacy != null) {
+			byte[] data = importLegacy(key);
+			if (data != null) {
+				os.write(data);
+				served = data.length;
+			}
+		}
+		synchronized (this) {
+			if (served < 0) {
+				++misses;
+			} else {
+				++hits;
+				bytesServed += served;
+			}
+		}
+		return served >= 0;
+	}
+
+	/**
+	** Stores a block, replacing any previous block with the same key, then
+	** deletes least-recently-used blocks until the cache is within budget.
+	** Blocks bigger than the whole budget are not stored.
+	**
+	** @param key The key of the block
+	** @param is Stream to read the data from; this is not closed
+	*/
+	public void put(String key, InputStream is) throws IOException {
+		String h = hash(key);
+		File f = fileFor(h);
+		File tmp = new File(f.getParentFile(), h + "." + Integer.toHexString(rand.nextInt()) + TMP_SUFFIX);
+		if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs()) {
+			throw new IOException("Could not create cache directory " + f.getParentFile());
+		}
+
+		long size = 0;
+		MessageDigest md = newDigest();
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			byte[] buf = new byte[0x1000];
+			int n;
+			while ((n = is.read(buf)) >= 0) {
+				md.update(buf, 0, n);
+				os.write(buf, 0, n);
+				size += n;
+			}
+			os.write(md.digest());
+			size += HASH_LENGTH;
+			os.close();
+			os = null;
+		} finally {
+			if (os != null) {
+				try { os.close(); } catch (IOException e) { }
+				tmp.delete();
+			}
+		}
+
+		synchronized (this) {
+			if (size > budget) {
+				tmp.delete();
+				return;
+			}
+			// rename over an existing file fails on some platforms
+			if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+				tmp.delete();
+				drop(h, false);
+				throw new IOException("Could not move " + tmp + " to " + f);
+			}
+			Long old = index.put(h, size);
+			bytes += size - ((old == null)? 0: old);
+		}
+		evict(h);
+	}
+
+	public void put(String key, byte[] data) throws IOException {
+		put(key, new ByteArrayInputStream(data));
+	}
+
+	/**
+	** Removes a block from the cache.
+	**
+	** @return Whether the block was in the cache
+	*/
+	public boolean remove(String key) {
+		return drop(hash(key), false);
+	}
+
+	/**
+	** Deletes every block in the cache.
+	*/
+	public synchronized void clear() {
+		for (Iterator<String> it = index.keySet().iterator(); it.hasNext();) {
+			fileFor(it.next()).delete();
+			it.remove();
+		}
+		bytes = 0;
+	}
+
+	@Override public synchronized String toString() {
+		return "BlockCache{" + dir + ": " + index.size() + " blocks, " + bytes + "/" + budget
+		  + " bytes, " + hits + " hits, " + misses + " misses, " + bytesServed + " bytes served, "
+		  + evictions + " evictions, " + corrupt + " corrupt}";
+	}
+
+	/**
+	** Reads and verifies the file of the given hash, and touches it.
+	**
+	** @return The data, or {@code null} if the file was missing or corrupt
+	*/
+	protected byte[] read(String h) {
+		File f = fileFor(h);
+		byte[] all;
+		try {
+			all = readFully(f);
+		} catch (IOException e) {
+			// eg. evicted or deleted behind our back
+			drop(h, false);
+			return null;
+		}
+		if (all.length < HASH_LENGTH) {
+			drop(h, true);
+			return null;
+		}
+		int len = all.length - HASH_LENGTH;
+		MessageDigest md = newDigest();
+		md.update(all, 0, len);
+		if (!MessageDigest.isEqual(md.digest(), Arrays.copyOfRange(all, len, all.length))) {
+			drop(h, true);
+			return null;
+		}
+		f.setLastModified(System.currentTimeMillis());
+		return Arrays.copyOf(all, len);
+	}
+
+	/**
+	** Copies and verifies the file of the given hash, and touches it.
+	**
+	** @return The number of bytes of data copied, or {@code -1} if the file
+	**         was missing or corrupt
+	** @throws IOException if writing to the stream failed
+	*/
+	protected long copy(String h, OutputStream os) throws IOException {
+		File f = fileFor(h);
+		long len = f.length() - HASH_LENGTH;
+		MessageDigest md = newDigest();
+		byte[] hash = new byte[HASH_LENGTH];
+		InputStream is = null;
+		// errors from os are passed on, errors from the file mean it's gone
+		boolean writing = false;
+		try {
+			is = new FileInputStream(f);
+			byte[] buf = new byte[0x1000];
+			long left = len;
+			int n = 0;
+			while (left > 0 && (n = is.read(buf, 0, (int)Math.min(buf.length, left))) >= 0) {
+				md.update(buf, 0, n);
+				writing = true;
+				os.write(buf, 0, n);
+				writing = false;
+				left -= n;
+			}
+			int got = 0;
+			while (got < HASH_LENGTH && (n = is.read(hash, got, HASH_LENGTH - got)) >= 0) { got += n; }
+			if (len < 0 || left > 0 || got < HASH_LENGTH || !MessageDigest.isEqual(md.digest(), hash)) {
+				drop(h, true);
+				return -1;
+			}
+		} catch (IOException e) {
+			if (writing) { throw e; }
+			// eg. evicted or deleted behind our back
+			drop(h, false);
+			return -1;
+		} finally {
+			if (is != null) {
+				try { is.close(); } catch (IOException e) { }
+			}
+		}
+		f.setLastModified(System.currentTimeMillis());
+		return len;
+	}
+
+	/**
+	** Moves a block from the legacy directory into the cache.
+	*/
+	protected byte[] importLegacy(String key) {
+		File f = new File(legacy, key);
+		if (!f.isFile()) { return null; }
+		byte[] data;
+		try {
+			data = readFully(f);
+			put(key, data);
+		} catch (IOException e) {
+			return null;
+		}
+		f.delete();
+		return data;
+	}
+
+	/**
+	** Moves every block in the {@linkplain #setLegacyDir(File) legacy
+	** directory} into the cache, oldest first, so that the blocks used most
+	** recently are also the most recent here. Blocks that don't fit in the
+	** budget are evicted as usual, and blocks that can't be read are just
+	** deleted. Once the directory is empty, it is deleted, and no longer
+	** looked in by {@link #get(String)}.
+	**
+	** This can take a long time, but the cache can be used meanwhile.
+	**
+	** @return Number of blocks moved into the cache
+	*/
+	public int importLegacyDir() {
+		File d = legacy;
+		if (d == null) { return 0; }
+		File[] fs = d.listFiles();
+		if (fs == null) { legacy = null; return 0; }
+		final Map<File, Long> modified = new HashMap<File, Long>(fs.length<<1);
+		for (File f: fs) { modified.put(f, f.lastModified()); }
+		Arrays.sort(fs, new Comparator<File>() {
+			/*@Override**/ public int compare(File f1, File f2) {
+				long m1 = modified.get(f1), m2 = modified.get(f2);
+				return (m1 < m2)? -1: (m1 == m2)? 0: 1;
+			}
+		});
+
+		int n = 0;
+		for (File f: fs) {
+			if (!f.isFile()) { continue; }
+			InputStream is = null;
+			try {
+				is = new FileInputStream(f);
+				put(f.getName(), is);
+				++n;
+			} catch (IOException e) {
+				// it's only a cache, so the block can be fetched again
+			} finally {
+				if (is != null) {
+					try { is.close(); } catch (IOException e) { }
+				}
+			}
+			f.delete();
+		}
+		if (d.delete()) { legacy = null; }
+		return n;
+	}
+
+	/**
+	** @param h Hash of the key to remove
+	** @param corrupted Whether to count the block as {@link #getCorrupt()
+	**        corrupt}
+	*/
+	protected boolean drop(String h, boolean corrupted) {
+		File f = fileFor(h);
+		synchronized (this) {
+			Long size = index.remove(h);
+			if (corrupted) { ++corrupt; }
+			f.delete();
+			if (size == null) { return false; }
+			bytes -= size;
+			return true;
+		}
+	}
+
+	/**
+	** Deletes least-recently-used blocks until the cache is within budget.
+	**
+	** @param keep Hash of a block to keep, even if it is the least recently
+	**        used, or {@code null}
+	*/
+	protected synchronized void evict(String keep) {
+		for (Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator(); bytes > budget && it.hasNext();) {
+			Map.Entry<String, Long> en = it.next();
+			if (en.getKey().equals(keep)) { continue; }
+			fileFor(en.getKey()).delete();
+			bytes -= en.getValue();
+			it.remove();
+			++evictions;
+		}
+	}
+
+	/**
+	** Rebuilds the index from the files in the directory, and deletes any
+	** temporary files left over from interrupted writes.
+	*/
+	protected synchronized void scan() {
+		List<File> files = new ArrayList<File>();
+		File[] shards = dir.listFiles();
+		if (shards == null) { return; }
+		for (File shard: shards) {
+			if (!shard.isDirectory() || shard.getName().length() != 2) { continue; }
+			File[] fs = shard.listFiles();
+			if (fs == null) { continue; }
+			for (File f: fs) {
+				if (f.getName().endsWith(TMP_SUFFIX)) {
+					f.delete();
+				} else if (f.isFile() && f.getName().length() == HASH_LENGTH*2) {
+					files.add(f);
+				}
+			}
+		}
+		final Map<File, Long> modified = new HashMap<File, Long>(files.size()<<1);
+		for (File f: files) { modified.put(f, f.lastModified()); }
+		Collections.sort(files, new Comparator<File>() {
+			/*@Override**/ public int compare(File f1, File f2) {
+				long m1 = modified.get(f1), m2 = modified.get(f2);
+				return (m1 < m2)? -1: (m1 == m2)? 0: 1;
+			}
+		});
+		index.clear();
+		bytes = 0;
+		for (File f: files) {
+			long size = f.length();
+			index.put(f.getName(), size);
+			bytes += size;
+		}
+	}
+
+	protected File fileFor(String h) {
+		return new File(new File(dir, h.substring(0, 2)), h);
+	}
+
+	/**
+	** @return The SHA-256 hash of the key, in lowercase hex
+	*/
+	public static String hash(String key) {
+		byte[] d;
+		try {
+			d = newDigest().digest(key.getBytes("UTF-8"));
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		char[] c = new char[d.length*2];
+		for (int i=0; i<d.length; ++i) {
+			c[2*i] = HEX[(d[i]>>4) & 0xF];
+			c[2*i+1] = HEX[d[i] & 0xF];
+		}
+		return new String(c);
+	}
+
+	protected static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(HASH);
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	protected static byte[] readFully(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			ByteArrayOutputStream bs = new ByteArrayOutputStream((int)Math.min(f.length(), Integer.MAX_VALUE));
+			byte[] buf = new byte[0x1000];
+			int n;
+			while ((n = is.read(buf)) >= 0) { bs.write(buf, 0, n); }
+			return bs.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+}
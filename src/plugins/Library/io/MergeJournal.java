@@ -0,0 +1,316 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+** A journal on disk of the nodes pushed during a long merge, so that if the
+** merge is interrupted, running it again can reuse the nodes that were pushed
+** the first time rather than pushing them again. See {@link
+** plugins.Library.util.SkeletonBTreeMap#setJournal(MergeJournal)}.
+**
+** Each entry maps a key that identifies a node to the metadata it was pushed
+** to. Entries are only written to disk when they are {@linkplain #commit()
+** committed}, and only once the data they point to is known to be stored, eg.
+** once the inserts have finished; see {@link Barrier}.
+**
+** The journal belongs to one particular merge, named by an id. Opening the
+** journal with a different id discards it, since the nodes of a different
+** merge may not be the same, even if they cover the same keys.
+**
+** The file is only ever appended to, one record per entry, and synced after
+** each commit. A record that was only partly written when the JVM stopped is
+** dropped when the journal is opened again.
+*/
+public class MergeJournal {
+
+	final protected static int MAGIC = 0x4c6d4a31; // "LmJ1"
+
+	/**
+	** Tells which entries have their data stored. Each entry is stamped with
+	** {@link #mark()} when it is put, and its data must be stored once
+	** everything started before then is, eg. the inserts of the node and of
+	** everything it points to.
+	*/
+	public interface Barrier {
+		/**
+		** @return The stamp for an entry put now; this must never decrease
+		*/
+		public long mark();
+
+		/**
+		** Waits for the data of the entries stamped up to the given mark to
+		** be stored, or to fail.
+		**
+		** @return The greatest stamp, up to the mark, for which the data of
+		**         every entry stamped up to it is stored
+		*/
+		public long await(long mark) throws TaskAbortException;
+	}
+
+	final protected File file;
+	final protected String id;
+	final protected ObjectStreamReader<?> reader;
+	final protected ObjectStreamWriter<Object> writer;
+
+	/** Entries on disk, or being written to it */
+	final protected Map<String, Object> committed = new HashMap<String, Object>();
+	/** Entries not yet committed */
+	final protected LinkedHashMap<String, Object> pending = new LinkedHashMap<String, Object>();
+	/** Stamps of the entries not yet committed, see {@link Barrier#mark()} */
+	final protected Map<String, Long> stamps = new HashMap<String, Long>();
+
+	protected Barrier barrier;
+
+	protected FileOutputStream fos;
+	protected DataOutputStream out;
+
+	protected int resumed;
+	protected int hits;
+
+	/**
+	** Opens the journal, keeping the entries on disk if it was written by a
+	** merge with the same id, and otherwise starting an empty one.
+	**
+	** @param file The journal file
+	** @param id Identifies the merge, eg. by the data being merged and the
+	**        index it is being merged into
+	** @param r Reads the metadata of each entry
+	** @param w Writes the metadata of each entry
+	*/
+	public MergeJournal(File file, String id, ObjectStreamReader<?> r, ObjectStreamWriter<Object> w) throws IOException {
+		if (id == null) { throw new NullPointerException(); }
+		this.file = file;
+		this.id = id;
+		this.reader = r;
+		this.writer = w;
+		long valid = file.exists()? load(): 0;
+		if (valid == 0) {
+			committed.clear();
+			fos = new FileOutputStream(file);
+			out = new DataOutputStream(fos);
+			out.writeInt(MAGIC);
+			out.writeUTF(id);
+			sync();
+		} else {
+			// drop any record that was only partly written
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+			fos = new FileOutputStream(file, true);
+			out = new DataOutputStream(fos);
+		}
+		resumed = committed.size();
+	}
+
+	/**
+	** Opens the journal, with metadata written as YAML.
+	**
+	** @see #MergeJournal(File, String, ObjectStreamReader, ObjectStreamWriter)
+	*/
+	public MergeJournal(File file, String id) throws IOException {
+		this(file, id, new YamlReaderWriter(), new YamlReaderWriter());
+	}
+
+	/**
+	** Reads the entries of the file.
+	**
+	** @return The length of the file up to the end of the last complete
+	**         record, or 0 if the file is not a journal for this merge
+	*/
+	protected long load() throws IOException {
+		long length = file.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long valid = 0;
+		try {
+			if (in.readInt() != MAGIC || !id.equals(in.readUTF())) { return 0; }
+			valid = 4 + utfLength(id);
+			for (;;) {
+				String key = in.readUTF();
+				int len = in.readInt();
+				// a corrupt length, or one that was only partly written
+				if (len < 0 || len > length - valid - utfLength(key) - 4) { break; }
+				byte[] data = new byte[len];
+				in.readFully(data);
+				Object meta;
+				try {
+					meta = reader.readObject(new ByteArrayInputStream(data));
+				} catch (IOException e) {
+					break;
+				}
+				committed.put(key, meta);
+				valid += utfLength(key) + 4 + data.length;
+			}
+		} catch (EOFException e) {
+			// end of the complete records
+		} catch (IOException e) {
+			// eg. a record whose length was only partly written
+		} catch (RuntimeException e) {
+			// eg. a corrupt key
+		} finally {
+			in.close();
+		}
+		return valid;
+	}
+
+	/**
+	** Length of a string as written by {@link DataOutputStream#writeUTF(String)}.
+	*/
+	protected static int utfLength(String s) {
+		int len = 2;
+		for (int i=0; i<s.length(); ++i) {
+			char c = s.charAt(i);
+			len += (c >= 0x0001 && c <= 0x007F)? 1: (c > 0x07FF)? 3: 2;
+		}
+		return len;
+	}
+
+	/**
+	** @return The metadata the node with the given key was pushed to, or null
+	*/
+	public synchronized Object get(String key) {
+		Object meta = committed.get(key);
+		if (meta == null) { meta = pending.get(key); }
+		if (meta != null) { ++hits; }
+		return meta;
+	}
+
+	/**
+	** Sets what tells which entries have their data stored. This must be set
+	** before any entries are put, or else they are taken to be stored already.
+	**
+	** @param b The barrier, or null if the data of every entry is stored by
+	**        the time it is put
+	*/
+	public synchronized void setBarrier(Barrier b) {
+		barrier = b;
+	}
+
+	/**
+	** Records that the node with the given key was pushed. This is not
+	** written to disk until it is {@linkplain #commit() committed}.
+	*/
+	public synchronized void put(String key, Object meta) {
+		if (meta == null) { throw new NullPointerException(); }
+		if (committed.containsKey(key)) { return; }
+		pending.put(key, meta);
+		stamps.put(key, (barrier == null)? Long.MIN_VALUE: barrier.mark());
+	}
+
+	/**
+	** Writes the entries that are pending when this is called to disk, once
+	** their data is stored; see {@link Barrier}. Entries whose data failed to
+	** be stored, or that were put while waiting, stay pending.
+	**
+	** @return Number of entries written
+	*/
+	public int commit() throws IOException, TaskAbortException {
+		Map<String, Object> entries;
+		Barrier b;
+		synchronized (this) {
+			if (pending.isEmpty()) { return 0; }
+			entries = new LinkedHashMap<String, Object>(pending);
+			b = barrier;
+		}
+		long stored = (b == null)? Long.MAX_VALUE: b.await(b.mark());
+		int n = 0;
+		synchronized (this) {
+			if (out == null) { throw new IOException("Journal is closed: " + file); }
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (Map.Entry<String, Object> en: entries.entrySet()) {
+				if (committed.containsKey(en.getKey())) { continue; }
+				Long stamp = stamps.get(en.getKey());
+				if (stamp == null || stamp > stored) { continue; }
+				bytes.reset();
+				writer.writeObject(en.getValue(), bytes);
+				out.writeUTF(en.getKey());
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+				committed.put(en.getKey(), en.getValue());
+				pending.remove(en.getKey());
+				stamps.remove(en.getKey());
+				++n;
+			}
+			sync();
+		}
+		return n;
+	}
+
+	protected void sync() throws IOException {
+		out.flush();
+		fos.getFD().sync();
+	}
+
+	/**
+	** @return Number of entries committed, including those from before the
+	**         journal was opened
+	*/
+	public synchronized int size() {
+		return committed.size();
+	}
+
+	/**
+	** @return Number of entries not yet committed
+	*/
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	** @return Number of entries that were on disk when the journal was opened
+	*/
+	public synchronized int getResumed() {
+		return resumed;
+	}
+
+	/**
+	** @return Number of nodes that were looked up and found
+	*/
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	** Closes the file, without committing the pending entries.
+	*/
+	public synchronized void close() throws IOException {
+		if (out == null) { return; }
+		out.close();
+		out = null;
+	}
+
+	/**
+	** Closes and deletes the journal, eg. once the merge has completed.
+	*/
+	public synchronized void delete() throws IOException {
+		close();
+		if (!file.delete() && file.exists()) {
+			throw new IOException("Could not delete the journal: " + file);
+		}
+	}
+
+	@Override public synchronized String toString() {
+		return "MergeJournal " + file + " (" + id + "): " + committed.size() + " committed, " + pending.size() + " pending, " + resumed + " resumed, " + hits + " hits";
+	}
+
+}
@@ -54,7 +54,7 @@ import freenet.keys.FreenetURI;
 ** @author infinity0
 */
 public class YamlReaderWriter
-implements ObjectStreamReader, ObjectStreamWriter {
+implements ObjectStreamReader<Object>, ObjectStreamWriter<Object> {
 
 	final public static String MIME_TYPE = "text/yaml";
 	final public static String FILE_EXTENSION = ".yml";
@@ -0,0 +1,44 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import plugins.Library.util.func.Tuples.X2;
+
+/**
+** A {@link StagedArchiver} whose slow operations can be started without
+** waiting for them to finish. Instead of blocking a thread on the backing
+** store, the archiver calls a closure when the operation completes; so
+** callers such as {@link ParallelSerialiser} can have any number of them in
+** progress at once, using only as many threads as it takes to start them and
+** to decode the results.
+**
+** The closures may be called from any thread, including threads that belong
+** to the backing store, or the thread that started the operation (before the
+** method returns). They are called exactly once, and should not block.
+*/
+public interface AsyncArchiver<T, P extends Progress> extends StagedArchiver<T, P> {
+
+	/**
+	** Starts the fetch stage of a pull. When it completes, {@code done} is
+	** called with the handle that {@link #pullFetch(Serialiser.PullTask,
+	** Progress)} would have returned, which must then be passed to {@link
+	** #pullDecode(Serialiser.PullTask, Progress, Object)}; or with the
+	** exception that it would have thrown, in which case the progress must
+	** have been aborted already.
+	*/
+	public void startPull(PullTask<T> task, P p, SafeClosure<X2<Object, TaskAbortException>> done);
+
+	/**
+	** Starts a push. When it completes, {@code done} is called with {@code
+	** null}, or with the exception that {@link #pushLive(Serialiser.PushTask,
+	** Progress)} would have thrown, in which case the progress must have been
+	** aborted already.
+	*/
+	public void startPush(PushTask<T> task, P p, SafeClosure<TaskAbortException> done);
+
+}
@@ -3,17 +3,23 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.io.serial;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileLock;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
 import plugins.Library.io.serial.Serialiser.Task;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 /**
 ** Converts between a map of {@link String} to {@link Object}, and a file on
@@ -23,10 +29,15 @@ import plugins.Library.util.exec.TaskAbortException;
 ** This class expects {@link Task#meta} to be of type {@link String}, or an
 ** array whose first element is of type {@link String}.
 **
+** As an {@link AsyncArchiver}, this is a local stand-in for one that talks to
+** the network: tasks are run on a couple of shared threads, after the delay
+** of {@link #setTestMode()} if it is set, so any number of them may be in
+** progress at once.
+**
 ** @author infinity0
 */
 public class FileArchiver<T>
-implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
+implements Archiver<T>, AsyncArchiver<T, SimpleProgress> {
 
 	// DEBUG
 	private static boolean testmode = false;
@@ -45,6 +56,30 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		}
 	}
 
+	/**
+	** Runs the tasks started by {@link #startPull(Serialiser.PullTask,
+	** SimpleProgress, SafeClosure)} and {@link #startPush(Serialiser.PushTask,
+	** SimpleProgress, SafeClosure)}. Local files are quick to read and write,
+	** and nothing blocks while a task waits for its delay, so a couple of
+	** threads are enough.
+	*/
+	final protected static ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(2);
+	static {
+		timer.setKeepAliveTime(60, TimeUnit.SECONDS);
+		timer.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	** DEBUG: the number of seconds to pause for, with that many parts added
+	** to the progress, or 0 if not in test mode.
+	*/
+	protected static int randomDelay(SimpleProgress p) {
+		if (!testmode) { return 0; }
+		int t = (int)(Math.random()*5+5);
+		p.addPartKnown(t, true);
+		return t;
+	}
+
 	/**
 	** DEBUG: whether to generate random file names
 	*/
@@ -176,12 +211,28 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 	}
 
 	/*@Override**/ public void pullLive(PullTask<T> t, SimpleProgress p) throws TaskAbortException {
+		pullDecode(t, p, pullFetch(t, p));
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation returns the contents of the file as a {@code
+	** byte[]}.
+	*/
+	/*@Override**/ public Object pullFetch(PullTask<T> t, SimpleProgress p) throws TaskAbortException {
+		if (testmode) { randomWait(p); }
+		return fetch(t, p);
+	}
+
+	/*@Override**/ public void pullDecode(PullTask<T> t, SimpleProgress p, Object fetched) throws TaskAbortException {
 		try {
-			pull(t);
-			if (testmode) { randomWait(p); }
-			else { p.addPartKnown(0, true); }
-		} catch (TaskAbortException e) {
-			p.abort(e);
+			t.data = (T)reader.readObject(new ByteArrayInputStream((byte[])fetched));
+			if (!testmode) { p.addPartKnown(0, true); }
+		} catch (IOException e) {
+			p.abort(new TaskAbortException("FileArchiver could not decode pull on " + getFile(t.meta), e, true));
+		} catch (RuntimeException e) {
+			p.abort(new TaskAbortException("FileArchiver could not decode pull on " + getFile(t.meta), e));
 		}
 	}
 
@@ -195,4 +246,64 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		}
 	}
 
+	/*@Override**/ public void startPull(final PullTask<T> t, final SimpleProgress p, final SafeClosure<X2<Object, TaskAbortException>> done) {
+		final int delay = randomDelay(p);
+		timer.schedule(new Runnable() {
+			public void run() {
+				for (int i=0; i<delay; ++i) { p.addPartDone(); }
+				Object fetched = null;
+				TaskAbortException ex = null;
+				try { fetched = fetch(t, p); }
+				catch (TaskAbortException e) { ex = e; }
+				done.invoke(X2(fetched, ex));
+			}
+		}, delay, TimeUnit.SECONDS);
+	}
+
+	/*@Override**/ public void startPush(final PushTask<T> t, final SimpleProgress p, final SafeClosure<TaskAbortException> done) {
+		final int delay = randomDelay(p);
+		timer.schedule(new Runnable() {
+			public void run() {
+				for (int i=0; i<delay; ++i) { p.addPartDone(); }
+				TaskAbortException ex = null;
+				try {
+					push(t);
+					if (delay == 0) { p.addPartKnown(0, true); }
+				} catch (TaskAbortException e) {
+					ex = p.abortQuietly(e);
+				}
+				done.invoke(ex);
+			}
+		}, delay, TimeUnit.SECONDS);
+	}
+
+	/**
+	** Reads the file for a pull, without decoding it.
+	*/
+	protected byte[] fetch(PullTask<T> t, SimpleProgress p) throws TaskAbortException {
+		File file = getFile(t.meta);
+		try {
+			FileInputStream is = new FileInputStream(file);
+			try {
+				FileLock lock = is.getChannel().lock(0L, Long.MAX_VALUE, true); // shared lock for reading
+				try {
+					ByteArrayOutputStream bs = new ByteArrayOutputStream((int)file.length());
+					byte[] buf = new byte[0x1000];
+					int n;
+					while ((n = is.read(buf)) >= 0) { bs.write(buf, 0, n); }
+					return bs.toByteArray();
+				} finally {
+					lock.release();
+				}
+			} finally {
+				try { is.close(); } catch (IOException f) { }
+			}
+		} catch (IOException e) {
+			p.abort(new TaskAbortException("FileArchiver could not complete pull on " + file, e, true));
+		} catch (RuntimeException e) {
+			p.abort(new TaskAbortException("FileArchiver could not complete pull on " + file, e));
+		}
+		return null; // abort() always throws
+	}
+
 }
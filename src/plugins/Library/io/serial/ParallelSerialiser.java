@@ -8,6 +8,8 @@ import plugins.Library.util.TaskAbortExceptionConvertor;
 import plugins.Library.util.concurrent.Scheduler;
 import plugins.Library.util.concurrent.ObjectProcessor;
 import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.PriorityExecutor;
+import plugins.Library.util.concurrent.PriorityExecutor.TaskClass;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskInProgressException;
@@ -19,12 +21,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Queue;
 
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -35,6 +38,20 @@ import java.util.concurrent.ConcurrentMap;
 ** LiveArchiver#pullLive(Serialiser.PullTask, Progress)} and {@link
 ** LiveArchiver#pushLive(Serialiser.PushTask, Progress)} methods.
 **
+** If the subclass is also a {@link StagedArchiver}, each pull is done in two
+** stages. Any number of pulls may be fetching at once (up to the limits of
+** the executor or {@link ObjectProcessor} running them), but only {@link
+** #decoding} of them may be decoding, or be holding decoded data that has not
+** yet been accepted by the {@link ObjectProcessor} that scheduled it.
+**
+** If the subclass is also an {@link AsyncArchiver}, no thread waits for the
+** fetch stage of a pull, or for a push: jobs only start them, and the decode
+** stage is queued until a {@link #decoding} permit is free. This lets the
+** {@link ObjectProcessor}s created by {@link #pullSchedule(BlockingQueue,
+** BlockingQueue, Map)} and {@link #pushSchedule(BlockingQueue, BlockingQueue,
+** Map)} keep up to {@link #max_async_conc} tasks in progress, rather than
+** one per thread.
+**
 ** DOCUMENT (rewritten)
 **
 ** @author infinity0
@@ -45,19 +62,54 @@ implements IterableSerialiser<T>,
            LiveArchiver<T, P>,
            Serialiser.Trackable<T> {
 
-	final static protected ThreadPoolExecutor exec = new ThreadPoolExecutor(
-		0, 0x40, 60, TimeUnit.SECONDS,
-		new LinkedBlockingQueue<Runnable>(),
-		new ThreadPoolExecutor.CallerRunsPolicy() // easier than catching RejectedExecutionException, if it ever occurs
-	);
+	/**
+	** Runs the jobs of every serialiser, as workers of {@link
+	** Executors#SCHEDULER} at the priority of whatever started them.
+	*/
+	final static protected Executor exec = Executors.DEFAULT_EXECUTOR;
+
+	/**
+	** Default number of pulls that may be decoding at once, for subclasses
+	** that are also {@link StagedArchiver}s.
+	*/
+	final public static int default_max_decoding = 0x10;
+
+	/**
+	** Maximum number of tasks in progress at once, for the processors created
+	** by subclasses that are also {@link AsyncArchiver}s.
+	*/
+	final public static int max_async_conc = 0x1000;
 
 	final protected ProgressTracker<T, P> tracker;
 
+	/**
+	** Permits for the decode stage of pulls. See the class description.
+	*/
+	final protected Semaphore decoding;
+
+	/**
+	** Decode stages of asynchronous pulls that are waiting for a {@link
+	** #decoding} permit.
+	*/
+	final protected Queue<Runnable> decodeQueue = new ConcurrentLinkedQueue<Runnable>();
+
 	public ParallelSerialiser(ProgressTracker<T, P> k) {
+		this(k, default_max_decoding);
+	}
+
+	/**
+	** @param k The progress tracker
+	** @param d Maximum number of pulls that may be decoding at once
+	*/
+	public ParallelSerialiser(ProgressTracker<T, P> k, int d) {
 		if (k == null) {
 			throw new IllegalArgumentException("ParallelSerialiser must have a progress tracker.");
 		}
+		if (d < 1) {
+			throw new IllegalArgumentException("ParallelSerialiser must allow at least one decode.");
+		}
 		tracker = k;
+		decoding = new Semaphore(d);
 	}
 
 	// return ? extends Progress so as to hide the implementation details of P
@@ -99,6 +151,12 @@ implements IterableSerialiser<T>,
 	protected Runnable createPullJob(final PullTask<T> task, final SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
 		try {
 			final P prog = (post != null)? tracker.addPullProgress(task): tracker.getPullProgress(task);
+			if (this instanceof AsyncArchiver) {
+				return createAsyncPullJob((AsyncArchiver<T, P>)this, task, prog, post);
+			}
+			if (this instanceof StagedArchiver) {
+				return createStagedPullJob((StagedArchiver<T, P>)this, task, prog, post);
+			}
 			return new Runnable() {
 				public void run() {
 					TaskAbortException ex = null;
@@ -106,13 +164,6 @@ implements IterableSerialiser<T>,
 					catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
 					catch (TaskAbortException e) { ex = e; }
 					if (post != null) { post.invoke(X2(task, ex)); }
-					// FIXME OPT NORM Two-phase pull (see FreenetArchiver.pull comments):
-					// All we'd need to do is:
-					// Bucket = pullFirst(task, prog)
-					// Take semaphore (purpose is to limit the number of decoded stuff in memory which is not yet wanted)
-					// pullSecond(task, prog, bucket)
-					// Call post-process
-					// Release semaphore
 				}
 			};
 		} catch (final TaskInProgressException e) {
@@ -120,6 +171,218 @@ implements IterableSerialiser<T>,
 		}
 	}
 
+	/**
+	** Creates a job that fetches the data for the task, then waits for a
+	** {@link #decoding} permit before decoding it. The permit is held until
+	** {@code post} returns, which blocks while the output queue of the
+	** scheduling {@link ObjectProcessor} is full; so decoded data is only
+	** created as fast as it is consumed, and the fetched data waits in
+	** temporary storage meanwhile.
+	*/
+	protected Runnable createStagedPullJob(final StagedArchiver<T, P> srl, final PullTask<T> task, final P prog, final SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
+		return new Runnable() {
+			public void run() {
+				TaskAbortException ex = null;
+				Object fetched = null;
+				try { fetched = srl.pullFetch(task, prog); }
+				catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+				catch (TaskAbortException e) { ex = e; }
+				if (ex != null) {
+					if (post != null) { post.invoke(X2(task, ex)); }
+					return;
+				}
+
+				decoding.acquireUninterruptibly();
+				try {
+					try { srl.pullDecode(task, prog, fetched); }
+					catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+					catch (TaskAbortException e) { ex = e; }
+					if (post != null) { post.invoke(X2(task, ex)); }
+				} finally {
+					decoding.release();
+				}
+			}
+		};
+	}
+
+	/**
+	** Creates a job that starts the fetch stage of the task, and returns
+	** straight away. When the fetch completes, the decode stage is queued to
+	** run on {@link #exec} as in {@link #createStagedPullJob(StagedArchiver,
+	** Serialiser.PullTask, Progress, SafeClosure)}, but without blocking a
+	** thread while it waits for a permit. Both are run at the priority of
+	** the job, not of the thread that the fetch completes on.
+	*/
+	protected Runnable createAsyncPullJob(final AsyncArchiver<T, P> srl, final PullTask<T> task, final P prog, final SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
+		return new Runnable() {
+			public void run() {
+				final TaskClass cls = PriorityExecutor.getCurrentClass();
+				try {
+					srl.startPull(task, prog, new SafeClosure<X2<Object, TaskAbortException>>() {
+						/*@Override**/ public void invoke(X2<Object, TaskAbortException> res) {
+							if (res._1 != null) {
+								finishLater(cls, task, res._1, post);
+								return;
+							}
+							final Object fetched = res._0;
+							decodeLater(PriorityExecutor.as(cls, new Runnable() {
+								public void run() {
+									TaskAbortException ex = null;
+									try { srl.pullDecode(task, prog, fetched); }
+									catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+									catch (TaskAbortException e) { ex = e; }
+									if (post != null) { post.invoke(X2(task, ex)); }
+								}
+							}));
+						}
+					});
+				} catch (RuntimeException e) {
+					// the archiver broke its contract; don't leave the caller waiting
+					if (post != null) { post.invoke(X2(task, new TaskAbortException("failed", e))); }
+				}
+			}
+		};
+	}
+
+	/**
+	** Creates a job that starts the push, and returns straight away. {@code
+	** post} is run on {@link #exec} when the push completes, since it may
+	** block and the archiver's closure should not.
+	*/
+	protected Runnable createAsyncPushJob(final AsyncArchiver<T, P> srl, final PushTask<T> task, final P prog, final SafeClosure<X2<PushTask<T>, TaskAbortException>> post) {
+		return new Runnable() {
+			public void run() {
+				final TaskClass cls = PriorityExecutor.getCurrentClass();
+				try {
+					srl.startPush(task, prog, new SafeClosure<TaskAbortException>() {
+						/*@Override**/ public void invoke(TaskAbortException ex) {
+							finishLater(cls, task, ex, post);
+						}
+					});
+				} catch (RuntimeException e) {
+					if (post != null) { post.invoke(X2(task, new TaskAbortException("failed", e))); }
+				}
+			}
+		};
+	}
+
+	/**
+	** Runs {@code post} for a finished task on {@link #exec}, at the priority
+	** of the given class.
+	*/
+	protected static <K extends Task> void finishLater(TaskClass cls, final K task, final TaskAbortException ex, final SafeClosure<X2<K, TaskAbortException>> post) {
+		if (post == null) { return; }
+		exec.execute(PriorityExecutor.as(cls, new Runnable() {
+			public void run() {
+				post.invoke(X2(task, ex));
+			}
+		}));
+	}
+
+	/**
+	** Queues the decode stage of an asynchronous pull, to be run on {@link
+	** #exec} once a {@link #decoding} permit is free.
+	*/
+	protected void decodeLater(Runnable job) {
+		decodeQueue.add(job);
+		runDecodes();
+	}
+
+	/**
+	** Runs as many queued decode stages as there are free permits. This is
+	** called whenever a job is queued or a permit is released, so that no job
+	** is left in the queue while a permit is free.
+	*/
+	protected void runDecodes() {
+		while (!decodeQueue.isEmpty() && decoding.tryAcquire()) {
+			final Runnable job = decodeQueue.poll();
+			if (job == null) {
+				decoding.release();
+				continue;
+			}
+			exec.execute(PriorityExecutor.as(PriorityExecutor.getClassOf(job), new Runnable() {
+				public void run() {
+					try {
+						job.run();
+					} finally {
+						decoding.release();
+						runDecodes();
+					}
+				}
+			}));
+		}
+	}
+
+	/**
+	** Fetches the data for a task from a child archiver, in the first stage of
+	** a {@link StagedArchiver} that wraps it. If the child is not itself a
+	** {@link StagedArchiver}, this does the whole pull, and returns {@code
+	** null}.
+	*/
+	protected static <T, P extends Progress> Object pullFetchFrom(LiveArchiver<T, P> sub, PullTask<T> task, P p) throws TaskAbortException {
+		if (sub instanceof StagedArchiver) {
+			return ((StagedArchiver<T, P>)sub).pullFetch(task, p);
+		}
+		sub.pullLive(task, p);
+		return null;
+	}
+
+	/**
+	** Decodes the data fetched by {@link #pullFetchFrom(LiveArchiver,
+	** Serialiser.PullTask, Progress)}, in the second stage of a {@link
+	** StagedArchiver} that wraps the child archiver.
+	*/
+	protected static <T, P extends Progress> void pullDecodeFrom(LiveArchiver<T, P> sub, PullTask<T> task, P p, Object fetched) throws TaskAbortException {
+		if (sub instanceof StagedArchiver) {
+			((StagedArchiver<T, P>)sub).pullDecode(task, p, fetched);
+		}
+	}
+
+	/**
+	** Starts the fetch stage of a pull from a child archiver, for an {@link
+	** AsyncArchiver} that wraps it. If the child is not itself an {@link
+	** AsyncArchiver}, {@link #pullFetchFrom(LiveArchiver, Serialiser.PullTask,
+	** Progress)} is run on {@link #exec} instead.
+	*/
+	protected static <T, P extends Progress> void startPullFrom(final LiveArchiver<T, P> sub, final PullTask<T> task, final P p, final SafeClosure<X2<Object, TaskAbortException>> done) {
+		if (sub instanceof AsyncArchiver) {
+			((AsyncArchiver<T, P>)sub).startPull(task, p, done);
+			return;
+		}
+		exec.execute(new Runnable() {
+			public void run() {
+				Object fetched = null;
+				TaskAbortException ex = null;
+				try { fetched = pullFetchFrom(sub, task, p); }
+				catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+				catch (TaskAbortException e) { ex = e; }
+				done.invoke(X2(fetched, ex));
+			}
+		});
+	}
+
+	/**
+	** Starts a push to a child archiver, for an {@link AsyncArchiver} that
+	** wraps it. If the child is not itself an {@link AsyncArchiver}, its
+	** {@link LiveArchiver#pushLive(Serialiser.PushTask, Progress)} is run on
+	** {@link #exec} instead.
+	*/
+	protected static <T, P extends Progress> void startPushFrom(final LiveArchiver<T, P> sub, final PushTask<T> task, final P p, final SafeClosure<TaskAbortException> done) {
+		if (sub instanceof AsyncArchiver) {
+			((AsyncArchiver<T, P>)sub).startPush(task, p, done);
+			return;
+		}
+		exec.execute(new Runnable() {
+			public void run() {
+				TaskAbortException ex = null;
+				try { sub.pushLive(task, p); }
+				catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+				catch (TaskAbortException e) { ex = e; }
+				done.invoke(ex);
+			}
+		});
+	}
+
 	/**
 	** DOCUMENT.
 	**
@@ -134,6 +397,9 @@ implements IterableSerialiser<T>,
 	protected Runnable createPushJob(final PushTask<T> task, final SafeClosure<X2<PushTask<T>, TaskAbortException>> post) {
 		try {
 			final P prog = (post != null)? tracker.addPushProgress(task): tracker.getPushProgress(task);
+			if (this instanceof AsyncArchiver) {
+				return createAsyncPushJob((AsyncArchiver<T, P>)this, task, prog, post);
+			}
 			return new Runnable() {
 				public void run() {
 					TaskAbortException ex = null;
@@ -244,11 +510,13 @@ implements IterableSerialiser<T>,
 		BlockingQueue<X2<PullTask<T>, TaskAbortException>> output,
 		Map<PullTask<T>, E> deposit
 	) {
-		return new ObjectProcessor<PullTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
+		ObjectProcessor<PullTask<T>, E, TaskAbortException> proc = new ObjectProcessor<PullTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
 			@Override protected Runnable createJobFor(PullTask<T> task) {
 				return createPullJob(task, postProcess);
 			}
-		}.autostart();
+		};
+		if (this instanceof AsyncArchiver) { proc.setMaxConc(max_async_conc); }
+		return proc.autostart();
 	}
 
 	/**
@@ -261,11 +529,13 @@ implements IterableSerialiser<T>,
 		BlockingQueue<X2<PushTask<T>, TaskAbortException>> output,
 		Map<PushTask<T>, E> deposit
 	) {
-		return new ObjectProcessor<PushTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
+		ObjectProcessor<PushTask<T>, E, TaskAbortException> proc = new ObjectProcessor<PushTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
 			@Override protected Runnable createJobFor(PushTask<T> task) {
 				return createPushJob(task, postProcess);
 			}
-		}.autostart();
+		};
+		if (this instanceof AsyncArchiver) { proc.setMaxConc(max_async_conc); }
+		return proc.autostart();
 	}
 
 }
@@ -5,6 +5,8 @@ package plugins.Library.io.serial;
 
 import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.exec.TaskCompleteException;
 import plugins.Library.util.exec.TaskInProgressException;
 import plugins.Library.util.CompositeIterable;
 
@@ -79,6 +81,21 @@ public class ProgressTracker<T, P extends Progress> {
 		}
 	}
 
+	/**
+	** Whether the progress has aborted, rather than being still in progress
+	** or complete.
+	*/
+	protected static boolean hasAborted(Progress p) {
+		try {
+			p.isDone();
+			return false;
+		} catch (TaskCompleteException e) {
+			return false;
+		} catch (TaskAbortException e) {
+			return true;
+		}
+	}
+
 	// TODO NORM there is probably a better way of doing this...
 	//final protected HashSet<PullTask<T>> pullWaiters() = new HashSet<PullTask<T>> pullWaiters();
 	//final protected HashSet<PullTask<T>> pushWaiters() = new HashSet<PullTask<T>> pushWaiters();
@@ -155,14 +172,15 @@ public class ProgressTracker<T, P extends Progress> {
 	** Creates a new pull progress and keeps track of it. If there is already a
 	** progress for the metadata, throws {@link TaskInProgressException}. This
 	** ensures that the object returned from this method has not been seen by
-	** any other threads.
+	** any other threads. A progress that has aborted is replaced, so that the
+	** task can be tried again.
 	**
 	** @throws TaskInProgressException
 	*/
 	public P addPullProgress(PullTask<T> task) throws TaskInProgressException {
 		synchronized (pullProgress) {
 			P p = pullProgress.get(task);
-			if (p != null) { throw new TaskInProgressException(p); }
+			if (p != null && !hasAborted(p)) { throw new TaskInProgressException(p); }
 			pullProgress.put(task, p = newProgress());
 
 			/*if (pullWaiters.contains(task)) {
@@ -176,14 +194,15 @@ public class ProgressTracker<T, P extends Progress> {
 	** Creates a new push progress and keeps track of it. If there is already a
 	** progress for the metadata, throws {@link TaskInProgressException}. This
 	** ensures that the object returned from this method has not been seen by
-	** any other threads.
+	** any other threads. A progress that has aborted is replaced, so that the
+	** task can be tried again.
 	**
 	** @throws TaskInProgressException
 	*/
 	public P addPushProgress(PushTask<T> task) throws TaskInProgressException {
 		synchronized (pushProgress) {
 			P p = pushProgress.get(task);
-			if (p != null) { throw new TaskInProgressException(p); }
+			if (p != null && !hasAborted(p)) { throw new TaskInProgressException(p); }
 			pushProgress.put(task, p = newProgress());
 
 			/*if (pushWaiters.remove(task)) {
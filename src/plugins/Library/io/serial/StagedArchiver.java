@@ -0,0 +1,45 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+
+/**
+** A {@link LiveArchiver} that can split a pull into two stages: fetching the
+** raw data into temporary storage, and decoding it into an object. Fetching
+** mostly waits on the backing store and needs little memory, whereas decoding
+** creates objects that stay in memory until they are used; so callers such as
+** {@link ParallelSerialiser} can run many more fetches than decodes at once.
+**
+** {@link #pullLive(Serialiser.PullTask, Progress)} should be equivalent to
+** calling {@link #pullDecode(Serialiser.PullTask, Progress, Object)} on the
+** result of {@link #pullFetch(Serialiser.PullTask, Progress)}.
+*/
+public interface StagedArchiver<T, P extends Progress> extends LiveArchiver<T, P> {
+
+	/**
+	** Fetches the data for a {@link PullTask} into temporary storage, without
+	** decoding it. If this throws, the progress must have been aborted as for
+	** {@link #pullLive(Serialiser.PullTask, Progress)}, and any temporary
+	** storage must have been freed.
+	**
+	** @return An opaque handle on the fetched data, which must be passed to
+	**         {@link #pullDecode(Serialiser.PullTask, Progress, Object)}
+	*/
+	public Object pullFetch(PullTask<T> task, P p) throws TaskAbortException;
+
+	/**
+	** Decodes the data fetched by {@link #pullFetch(Serialiser.PullTask,
+	** Progress)} into {@link PullTask#data}, and frees its temporary storage
+	** whether or not this succeeds. The progress must be updated as for {@link
+	** #pullLive(Serialiser.PullTask, Progress)}.
+	**
+	** @param fetched The handle returned by {@link #pullFetch(Serialiser.PullTask,
+	**        Progress)} for the same task
+	*/
+	public void pullDecode(PullTask<T> task, P p, Object fetched) throws TaskAbortException;
+
+}
@@ -0,0 +1,368 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.CompositeProgress;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Unites the results of a search on several indexes, as each index answers.
+ * The searches on all the indexes run at once, and each index has a time
+ * budget; if it hasn't answered by the end of it, it is left out and the
+ * results are marked as partial, so one slow or unreachable index doesn't
+ * hold up the rest. Indexes which fail are left out too.
+ *
+ * How long each index takes is recorded, see {@link #getStats(String)}, so
+ * that indexes can be ordered by how quickly they answer, and ones which keep
+ * running out of time can be skipped, see {@link #plan(Collection, Collection)}.
+ */
+public class FederatedSearch extends AbstractExecution<Set<TermEntry>> implements CompositeProgress {
+
+	/** Default time in ms each index has to answer */
+	public static final long DEFAULT_INDEX_BUDGET = 90 * 1000;
+	/** Number of times in a row an index has to run out of time to be considered slow */
+	public static final int SLOW_AFTER_TIMEOUTS = 3;
+
+	private static volatile long defaultBudget = DEFAULT_INDEX_BUDGET;
+	/** Budgets for particular indexes, overriding {@link #defaultBudget} */
+	private static final Map<String, Long> budgets = new HashMap<String, Long>();
+	private static final Map<String, IndexStats> stats = new HashMap<String, IndexStats>();
+	private static volatile boolean skipSlowIndexes = false;
+	/** Runs out the budgets of the indexes */
+	private static final Timer deadlines = new Timer("Library.FederatedSearch deadlines", true);
+
+	/**
+	 * How an index has performed in past searches
+	 */
+	public static class IndexStats implements Cloneable {
+		private int answered;
+		private int failed;
+		private int timedOut;
+		private int timeoutsInARow;
+		private long totalLatency;
+		private long lastLatency = -1;
+
+		/** Number of searches it answered within its budget */
+		public int getAnswered() { return answered; }
+		/** Number of searches it failed */
+		public int getFailed() { return failed; }
+		/** Number of searches it ran out of time on */
+		public int getTimedOut() { return timedOut; }
+		/** Average time in ms it took to answer, or -1 if it never has */
+		public long getMeanLatency() { return (answered == 0)? -1: totalLatency / answered; }
+		/** Time in ms it took to answer the last time it did, or -1 if it never has */
+		public long getLastLatency() { return lastLatency; }
+		/** Whether it ran out of time on each of the last {@link #SLOW_AFTER_TIMEOUTS} searches */
+		public boolean isSlow() { return timeoutsInARow >= SLOW_AFTER_TIMEOUTS; }
+
+		@Override public IndexStats clone() {
+			try {
+				return (IndexStats)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		@Override public String toString() {
+			return "answered: " + answered + " (mean " + getMeanLatency() + " ms), failed: " + failed + ", timed out: " + timedOut;
+		}
+	}
+
+	/** Searches on each index, by index uri */
+	private final Map<String, Execution<Set<TermEntry>>> indexes;
+	/** Results united so far */
+	private final ResultSet merged;
+	private final long startTime = System.currentTimeMillis();
+	private final List<TimerTask> timers = new ArrayList<TimerTask>();
+	/** Indexes which haven't answered, failed or run out of time yet */
+	private final Set<String> waiting;
+	private final Set<String> answered = new LinkedHashSet<String>();
+	private final Set<String> failed = new LinkedHashSet<String>();
+	private final Set<String> timedOut = new LinkedHashSet<String>();
+	private final Set<String> skipped;
+	private TaskAbortException firstError;
+
+	/**
+	 * @param subject The subject for each of the entries in the result
+	 * @param indexes The searches on each index, by index uri, which should already be running
+	 * @param skipped Indexes which weren't searched because they are slow, see {@link #plan(Collection, Collection)}
+	 */
+	FederatedSearch(String subject, Map<String, ? extends Execution<Set<TermEntry>>> indexes, Collection<String> skipped) {
+		super(subject);
+		if(indexes.isEmpty())
+			throw new IllegalArgumentException("No indexes to search");
+		this.indexes = Collections.unmodifiableMap(new LinkedHashMap<String, Execution<Set<TermEntry>>>(indexes));
+		this.merged = new ResultSet(subject);
+		this.waiting = new LinkedHashSet<String>(indexes.keySet());
+		this.skipped = Collections.unmodifiableSet(new LinkedHashSet<String>(skipped));
+
+		synchronized(this){
+			for (final String index : this.indexes.keySet()) {
+				TimerTask timer = new TimerTask(){
+					@Override public void run(){
+						timeOut(index);
+					}
+				};
+				timers.add(timer);
+				deadlines.schedule(timer, getBudget(index));
+			}
+		}
+		// an index may answer straight away, so listen once everything is set up
+		for (final Map.Entry<String, Execution<Set<TermEntry>>> en : this.indexes.entrySet()) {
+			en.getValue().addAcceptor(new ExecutionAcceptor<Set<TermEntry>>(){
+				public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+				public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+					answer(en.getKey(), result);
+				}
+				public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+					fail(en.getKey(), abort);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Unite the results of an index, unless it has already run out of time.
+	 * Called while the search on the index holds its lock, so this mustn't
+	 * call back into it
+	 */
+	private synchronized void answer(String index, Set<TermEntry> result) {
+		long latency = System.currentTimeMillis() - startTime;
+		if(!waiting.remove(index))
+			return;		// too late
+		merged.uniteIncrementally(result);
+		answered.add(index);
+		synchronized(stats){
+			IndexStats st = statsFor(index);
+			++st.answered;
+			st.totalLatency += latency;
+			st.lastLatency = latency;
+			st.timeoutsInARow = 0;
+		}
+		finishIfDone();
+	}
+
+	private synchronized void fail(String index, TaskAbortException e) {
+		if(!waiting.remove(index))
+			return;
+		failed.add(index);
+		if(firstError == null)
+			firstError = e;
+		synchronized(stats){
+			++statsFor(index).failed;
+		}
+		finishIfDone();
+	}
+
+	private synchronized void timeOut(String index) {
+		if(!waiting.remove(index))
+			return;
+		timedOut.add(index);
+		synchronized(stats){
+			IndexStats st = statsFor(index);
+			++st.timedOut;
+			++st.timeoutsInARow;
+		}
+		finishIfDone();
+	}
+
+	/**
+	 * Once every index has answered, failed or run out of time, finish with
+	 * what there is; or fail, if no index has answered
+	 */
+	private void finishIfDone() {
+		if(!waiting.isEmpty())
+			return;
+		for (TimerTask timer : timers)
+			timer.cancel();
+		if(answered.isEmpty()){
+			if(timedOut.isEmpty())
+				setError(new TaskAbortException("Search failed on every index", firstError));
+			else
+				setError(new TaskAbortException("No index answered in time, these ran out of time : "+timedOut, firstError, false));
+			return;
+		}
+		merged.finishIncremental();
+		setResult(merged);
+	}
+
+	/**
+	 * The results united so far, which are final once this is done
+	 */
+	ResultSet getResultSet() {
+		return merged;
+	}
+
+	/**
+	 * @return whether some of the indexes are left out of the results, because
+	 * they ran out of time, failed or were skipped
+	 */
+	public synchronized boolean isPartial() {
+		return !timedOut.isEmpty() || !failed.isEmpty() || !skipped.isEmpty();
+	}
+
+	/** Indexes which ran out of time */
+	public synchronized Set<String> getTimedOut() {
+		return new LinkedHashSet<String>(timedOut);
+	}
+
+	/** Indexes whose search failed */
+	public synchronized Set<String> getFailed() {
+		return new LinkedHashSet<String>(failed);
+	}
+
+	/** Indexes which weren't searched because they are slow */
+	public Set<String> getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return whether any of the indexes has answered
+	 */
+	public synchronized boolean isPartiallyDone() {
+		return !answered.isEmpty();
+	}
+
+	/**
+	 * The searches on each index, for drawing their progress
+	 */
+	public List<? extends Progress> getSubProgress() {
+		return new ArrayList<Execution<Set<TermEntry>>>(indexes.values());
+	}
+
+	@Override
+	public ProgressParts getParts() throws TaskAbortException {
+		int done;
+		synchronized(this){
+			done = indexes.size() - waiting.size();
+		}
+		return ProgressParts.normalise(done, indexes.size(), indexes.size(), ProgressParts.TOTAL_FINALIZED);
+	}
+
+	@Override
+	public String getStatus() {
+		synchronized(this){
+			if(waiting.isEmpty())
+				return answered.size() + " of " + indexes.size() + " indexes answered";
+			return "Waiting for " + waiting.size() + " of " + indexes.size() + " indexes";
+		}
+	}
+
+	private static IndexStats statsFor(String index) {
+		IndexStats st = stats.get(index);
+		if(st == null)
+			stats.put(index, st = new IndexStats());
+		return st;
+	}
+
+	/**
+	 * @return a copy of how the index has performed, or null if it hasn't been searched yet
+	 */
+	public static IndexStats getStats(String index) {
+		synchronized(stats){
+			IndexStats st = stats.get(index);
+			return (st == null)? null: st.clone();
+		}
+	}
+
+	/**
+	 * @return the time in ms the index has to answer
+	 */
+	public static long getBudget(String index) {
+		synchronized(budgets){
+			Long budget = budgets.get(index);
+			return (budget == null)? defaultBudget: budget;
+		}
+	}
+
+	/**
+	 * Sets the time in ms each index has to answer, unless it has its own
+	 */
+	public static void setDefaultBudget(long ms) {
+		if(ms < 0)
+			throw new IllegalArgumentException("Negative budget: " + ms);
+		defaultBudget = ms;
+	}
+
+	/**
+	 * Sets the time in ms an index has to answer, or uses the default again if ms is negative
+	 */
+	public static void setBudget(String index, long ms) {
+		synchronized(budgets){
+			if(ms < 0)
+				budgets.remove(index);
+			else
+				budgets.put(index, ms);
+		}
+	}
+
+	/**
+	 * Sets whether indexes which are slow, ie. ran out of time on each of the
+	 * last {@link #SLOW_AFTER_TIMEOUTS} searches, are left out of searches
+	 */
+	public static void setSkipSlowIndexes(boolean skip) {
+		skipSlowIndexes = skip;
+	}
+
+	/**
+	 * Orders indexes to be searched by how quickly they have answered, the
+	 * quickest first, with indexes which haven't been searched before after
+	 * those which have answered and slow indexes last.
+	 * @param indexes the index uris to search
+	 * @param skip if not null, and slow indexes are to be skipped, those are
+	 * left out and put in here instead; at least one index is always kept
+	 * @return the indexes to search
+	 */
+	public static List<String> plan(Collection<String> indexes, Collection<String> skip) {
+		final Map<String, Long> ranks = new HashMap<String, Long>();
+		for (String index : indexes) {
+			IndexStats st = getStats(index);
+			if(st != null && st.isSlow())
+				ranks.put(index, Long.MAX_VALUE);
+			else if(st != null && st.getMeanLatency() >= 0)
+				ranks.put(index, st.getMeanLatency());
+			else
+				ranks.put(index, Long.MAX_VALUE - 1);
+		}
+		List<String> planned = new ArrayList<String>(new LinkedHashSet<String>(indexes));
+		Collections.sort(planned, new Comparator<String>(){
+			public int compare(String a, String b){
+				return ranks.get(a).compareTo(ranks.get(b));
+			}
+		});
+		if(skip != null && skipSlowIndexes)
+			while(planned.size() > 1 && ranks.get(planned.get(planned.size()-1)) == Long.MAX_VALUE)
+				skip.add(planned.remove(planned.size()-1));
+		return planned;
+	}
+
+	/**
+	 * Forget the stats of all indexes
+	 */
+	public static void clearStats() {
+		synchronized(stats){
+			stats.clear();
+		}
+	}
+
+}
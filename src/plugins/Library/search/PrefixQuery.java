@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.Index;
+import plugins.Library.index.TermEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
+/**
+ * Looks up every term of an index which starts with a prefix, as for a query
+ * like <code>freen*</code>. The terms are found by scanning the range of the
+ * index that holds them (see {@link Index#getTermsWithPrefix(String, int)}),
+ * then the entries of all of them are fetched and united, as for an OR query.
+ */
+public class PrefixQuery extends AbstractExecution<Set<TermEntry>> implements Runnable {
+
+	private final Execution<Index> index;
+	private final String prefix;
+	private final int maxTerms;
+
+	private volatile Execution<SortedSet<String>> expansion;
+	private volatile List<Execution<Set<TermEntry>>> requests;
+
+	/**
+	 * @param subject the query, eg. <code>freen*</code>, which is used as the subject of the results
+	 * @param index the index to search, which may still be loading, see {@link plugins.Library.Library#getIndexAsync(String)}
+	 * @param prefix the prefix that the terms must start with
+	 * @param maxTerms the most terms the prefix may expand to, after which the query fails
+	 */
+	public PrefixQuery(String subject, Execution<Index> index, String prefix, int maxTerms) {
+		super(subject);
+		if(prefix.length() == 0)
+			throw new IllegalArgumentException("Empty prefix");
+		this.index = index;
+		this.prefix = prefix;
+		this.maxTerms = maxTerms;
+	}
+
+	/**
+	 * The terms which the prefix expanded to, or null if they are not known yet
+	 */
+	public SortedSet<String> getTerms() throws TaskAbortException {
+		Execution<SortedSet<String>> e = expansion;
+		return (e == null)? null: e.getResult();
+	}
+
+	public void run() {
+		try {
+			index.join();
+			Index loaded = index.getResult();
+			expansion = loaded.getTermsWithPrefix(prefix, maxTerms);
+			expansion.join();
+			List<Execution<Set<TermEntry>>> subrequests = new ArrayList<Execution<Set<TermEntry>>>();
+			for (String term : expansion.getResult())
+				subrequests.add(loaded.getTermEntries(term));
+			requests = subrequests;
+
+			// like an OR query, terms which fail are left out
+			for (Execution<Set<TermEntry>> request : subrequests) {
+				try {
+					request.join();
+				} catch (TaskAbortException e) {
+					continue;
+				}
+			}
+
+			Set<TermEntry> result;
+			switch(subrequests.size()){
+				case 0:
+					result = Collections.emptySet();
+					break;
+				case 1:		// the search wrapping this gives the entries its own subject anyway
+					try {
+						result = subrequests.get(0).getResult();
+					} catch (TaskAbortException e) {
+						// left out, as when there are more terms
+						result = Collections.emptySet();
+					}
+					break;
+				default:
+					ResultSet united = new ResultSet(subject, ResultOperation.UNION, subrequests, true);
+					united.run();
+					result = united;
+			}
+			setResult(result);
+
+		} catch (InterruptedException e) {
+			setError(new TaskAbortException("Interrupted while searching for " + subject, e));
+		} catch (TaskAbortException e) {
+			setError(e);
+		} catch (RuntimeException e) {
+			setError(new TaskAbortException("Failed to search for " + subject, e));
+		}
+	}
+
+	@Override
+	public ProgressParts getParts() throws TaskAbortException {
+		List<Execution<Set<TermEntry>>> subrequests = requests;
+		if(subrequests != null){
+			// terms which failed are done too, as they are left out of the result
+			int done = 0;
+			for (Execution<Set<TermEntry>> request : subrequests) {
+				try {
+					if(request.isDone())
+						++done;
+				} catch (TaskAbortException e) {
+					++done;
+				}
+			}
+			return new ProgressParts(done, subrequests.size(), subrequests.size(), ProgressParts.TOTAL_FINALIZED);
+		}
+		Execution<SortedSet<String>> e = expansion;
+		if(e == null)
+			return ProgressParts.normalise(0, 1);
+		ProgressParts parts = e.getParts();
+		// the terms aren't known yet, so neither is the total
+		return ProgressParts.normalise(parts.done, parts.started, parts.known, ProgressParts.ESTIMATE_UNKNOWN);
+	}
+
+	@Override
+	public String getStatus() {
+		if(requests != null)
+			return "Fetching " + requests.size() + " terms starting with \"" + prefix + "\"";
+		Execution<SortedSet<String>> e = expansion;
+		return (e == null)? index.getStatus(): "Finding terms: " + e.getStatus();
+	}
+
+}
@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.ui.RelevanceComparator;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Pages through a finished set of results in order of descending relevance,
+ * without sorting or copying all of it. Each page is picked by streaming the
+ * results through a heap that holds at most one page of entries; entries up to
+ * and including the last one of the previous page are skipped, so fetching the
+ * next page does not need to redo the earlier ones.
+ * <br /> <br />
+ * The order is that of {@link RelevanceComparator}, which breaks ties by
+ * identity, so the results must not be replaced by copies of themselves while
+ * the cursor is being used. {@link ResultSet} is fine, since it doesn't change
+ * once it is done.
+ */
+public class ResultCursor {
+
+	private final Collection<? extends TermEntry> results;
+	private final Comparator<TermEntry> order;
+	private final int pageSize;
+
+	/** Last entry of the most recent page, or null if at the start */
+	private TermEntry last;
+	/** Number of entries before {@link #last}, inclusive */
+	private int offset;
+
+	/**
+	 * @param results the results to page through, which must not change
+	 * @param pageSize the number of results in each page
+	 */
+	public ResultCursor(Collection<? extends TermEntry> results, int pageSize) {
+		this(results, pageSize, RelevanceComparator.comparator);
+	}
+
+	public ResultCursor(Collection<? extends TermEntry> results, int pageSize, Comparator<TermEntry> order) {
+		if(pageSize < 1)
+			throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+		this.results = results;
+		this.pageSize = pageSize;
+		this.order = order;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return the total number of results
+	 */
+	public int size() {
+		return results.size();
+	}
+
+	/**
+	 * @return the position of the first result of the next page
+	 */
+	public synchronized int getOffset() {
+		return offset;
+	}
+
+	public synchronized boolean hasNext() {
+		return offset < results.size();
+	}
+
+	/**
+	 * Returns the next page of results and moves past it
+	 * @return up to {@link #getPageSize()} results, most relevant first; empty at the end
+	 */
+	public synchronized List<TermEntry> next() {
+		List<TermEntry> page = top(results, pageSize, order, last);
+		if(!page.isEmpty()) {
+			last = page.get(page.size()-1);
+			offset += page.size();
+		}
+		return page;
+	}
+
+	/**
+	 * Returns the page of results starting at the given position. This is
+	 * cheapest when {@code start} is where the previous page ended, eg. when
+	 * following a "next page" link, otherwise the cursor is first moved there by
+	 * selecting the {@code start} most relevant results.
+	 * @param start the position of the first result, from 0
+	 */
+	public synchronized List<TermEntry> page(int start) {
+		if(start < 0)
+			throw new IndexOutOfBoundsException("Negative offset: " + start);
+		if(start != offset) {
+			if(start == 0) {
+				last = null;
+			} else {
+				List<TermEntry> before = top(results, start, order, null);
+				last = before.isEmpty() ? null : before.get(before.size()-1);
+			}
+			offset = Math.min(start, results.size());
+		}
+		return next();
+	}
+
+	/**
+	 * Selects the {@code k} entries which come first in the given order,
+	 * considering only those that come after {@code after}. This takes time
+	 * proportional to {@code n log k} and space proportional to {@code k}.
+	 * @param src entries to select from
+	 * @param k maximum number of entries to select
+	 * @param order the order to select entries in
+	 * @param after only select entries that come after this one, or null to start from the beginning
+	 * @return the selected entries, in order
+	 */
+	public static List<TermEntry> top(Iterable<? extends TermEntry> src, int k, Comparator<TermEntry> order, TermEntry after) {
+		if(k < 1)
+			return Collections.emptyList();
+		// the head is the last of the entries selected so far
+		PriorityQueue<TermEntry> heap = new PriorityQueue<TermEntry>(Math.min(k, 0x400) + 1, Collections.reverseOrder(order));
+		for (TermEntry entry : src) {
+			if(after != null && order.compare(entry, after) <= 0)
+				continue;
+			if(heap.size() < k)
+				heap.add(entry);
+			else if(order.compare(entry, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(entry);
+			}
+		}
+		TermEntry[] sorted = new TermEntry[heap.size()];
+		for (int i = sorted.length-1; i >= 0; i--)
+			sorted[i] = heap.poll();
+		return Arrays.asList(sorted);
+	}
+
+}
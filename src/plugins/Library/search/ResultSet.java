@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 /**
  * Unmodifiable Set which makes sure all data in results being combined is
@@ -48,6 +49,8 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	private HashMap<TermEntry, TermEntry> internal;
 	private final String subject;
 	private final boolean ignoreTAEs;
+	/** Entries by target, while results are being united into this one at a time, see {@link #uniteIncrementally(Collection)} */
+	private Map<Object, TermEntry> targets;
 
 	/**
 	 * @param subject The subject for each of the entries in the Set
@@ -111,6 +114,53 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 		done = true;
 	}
 
+	/**
+	 * Make an empty ResultSet, into which the results of several indexes are
+	 * united one at a time as they arrive with {@link #uniteIncrementally(Collection)},
+	 * until {@link #finishIncremental()} is called
+	 * @param subject The subject for each of the entries in the Set
+	 */
+	ResultSet(String subject) {
+		this.subject = subject;
+		internal = new HashMap();
+		this.resultOperation = ResultOperation.DIFFERENTINDEXES;
+		this.ignoreTAEs = true;
+		targets = new HashMap<Object, TermEntry>();
+	}
+
+	/**
+	 * Unite a result into this set, merging its entries with any for the
+	 * same target which are already in it, as {@link ResultOperation#UNION} does
+	 * @throws IllegalStateException if the set has been finished
+	 */
+	synchronized void uniteIncrementally(Collection<? extends TermEntry> result) {
+		if(done || targets == null)
+			throw new IllegalStateException("This ResultSet is finalised or wasn't made to be united incrementally.");
+		for (TermEntry termEntry : result) {
+			TermEntry entry = convertEntry(termEntry);
+			Object target = getTarget(entry);
+			TermEntry existing = targets.get(target);
+			if (existing == null) {
+				targets.put(target, entry);
+				addInternal(entry);
+			} else if (existing.equalsTarget(entry)) {
+				TermEntry mergedEntry = mergeEntries(existing, entry);
+				internal.remove(existing);
+				targets.put(target, mergedEntry);
+				addInternal(mergedEntry);
+			} else	// different types with the same URI, very unlikely
+				addInternal(entry);
+		}
+	}
+
+	/**
+	 * Finalise a set made with {@link #ResultSet(String)}, nothing more can be united into it
+	 */
+	synchronized void finishIncremental() {
+		targets = null;
+		done = true;
+	}
+
 	/**
 	 * Copy a collection into a ResultSet
 	 * @param subject to change the subject of each entry
@@ -236,8 +286,10 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * Add all entries in the first collection but not in the second
 	 */
 	private void exclude(Collection<? extends TermEntry> add, Collection<? extends TermEntry> subtract) {
+		Map<Object, TermEntry> subtracted = indexByTarget(subtract);
 		for (TermEntry termEntry : add){
-			if(getIgnoreSubject(termEntry, subtract)==null)
+			TermEntry termEntry2 = subtracted.get(getTarget(termEntry));
+			if(termEntry2 == null || !termEntry.equalsTarget(termEntry2))
 				addInternal(termEntry);
 		}
 	}
@@ -248,17 +300,25 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * TODO proper relevance calculating here, currently i think the relevance of the first one added will have less impact than the others, the other 3 types are more important i believe
 	 */
 	private void unite(Collection<? extends TermEntry>... collections) {
+		// entries are merged by target, internal is keyed by the whole entry
+		Map<Object, TermEntry> merged = new LinkedHashMap<Object, TermEntry>();
 		for(Collection<? extends TermEntry> c : collections)
 			if(c==null)
 				Logger.error(this, "the result was null");
 			else
 				for (TermEntry termEntry : c) {
 					TermEntry entry = convertEntry(termEntry);
-					if(contains(entry))
-						addInternal(mergeEntries(internal.get(entry), entry));
-					else
+					Object target = getTarget(entry);
+					TermEntry existing = merged.get(target);
+					if (existing == null)
+						merged.put(target, entry);
+					else if (existing.equalsTarget(entry))
+						merged.put(target, mergeEntries(existing, entry));
+					else	// different types with the same URI, very unlikely
 						addInternal(entry);
 				}
+		for (TermEntry entry : merged.values())
+			addInternal(entry);
 	}
 
 	/**
@@ -266,20 +326,25 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * @param collections a bunch of collections to intersect
 	 */
 	private void intersect(Collection<? extends TermEntry>... collections) {
+		Map<Object, TermEntry>[] others = new Map[collections.length];
+		for (int i = 1; i < collections.length; i++) {
+			if (collections[i].isEmpty())
+				return;
+			others[i] = indexByTarget(collections[i]);
+		}
 		Collection<? extends TermEntry> firstCollection = collections[0];
 		// Iterate over it
 		for (Iterator<? extends TermEntry> it = firstCollection.iterator(); it.hasNext();) {
 			TermEntry termEntry = it.next();
+			Object target = getTarget(termEntry);
 			// if term entry is contained in all the other collections add it
 			float combinedrelevance = termEntry.rel;
 
 			int i;
 			for (i = 1; i < collections.length; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
 				// See if collection contains termEntry
-
-				TermEntry termEntry2 = getIgnoreSubject(termEntry, collection);
-				if ( termEntry2 == null )
+				TermEntry termEntry2 = others[i].get(target);
+				if ( termEntry2 == null || !termEntry.equalsTarget(termEntry2) )
 					break;
 				else	// add to combined relevance
 					combinedrelevance += termEntry2.rel;
@@ -298,6 +363,11 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * @param collections
 	 */
 	private void phrase(Collection<? extends TermEntry>... collections) {
+		Map<Object, TermEntry>[] others = new Map[collections.length];
+		for (int i = 1; i < collections.length; i++) {
+			if (collections[i] != null)	// Treat stop words as blanks, dont check
+				others[i] = indexByTarget(collections[i]);
+		}
 		Collection<? extends TermEntry> firstCollection = collections[0];
 		// Iterate over it
 		for (TermEntry termEntry : firstCollection) {
@@ -307,31 +377,54 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 			TermPageEntry termPageEntry = (TermPageEntry)termEntry;
 			if(!termPageEntry.hasPositions())
 				continue;
-			Map<Integer, String> positions = new HashMap(termPageEntry.positionsMap());
+			// positionsRaw() may be the backing array, so take a copy to work on
+			int[] positions = termPageEntry.positionsRaw().clone();
+			int size = positions.length;
 
 			int i;	// Iterate over the other collections, checking for following
-			for (i = 1; positions != null && i < collections.length && positions.size() > 0; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
-				if(collection == null)
-					continue;	// Treat stop words as blanks, dont check
+			for (i = 1; i < collections.length && size > 0; i++) {
+				if(others[i] == null)
+					continue;
 				// See if collection follows termEntry
-				TermPageEntry termPageEntry1 = (TermPageEntry)getIgnoreSubject(termPageEntry, collection);
-				if(termPageEntry1==null || !termPageEntry1.hasPositions())	// If collection doesnt contain this termpageentry or has not positions, it does not follow
-					positions = null;
-				else{
-					for (Iterator<Integer> it = positions.keySet().iterator(); it.hasNext();) {
-						int posi = it.next();
-						if ( !termPageEntry1.hasPosition(posi+i))
-							it.remove();
-						else
-							Logger.minor(this, termPageEntry.page + "["+positions.keySet()+"] is followed by "+termPageEntry1.page+"["+termPageEntry1.positions()+"] +"+i);
-					}
-				}
+				TermEntry termEntry1 = others[i].get(termPageEntry.page);
+				if(!(termEntry1 instanceof TermPageEntry) || !((TermPageEntry)termEntry1).hasPositions())	// If collection doesnt contain this termpageentry or has not positions, it does not follow
+					size = 0;
+				else
+					size = retainFollowed(positions, size, ((TermPageEntry)termEntry1).positionsRaw(), i);
 			}
 			// if this termentry has any positions remaining, add it
-			if(positions != null && positions.size() > 0)
-				addInternal(new TermPageEntry(subject, termPageEntry.rel, termPageEntry.page, termPageEntry.title, positions));
+			if(size > 0) {
+				Map<Integer, String> frags = termPageEntry.posFragments;
+				Map<Integer, String> remaining = new HashMap<Integer, String>(size<<1);
+				for (int j = 0; j < size; j++)
+					remaining.put(positions[j], (frags == null)? null: frags.get(positions[j]));
+				addInternal(new TermPageEntry(subject, termPageEntry.rel, termPageEntry.page, termPageEntry.title, remaining));
+			}
+		}
+	}
+
+	/**
+	 * Keep those of the first {@code size} positions which have a following
+	 * position at {@code offset} further on, by walking both sorted arrays
+	 * together.
+	 *
+	 * @param positions sorted positions, which are compacted in place
+	 * @param size number of positions in use
+	 * @param following sorted positions of the following term
+	 * @param offset distance of the following term in the phrase
+	 * @return number of positions remaining
+	 */
+	static int retainFollowed(int[] positions, int size, int[] following, int offset) {
+		int kept = 0;
+		int j = 0;
+		for (int k = 0; k < size && j < following.length; k++) {
+			int target = positions[k] + offset;
+			while (j < following.length && following[j] < target)
+				j++;
+			if (j < following.length && following[j] == target)
+				positions[kept++] = positions[k];
 		}
+		return kept;
 	}
 
 	private TermEntry convertEntry(TermEntry termEntry) {
@@ -455,19 +548,37 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	}
 
 	/**
-	 * Gets a TermEntry from the collection which is equal to entry ignoring subject
-	 * @param entry
+	 * Gets the thing a TermEntry refers to, ie. what {@link TermEntry#equalsTarget}
+	 * compares: the page for a {@link TermPageEntry}, the index for a
+	 * {@link TermIndexEntry} and the term for a {@link TermTermEntry}. A page
+	 * and an index could in theory have the same URI, so callers should still
+	 * check {@link TermEntry#equalsTarget} on whatever they look up with this.
+	 */
+	private static Object getTarget(TermEntry entry) {
+		if (entry instanceof TermPageEntry)
+			return ((TermPageEntry)entry).page;
+		else if (entry instanceof TermIndexEntry)
+			return ((TermIndexEntry)entry).index;
+		else if (entry instanceof TermTermEntry)
+			return ((TermTermEntry)entry).term;
+		else
+			throw new UnsupportedOperationException("The TermEntry type " + entry.getClass().getName() + " is not currently supported in ResultSet");
+	}
+
+	/**
+	 * Index a collection by the targets of its entries, so that the entry equal
+	 * to another ignoring subject can be found in constant time. If several
+	 * entries have the same target, the first one is kept.
 	 * @param collection
 	 */
-	private TermEntry getIgnoreSubject(TermEntry entry, Collection<? extends TermEntry> collection){
-		TermEntry result = null;
-			for (TermEntry termEntry : collection) {
-				if (entry.equalsTarget(termEntry)){
-					result = termEntry;
-					break;
-				}
-			}
-		return result;
+	private static Map<Object, TermEntry> indexByTarget(Collection<? extends TermEntry> collection){
+		Map<Object, TermEntry> index = new HashMap<Object, TermEntry>(collection.size()<<1);
+		for (TermEntry termEntry : collection) {
+			Object target = getTarget(termEntry);
+			if (!index.containsKey(target))
+				index.put(target, termEntry);
+		}
+		return index;
 	}
 
 	@Override public String toString(){
@@ -4,23 +4,31 @@
 package plugins.Library.search;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import plugins.Library.Index;
 import plugins.Library.Library;
+import plugins.Library.index.ProtoIndex;
 import plugins.Library.index.TermEntry;
 import plugins.Library.search.ResultSet.ResultOperation;
 import plugins.Library.ui.ResultNodeGenerator;
+import plugins.Library.util.SkeletonCache;
 import plugins.Library.util.exec.AbstractExecution;
 import plugins.Library.util.exec.CompositeProgress;
 import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.TaskAbortException;
@@ -46,11 +54,35 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private String query;
 	private String indexURI;
 
-	/** Map of Searches by subject */
+	/** Map of Searches by subject, both those in progress and those finished which are still in {@link #resultCache} */
 	private static HashMap<String, Search> allsearches = new HashMap<String, Search>();
 	/** Map of Searches by hashCode */
 	private static HashMap<Integer,Search> searchhashes = new HashMap<Integer, Search>();
 	private ResultSet resultset;
+	/** Unites the results of the indexes as they answer, for a search on several indexes */
+	private FederatedSearch federated;
+
+	/** Default memory budget for finished searches, in bytes */
+	public static final long DEFAULT_CACHE_BUDGET = 16 << 20;
+	/** Default time in ms that a finished search is kept, for the same query to be answered from it */
+	public static final long DEFAULT_CACHE_TTL = 30 * 60 * 1000;
+	/** Rough estimate of the memory a search takes up, not counting its results */
+	static final long BYTES_PER_SEARCH = 0x400;
+	/** Rough estimate of the memory each result takes up, a formatted result takes up as much again */
+	static final long BYTES_PER_RESULT = 0x200;
+
+	/**
+	 * Finished searches, weighted by the estimated size of their results.
+	 * Searches evicted from here are removed from {@link #allsearches}, so
+	 * the next search for the same query starts again. Searches in progress
+	 * are not in here, they can't be evicted
+	 */
+	private static final SkeletonCache<String> resultCache = new SkeletonCache<String>(DEFAULT_CACHE_BUDGET);
+	private static volatile long cacheTTL = DEFAULT_CACHE_TTL;
+	/** Number of finished searches which have been dropped because they were older than {@link #cacheTTL} */
+	private static long expirations = 0;
+	/** When this search finished, or 0 if it hasn't, so that expired searches can be found without locking them */
+	private volatile long finishedAt = 0;
 
 	/**
 	 * Settings for producing result nodes, if true a HTMLNode of the results will be generated after the results are complete which can be accessed via getResultNode()
@@ -59,12 +91,31 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private boolean htmlgroupusk;
 	private boolean htmlshowold;
 	private boolean htmljs;
+	/** Number of results to format in each page, or 0 to format all of them */
+	private int htmlpagesize;
 	private ResultNodeGenerator resultNodeGenerator;
 	private HTMLNode pageEntryNode;
+	private ResultCursor resultCursor;
+
+	/** Most terms that a prefix query like <code>freen*</code> may expand to before it fails */
+	private static volatile int maxPrefixTerms = 0x40;
 
 	private enum SearchStatus { Unstarted, Busy, Combining_First, Combining_Last, Formatting, Done };
 	private SearchStatus status = SearchStatus.Unstarted;
 
+	/** Number of times the status or the progress of this search has changed, see {@link #awaitChange(int, long)} */
+	private int changes = 0;
+	private final Object changeLock = new Object();
+	/** Whether {@link #updater} is waiting to run */
+	private final AtomicBoolean updateScheduled = new AtomicBoolean();
+	/** Advances the status of this search after something it is waiting for has finished */
+	private final Runnable updater = new Runnable(){
+		public void run(){
+			updateScheduled.set(false);
+			update();
+		}
+	};
+
 	static volatile boolean logMINOR;
 	static volatile boolean logDEBUG;
 	
@@ -73,13 +124,67 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	}
 
 	private synchronized static void storeSearch(Search search){
-		allsearches.put(search.getSubject(), search);
+		Search old = allsearches.put(search.getSubject(), search);
+		if(old != null && old != search){
+			searchhashes.remove(old.hashCode());
+			resultCache.remove(old.subject);
+		}
 		searchhashes.put(search.hashCode(), search);
 	}
 
-	private static synchronized void removeSearch(Search search) {
+	/**
+	 * @return false if the search had already been removed, or replaced by another for the same query
+	 */
+	private static synchronized boolean removeSearch(Search search) {
+		if(allsearches.get(search.subject) != search)
+			return false;
 		allsearches.remove(search.subject);
 		searchhashes.remove(search.hashCode());
+		resultCache.remove(search.subject);
+		return true;
+	}
+
+	/**
+	 * Keep a finished search, so that the same query can be answered from
+	 * it until it expires or is evicted to keep within the memory budget
+	 */
+	private static synchronized void cacheSearch(final Search search, long weight){
+		expireSearches();
+		if(allsearches.get(search.subject) != search)
+			return;
+		resultCache.put(search.subject, new SkeletonCache.Item(weight){
+			@Override public boolean unload(){
+				return removeSearch(search);
+			}
+		});
+	}
+
+	/**
+	 * Remove finished searches older than the time to live
+	 */
+	private static synchronized void expireSearches(){
+		long now = System.currentTimeMillis();
+		for (Iterator<Search> it = allsearches.values().iterator(); it.hasNext();) {
+			Search search = it.next();
+			if(search.isExpired(now)){
+				it.remove();
+				searchhashes.remove(search.hashCode());
+				resultCache.remove(search.subject);
+				++expirations;
+			}
+		}
+	}
+
+	private boolean isExpired(long now){
+		return finishedAt != 0 && now - finishedAt > cacheTTL;
+	}
+
+	/**
+	 * Rough estimate of the memory used by this search and its results
+	 */
+	private long estimateWeight(){
+		long results = (resultset == null)? 0: resultset.size();
+		return BYTES_PER_SEARCH + results * ((pageEntryNode == null)? BYTES_PER_RESULT: 2 * BYTES_PER_RESULT);
 	}
 
 	/**
@@ -97,9 +202,10 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			throw new InvalidSearchException("Blank search");
 		search = fixCJK(search);
 
-		// See if the same search exists
-		if (hasSearch(search, indexuri))
-			return getSearch(search, indexuri);
+		// See if the same search exists, either in progress or finished
+		Search existing = getSearch(search, indexuri);
+		if (existing != null)
+			return existing;
 
 		if(logMINOR) Logger.minor(Search.class, "Starting new search for "+search+" in "+indexuri);
 
@@ -110,15 +216,20 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			Search newSearch = splitQuery(search, indexuri);
 			return newSearch;
 		}else{
-			// create search for multiple terms over multiple indices
-			ArrayList<Execution<Set<TermEntry>>> indexrequests = new ArrayList<Execution<Set<TermEntry>>>(indices.length);
-			for (String index : indices){
+			// create search for multiple terms over multiple indices, the
+			// quickest first, leaving out slow ones if asked to
+			List<String> skipped = new ArrayList<String>();
+			List<String> planned = FederatedSearch.plan(Arrays.asList(indices), skipped);
+			ArrayList<Execution<Set<TermEntry>>> indexrequests = new ArrayList<Execution<Set<TermEntry>>>(planned.size());
+			for (String index : planned){
 				Search indexsearch = startSearch(search, index);
 				if(indexsearch==null)
 					return null;
 				indexrequests.add(indexsearch);
 			}
-			Search newSearch = new Search(search, indexuri, indexrequests, ResultOperation.DIFFERENTINDEXES);
+			if(indexrequests.size()==1 && skipped.isEmpty())
+				return (Search)indexrequests.get(0);
+			Search newSearch = new Search(search, indexuri, indexrequests, ResultOperation.DIFFERENTINDEXES, skipped);
 			return newSearch;
 		}
 	}
@@ -163,7 +274,22 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @param resultOperation Which set operation to do on the results of the subrequests
 	 * @throws InvalidSearchException if the search is invalid
 	 **/
-	private Search(String query, String indexURI, List<? extends Execution<Set<TermEntry>>> requests, ResultOperation resultOperation)
+	Search(String query, String indexURI, List<? extends Execution<Set<TermEntry>>> requests, ResultOperation resultOperation)
+	throws InvalidSearchException{
+		this(query, indexURI, requests, resultOperation, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Creates Search instance depending on the given requests
+	 *
+	 * @param query the query this instance is being used for, only for reference
+	 * @param indexURI the index uri this search is made on, only for reference
+	 * @param requests subRequests of this search
+	 * @param resultOperation Which set operation to do on the results of the subrequests
+	 * @param skipped for a DIFFERENTINDEXES search, indexes which were left out because they are slow
+	 * @throws InvalidSearchException if the search is invalid
+	 **/
+	Search(String query, String indexURI, List<? extends Execution<Set<TermEntry>>> requests, ResultOperation resultOperation, Collection<String> skipped)
 	throws InvalidSearchException{
 		super(makeString(query, indexURI));
 		if(resultOperation==ResultOperation.SINGLE && requests.size()!=1)
@@ -172,10 +298,12 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			throw new InvalidSearchException("Negative operations can only have 2 parameters");
 		if(		(	resultOperation==ResultOperation.PHRASE
 					|| resultOperation == ResultOperation.INTERSECTION
-					|| resultOperation == ResultOperation.UNION
-					|| resultOperation == ResultOperation.DIFFERENTINDEXES )
+					|| resultOperation == ResultOperation.UNION )
 				&& requests.size()<2)
 			throw new InvalidSearchException(resultOperation.toString() + " operations need more than one term");
+		// the only index left may be searched alone if the others were skipped
+		if(resultOperation == ResultOperation.DIFFERENTINDEXES && requests.size() + skipped.size()<2)
+			throw new InvalidSearchException(resultOperation.toString() + " operations need more than one index");
 
 		query = query.toLowerCase(Locale.US).trim();
 
@@ -192,13 +320,16 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		this.query = query;
 		this.indexURI = indexURI;
 		this.resultOperation = resultOperation;
-		try {
-			setStatus();
-		} catch (TaskAbortException ex) {
-			setError(ex);
+		if(resultOperation == ResultOperation.DIFFERENTINDEXES){
+			// each index has its own deadline, and the results are united as they come
+			Map<String, Execution<Set<TermEntry>>> indexes = new LinkedHashMap<String, Execution<Set<TermEntry>>>();
+			for (Execution<Set<TermEntry>> request : subsearches)
+				indexes.put((request instanceof Search)? ((Search)request).getIndexURI(): request.getSubject(), request);
+			federated = new FederatedSearch(subject, indexes, skipped);
 		}
-
 		storeSearch(this);
+		update();
+		listenToSubsearches();
 		if(logMINOR) Logger.minor(this, "Created Search object for with subRequests :"+subsearches);
 	}
 
@@ -219,12 +350,9 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		this.query = query;
 		this.indexURI = indexURI;
 		this.resultOperation = ResultOperation.SINGLE;
-		try {
-			setStatus();
-		} catch (TaskAbortException ex) {
-			setError(ex);
-		}
 		storeSearch(this);
+		update();
+		listenToSubsearches();
 	}
 
 
@@ -238,13 +366,29 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private static Search splitQuery(String query, String indexuri) throws InvalidSearchException, TaskAbortException{
 		query = query.trim();
 		if(query.matches("\\A[\\S&&[^-\"]]*\\Z")){
+			// prefix search, eg. freen* for freenet, freenode...
+			if(query.endsWith("*")){
+				String prefix = query.replaceFirst("\\*+\\Z", "");
+				if(prefix.length() == 0 || prefix.contains("*"))
+					throw new InvalidSearchException("Wildcards can only be used at the end of a term: \""+query+"\"");
+				// only the newer format keeps its terms in order, so only it can
+				// find the ones that start with the prefix
+				if(library.getIndexType(indexuri) != ProtoIndex.class)
+					throw new InvalidSearchException("Wildcards can't be used with this index, since it is in the old XML format, which can't list the terms that start with \""+prefix+"\"");
+				Execution<Index> index = library.getIndexAsync(indexuri);
+				PrefixQuery request = new PrefixQuery(query, index, prefix, maxPrefixTerms);
+				if(executor!=null)
+					executor.execute(request, "Library.Search : expanding "+query);
+				else
+					(new Thread(request, "Library.Search : expanding "+query)).start();
+				return new Search(query, indexuri, request);
+			}
 			// single search term
 			// return null if stopword
 			if(SearchUtil.isStopWord(query))
 				return null;
-			Execution<Set<TermEntry>> request = library.getIndex(indexuri).getTermEntries(query);
-			if (request == null)
-				throw new InvalidSearchException( "Something wrong with query=\""+query+"\" or indexURI=\""+indexuri+"\", maybe something is wrong with the index or it's uri is wrong." );
+			// don't wait for the index to load, the term is looked up once it has
+			Execution<Set<TermEntry>> request = new TermQuery(library.getIndexAsync(indexuri), query);
 			return new Search(query, indexuri, request );
 		}
 
@@ -384,7 +528,67 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	public static void setup(Library library, Executor executor){
 		Search.library = library;
 		Search.executor = executor;
-		Search.allsearches = new HashMap<String, Search>();
+		synchronized(Search.class){
+			Search.allsearches = new HashMap<String, Search>();
+			Search.searchhashes = new HashMap<Integer, Search>();
+		}
+		resultCache.clear();
+	}
+
+	/**
+	 * Sets the memory budget for finished searches, in bytes, as estimated
+	 * from the number of their results. The least recently used are dropped
+	 * to stay within it
+	 */
+	public static void setCacheBudget(long bytes){
+		resultCache.setBudget(bytes);
+	}
+
+	/**
+	 * Sets how long in ms a finished search is kept for, after which the
+	 * same query is searched for again
+	 */
+	public static void setCacheTTL(long ttl){
+		if(ttl < 0)
+			throw new IllegalArgumentException("Negative time to live: " + ttl);
+		cacheTTL = ttl;
+		synchronized(Search.class){
+			expireSearches();
+		}
+	}
+
+	/**
+	 * The cache of finished searches, for its statistics; hits and misses
+	 * count lookups of queries which aren't in progress
+	 */
+	public static SkeletonCache<String> getCache(){
+		return resultCache;
+	}
+
+	public static synchronized long getCacheExpirations(){
+		return expirations;
+	}
+
+	/**
+	 * Statistics of the cache of finished searches, for logging
+	 */
+	public static synchronized String getCacheStats(){
+		return resultCache + "; expired: " + expirations + "; in progress: " + (allsearches.size() - resultCache.size());
+	}
+
+	/**
+	 * Sets the most terms that a prefix query like <code>freen*</code> may
+	 * expand to; if there are more, the query fails and the user is asked to
+	 * use a longer prefix
+	 */
+	public static void setMaxPrefixTerms(int max){
+		if(max < 1)
+			throw new IllegalArgumentException("Prefix queries must be able to match at least one term: " + max);
+		maxPrefixTerms = max;
+	}
+
+	public static int getMaxPrefixTerms(){
+		return maxPrefixTerms;
 	}
 
 	/**
@@ -397,8 +601,21 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		if(search==null || indexuri==null)
 			return null;
 		search = search.toLowerCase(Locale.US).trim();
-
-		return allsearches.get(makeString(search, indexuri));
+		String key = makeString(search, indexuri);
+
+		Search found = allsearches.get(key);
+		if(found != null && found.finishedAt == 0)
+			return found;	// in progress
+		if(found != null && found.isExpired(System.currentTimeMillis())){
+			removeSearch(found);
+			++expirations;
+			found = null;
+		}else if(found != null && found.isPartial()){
+			// kept only to show its results, the next search may get them all
+			found = null;
+		}
+		resultCache.touch(key);	// counts a hit or a miss
+		return found;
 	}
 	public synchronized static Search getSearch(int searchHash){
 		return searchhashes.get(searchHash);
@@ -433,6 +650,22 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		return indexURI;
 	}
 
+	/**
+	 * @return whether the results leave out some of the indexes searched,
+	 * because they ran out of time, failed or were skipped for being slow
+	 */
+	public boolean isPartial(){
+		return federated != null && federated.isPartial();
+	}
+
+	/**
+	 * @return the indexes which ran out of time, failed and were skipped, for
+	 * a search on several indexes, see {@link FederatedSearch}
+	 */
+	public FederatedSearch getFederatedSearch(){
+		return federated;
+	}
+
 	/**
 	 * Creates a string which uniquly identifies this Search object for comparison
 	 * and lookup, wont make false positives but can make false negatives as search and indexuri aren't standardised
@@ -496,28 +729,70 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	}
 
 	/**
-	 * After this finishes running, the status of this Search object will be correct, stimulates the creation of the result if all subreqquests are complete and the result isn't made
+	 * After this finishes running, the status of this Search object will be correct, stimulates the creation of the result if all subreqquests are complete and the result isn't made.
+	 * When the search finishes or fails, its result or error is set, so {@link #join()} and any acceptors of it are told
 	 * @throws plugins.Library.util.exec.TaskAbortException
 	 */
 	private synchronized void setStatus() throws TaskAbortException{
+		SearchStatus before = status;
+		try {
+			advanceStatus();
+		} catch (TaskAbortException e) {
+			if(stop == null)
+				fail(e);
+			throw e;
+		} catch (RuntimeException e) {
+			if(stop == null)
+				fail(new TaskAbortException("Failed to complete search for "+subject, e));
+			throw e;
+		}
+		if(status == SearchStatus.Done && stop == null){
+			setResult(resultset);
+			finishedAt = System.currentTimeMillis();
+			// partial results aren't cached, they are only kept to be shown
+			// until they expire or the query is searched again
+			if(!isPartial())
+				cacheSearch(this, estimateWeight());
+		}
+		if(status != before)
+			signalChange();
+	}
+
+	/**
+	 * Failed searches aren't kept, so the same query can be tried again
+	 */
+	private void fail(TaskAbortException e){
+		setError(e);
+		removeSearch(this);
+		signalChange();
+	}
+
+	/**
+	 * Moves the status on as far as it can go without waiting
+	 */
+	private void advanceStatus() throws TaskAbortException{
 		switch (status){
 			case Unstarted :	// If Unstarted, status -> Busy
 				status = SearchStatus.Busy;
 			case Busy :
-				if(!isSubRequestsComplete())
+				if(federated != null){
+					// the indexes which answered in time are already united
+					if(!federated.isDone())
+						return;
+					resultset = federated.getResultSet();
+				}else if(!isSubRequestsComplete())
 					for (Execution<Set<TermEntry>> request : subsearches)
 						if(request != null && (!(request instanceof Search) || ((Search)request).status==SearchStatus.Busy))
 							return;	// If Busy & still waiting for subrequests to complete, status remains Busy
 				status = SearchStatus.Combining_First;	// If Busy and waiting for subrequests to combine, status -> Combining_First
 			case Combining_First :	// for when subrequests are combining
-				if(!isSubRequestsComplete())	// If combining first and subsearches still haven't completed, remain
-					return;
-				// If subrequests have completed start process to combine results
-				resultset = new ResultSet(subject, resultOperation, subsearches, innerCanFailAndStillComplete());
-				if(executor!=null)
-					executor.execute(resultset, "Library.Search : combining results");
-				else
-					(new Thread(resultset, "Library.Search : combining results")).start();
+				if(federated == null){
+					if(!isSubRequestsComplete())	// If combining first and subsearches still haven't completed, remain
+						return;
+					// If subrequests have completed start process to combine results
+					resultset = new ResultSet(subject, resultOperation, subsearches, innerCanFailAndStillComplete());
+					executeThenUpdate(resultset, "Library.Search : combining results");
+				}
 				status = SearchStatus.Combining_Last;
 			case Combining_Last :	// for when this is combining
 				if(!resultset.isDone())
@@ -526,11 +801,13 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				// If finished Combining and asked to generate resultnode, start that process
 				if(formatResult){
 					// resultset doesn't exist but subrequests are complete so we can start up a resultset
-					resultNodeGenerator = new ResultNodeGenerator(resultset, htmlgroupusk, htmlshowold, htmljs);
-					if(executor!=null)
-						executor.execute(resultNodeGenerator, "Library.Search : formatting results");
-					else
-						(new Thread(resultNodeGenerator, "Library.Search : formatting results")).start();
+					if(htmlpagesize > 0){
+						// only rank and format the first page
+						resultCursor = new ResultCursor(resultset, htmlpagesize);
+						resultNodeGenerator = new ResultNodeGenerator(resultCursor.page(0), htmlgroupusk, htmlshowold, htmljs, 0, resultset.size());
+					}else
+						resultNodeGenerator = new ResultNodeGenerator(resultset, htmlgroupusk, htmlshowold, htmljs);
+					executeThenUpdate(resultNodeGenerator, "Library.Search : formatting results");
 					status = SearchStatus.Formatting;	// status -> Formatting
 				}else			// If not asked to format output, status -> done
 					status = SearchStatus.Done;
@@ -549,6 +826,114 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		}
 	}
 
+	/**
+	 * Runs a stage of this search in the background, and advances the status
+	 * as soon as it has finished
+	 */
+	private void executeThenUpdate(final Runnable stage, String name){
+		Runnable job = new Runnable(){
+			public void run(){
+				try {
+					stage.run();
+				} finally {
+					update();
+				}
+			}
+		};
+		if(executor!=null)
+			executor.execute(job, name);
+		else
+			(new Thread(job, name)).start();
+	}
+
+	/**
+	 * Advances the status whenever one of the subsearches finishes or fails,
+	 * so that the search moves on without anyone having to poll it
+	 */
+	private void listenToSubsearches(){
+		ExecutionAcceptor<Set<TermEntry>> acceptor = new ExecutionAcceptor<Set<TermEntry>>(){
+			public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+			public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+				scheduleUpdate();
+			}
+			public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+				scheduleUpdate();
+			}
+		};
+		List<Execution<Set<TermEntry>>> subs = subsearches;
+		if(subs == null)
+			return;
+		for (Execution<Set<TermEntry>> request : subs)
+			if(request != null)
+				request.addAcceptor(acceptor);
+		if(federated != null)
+			federated.addAcceptor(acceptor);
+	}
+
+	/**
+	 * Advances the status in the background. Acceptors are called while the
+	 * subsearch holds its own lock, so they mustn't wait for this one
+	 */
+	private void scheduleUpdate(){
+		signalChange();
+		if(!updateScheduled.compareAndSet(false, true))
+			return;
+		if(executor!=null)
+			executor.execute(updater, "Library.Search : updating "+subject);
+		else
+			(new Thread(updater, "Library.Search : updating "+subject)).start();
+	}
+
+	/**
+	 * Advances the status as far as it can go; any error is kept as the error
+	 * of this search
+	 */
+	private void update(){
+		try {
+			setStatus();
+		} catch (TaskAbortException e) {
+			// already set as the error of this search
+		} catch (RuntimeException e) {
+			Logger.error(this, "Error while updating "+this, e);
+		}
+	}
+
+	private void signalChange(){
+		synchronized(changeLock){
+			++changes;
+			changeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return the number of times the status or the progress of this search
+	 * has changed, to be passed to {@link #awaitChange(int, long)}
+	 */
+	public int getChanges(){
+		synchronized(changeLock){
+			return changes;
+		}
+	}
+
+	/**
+	 * Waits until the status or progress of this search changes, ie. one of
+	 * its subsearches finishes or it moves on to another stage. Progress
+	 * within a subsearch, such as parts of an index being fetched, doesn't
+	 * count as a change.
+	 * @param seen the number of changes already seen, from {@link #getChanges()}
+	 * @param timeout most milliseconds to wait
+	 * @return the number of changes now, which is the same as seen if the timeout passed
+	 */
+	public int awaitChange(int seen, long timeout) throws InterruptedException{
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(changeLock){
+			long left;
+			while(changes == seen && (left = deadline - System.currentTimeMillis()) > 0)
+				changeLock.wait(left);
+			return changes;
+		}
+	}
+
 	/**
 	 * @return true if all are Finished, false otherwise
 	 */
@@ -579,11 +964,26 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			throw e;
 		}
 
-		removeSearch(this);
+		// the search stays cached, for the same query to be answered from it
 		Set<TermEntry> rs = resultset;
 		return rs;
 	}
 
+	/**
+	 * Returns a cursor over the results in order of relevance, for fetching
+	 * them a page at a time, or null if they are not ready. The cursor is
+	 * shared, so fetching the pages in order is cheap for every caller.
+	 * @param pageSize number of results in each page, used if there is no
+	 * cursor yet; if there is, the page size it was made with is kept
+	 */
+	public synchronized ResultCursor getResultCursor(int pageSize) throws TaskAbortException {
+		if(!isDone())
+			return null;
+		if(resultCursor == null)
+			resultCursor = new ResultCursor(resultset, pageSize);
+		return resultCursor;
+	}
+
 	public HTMLNode getHTMLNode(){
 		try {
 			if (!isDone() || !formatResult) {
@@ -594,7 +994,6 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			return null;
 		}
 
-		removeSearch(this);
 		HTMLNode pen = pageEntryNode;
 		pageEntryNode = null;
 
@@ -602,10 +1001,19 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	}
 
 	public synchronized void setMakeResultNode(boolean groupusk, boolean showold, boolean js){
+		setMakeResultNode(groupusk, showold, js, 0);
+	}
+
+	/**
+	 * @param pagesize if positive, only this many of the most relevant results are
+	 * formatted; the rest can be fetched with {@link #getResultCursor(int)}
+	 */
+	public synchronized void setMakeResultNode(boolean groupusk, boolean showold, boolean js, int pagesize){
 		formatResult = true;
 		htmlgroupusk = groupusk;
 		htmlshowold = showold;
 		htmljs = js;
+		htmlpagesize = pagesize;
 	}
 
 	@Override
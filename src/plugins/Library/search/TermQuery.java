@@ -0,0 +1,90 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.Index;
+import plugins.Library.index.TermEntry;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.ChainedProgress;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.Set;
+
+/**
+ * Looks up a term in an index whose root may still be loading, so a search
+ * can be started without waiting for it. Once the index has been loaded the
+ * term is looked up in it, and this finishes when that does.
+ */
+public class TermQuery extends AbstractExecution<Set<TermEntry>> implements ChainedProgress {
+
+	private final Execution<Index> index;
+	private final String term;
+	private volatile Execution<Set<TermEntry>> request;
+
+	/**
+	 * @param index the index to search, see {@link plugins.Library.Library#getIndexAsync(String)}
+	 * @param term the term to look up
+	 */
+	public TermQuery(Execution<Index> index, String term) {
+		super(term);
+		this.index = index;
+		this.term = term;
+		index.addAcceptor(new ExecutionAcceptor<Index>(){
+			public void acceptStarted(Execution<Index> opn) { }
+			public void acceptDone(Execution<Index> opn, Index result) {
+				lookUp(result);
+			}
+			public void acceptAborted(Execution<Index> opn, TaskAbortException abort) {
+				setError(abort);
+			}
+		});
+	}
+
+	private void lookUp(Index loaded) {
+		Execution<Set<TermEntry>> req;
+		try {
+			req = loaded.getTermEntries(term);
+		} catch (RuntimeException e) {
+			setError(new TaskAbortException("Failed to search for " + term, e));
+			return;
+		}
+		request = req;
+		req.addAcceptor(new ExecutionAcceptor<Set<TermEntry>>(){
+			public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+			public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+				setResult(result);
+			}
+			public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+				setError(abort);
+			}
+		});
+	}
+
+	/**
+	 * The index while it is loading, then the lookup of the term in it
+	 */
+	public Progress getCurrentProgress() {
+		Execution<Set<TermEntry>> req = request;
+		return (req == null)? index: req;
+	}
+
+	@Override
+	public ProgressParts getParts() throws TaskAbortException {
+		Execution<Set<TermEntry>> req = request;
+		if(req == null)
+			return ProgressParts.normalise(0, 1, 1, ProgressParts.ESTIMATE_UNKNOWN);
+		return req.getParts();
+	}
+
+	@Override
+	public String getStatus() {
+		Execution<Set<TermEntry>> req = request;
+		return (req == null)? index.getStatus(): req.getStatus();
+	}
+
+}
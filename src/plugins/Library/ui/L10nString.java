@@ -50,6 +50,42 @@ public class L10nString{
 				default:
 					return "Failed";
 				}
+		else if("partial-results".equals(key))
+			switch(lang){
+				case ENGLISH:
+				default:
+					return "Some indexes are left out of these results : ";
+				}
+		else if("timed-out".equals(key))
+			switch(lang){
+				case ENGLISH:
+				default:
+					return "ran out of time";
+				}
+		else if("skipped-slow".equals(key))
+			switch(lang){
+				case ENGLISH:
+				default:
+					return "skipped, too slow";
+				}
+		else if("previous-results".equals(key))
+			switch(lang){
+				case ENGLISH:
+				default:
+					return "Previous ";
+				}
+		else if("next-results".equals(key))
+			switch(lang){
+				case ENGLISH:
+				default:
+					return "Next ";
+				}
+		else if("results".equals(key))
+			switch(lang){
+				case ENGLISH:
+				default:
+					return " results";
+				}
 		else if("title".equals(key))
 			switch(lang){
 				case ENGLISH:
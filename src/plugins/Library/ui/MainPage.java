@@ -4,7 +4,10 @@
 package plugins.Library.ui;
 
 import plugins.Library.Library;
+import plugins.Library.index.TermEntry;
+import plugins.Library.search.FederatedSearch;
 import plugins.Library.search.InvalidSearchException;
+import plugins.Library.search.ResultCursor;
 import plugins.Library.search.Search;
 import plugins.Library.util.exec.ChainedProgress;
 import plugins.Library.util.exec.CompositeProgress;
@@ -23,8 +26,10 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Generates the main search page
@@ -32,18 +37,40 @@ import java.util.Iterator;
  * @author MikeB
  */
 class MainPage {
-	/** map of search hashes to pages on them */
-	private static final HashMap<Integer, MainPage> searchPages = new HashMap<Integer, MainPage>();
+	/** Number of results shown in each page, unless the request says otherwise */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	/** Number of finished searches which are kept so that their later pages can be shown */
+	static final int MAX_PAGED_SEARCHES = 16;
+	/** Longest time in ms that a request for progress waits for it to change */
+	static final long PROGRESS_WAIT_TIMEOUT = 30000;
+	/** How often in ms progress is redrawn while waiting, for progress which isn't signalled by the search, such as parts of an index being fetched */
+	static final long PROGRESS_CHECK_INTERVAL = 1000;
+
+	/** map of search hashes to pages on them, oldest first */
+	private static final LinkedHashMap<Integer, MainPage> searchPages = new LinkedHashMap<Integer, MainPage>();
 
 	private synchronized static void addpage(int hashCode, MainPage page) {
+		searchPages.remove(hashCode);
 		searchPages.put(hashCode, page);
 	}
 
+	/**
+	 * Remove pages whose searches have finished, except for the most recent
+	 * ones which have more pages of results to show
+	 */
 	private synchronized static void cleanUpPages(){
-		for (Iterator<Integer> it = searchPages.keySet().iterator(); it.hasNext();) {
-			if (!Search.hasSearch(it.next()))
-					it.remove();
+		ArrayList<Integer> paged = new ArrayList<Integer>();
+		for (Iterator<MainPage> it = searchPages.values().iterator(); it.hasNext();) {
+			MainPage page = it.next();
+			if (Search.hasSearch(page.search.hashCode()))
+				continue;
+			if (page.cursor != null && page.cursor.size() > page.pagesize)
+				paged.add(page.search.hashCode());
+			else
+				it.remove();
 		}
+		for (int i = 0; i < paged.size() - MAX_PAGED_SEARCHES; i++)
+			searchPages.remove(paged.get(i));
 	}
 
 	private synchronized static MainPage getPage(int intParam) {
@@ -68,6 +95,16 @@ class MainPage {
 	private ArrayList<String> selectedOtherIndexes = new ArrayList<String>();
 	/** Any other indexes which are not bookmarks seperated by spaces */
 	private boolean groupusk = false;
+	/** Number of results in each page, or 0 for all of them */
+	private int pagesize = DEFAULT_PAGE_SIZE;
+	/** Position of the first result to show */
+	private int offset = 0;
+	private ResultCursor cursor;
+	/** Hash of the progress last drawn for this page, see {@link #awaitProgress(Search, int, long)} */
+	private int progressState;
+	/** Whether a GET of the page should wait for the progress to change from seenState */
+	private boolean waitForProgress = false;
+	private int seenState;
 	private StringBuilder messages = new StringBuilder();
 
 	private String addindexname = "";
@@ -89,7 +126,6 @@ class MainPage {
 
 
 	/**
-	 * FIXME ajaxy stuff isnt working, it doesnt seem to renew the timeout in the js, it stopped working when the response type of the xml was changed to text/xml
 	 * @param library
 	 * @param pr
 	 */
@@ -100,15 +136,72 @@ class MainPage {
 
 	/**
 	 * Process a get request, the only parameter allowed for a get request is
-	 * request id (for an ongoing request)
+	 * request id (for an ongoing request), with the offset of the results to
+	 * show, or the state of the progress that was last shown, in which case
+	 * the page isn't drawn until the progress has changed
 	 */
 	public static MainPage processGetRequest(HTTPRequest request){
 		if (request.isParameterSet("request") && searchPages.containsKey(request.getIntParam("request"))){
-			return getPage(request.getIntParam("request"));
+			MainPage page = getPage(request.getIntParam("request"));
+			page.offset = Math.max(0, request.getIntParam("offset", 0));
+			page.waitForProgress = request.isParameterSet("state");
+			page.seenState = request.getIntParam("state", 0);
+			return page;
 		}
 		return null;
 	}
 
+	/**
+	 * Process a request for the progress of a search, which is answered when
+	 * the progress is different from the state given in the request, or after
+	 * {@link #PROGRESS_WAIT_TIMEOUT}. Used by script.js instead of reloading the
+	 * whole page.
+	 * @return an XML document with the progress bars in a CDATA section, the
+	 * state to send with the next request and whether the search has finished,
+	 * in which case the page should be reloaded to show the results or error
+	 */
+	public static String processProgressRequest(HTTPRequest request){
+		int id = request.getIntParam("request");
+		MainPage page = request.isParameterSet("request") ? getPage(id) : null;
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		xml.append("<progress request=\"").append(id).append('"');
+		if(page == null || page.search == null)
+			return xml.append(" done=\"true\"/>").toString();
+		try {
+			String bars = awaitProgress(page.search, request.getIntParam("state", 0), PROGRESS_WAIT_TIMEOUT).generate();
+			xml.append(" state=\"").append(bars.hashCode()).append("\" done=\"").append(page.search.isDone()).append("\">");
+			xml.append("<![CDATA[").append(bars.replace("]]>", "]]]]><![CDATA[>")).append("]]></progress>");
+		} catch (TaskAbortException e) {
+			// the page shows the error
+			xml.append(" done=\"true\"/>");
+		}
+		return xml.toString();
+	}
+
+	/**
+	 * Waits until the progress bars of a search are different from the ones
+	 * whose html has the hash seen, the search finishes, or the timeout passes.
+	 * Changes signalled by the search are seen straight away; others, such as
+	 * the progress of a fetch, are checked every {@link #PROGRESS_CHECK_INTERVAL}.
+	 * @return the progress bars as they are now
+	 */
+	static HTMLNode awaitProgress(Search search, int seen, long timeout) throws TaskAbortException{
+		long deadline = System.currentTimeMillis() + timeout;
+		for(;;){
+			int changes = search.getChanges();
+			HTMLNode bars = progressBar(search, true);
+			long left = deadline - System.currentTimeMillis();
+			if(left <= 0 || search.isDone() || bars.generate().hashCode() != seen)
+				return bars;
+			try {
+				search.awaitChange(changes, Math.min(left, PROGRESS_CHECK_INTERVAL));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return bars;
+			}
+		}
+	}
+
 	/** post commands */
 	private static enum Commands {
 		/** performs a search */
@@ -135,6 +228,9 @@ class MainPage {
 		page.js = request.isPartSet("js");
 		page.showold = request.isPartSet("showold");
 		page.groupusk = request.isPartSet("groupusk");
+		page.pagesize = request.getIntPart("pagesize", DEFAULT_PAGE_SIZE);
+		if (page.pagesize < 0)
+			page.pagesize = DEFAULT_PAGE_SIZE;
 		String[] etcIndexes = request.getPartAsStringFailsafe("indexuris", 256).trim().split("[ ;]");
 		page.query = request.getPartAsStringFailsafe("search", 256);
 
@@ -193,7 +289,7 @@ class MainPage {
 					if(page.search == null)
 						page.messages.append("Stopwords too prominent in search term, try removing words like 'the', 'and' and 'that' and any words less than 3 characters");
 					else{
-						page.search.setMakeResultNode(page.groupusk, page.showold, true);	// for the moment js will always be on for results, js detecting isnt being used
+						page.search.setMakeResultNode(page.groupusk, page.showold, true, page.pagesize);	// for the moment js will always be on for results, js detecting isnt being used
 						
 						// at this point pages is in a state ready to be saved
 						addpage(page.search.hashCode(), page);
@@ -279,13 +375,25 @@ class MainPage {
 
 			// If showing a search
 			if(search != null){
+				if(waitForProgress){
+					// a refresh without js, only draw the page once there is something new to show
+					waitForProgress = false;
+					awaitProgress(search, seenState, PROGRESS_WAIT_TIMEOUT);
+				}
 				// show progress
 				contentNode.addChild(progressBox());
 				// If search is complete show results
 				if (search.isDone()) {
-					if(search.hasGeneratedResultNode()){
+					if(pagesize > 0 && cursor == null)
+						cursor = search.getResultCursor(pagesize);
+					if(offset == 0 && search.hasGeneratedResultNode()){
 						contentNode.addChild(search.getHTMLNode());
 						//Logger.normal(this, "Got pre generated result node.");
+					}else if(cursor != null){
+						List<TermEntry> results = cursor.page(offset);
+						ResultNodeGenerator nodegenerator = new ResultNodeGenerator(new LinkedHashSet<TermEntry>(results), groupusk, showold, true, offset, cursor.size());
+						nodegenerator.run();
+						contentNode.addChild(nodegenerator.getPageEntryNode());
 					}else
 						try {
 							//Logger.normal(this, "Blocking to generate resultnode.");
@@ -297,6 +405,8 @@ class MainPage {
 						} catch (RuntimeException ex) {
 							exceptions.add(ex);
 						}
+					if(cursor != null)
+						contentNode.addChild(pageLinks());
 				} else {
 					contentNode.addChild("div", "id", "results").addChild("#");
 				}
@@ -307,9 +417,11 @@ class MainPage {
 
 			// Don't refresh if there is no request option, if it is finished or there is an error to show or js is enabled
 			if (search != null && !"".equals(search.getQuery()) && !search.isDone() && exceptions.size() <= 0) {
-				// refresh will GET so use a request id
+				// refresh will GET so use a request id, and the state of the progress so the
+				// refresh isn't answered until the progress has changed; the delay stops pages
+				// being redrawn for every small change. With js, script.js updates the progress
 				if (!js) {
-					headers.put("Refresh", "2;url=" + refreshURL);
+					headers.put("Refresh", "1;url=" + refreshURL + "&state=" + progressState);
 					//contentNode.addChild("script", new String[]{"type", "src"}, new String[]{"text/javascript", path() + "static/" + (js ? "script.js" : "detect.js") + "?request="+search.hashCode()+(showold?"&showold=on":"")}).addChild("%", " ");
 					//contentNode.addChild("script", new String[]{"type", "src"}, new String[]{"text/javascript", path() + "static/" + (js ? "script.js" : "detect.js") + "?request="+search.hashCode()+(showold?"&showold=on":"")}).addChild("%", " ");
 				}
@@ -327,6 +439,23 @@ class MainPage {
 	}
 
 
+	/**
+	 * Links to the previous and next pages of results
+	 */
+	private HTMLNode pageLinks(){
+		HTMLNode linksNode = new HTMLNode("p", "class", "librarian-result-pages");
+		String base = path()+"?request="+search.hashCode()+"&offset=";
+		if(offset > 0)
+			linksNode.addChild("a", "href", base+Math.max(0, offset-pagesize), L10nString.getString("previous-results")+pagesize+L10nString.getString("results"));
+		if(offset+pagesize < cursor.size()){
+			if(offset > 0)
+				linksNode.addChild("#", " | ");
+			linksNode.addChild("a", "href", base+(offset+pagesize), L10nString.getString("next-results")+Math.min(pagesize, cursor.size()-offset-pagesize)+L10nString.getString("results"));
+		}
+		return linksNode;
+	}
+
+
 	/**
 	 * Create search form
 	 *
@@ -419,15 +548,40 @@ class MainPage {
 
 
 				// Search status
+				HTMLNode bars = progressBar(search, true);
+				progressState = bars.generate().hashCode();
 				HTMLNode statusRow = progressTable.addChild("tr");
 					statusRow.addChild("td")
-							.addChild("div", "id", "librarian-search-status")
+							.addChild("div", new String[]{"id", "data-request", "data-state", "data-done"}, new String[]{"librarian-search-status", Integer.toString(search.hashCode()), Integer.toString(progressState), Boolean.toString(search.isDone())})
 							.addChild("table", new String[]{"id", "class"}, new String[]{"progress-base", "progress-table"})
 							.addChild("tbody")
-							.addChild(progressBar(search, true));
+							.addChild(bars);
+
+				// Indexes left out of the results
+				if(search.isDone() && search.isPartial())
+					progressTable.addChild("tr")
+						.addChild("td")
+						.addChild(partialResults(search.getFederatedSearch()));
 		return progressDiv;
 	}
 
+	/**
+	 * Lists the indexes which are left out of the results of a search on
+	 * several indexes, as they ran out of time, failed or were skipped
+	 */
+	private static HTMLNode partialResults(FederatedSearch federated){
+		HTMLNode partialDiv = new HTMLNode("div", "class", "librarian-partial-results");
+		partialDiv.addChild("#", L10nString.getString("partial-results"));
+		HTMLNode list = partialDiv.addChild("ul");
+		for (String index : federated.getTimedOut())
+			list.addChild("li").addChild("#", index + " : " + L10nString.getString("timed-out"));
+		for (String index : federated.getFailed())
+			list.addChild("li").addChild("#", index + " : " + L10nString.getString("failed"));
+		for (String index : federated.getSkipped())
+			list.addChild("li").addChild("#", index + " : " + L10nString.getString("skipped-slow"));
+		return partialDiv;
+	}
+
 	/**
 	 * Put an error on the page, under node, also draws a big grey box around
 	 * the error, unless it is an InvalidSearchException in which case it just shows the description
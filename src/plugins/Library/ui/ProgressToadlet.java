@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.ui;
+
+import plugins.Library.Library;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.clients.http.RedirectException;
+import freenet.clients.http.Toadlet;
+import freenet.clients.http.ToadletContext;
+import freenet.clients.http.ToadletContextClosedException;
+import freenet.support.api.HTTPRequest;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Answers requests for the progress of a search once it has changed, so the
+ * page can be updated without polling, see {@link MainPage#processProgressRequest(HTTPRequest)}
+ */
+public class ProgressToadlet extends Toadlet {
+
+	public ProgressToadlet(HighLevelSimpleClient client) {
+		super(client);
+	}
+
+	public void handleMethodGET(URI uri, final HTTPRequest request, final ToadletContext ctx)
+	throws ToadletContextClosedException, IOException, RedirectException {
+		ClassLoader origClassLoader = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(Library.class.getClassLoader());
+		try {
+			writeReply(ctx, 200, "text/xml", "OK", MainPage.processProgressRequest(request));
+		} finally {
+			Thread.currentThread().setContextClassLoader(origClassLoader);
+		}
+	}
+
+	@Override public String path() {
+		return MainPage.path() + "progress/";
+	}
+}
@@ -12,6 +12,7 @@ import freenet.keys.FreenetURI;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -30,7 +31,11 @@ public class ResultNodeGenerator implements Runnable {
 	private TreeMap<TermPageEntry, Boolean> pageset;
 	private TreeSet<TermTermEntry> relatedTerms;
 	private TreeSet<TermIndexEntry> relatedIndexes;
-	private Set<TermEntry> result;
+	private Collection<TermEntry> result;
+	/** Position of the first of the results in the full result set */
+	private int offset;
+	/** Size of the full result set, or -1 if the results given are all of them */
+	private int total = -1;
 	private boolean groupusk;
 	private boolean showold;
 	private boolean js;
@@ -53,6 +58,22 @@ public class ResultNodeGenerator implements Runnable {
 		this.js = js;
 	}
 
+	/**
+	 * Create a generator for one page of a larger set of results
+	 * @param result the page of TermEntrys to format
+	 * @param offset position of the first of them in the full set of results
+	 * @param total size of the full set of results
+	 * @see plugins.Library.search.ResultCursor
+	 */
+	public ResultNodeGenerator(Collection<TermEntry> result, boolean groupusk, boolean showold, boolean js, int offset, int total){
+		this.result = result;
+		this.groupusk = groupusk;
+		this.showold = showold;
+		this.js = js;
+		this.offset = offset;
+		this.total = total;
+	}
+
 
 	public synchronized void run(){
 		if(done)
@@ -231,7 +252,12 @@ public class ResultNodeGenerator implements Runnable {
 				results++;
 			}
 		}
-		pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "Found "+results+" results");
+		if(total < 0)
+			pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "Found "+results+" results");
+		else if(results == 0)
+			pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "No more results, found "+total+" in total");
+		else
+			pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "Showing results "+(offset+1)+"-"+(offset+result.size())+" of "+total);
 	}
 
 	/**
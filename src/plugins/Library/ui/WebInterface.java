@@ -23,6 +23,7 @@ public class WebInterface {
 	private MainPageToadlet pluginsToadlet;
 	private MainPageToadlet mainToadlet;
 	private StaticToadlet staticToadlet;
+	private ProgressToadlet progressToadlet;
 
 	/**
 	 * // @param spider
@@ -52,6 +53,8 @@ public class WebInterface {
 		toadletContainer.register(pluginsToadlet, null, "/plugins/plugin.Library.FreesiteSearch", true, null, null, true, null );
 		staticToadlet = new StaticToadlet(client);
 		toadletContainer.register(staticToadlet, null, "/library/static/", true, false);
+		progressToadlet = new ProgressToadlet(client);
+		toadletContainer.register(progressToadlet, null, progressToadlet.path(), true, false);
 
 	}
 
@@ -63,5 +66,6 @@ public class WebInterface {
 		pageMaker.removeNavigationLink(mainToadlet.menu(), mainToadlet.name());
 		toadletContainer.unregister(pluginsToadlet);
 		toadletContainer.unregister(staticToadlet);
+		toadletContainer.unregister(progressToadlet);
 	}
 }
@@ -1,27 +1,48 @@
-var url = '/library/xml/?request=0&'; // this bit will have to be put into the page being generated dynamically if used again
-var xmlhttp;
+// Tell the page that js is on, so it doesn't refresh itself, and keep the
+// progress up to date by asking for it, each request is only answered once
+// the progress has changed
+var progressurl = '/library/progress/';
 
-function getProgress(){
-	xmlhttp = new XMLHttpRequest();
-	xmlhttp.onreadystatechange=xmlhttpstatechanged;
-	xmlhttp.open('GET', url, true);
-	xmlhttp.send(null);
+function markJS(){
+	var search = document.getElementsByName('search')[0];
+	if(search && search.form && !search.form.elements['js']){
+		var js = document.createElement('input');
+		js.type = 'hidden';
+		js.name = 'js';
+		search.form.appendChild(js);
+	}
 }
 
-function xmlhttpstatechanged(){
-	if(xmlhttp.readyState==4){
-		var resp = xmlhttp.responseXML;
-		var progresscontainer = document.getElementById('librarian-search-status');
-		progresscontainer.replaceChild(resp.getElementsByTagName('progress')[0].cloneNode(true), progresscontainer.getElementsByTagName('table')[0]);
-		if(resp.getElementsByTagName('progress')[0].attributes.getNamedItem('RequestState').value=='FINISHED')
-			document.getElementById('results').appendChild(resp.getElementsByTagName('result')[0].cloneNode(true));
-		else if(resp.getElementsByTagName('progress')[0].attributes.getNamedItem('RequestState').value=='ERROR')
-			document.getElementById('errors').appendChild(resp.getElementsByTagName('error')[0].cloneNode(true));
-		else
-			var t = setTimeout('getProgress()', 1000);
-	}
+function getProgress(request, state){
+	var xmlhttp = new XMLHttpRequest();
+	xmlhttp.onreadystatechange = function(){
+		if(xmlhttp.readyState != 4)
+			return;
+		var progress = (xmlhttp.status == 200 && xmlhttp.responseXML) ? xmlhttp.responseXML.documentElement : null;
+		if(progress == null){
+			// try again later
+			setTimeout(function(){ getProgress(request, state); }, 2000);
+			return;
+		}
+		if(progress.getAttribute('done') == 'true'){
+			// the page shows the results or the error
+			window.location = '/library/?request=' + request;
+			return;
+		}
+		document.getElementById('librarian-search-status').innerHTML =
+			'<table id="progress-base" class="progress-table"><tbody>' + progress.textContent + '</tbody></table>';
+		getProgress(request, progress.getAttribute('state'));
+	};
+	xmlhttp.open('GET', progressurl + '?request=' + request + '&state=' + state, true);
+	xmlhttp.send(null);
 }
-getProgress();
+
+window.onload = function(){
+	markJS();
+	var status = document.getElementById('librarian-search-status');
+	if(status && status.getAttribute('data-done') == 'false')
+		getProgress(status.getAttribute('data-request'), status.getAttribute('data-state'));
+};
 
 function toggleResult(key){
 	var togglebox = document.getElementById('result-hiddenblock-'+key);
@@ -7,6 +7,7 @@ import plugins.Library.util.CompositeIterable;
 import plugins.Library.util.func.Tuples.X2;
 import plugins.Library.util.func.Tuples.X3;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Collection;
@@ -144,6 +145,22 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	*/
 	final protected Comparator<? super K> comparator;
 
+	/**
+	** Comparator for the keys of {@link Node#lnodes}, which are the {@code
+	** rkey}s of the subnodes, so {@code null} is greater than any other key.
+	*/
+	final protected Comparator<K> lnodesComparator = new Comparator<K>() {
+		public int compare(K k1, K k2) { return compareR(k1, k2); }
+	};
+
+	/**
+	** Comparator for the keys of {@link Node#rnodes}, which are the {@code
+	** lkey}s of the subnodes, so {@code null} is smaller than any other key.
+	*/
+	final protected Comparator<K> rnodesComparator = new Comparator<K>() {
+		public int compare(K k1, K k2) { return compareL(k1, k2); }
+	};
+
 	/**
 	** Root node of the tree. The only node that can have less than ENT_MIN
 	** entries.
@@ -306,15 +323,17 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 		/**
 		** Map of entries to their immediate smaller nodes. The greatest node
-		** is mapped to by {@link #rkey}.
+		** is mapped to by {@link #rkey}. Its keys are the keys of {@link
+		** #entries} followed by {@code rkey}, so the subnode for any key can
+		** be found with one binary search (see {@link #selectNode(Object)}).
 		*/
-		final /*private*/ protected Map<K, Node> lnodes;
+		final /*private*/ protected SortedArrayMap<K, Node> lnodes;
 
 		/**
 		** Map of entries to their immediate greater nodes. The smallest node
 		** is mapped to by {@link #lkey}.
 		*/
-		final /*private*/ protected Map<K, Node> rnodes;
+		final /*private*/ protected SortedArrayMap<K, Node> rnodes;
 
 		/**
 		** Greatest key smaller than all keys in this node and subnodes. This
@@ -334,6 +353,12 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		*/
 		transient int _size = -1;
 
+		/**
+		** Cache for {@link #subnodeOffsets()}. It is dropped whenever {@link
+		** #_size} is found to have been invalidated.
+		*/
+		transient int[] _offsets;
+
 		/**
 		** Creates a new node for the BTree, with a custom map to store the
 		** entries.
@@ -354,8 +379,10 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			entries = map;
 			// we don't use sentinel Nil elements because that wastes memory due to
 			// having to maintain dummy rnodes and lnodes maps.
-			lnodes = (lf)? null: new HashMap<K, Node>(NODE_MAX);
-			rnodes = (lf)? null: new HashMap<K, Node>(NODE_MAX);
+			// the arrays behind these are only allocated when the first subnode
+			// is added, so ghost nodes don't pay for them
+			lnodes = (lf)? null: new SortedArrayMap<K, Node>(lnodesComparator);
+			rnodes = (lf)? null: new SortedArrayMap<K, Node>(rnodesComparator);
 		}
 
 		/**
@@ -366,7 +393,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		** @param lf Whether to create a leaf node
 		*/
 		protected Node(K lk, K rk, boolean lf) {
-			this(lk, rk, lf, new TreeMap<K, V>(comparator));
+			this(lk, rk, lf, new SortedArrayMap<K, V>(comparator));
 		}
 
 		/**
@@ -426,6 +453,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		*/
 		protected int totalSize() {
 			if (_size < 0) {
+				_offsets = null;
 				int s = nodeSize(); // makes any future synchronization easier
 				if (!isLeaf()) {
 					for (Node n: lnodes.values()) {
@@ -437,6 +465,31 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			return _size;
 		}
 
+		/**
+		** Returns, for each subnode in order, the number of entries that come
+		** before it in this node and all subnodes. Entry {@code i} of this node
+		** comes right after subnode {@code i}, so its index is one less than
+		** that of subnode {@code i+1}. This lets {@link BTreeMap#getEntry(int)}
+		** and {@link BTreeMap#rank(Object)} pick the subnode to descend into
+		** with one binary search.
+		**
+		** @throws NullPointerException if this is a leaf node
+		*/
+		protected int[] subnodeOffsets() {
+			if (_size < 0) { totalSize(); }
+			if (_offsets == null) {
+				int n = lnodes.size();
+				int[] offsets = new int[n];
+				int s = 0;
+				for (int i=0; i<n; ++i) {
+					offsets[i] = s;
+					s += lnodes.valueAt(i).totalSize() + 1;
+				}
+				_offsets = offsets;
+			}
+			return _offsets;
+		}
+
 		/**
 		** Returns the greatest subnode smaller than the given node.
 		**
@@ -488,13 +541,11 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		public Node selectNode(K key) {
 			assert(compareL(lkey, key) < 0 && compareR(key, rkey) < 0);
 
-			SortedMap<K, V> tailmap = entries.tailMap(key);
-			if (tailmap.isEmpty()) {
-				return lnodes.get(rkey);
-			} else {
-				K next = tailmap.firstKey();
-				return (compare(key, next) == 0)? null: lnodes.get(next);
-			}
+			// the keys of lnodes are the local keys followed by rkey, so the
+			// least of them that is >= key is either key itself, or the rkey
+			// of the subnode that key belongs in
+			int i = lnodes.ceilingIndex(key);
+			return (compare0(key, lnodes.keyAt(i)))? null: lnodes.valueAt(i);
 		}
 
 		/**
@@ -1012,6 +1063,27 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		return new Node(lk, rk, lf);
 	}
 
+	/**
+	** Move the {@code n} smallest entries of the given source node to the
+	** given target node, none of whose keys may lie between them. When the
+	** source node keeps its entries in a {@link SortedArrayMap}, this is a
+	** single splice; otherwise they are moved one at a time.
+	*/
+	protected void moveHead(Node src, int n, Node dst) {
+		if (src.entries instanceof SortedArrayMap) {
+			((SortedArrayMap<K, V>)src.entries).moveHead(n, dst.entries);
+			return;
+		}
+		Iterator<Map.Entry<K, V>> it = src.entries.entrySet().iterator();
+		for (int i=0; i<n; ++i) {
+			Map.Entry<K, V> entry = it.next();
+			K key = entry.getKey();
+			V val = entry.getValue();
+			it.remove();
+			dst.entries.put(key, val);
+		}
+	}
+
 	/**
 	** Move the given key from the given source node to the given target node.
 	** This method should be used whenever entries need to be moved, so that
@@ -1059,52 +1131,27 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		Node lnode = newNode(null, null, child.isLeaf());
 		K mkey;
 
-		if (child.isLeaf()) {
-			// this is just the same as the code in the else block, but with leaf
-			// references to rnodes and lnodes removed (since they are null)
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
-			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
-			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
-
-			lnode.lkey = child.lkey;
-			lnode.rkey = child.lkey = mkey;
+		// move the ENT_MIN smallest entries to lnode, leaving the median as the
+		// smallest entry of child
+		moveHead(child, ENT_MIN, lnode);
+		mkey = child.entries.firstKey();
+		V mval = child.entries.remove(mkey);
+
+		if (!child.isLeaf()) {
+			// the subnodes go along with them: the rnodes of lkey and of the
+			// moved keys, and the lnodes of the moved keys and of the median
+			child.rnodes.moveHead(ENT_MIN+1, lnode.rnodes);
+			child.lnodes.moveHead(ENT_MIN+1, lnode.lnodes);
+		}
 
-			parent.rnodes.put(lnode.lkey, lnode);
-			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
-			parent.rnodes.put(mkey, child);
-			parent.lnodes.put(mkey, lnode);
+		lnode.lkey = child.lkey;
+		lnode.rkey = child.lkey = mkey;
 
-		} else {
-			lnode.rnodes.put(child.lkey, child.rnodes.remove(child.lkey));
-			Iterator<Map.Entry<K, V>> it = child.entries.entrySet().iterator();
-			for (int i=0; i<ENT_MIN; ++i) {
-				Map.Entry<K, V> entry = it.next(); it.remove();
-				K key = entry.getKey();
-
-				lnode.entries.put(key, entry.getValue());
-				lnode.lnodes.put(key, child.lnodes.remove(key));
-				lnode.rnodes.put(key, child.rnodes.remove(key));
-			}
-			Map.Entry<K, V> median = it.next(); it.remove();
-			mkey = median.getKey();
-			lnode.lnodes.put(mkey, child.lnodes.remove(mkey));
-
-			lnode.lkey = child.lkey;
-			lnode.rkey = child.lkey = mkey;
-
-			parent.rnodes.put(lnode.lkey, lnode);
-			parent.lnodes.put(child.rkey, child);
-			parent.entries.put(mkey, median.getValue());
-			parent.rnodes.put(mkey, child);
-			parent.lnodes.put(mkey, lnode);
-		}
+		parent.rnodes.put(lnode.lkey, lnode);
+		parent.lnodes.put(child.rkey, child);
+		parent.entries.put(mkey, mval);
+		parent.rnodes.put(mkey, child);
+		parent.lnodes.put(mkey, lnode);
 
 		assert(parent.rnodes.get(mkey) == child);
 		assert(parent.lnodes.get(mkey) == lnode);
@@ -1332,51 +1379,106 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	}
 
 	/**
-	** Returns the entry at a particular (zero-based) index.
+	** Returns the entry at a particular (zero-based) index. The subnode to
+	** descend into is found by a binary search of the node's cached {@link
+	** Node#subnodeOffsets()}, so only the nodes on the path to the entry are
+	** visited; in a {@link SkeletonBTreeMap}, visiting one that is not loaded
+	** throws a {@link DataNotLoadedException}, after which the lookup can be
+	** retried.
 	*/
 	public Map.Entry<K, V> getEntry(int index) {
 		if (index < 0 || index >= size) {
 			throw new IndexOutOfBoundsException("Index outside of range [0," + size + ")");
 		}
 
-		int current = 0;
 		Node node = root;
-
 		for (;;) {
 			if (node.isLeaf()) {
-				for (Map.Entry<K, V> en: node.entries.entrySet()) {
-					if (current == index) { return en; }
-					++current;
-				}
-				throw new IllegalStateException("BTreeMap getKey method is buggy, please report.");
+				return entryAt(node.entries, index);
 			}
+			// the subnodes are the values of lnodes, and each of its keys but
+			// the last (rkey) is the local entry right after that subnode
+			int[] offsets = node.subnodeOffsets();
+			int i = Arrays.binarySearch(offsets, index);
+			if (i < 0) { i = ~i - 1; }
+			Node sub = node.lnodes.valueAt(i);
+			index -= offsets[i];
+			if (index == sub.totalSize()) {
+				return entryAt(node.entries, node.lnodes.keyAt(i));
+			}
+			node = sub;
+		}
+	}
 
-			// OPT LOW better way to do this than linear iteration through the entries.
-			// this performs badly when large nodes are accessed repeatedly.
-			//
-			// one way would be to insert the last sum-key pair we calculate at each node, into
-			// a cache of SoftReference<TreeSet<Integer, K>> for that node. then, next time we visit
-			// the same node, we can use this cache to generate a submap - ie.
-			//   node.entries.tailMap(cache.get(cache.tailMap(index).firstKey())) // firstEntry().getValue() is Java 6 only :(
-			// - and iterate only over this submap (don't forget to set "current" to the right value)
-			//
-			Node nextnode = node.rnodes.get(node.lkey);
-			int next = current + nextnode.totalSize();
-			if (index < next) { node = nextnode; continue; }
-			current = next;
-
-			for (Map.Entry<K, V> en: node.entries.entrySet()) {
-				if (current == index) { return en; }
-				++current;
-
-				nextnode = node.rnodes.get(en.getKey());
-				next = current + nextnode.totalSize();
-				if (index < next) { node = nextnode; break; }
-				current = next;
+	/**
+	** Returns the number of keys strictly smaller than the given key, ie. the
+	** index it has, or would have, in this map. Only the nodes on the path to
+	** the key are visited, as for {@link #getEntry(int)}.
+	*/
+	public int rank(K key) {
+		int rank = 0;
+		Node node = root;
+		for (;;) {
+			if (node.isLeaf()) {
+				return rank + countBefore(node.entries, key);
 			}
+			// every subnode and entry before the subnode for the key is smaller
+			int i = node.lnodes.ceilingIndex(key);
+			rank += node.subnodeOffsets()[i];
+			Node sub = node.lnodes.valueAt(i);
+			if (compare0(key, node.lnodes.keyAt(i))) {
+				// the key is a local entry, so the whole subnode is smaller
+				return rank + sub.totalSize();
+			}
+			node = sub;
+		}
+	}
+
+	/**
+	** Returns the number of keys from {@code lo} (inclusive) to {@code hi}
+	** (exclusive), without visiting them. Only the nodes on the paths to the
+	** two keys are visited, as for {@link #getEntry(int)}.
+	**
+	** @param lo The smallest key to count, or {@code null} to start from the
+	**        beginning
+	** @param hi The key to stop before, or {@code null} to go to the end
+	*/
+	public int countRange(K lo, K hi) {
+		assert(lo == null || hi == null || compare(lo, hi) <= 0);
+		return ((hi == null)? size: rank(hi)) - ((lo == null)? 0: rank(lo));
+	}
 
-			assert(current <= index);
+	/**
+	** Returns the entry at the given index of a node's entries.
+	*/
+	private Map.Entry<K, V> entryAt(SortedMap<K, V> entries, int index) {
+		if (entries instanceof SortedArrayMap) {
+			return entryAt(entries, ((SortedArrayMap<K, V>)entries).keyAt(index));
+		}
+		for (Map.Entry<K, V> en: entries.entrySet()) {
+			if (index == 0) { return en; }
+			--index;
 		}
+		throw new IllegalStateException("BTreeMap getEntry method is buggy, please report.");
+	}
+
+	/**
+	** Returns the number of a node's entries that are smaller than the key.
+	*/
+	private int countBefore(SortedMap<K, V> entries, K key) {
+		if (entries instanceof SortedArrayMap) {
+			return ((SortedArrayMap<K, V>)entries).ceilingIndex(key);
+		}
+		return entries.headMap(key).size();
+	}
+
+	/**
+	** Returns the entry for a key of a node's entries.
+	*/
+	private Map.Entry<K, V> entryAt(SortedMap<K, V> entries, K key) {
+		Map.Entry<K, V> en = entries.tailMap(key).entrySet().iterator().next();
+		assert(compare0(key, en.getKey()));
+		return en;
 	}
 
 	/*========================================================================
@@ -1559,6 +1661,9 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	**   entries than L (or equal)
 	** * {@link #rotateR(Node, Node, Node) rotateR}, if the L subnode has more
 	**   entries than R (or equal)
+	** * if both subnodes have {@link #ENT_MAX} entries, neither can take the
+	**   key, so {@link #removeSeparator(Node, Node, Node) remove} the greatest
+	**   key under L instead, put it in the place of the key, and stop.
 	**
 	** The node that the key ended up in now has more than {@link #ENT_MIN}
 	** entries (and will be selected for the next stage).
@@ -1570,9 +1675,15 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	**         keys
 	*/
 	@Override public V remove(Object k) {
-		K key = (K) k;
-		Node node = root, parent = null;
+		return remove(root, null, (K)k);
+	}
 
+	/**
+	** Removes a key from the subtree under the given node, as for {@link
+	** #remove(Object)}. The node must be the root, or have more than {@link
+	** #ENT_MIN} entries.
+	*/
+	private V remove(Node node, Node parent, K key) {
 		for (;;) {
 			node._size = -1; // pre-emptively invalidate node size cache
 
@@ -1612,6 +1723,9 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			if (nextnode == null) { // key is already in the node
 				Node lnode = node.lnodes.get(key), rnode = node.rnodes.get(key);
 				int L = lnode.nodeSize(), R = rnode.nodeSize();
+				if (L == ENT_MAX && R == ENT_MAX) {
+					return removeSeparator(node, lnode, rnode);
+				}
 
 				K kk =
 				// both lnode and rnode must exist, so
@@ -1632,6 +1746,60 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		}
 	}
 
+	/**
+	** Removes the key that separates two subnodes which both have {@link
+	** #ENT_MAX} entries, so that a rotate would overfill one of them. The
+	** greatest key under the smaller subnode is removed from there instead,
+	** and then replaces the key in the parent node. It also becomes the
+	** bound of every node along the edges of the subnodes that the key was
+	** the bound of.
+	**
+	** All of those nodes are reached before anything is changed, so that if
+	** one of them has not been loaded, the removal can simply be retried
+	** once it has.
+	**
+	** @param parent The node that holds the key
+	** @param lnode The smaller subnode of the key
+	** @param rnode The greater subnode of the key
+	** @return The value that was mapped to the key
+	*/
+	private V removeSeparator(Node parent, Node lnode, Node rnode) {
+		assert(compare(lnode.rkey, rnode.lkey) == 0);
+		assert(lnode.nodeSize() == ENT_MAX && rnode.nodeSize() == ENT_MAX);
+		K key = lnode.rkey;
+
+		Node ln = lnode, rn = rnode;
+		while (!ln.isLeaf()) { ln = ln.lnodes.get(ln.rkey); }
+		while (!rn.isLeaf()) { rn = rn.rnodes.get(rn.lkey); }
+
+		K pkey = ln.entries.lastKey();
+		V pval = remove(lnode, parent, pkey);
+
+		V val = parent.entries.remove(key);
+		parent.entries.put(pkey, pval);
+		parent.lnodes.put(pkey, parent.lnodes.remove(key));
+		parent.rnodes.put(pkey, parent.rnodes.remove(key));
+
+		// the removal may have restructured the edge of lnode, so walk it again
+		for (Node n = lnode;;) {
+			n.rkey = pkey;
+			if (n.isLeaf()) { break; }
+			Node ch = n.lnodes.remove(key);
+			n.lnodes.put(pkey, ch);
+			n = ch;
+		}
+		for (Node n = rnode;;) {
+			n.lkey = pkey;
+			if (n.isLeaf()) { break; }
+			Node ch = n.rnodes.remove(key);
+			n.rnodes.put(pkey, ch);
+			n = ch;
+		}
+
+		assert(parent.lnodes.get(pkey) == lnode && parent.rnodes.get(pkey) == rnode);
+		return val;
+	}
+
 	/**
 	** {@inheritDoc}
 	**
@@ -1659,6 +1827,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		} else if (t == this || isEmpty() && t instanceof SortedMap) {
 			SortedMap<K, V> map = (SortedMap<K, V>)t, nextmap;
 			Map<K, Node> lnodes = null, nextlnodes;
+			int total = map.size();
 
 			if (!(comparator == null && map.comparator() == null || comparator.equals(map.comparator()))) {
 				super.putAll(map);
@@ -1687,7 +1856,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 			assert(lnodes.size() == 1);
 			root = lnodes.get(null);
-			size = map.size();
+			size = total;
 
 		} else {
 			super.putAll(t);
@@ -1929,6 +2098,55 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		}
 	}
 
+	/**
+	** Adds the keys from {@code lo} (inclusive) to {@code hi} (exclusive) to
+	** the given collection, in order. Only the nodes whose range overlaps
+	** these keys are visited; in a {@link SkeletonBTreeMap}, this means that
+	** only those need to be loaded, and visiting one that is not throws a
+	** {@link DataNotLoadedException}, after which the scan can be retried.
+	**
+	** @param lo The smallest key to add
+	** @param hi The key to stop before, or {@code null} to go to the end
+	** @param max Maximum number of keys to add
+	** @param keys The collection to add the keys to
+	** @return Whether all of the keys in the range were added; ie. {@code
+	**         false} if there are more than {@code max} of them
+	*/
+	public boolean keysInRange(K lo, K hi, int max, Collection<? super K> keys) {
+		assert(hi == null || compare(lo, hi) < 0);
+		return keysInRange(root, lo, hi, max, keys) >= 0;
+	}
+
+	/**
+	** @return The number of keys that can still be added, or {@code -1} if
+	**         there were more keys in the range than that.
+	*/
+	private int keysInRange(Node node, K lo, K hi, int n, Collection<? super K> keys) {
+		boolean leaf = node.isLeaf(); // throws DataNotLoadedException for a GhostNode
+		SortedMap<K, V> tail = node.entries.tailMap(lo);
+		if (!leaf) {
+			// the subnode left of the first local key >= lo, unless that key is
+			// lo itself, in which case the subnode only has smaller keys
+			if (tail.isEmpty()) {
+				n = keysInRange(node.lnodes.get(node.rkey), lo, hi, n, keys);
+			} else if (compare(tail.firstKey(), lo) != 0) {
+				n = keysInRange(node.lnodes.get(tail.firstKey()), lo, hi, n, keys);
+			}
+			if (n < 0) { return n; }
+		}
+		for (K key: tail.keySet()) {
+			if (hi != null && compare(key, hi) >= 0) { break; }
+			if (n == 0) { return -1; }
+			keys.add(key);
+			--n;
+			if (!leaf) {
+				n = keysInRange(node.rnodes.get(key), lo, hi, n, keys);
+				if (n < 0) { return n; }
+			}
+		}
+		return n;
+	}
+
 	/**
 	** {@inheritDoc}
 	**
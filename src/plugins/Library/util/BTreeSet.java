@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.util;
 
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Set;
 import java.util.SortedSet;
@@ -72,5 +73,39 @@ implements Set<E>, SortedSet<E>/*, NavigableSet<E>, Cloneable, Serializable*/ {
 		return bkmap.getEntry(i).getKey();
 	}
 
+	/**
+	** Returns the number of elements strictly smaller than the given one,
+	** see {@link BTreeMap#rank(Object)}.
+	*/
+	public int rank(E e) {
+		return bkmap.rank(e);
+	}
+
+	/**
+	** Returns the number of elements from {@code lo} (inclusive) to {@code
+	** hi} (exclusive), see {@link BTreeMap#countRange(Object, Object)}.
+	*/
+	public int countRange(E lo, E hi) {
+		return bkmap.countRange(lo, hi);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If this set is empty and the given collection is a {@link SortedSet}
+	** with the same ordering, the tree is bulk-loaded from it, see {@link
+	** BTreeMap#putAll(java.util.Map)}.
+	*/
+	@Override public boolean addAll(Collection<? extends E> c) {
+		if (isEmpty() && !c.isEmpty() && c instanceof SortedSet) {
+			SortedSet<E> s = (SortedSet<E>)c;
+			Comparator<? super E> cmp = comparator();
+			if (cmp == null? s.comparator() == null: cmp.equals(s.comparator())) {
+				bkmap.putAll(new SortedSetMap<E, SortedSet<E>>(s));
+				return true;
+			}
+		}
+		return super.addAll(c);
+	}
 
 }
@@ -9,6 +9,7 @@ import plugins.Library.io.serial.ScheduledSerialiser;
 import plugins.Library.io.serial.MapSerialiser;
 import plugins.Library.io.serial.Translator;
 import plugins.Library.io.DataFormatException;
+import plugins.Library.io.MergeJournal;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskCompleteException;
 import plugins.Library.util.func.Tuples.X2;
@@ -32,14 +33,14 @@ import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.BaseCompositeProgress;
+import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.io.serial.Serialiser;
 import plugins.Library.io.serial.ProgressTracker;
 import plugins.Library.util.exec.TaskCompleteException;
@@ -52,6 +53,8 @@ import java.util.SortedMap;
 import java.util.TreeSet;
 import java.util.TreeMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 
 import freenet.support.Logger;
 import plugins.Library.util.Sorted;
@@ -60,6 +63,7 @@ import plugins.Library.util.concurrent.ExceptionConvertor;
 import plugins.Library.util.concurrent.Notifier;
 import plugins.Library.util.concurrent.ObjectProcessor;
 import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.PriorityExecutor.TaskClass;
 import plugins.Library.util.event.TrackingSweeper;
 import plugins.Library.util.event.CountingSweeper;
 import plugins.Library.util.func.Closure;
@@ -172,10 +176,22 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 	};
 	
+	/**
+	** A node whose values can be ghosts, and whose subnodes can be {@link
+	** GhostNode}s. Its entries are kept in a {@link SkeletonTreeMap}, which
+	** is backed by a {@link SortedArrayMap} like the nodes of a plain {@link
+	** BTreeMap}.
+	*/
 	public class SkeletonNode extends Node implements Skeleton<K, IterableSerialiser<SkeletonNode>> {
 
 		protected int ghosts = 0;
 
+		/**
+		** The {@link GhostNode} that this node was pulled from, if any. Used
+		** by {@link #unload(Collection)}.
+		*/
+		protected GhostNode loadedFrom;
+
 		protected SkeletonNode(K lk, K rk, boolean lf, SkeletonTreeMap<K, V> map) {
 			super(lk, rk, lf, map);
 			setSerialiser();
@@ -329,6 +345,64 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			assert(isBare());
 		}
 
+		/**
+		** Replace this node in its parent with the {@link GhostNode} that it
+		** was pulled from, without pushing it. This is only correct if the
+		** node has not been modified since it was pulled, eg. for a tree that
+		** is only ever read from.
+		**
+		** @param detached If not {@code null}, every loaded subnode of this
+		**        node (which is now unreachable from the tree) is added to it
+		** @return Whether the node was unloaded; this is {@code false} if it
+		**         was not pulled from the serialiser, or is no longer attached
+		**         to the parent it was pulled into, or has changed size.
+		*/
+		public boolean unload(Collection<? super SkeletonNode> detached) {
+			GhostNode ghost = loadedFrom;
+			if (ghost == null || ghost.parent == null) { return false; }
+			SkeletonNode parent = ghost.parent;
+			if (parent.isLeaf() || parent.rnodes.get(lkey) != this) { return false; }
+			if (ghost._size != totalSize()) { return false; }
+			// progress of pulls is tracked by the identity of the ghost, so we
+			// need a new one, otherwise the next pull would be seen as complete
+			GhostNode g = new GhostNode(ghost.lkey, ghost.rkey, parent, ghost._size);
+			g.setMeta(ghost.getMeta());
+			parent.attachGhost(g);
+			loadedFrom = null;
+			if (detached != null) { addLoadedSubnodes(detached); }
+			return true;
+		}
+
+		/**
+		** Recounts {@link #ghosts}, and sets the parent of every {@link
+		** GhostNode}, for this node and all of its loaded subnodes. The
+		** restructuring operations of {@link BTreeMap} move subnodes between
+		** nodes without knowing about either of these, so this must be called
+		** after using them on a partially-loaded tree.
+		*/
+		protected void reattachGhosts() {
+			if (isLeaf()) { return; }
+			int g = 0;
+			for (Node n: iterNodes()) {
+				if (n.isGhost()) {
+					((GhostNode)n).parent = this;
+					++g;
+				} else {
+					((SkeletonNode)n).reattachGhosts();
+				}
+			}
+			ghosts = g;
+		}
+
+		protected void addLoadedSubnodes(Collection<? super SkeletonNode> nodes) {
+			if (isLeaf()) { return; }
+			for (Node n: iterNodes()) {
+				if (n.isGhost()) { continue; }
+				nodes.add((SkeletonNode)n);
+				((SkeletonNode)n).addLoadedSubnodes(nodes);
+			}
+		}
+
 		// OPT make this parallel
 		/*@Override**/ public void inflate() throws TaskAbortException {
 			((SkeletonTreeMap<K, V>)entries).inflate();
@@ -382,14 +456,36 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		** @param auto Whether to recursively inflate the node's subnodes.
 		*/
 		public void inflate(K key, boolean auto) throws TaskAbortException {
-			if (isLeaf()) { return; }
-			Node node = rnodes.get(key);
-			if (!node.isGhost()) { return; }
+			inflate(key, auto, this);
+		}
+
+		/**
+		** Inflates the node to the immediate right of the given key, but
+		** only holds the given lock while the node is attached to this one,
+		** and not while it is pulled. Readers that hold the same lock never
+		** see the tree while it is being changed.
+		**
+		** @param key The key
+		** @param lock The lock that guards reads of the tree
+		*/
+		public void inflate(K key, Object lock) throws TaskAbortException {
+			inflate(key, false, lock);
+		}
+
+		protected void inflate(K key, boolean auto, Object lock) throws TaskAbortException {
+			Node node;
+			synchronized (lock) {
+				if (isLeaf()) { return; }
+				node = rnodes.get(key);
+				if (!node.isGhost()) { return; }
+			}
 
 			PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(node);
 			try {
 				nsrl.pull(task);
-				postPullTask(task, this);
+				synchronized (lock) {
+					postPullTask(task, this);
+				}
 				if (auto) { task.data.inflate(); }
 
 			} catch (TaskCompleteException e) {
@@ -488,6 +584,8 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 
 		parent.attachSkeleton(node);
+		ghost.parent = parent;
+		node.loadedFrom = ghost;
 		return node;
 	}
 
@@ -539,10 +637,24 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	// metadata is (lkey, rkey), or something..(PROGRESS)
 	BaseCompositeProgress pr_inf = new BaseCompositeProgress();
 	public BaseCompositeProgress getProgressInflate() { return pr_inf; } // REMOVE ME
+	/**
+	** Maximum number of nodes whose values {@link #inflate()} will pull at
+	** once. Each of these may itself pull many values (eg. the bins of a
+	** packed {@link SkeletonBTreeSet}) so this is kept lower than the limit on
+	** node pulls.
+	*/
+	public static int INFLATE_VALUES_MAXCONC = 0x10;
+
 	/**
 	** Parallel bulk-inflate. At the moment, this will inflate all the values
 	** of each nodes too.
 	**
+	** Nodes are pulled breadth-first as they are discovered, and the values
+	** of each node are pulled in a separate stage on {@link #VALUE_EXECUTOR}
+	** as soon as the node is attached, so that the two overlap. The progress
+	** returned by {@link #getProgressInflate()} has one part for each node
+	** pull and one for the values of each node.
+	**
 	** Not yet thread safe, but ideally it should be. See source for details.
 	*/
 	/*@Override**/ public void inflate() throws TaskAbortException {
@@ -564,12 +676,15 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 		Map<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>> ids = null;
 		ProgressTracker<SkeletonNode, ?> ntracker = null;;
+		// values of each node, can be read by other threads whilst we add to it
+		Queue<SimpleProgress> vals = null;
 
 		if (nsrl instanceof Serialiser.Trackable) {
 			ids = new LinkedHashMap<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>>();
 			ntracker = ((Serialiser.Trackable<SkeletonNode>)nsrl).getTracker();
+			vals = new ConcurrentLinkedQueue<SimpleProgress>();
 			// PROGRESS make a ProgressTracker track this instead of "pr_inf".
-			pr_inf.setSubProgress(ProgressTracker.makePullProgressIterable(ids));
+			pr_inf.setSubProgress(chain(ProgressTracker.<SkeletonNode, Progress>makePullProgressIterable(ids), vals));
 			pr_inf.setSubject("Pulling all entries in B-tree");
 		}
 
@@ -579,18 +694,92 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			new LinkedBlockingQueue<X2<PullTask<SkeletonNode>, TaskAbortException>>(0x10),
 			new HashMap<PullTask<SkeletonNode>, SkeletonNode>()
 		);
+		// Avoid polling; wake up as soon as any pull completes.
+		final Notifier notifier = newNotifier();
+		proc_pull.setNotifier(notifier);
+
+		// Values are pulled in their own stage, so that a node with many or
+		// slow values doesn't hold up the pulls of the nodes below it. The
+		// deposit is the progress of each node's values, if we track them.
+		final ObjectProcessor<SkeletonNode, SimpleProgress, TaskAbortException> proc_val
+		= new ObjectProcessor<SkeletonNode, SimpleProgress, TaskAbortException>(
+			new PriorityBlockingQueue<SkeletonNode>(0x10),
+			new LinkedBlockingQueue<X2<SkeletonNode, TaskAbortException>>(),
+			new HashMap<SkeletonNode, SimpleProgress>(),
+			new Closure<SkeletonNode, TaskAbortException>() {
+				/*@Override**/ public void invoke(SkeletonNode node) throws TaskAbortException {
+					((SkeletonTreeMap<K, V>)node.entries).inflate(); // SUBMAP here
+				}
+			}, VALUE_EXECUTOR, new TaskAbortExceptionConvertor(), notifier // These can block so pool them separately.
+		).autostart();
+		proc_val.setMaxConc(INFLATE_VALUES_MAXCONC);
 		//System.out.println("Using scheduler");
 		//int DEBUG_pushed = 0, DEBUG_popped = 0;
 
+		// nodes that have been queued, and so have had their values submitted
+		// if they needed it. only touched by this thread, and decided here
+		// rather than with isLive(), which would read the values that proc_val
+		// may be inflating at the same time
+		final Set<SkeletonNode> queued = Collections.newSetFromMap(new IdentityHashMap<SkeletonNode, Boolean>());
+
 		try {
 			nodequeue.add((SkeletonNode)root);
+			queued.add((SkeletonNode)root);
 
 			// FIXME HIGH make a copy of the deflated root so that we can restore it if the
 			// operation fails
 
-			do {
+			for (;;) {
 				//System.out.println("pushed: " + DEBUG_pushed + "; popped: " + DEBUG_popped);
 
+				// go through the nodequeue and add any child ghost nodes to the tasks queue
+				while (!nodequeue.isEmpty()) {
+					SkeletonNode node = nodequeue.remove();
+					// only the values are touched by proc_val, so we can carry on
+					// attaching children to the node whilst they are being pulled.
+					// a node is only queued once, so proc_val isn't touching it yet
+					if (!((SkeletonTreeMap<K, V>)node.entries).isLive()) {
+						SimpleProgress prog = null;
+						if (vals != null) {
+							prog = new SimpleProgress();
+							prog.setSubject("Pulling values of " + node.getName());
+							prog.addPartKnown(1, true);
+							vals.add(prog);
+						}
+						ObjectProcessor.submitSafe(proc_val, node, prog);
+					}
+
+					if (node.isLeaf()) { continue; }
+					for (Node next: node.iterNodes()) { // SUBMAP here
+						if (!next.isGhost()) {
+							// already loaded; walk it in case it has ghosts below
+							SkeletonNode skel = (SkeletonNode)next;
+							if (queued.add(skel)) { nodequeue.add(skel); }
+							continue;
+						}
+						PullTask<SkeletonNode> task = new PullTask<SkeletonNode>((GhostNode)next);
+						if (ids != null) { ids.put(task, ntracker); }
+						ObjectProcessor.submitSafe(proc_pull, task, node);
+						//++DEBUG_pushed;
+					}
+				}
+
+				if (!proc_pull.hasPending() && !proc_val.hasPending()) { break; }
+
+				// every completed task notifies us; a notification that arrives
+				// between hasCompleted() and waitUpdate() is remembered, so the
+				// timeout is only a safety net.
+				if (!proc_pull.hasCompleted() && !proc_val.hasCompleted()) { notifier.waitUpdate(1000); }
+
+				while (proc_val.hasCompleted()) {
+					X3<SkeletonNode, SimpleProgress, TaskAbortException> res = proc_val.accept();
+					if (res._2 != null) {
+						if (res._1 != null) { res._1.abort(res._2); }
+						throw res._2;
+					}
+					if (res._1 != null) { res._1.addPartDone(); }
+				}
+
 				// handle the inflated tasks and attach them to the tree.
 				// THREAD progress tracker should prevent this from being run twice for the
 				// same node, but what if we didn't use a progress tracker? hmm...
@@ -612,39 +801,16 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						// could check to see if the Progress for the Task still exists, but the
 						// performance of this depends on the GC freeing weak referents quickly...
 						assert(!parent.rnodes.get(ghost.lkey).isGhost());
-						nodequeue.add((SkeletonNode)parent.rnodes.get(ghost.lkey));
+						SkeletonNode node = (SkeletonNode)parent.rnodes.get(ghost.lkey);
+						if (queued.add(node)) { nodequeue.add(node); }
 					} else {
 						SkeletonNode node = postPullTask(task, parent);
+						queued.add(node);
 						nodequeue.add(node);
 					}
 					//++DEBUG_popped;
 				}
-
-				// go through the nodequeue and add any child ghost nodes to the tasks queue
-				while (!nodequeue.isEmpty()) {
-					SkeletonNode node = nodequeue.remove();
-					// TODO HIGH this needs to be asynchronous
-					((SkeletonTreeMap<K, V>)node.entries).inflate(); // SUBMAP here
-
-					if (node.isLeaf()) { continue; }
-					for (Node next: node.iterNodes()) { // SUBMAP here
-						if (!next.isGhost()) {
-							SkeletonNode skel = (SkeletonNode)next;
-							if (!skel.isLive()) { nodequeue.add(skel); }
-							continue;
-						}
-						PullTask<SkeletonNode> task = new PullTask<SkeletonNode>((GhostNode)next);
-						if (ids != null) { ids.put(task, ntracker); }
-						ObjectProcessor.submitSafe(proc_pull, task, node);
-						//++DEBUG_pushed;
-					}
-				}
-
-				Thread.sleep(0x40); // FIXME HIGH
-				// we really should put this higher, but BIndexTest tries to inflate a
-				// of trees in serial and with a 1 second-wait between each, this would
-				// take ages
-			} while (proc_pull.hasPending());
+			}
 
 			pr_inf.setEstimate(ProgressParts.TOTAL_FINALIZED);
 
@@ -654,11 +820,52 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			throw new TaskAbortException("interrupted", e);
 		} finally {
 			proc_pull.close();
+			proc_val.close();
 			//System.out.println("pushed: " + DEBUG_pushed + "; popped: " + DEBUG_popped);
 			//assert(DEBUG_pushed == DEBUG_popped);
 		}
 	}
 
+	/**
+	** Returns the {@link Notifier} that {@link #inflate()} waits on for its
+	** pulls to complete. Tests override this to count the wakeups.
+	*/
+	protected Notifier newNotifier() {
+		return new Notifier();
+	}
+
+	/**
+	** Returns an iterable over the items of one iterable followed by those of
+	** another. Changes to either are reflected in the result.
+	*/
+	private static <T> Iterable<T> chain(final Iterable<? extends T> first, final Iterable<? extends T> second) {
+		return new Iterable<T>() {
+			/*@Override**/ public Iterator<T> iterator() {
+				return new Iterator<T>() {
+					Iterator<? extends T> it = first.iterator();
+					boolean onfirst = true;
+
+					/*@Override**/ public boolean hasNext() {
+						if (onfirst && !it.hasNext()) {
+							it = second.iterator();
+							onfirst = false;
+						}
+						return it.hasNext();
+					}
+
+					/*@Override**/ public T next() {
+						if (!hasNext()) { throw new NoSuchElementException(); }
+						return it.next();
+					}
+
+					/*@Override**/ public void remove() {
+						throw new UnsupportedOperationException("Immutable iterator");
+					}
+				};
+			}
+		};
+	}
+
 	/*@Override**/ public void deflate(K key) throws TaskAbortException {
 		throw new UnsupportedOperationException("not implemented");
 	}
@@ -723,6 +930,36 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 	}
 
+	/**
+	** Returns the loaded nodes on the path from the root to the node that
+	** holds the given key, or would hold it if it were in the map. The path
+	** stops early at the first node that is not loaded.
+	*/
+	public List<SkeletonNode> loadedPath(K key) {
+		List<SkeletonNode> path = new ArrayList<SkeletonNode>();
+		Node node = root;
+		while (node != null && !node.isGhost()) {
+			path.add((SkeletonNode)node);
+			if (node.isLeaf()) { break; }
+			node = node.selectNode(key);
+		}
+		return path;
+	}
+
+	/**
+	** Revert the value for the given key to a ghost, if the node holding it
+	** is loaded. See {@link SkeletonTreeMap#unload(Object)} for details.
+	**
+	** @return Whether the value was unloaded
+	*/
+	public boolean unloadValue(K key) {
+		List<SkeletonNode> path = loadedPath(key);
+		if (path.isEmpty()) { return false; }
+		SkeletonNode node = path.get(path.size()-1);
+		if (!node.entries.containsKey(key)) { return false; }
+		return ((SkeletonTreeMap<K, V>)node.entries).unload(key);
+	}
+
 	/**
 	** @param putmap Entries to insert into this map
 	** @param remkey Keys to remove from this map
@@ -743,51 +980,106 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	}
 
 	/**
-	** The executor backing {@link #VALUE_EXECUTOR}.
+	 * Separate executor for value handlers. Value handlers can themselves call
+	 * update() and end up polling, so we need to keep them separate from the 
+	 * threads that do the actual work! These are managers of {@link
+	 * Executors#SCHEDULER}, so they don't count against the limit on workers. */
+	final public static Executor VALUE_EXECUTOR = Executors.SCHEDULER.getExecutor(TaskClass.VALUE);
+
+	/**
+	 * Separate executor for deflating. We don't want update()'s to prevent actual
+	 * pushes. */
+	final public static Executor DEFLATE_EXECUTOR = Executors.SCHEDULER.getExecutor(TaskClass.DEFLATE);
+
+	/**
+	** Most times that {@link #update(SortedSet, SortedSet, SortedMap,
+	** Closure, ExceptionConvertor)} retries a node pull, node push or value
+	** task that aborted with an error for which {@link
+	** TaskAbortException#shouldRetry()}, before giving up on the whole update.
 	*/
-	private static Executor value_exec = null;
+	public static int UPDATE_RETRIES = 5;
 
 	/**
-	 * Separate executor for value handlers. Value handlers can themselves call
-	 * update() and end up polling, so we need to keep them separate from the 
-	 * threads that do the actual work! */
-	final public static Executor VALUE_EXECUTOR = new Executor() {
-		/*@Override**/ public void execute(Runnable r) {
-			synchronized (Executors.class) {
-				if (value_exec == null) {
-					value_exec = new ThreadPoolExecutor(
-						0, 0x40, 60, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>(),
-						new ThreadPoolExecutor.CallerRunsPolicy()
-					);
-				}
-			}
-			value_exec.execute(r);
-		}
-	};
+	** Time in ms before the first retry of a task; this is doubled for each
+	** retry after that, up to {@link #UPDATE_RETRY_MAX_DELAY}.
+	*/
+	public static long UPDATE_RETRY_DELAY = 1000;
+
+	public static long UPDATE_RETRY_MAX_DELAY = 60000;
 
 	/**
-	** The executor backing {@link #VALUE_EXECUTOR}.
+	** Journal of the nodes pushed by {@link #update(SortedSet, SortedSet,
+	** SortedMap, Closure, ExceptionConvertor)}, or null.
 	*/
-	private static Executor deflate_exec = null;
+	protected MergeJournal journal;
 
 	/**
-	 * Separate executor for deflating. We don't want update()'s to prevent actual
-	 * pushes. */
-	final public static Executor DEFLATE_EXECUTOR = new Executor() {
-		/*@Override**/ public void execute(Runnable r) {
-			synchronized (Executors.class) {
-				if (deflate_exec == null) {
-					deflate_exec = new ThreadPoolExecutor(
-						0, 0x40, 60, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>(),
-						new ThreadPoolExecutor.CallerRunsPolicy()
-					);
-				}
+	** Sets a journal to record the nodes pushed by updates. If an update is
+	** interrupted, running the same update again on the same tree reuses the
+	** nodes recorded in the journal rather than pushing them again.
+	**
+	** Nodes are identified in the journal by their range of keys and their
+	** size (see {@link #journalKey(SkeletonNode)}), so the keys of this map
+	** must have a {@link Object#toString()} that identifies them, and the
+	** journal must only be used for one particular update. The caller is
+	** responsible for {@linkplain MergeJournal#commit() committing} it, once
+	** the nodes are stored (see {@link MergeJournal.Barrier}).
+	*/
+	public void setJournal(MergeJournal j) {
+		journal = j;
+	}
+
+	public MergeJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	** Identifies a node in the {@link #journal}. During an update, each node
+	** that is pushed has a different range; and the tree that results from
+	** the same update of the same tree is always the same.
+	*/
+	protected String journalKey(SkeletonNode node) {
+		return (node.lkey == null? "*": "[" + node.lkey) + "\u0000" + (node.rkey == null? "*": node.rkey + "]")
+		     + "\u0000" + node.totalSize() + (node.isLeaf()? "\u0000leaf": "");
+	}
+
+	/**
+	** A task of an update that aborted, to be submitted again once its delay
+	** has passed. Constructing this throws the error instead, if it isn't
+	** {@linkplain TaskAbortException#shouldRetry() retryable}, or if the task has
+	** already been retried {@link #UPDATE_RETRIES} times.
+	*/
+	abstract protected static class Retry implements Runnable, Comparable<Retry> {
+
+		/** When to submit the task again */
+		final public long time;
+
+		/**
+		** @param what Describes the task, for the error if it is given up
+		** @param ex The error the task aborted with
+		** @param attempts Number of retries so far of each task
+		** @param task Identifies the task in {@code attempts}
+		*/
+		public Retry(String what, Exception ex, Map<Object, Integer> attempts, Object task) throws TaskAbortException {
+			Integer n = attempts.get(task);
+			n = (n == null)? 1: n + 1;
+			if (!(ex instanceof TaskAbortException) || !((TaskAbortException)ex).shouldRetry()) {
+				throw new TaskAbortException("SkeletonBTreeMap.update(): " + what + " aborted", ex);
+			}
+			if (n > UPDATE_RETRIES) {
+				throw new TaskAbortException("SkeletonBTreeMap.update(): " + what + " aborted " + n + " times, giving up", ex);
 			}
-			deflate_exec.execute(r);
+			attempts.put(task, n);
+			long delay = (n > 30)? UPDATE_RETRY_MAX_DELAY: Math.min(UPDATE_RETRY_DELAY << (n-1), UPDATE_RETRY_MAX_DELAY);
+			Logger.normal(SkeletonBTreeMap.class, "SkeletonBTreeMap.update(): " + what + " aborted, retry " + n + " in " + delay + "ms: " + ex);
+			time = System.currentTimeMillis() + delay;
 		}
-	};
+
+		/*@Override**/ public int compareTo(Retry r) {
+			return (time < r.time)? -1: (time > r.time)? 1: 0;
+		}
+
+	}
 
 	/**
 	** Asynchronously updates a remote B-tree. This uses two-pass merge/split
@@ -803,12 +1095,22 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	** Currently, this method assumes that the root.isBare(). TODO NORM enforce
 	** this..
 	**
-	** This is a wrapper method to deal with the occasional key rejection due to
-	** trying to add too many keys to a single node. It also checks parameters.
+	** Keys in {@code remkey} are removed first, as described in {@link
+	** #removeAll(SortedSet)}. This leaves the nodes that were changed loaded,
+	** and the merge pass then pushes these along with the nodes it changes
+	** itself, so each changed node is still only pushed once. Keys that are
+	** in both sets end up in the map.
 	**
-	** Note: {@code remkey} is not implemented yet.
+	** The removals are not part of the asynchronous pipeline below; they are
+	** a separate pass that blocks while it pulls. The pipeline pushes each
+	** node as soon as its own subnodes have been pushed, and only splits
+	** nodes that overflow. A node that underflows has to be merged with, or
+	** take an entry from, a sibling through their parent, so all three must
+	** still be loaded when that happens; this doesn't fit into the order in
+	** which the pipeline pulls and pushes nodes.
 	**
-	** @throws UnsupportedOperationException if {@code remkey} is not empty
+	** This is a wrapper method to deal with the occasional key rejection due to
+	** trying to add too many keys to a single node. It also checks parameters.
 	*/
 	protected <X extends Exception> void update(
 		SortedSet<K> putkey, SortedSet<K> remkey,
@@ -828,7 +1130,7 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 
 		if (remkey != null && !remkey.isEmpty()) {
-			throw new UnsupportedOperationException("SkeletonBTreeMap: update() currently only supports merge operations");
+			removeAll(remkey);
 		}
 
 		// Handle keys rejected due to node too small for the number of keys we are adding to it.
@@ -849,6 +1151,98 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 	}
 
+	/**
+	** Removes the given keys from a bare tree, loading only the nodes that
+	** this touches.
+	**
+	** The nodes on the paths to the keys are pulled first, one level at a
+	** time, with all the nodes on each level being pulled in parallel. Each
+	** key is then removed using the one-pass algorithm of {@link
+	** BTreeMap#remove(Object)}, which merges and rotates nodes as needed to
+	** stop them from underflowing; any siblings that this needs which have
+	** not been pulled yet are pulled on demand.
+	**
+	** The nodes are not pushed; {@link #update(SortedSet, SortedMap, Closure,
+	** ExceptionConvertor, SortedSet)} does that for every loaded node.
+	**
+	** This blocks while it pulls. Each level of the paths is one parallel
+	** batch, but the siblings pulled on demand are pulled one at a time.
+	*/
+	protected void removeAll(SortedSet<K> remkey) throws TaskAbortException {
+		try {
+			((SkeletonTreeMap<K, V>)root.entries).inflate();
+
+			List<SkeletonNode> level = Collections.singletonList((SkeletonNode)root);
+			while (!level.isEmpty()) {
+				List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+				List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>();
+				List<SkeletonNode> parents = new ArrayList<SkeletonNode>();
+				for (SkeletonNode node: level) {
+					if (node.isLeaf()) { continue; }
+					SortedSet<K> keys = subSet(remkey, node.lkey, node.rkey);
+					for (SortedSet<K> rng: Sorted.split(keys, Sorted.keySet(node.entries), new TreeSet<K>(comparator))) {
+						Node n = node.selectNode(rng.first());
+						if (n.isGhost()) {
+							tasks.add(new PullTask<SkeletonNode>(n));
+							parents.add(node);
+						} else {
+							next.add((SkeletonNode)n);
+						}
+					}
+				}
+				nsrl.pull(tasks);
+				for (int i=0; i<tasks.size(); ++i) {
+					SkeletonNode node = postPullTask(tasks.get(i), parents.get(i));
+					((SkeletonTreeMap<K, V>)node.entries).inflate();
+					next.add(node);
+				}
+				level = next;
+			}
+
+			for (K key: remkey) {
+				for (;;) {
+					try {
+						remove(key);
+						break;
+					} catch (DataNotLoadedException e) {
+						// ghosts that have been moved by an earlier removal
+						// still point to their old parents, so look it up
+						GhostNode ghost = (GhostNode)e.getValue();
+						SkeletonNode parent = findParent(ghost);
+						parent.inflate(ghost.lkey);
+						((SkeletonTreeMap<K, V>)parent.rnodes.get(ghost.lkey).entries).inflate();
+					}
+				}
+			}
+
+		} catch (DataFormatException e) {
+			throw new TaskAbortException("Bad data format", e);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("Could not remove keys", e);
+		} finally {
+			((SkeletonNode)root).reattachGhosts();
+		}
+	}
+
+	/**
+	** Returns the loaded node that the given {@link GhostNode} is attached
+	** to, regardless of what its parent field says.
+	*/
+	protected SkeletonNode findParent(GhostNode ghost) {
+		Node node = root;
+		for (;;) {
+			// if lkey is in the node (or is the node's own lkey) then this gets
+			// the subnode to its right; otherwise it is inside a subnode's range
+			Node n = node.rnodes.get(ghost.lkey);
+			if (n == null) { n = node.selectNode(ghost.lkey); }
+			if (n == ghost) { return (SkeletonNode)node; }
+			if (n == null || n.isGhost()) {
+				throw new IllegalStateException("GhostNode is not attached to the tree: " + ghost.getRange());
+			}
+			node = n;
+		}
+	}
+
 	protected <X extends Exception> void update(
 			SortedSet<K> putkey, 
 			final SortedMap<K, V> putmap, Closure<Map.Entry<K, V>, X> value_handler,
@@ -895,22 +1289,19 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		// be quite fiddly. also, the current way allows the Packer to be more
 		// aggressive in packing the values into splitfiles.
 
-		// FIXME NORM - currently, there is a potential deadlock issue here,
-		// because proc_{pull,push,val} all use the same ThreadPoolExecutor to
-		// execute tasks. if the pool fills up with manager tasks {pull,push}
-		// then worker tasks {val} cannot execute, resulting in deadlock. at
-		// present, this is avoided by having ObjectProcessor.maxconc less than
-		// the poolsize, but future developers may change this unknowingly.
+		// NOTE - the jobs of proc_{pull,push} must not block the threads that
+		// run them. if the pool filled up with manager tasks {pull,push} that
+		// were waiting for I/O, then worker tasks {val} might not be able to
+		// execute, resulting in deadlock. this can be recursive; ie. if the
+		// values are also SkeletonBTreeMaps, then the workers might start
+		// child "manager" tasks by calling value.update()
 		//
-		// a proper solution would be to have manager and worker tasks use
-		// different thread pools, ie. different ThreadPoolExecutors. care
-		// needs to be taken when doing this because the call can be recursive;
-		// ie. if the values are also SkeletonBTreeMaps, then the workers might
-		// start child "manager" tasks by calling value.update()
-		//
-		// arguably a better solution would be to not use threads, and use
-		// the async interface (i should have done this when i first coded it).
-		// see doc/todo.txt for details
+		// the node serialisers from ProtoIndexComponentSerialiser are
+		// AsyncArchivers, so each job only starts its task and returns; I/O
+		// completes through callbacks, archivers that can only block are run
+		// on ParallelSerialiser's own threads, and {val} on VALUE_EXECUTOR. if
+		// nsrl is some other ScheduledSerialiser that blocks in its jobs, then
+		// ObjectProcessor.maxconc must be kept below the size of the pool.
 
 		final ObjectProcessor<PullTask<SkeletonNode>, SafeClosure<SkeletonNode>, TaskAbortException> proc_pull
 		= ((ScheduledSerialiser<SkeletonNode>)nsrl).pullSchedule(
@@ -928,6 +1319,16 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		);
 		proc_push.setNotifier(notifier);
 
+		// pushes that were found in the journal, to be handled as if they had
+		// just completed. only touched by the thread running the loop below
+		final Queue<X2<PushTask<SkeletonNode>, CountingSweeper<SkeletonNode>>> journaled
+		= new LinkedList<X2<PushTask<SkeletonNode>, CountingSweeper<SkeletonNode>>>();
+
+		// tasks that aborted and will be submitted again, in order of when
+		final PriorityQueue<Retry> retries = new PriorityQueue<Retry>();
+		// number of times each task (by its node or entry) has been retried
+		final Map<Object, Integer> attempts = new IdentityHashMap<Object, Integer>();
+
 		/**
 		** Deposit for a value-retrieval operation
 		*/
@@ -964,7 +1365,15 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					assert(node == root);
 					return;
 				}
-				ObjectProcessor.submitSafe(proc_push, new PushTask<SkeletonNode>(node), parNClo);
+				PushTask<SkeletonNode> task = new PushTask<SkeletonNode>(node);
+				Object meta = (journal == null)? null: journal.get(journalKey(node));
+				if (meta != null) {
+					// pushed before this update was interrupted
+					task.meta = node.makeGhost(meta);
+					journaled.add(new X2<PushTask<SkeletonNode>, CountingSweeper<SkeletonNode>>(task, parNClo));
+					return;
+				}
+				ObjectProcessor.submitSafe(proc_push, task, parNClo);
 			}
 
 			/**
@@ -1206,8 +1615,9 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			** children. Runs whenever a node is popped from proc_pull.
 			*/
 			public void invoke(SkeletonNode node) {
-				assert(compareL(node.lkey, putkey.first()) < 0);
-				assert(compareR(putkey.last(), node.rkey) < 0);
+				// putkey may be empty for nodes that were loaded by removeAll()
+				assert(putkey.isEmpty() || compareL(node.lkey, putkey.first()) < 0);
+				assert(putkey.isEmpty() || compareR(putkey.last(), node.rkey) < 0);
 
 				// FIXME HIGH make this asynchronous
 				try { ((SkeletonTreeMap<K, V>)node.entries).inflate(); } catch (TaskAbortException e) { throw new RuntimeException(e); }
@@ -1223,6 +1633,11 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 				// OPT LOW if putkey is empty then skip
 
+				// subnodes that are already loaded (ie. were changed by removeAll()),
+				// and the keys to put into them; these are handled after nClo is
+				// closed, since they may split and re-open it
+				Map<SkeletonNode, SortedSet<K>> loaded = null;
+
 				// each key in putkey is either added to the local entries, or delegated to
 				// the the relevant child node.
 				if (node.isLeaf()) {
@@ -1269,16 +1684,21 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						for (K key: fkey) { handleLocalPut(node, key, vClo); }
 					}
 
+					// don't trust node.ghosts here, removeAll() may have moved
+					// subnodes between nodes since it was counted
+					for (Node n: node.iterNodes()) {
+						if (n.isGhost()) { continue; }
+						if (loaded == null) { loaded = new LinkedHashMap<SkeletonNode, SortedSet<K>>(); }
+						loaded.put((SkeletonNode)n, new TreeSet<K>(comparator));
+					}
+
 					for (SortedSet<K> rng: range) {
-						GhostNode n;
-						try {
-							n = (GhostNode)node.selectNode(rng.first());
-						} catch (ClassCastException e) {
-							// This has been seen in practice. I have no idea what it means.
-							// FIXME HIGH !!!
-							Logger.error(this, "Node is already loaded?!?!?!: "+node.selectNode(rng.first()));
+						Node nn = node.selectNode(rng.first());
+						if (!nn.isGhost()) {
+							loaded.put((SkeletonNode)nn, rng);
 							continue;
 						}
+						GhostNode n = (GhostNode)nn;
 						PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(n);
 						
 						// possibly re-design CountingSweeper to not care about types, or have acquire() instead
@@ -1288,8 +1708,18 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					}
 				}
 
+				if (loaded != null) {
+					for (int i=loaded.size(); i>0; --i) { nClo.acquire((SkeletonNode)null); }
+				}
+
 				nClo.close();
 				if (nClo.isCleared()) { nClo.run(); } // eg. if no child nodes need to be modified
+
+				if (loaded != null) {
+					for (Map.Entry<SkeletonNode, SortedSet<K>> en: loaded.entrySet()) {
+						(new InflateChildNodes(node, en.getValue(), nClo, vClo)).invoke(en.getKey());
+					}
+				}
 			}
 
 			/**
@@ -1312,10 +1742,6 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 				ObjectProcessor.submitSafe(proc_val, $K(key, oldval), vClo);
 			}
 
-			private void handleLocalRemove(SkeletonNode n, K key, TrackingSweeper<K, SortedSet<K>> vClo) {
-				throw new UnsupportedOperationException("not implemented");
-			}
-
 		}
 
 		proc_pull.setName("pull");
@@ -1346,19 +1772,44 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 						System.out.println(/*System.identityHashCode(this) + " " + */proc_val + " " + proc_pull + " " + proc_push+ " "+proc_deflate);
 //						ccount = 0;
 //					}
-					notifier.waitUpdate(1000);
+					long wait = retries.isEmpty()? 1000: Math.min(1000, retries.peek().time - System.currentTimeMillis());
+					if (wait > 0) { notifier.waitUpdate((int)wait); }
 				}
 				progress = false;
-				
+
+				while (!retries.isEmpty() && retries.peek().time <= System.currentTimeMillis()) {
+					retries.poll().run();
+					progress = true;
+				}
+
 				boolean loop = false;
-				while (proc_push.hasCompleted()) {
-					X3<PushTask<SkeletonNode>, CountingSweeper<SkeletonNode>, TaskAbortException> res = proc_push.accept();
-					PushTask<SkeletonNode> task = res._0;
-					CountingSweeper<SkeletonNode> sw = res._1;
-					TaskAbortException ex = res._2;
-					if (ex != null) {
-						// FIXME HIGH
-						throw new UnsupportedOperationException("SkeletonBTreeMap.update(): PushTask aborted; handler not implemented yet", ex);
+				while (!journaled.isEmpty() || proc_push.hasCompleted()) {
+					PushTask<SkeletonNode> task;
+					CountingSweeper<SkeletonNode> sw;
+					if (!journaled.isEmpty()) {
+						X2<PushTask<SkeletonNode>, CountingSweeper<SkeletonNode>> res = journaled.poll();
+						task = res._0;
+						sw = res._1;
+					} else {
+						X3<PushTask<SkeletonNode>, CountingSweeper<SkeletonNode>, TaskAbortException> res = proc_push.accept();
+						task = res._0;
+						sw = res._1;
+						TaskAbortException ex = res._2;
+						if (ex != null) {
+							final PushTask<SkeletonNode> old = task;
+							final CountingSweeper<SkeletonNode> osw = sw;
+							retries.add(new Retry("push " + task.data.getRange(), ex, attempts, task.data) {
+								public void run() {
+									ObjectProcessor.submitSafe(proc_push, new PushTask<SkeletonNode>(old.data), osw);
+								}
+							});
+							loop = true;
+							progress = true;
+							continue;
+						}
+						if (journal != null) {
+							journal.put(journalKey(task.data), ((GhostNode)task.meta).getMeta());
+						}
 					}
 
 					postPushTask(task, ((SplitNode)sw).node);
@@ -1390,8 +1841,15 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					DeflateNode sw = res._1;
 					X ex = res._2;
 					if (ex != null) {
-						// FIXME HIGH
-						throw new UnsupportedOperationException("SkeletonBTreeMap.update(): value-retrieval aborted; handler not implemented yet", ex);
+						final Map.Entry<K, V> oen = en;
+						final DeflateNode osw = sw;
+						retries.add(new Retry("value for " + en.getKey(), ex, attempts, en) {
+							public void run() {
+								ObjectProcessor.submitSafe(proc_val, oen, osw);
+							}
+						});
+						progress = true;
+						continue;
 					}
 
 					sw.invoke(en);
@@ -1409,8 +1867,15 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					SafeClosure<SkeletonNode> clo = res._1;
 					TaskAbortException ex = res._2;
 					if (ex != null) {
-						// FIXME HIGH
-						throw new UnsupportedOperationException("SkeletonBTreeMap.update(): PullTask aborted; handler not implemented yet", ex);
+						final GhostNode ghost = (GhostNode)task.meta;
+						final SafeClosure<SkeletonNode> oclo = clo;
+						retries.add(new Retry("pull " + ghost.getRange(), ex, attempts, ghost) {
+							public void run() {
+								ObjectProcessor.submitSafe(proc_pull, new PullTask<SkeletonNode>(ghost), oclo);
+							}
+						});
+						progress = true;
+						continue;
 					}
 
 					SkeletonNode node = postPullTask(task, ((InflateChildNodes)clo).parent);
@@ -1419,7 +1884,8 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 					continue;
 				}
 
-			} while (proc_pull.hasPending() || proc_push.hasPending() || (proc_val != null && proc_val.hasPending()) || proc_deflate.hasPending());
+			} while (proc_pull.hasPending() || proc_push.hasPending() || (proc_val != null && proc_val.hasPending()) || proc_deflate.hasPending()
+			      || !retries.isEmpty() || !journaled.isEmpty());
 
 			size = root.totalSize();
 
@@ -0,0 +1,191 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+** A bounded, least-recently-used cache of the loaded parts of {@link
+** Skeleton} structures. Each {@link Item} has a weight, which should be
+** roughly proportional to the memory it takes up, and knows how to unload
+** itself; when the total weight exceeds the budget, the least-recently-used
+** items are unloaded until it is back under.
+**
+** This class doesn't load anything itself; users call {@link #touch(Object)}
+** whenever they use something, and {@link #put(Object, Item)} after they
+** have loaded it. Keys are compared using {@link Object#equals(Object)}, so
+** nodes and other objects that don't override it are cached by identity.
+**
+** Upper levels of a tree are used by every lookup that goes through them, so
+** as long as callers touch the whole path to whatever they look up, these
+** will stay near the most-recently-used end and leaves will be dropped first.
+*/
+public class SkeletonCache<K> {
+
+	/**
+	** A loaded part of a structure that can be unloaded again.
+	*/
+	abstract public static class Item {
+
+		final protected long weight;
+
+		public Item(long w) {
+			if (w < 0) { throw new IllegalArgumentException("negative weight"); }
+			weight = w;
+		}
+
+		public long getWeight() {
+			return weight;
+		}
+
+		/**
+		** Unload this item from the structure it belongs to. This is called
+		** without any locks held on the cache, so implementations may call
+		** back into it, eg. to {@link #remove(Object)} dependent items.
+		**
+		** @return Whether anything was actually unloaded
+		*/
+		abstract public boolean unload();
+
+	}
+
+	final protected LinkedHashMap<K, Item> items = new LinkedHashMap<K, Item>(0x40, 0.75f, true);
+
+	protected long budget;
+	protected long weight;
+
+	protected long hits;
+	protected long misses;
+	protected long evictions;
+
+	/**
+	** @param b Maximum total weight of all items
+	*/
+	public SkeletonCache(long b) {
+		budget = b;
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	** Set the budget. If this is smaller than the current weight, items are
+	** unloaded straight away.
+	*/
+	public void setBudget(long b) {
+		synchronized (this) {
+			budget = b;
+		}
+		evict();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized int size() {
+		return items.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	** Mark the item for the given key as recently used, and count a hit if
+	** there was one and a miss otherwise.
+	**
+	** @return Whether the key was in the cache
+	*/
+	public synchronized boolean touch(K key) {
+		if (items.get(key) != null) {
+			++hits;
+			return true;
+		} else {
+			++misses;
+			return false;
+		}
+	}
+
+	public synchronized boolean contains(K key) {
+		return items.containsKey(key);
+	}
+
+	/**
+	** Add an item as the most-recently-used, replacing any previous item for
+	** the key (without unloading it), then unload items until the total
+	** weight is within the budget.
+	*/
+	public void put(K key, Item item) {
+		synchronized (this) {
+			Item old = items.put(key, item);
+			if (old != null) { weight -= old.weight; }
+			weight += item.weight;
+		}
+		evict();
+	}
+
+	/**
+	** Remove an item without unloading it.
+	*/
+	public synchronized Item remove(K key) {
+		Item old = items.remove(key);
+		if (old != null) { weight -= old.weight; }
+		return old;
+	}
+
+	/**
+	** Unload items in least-recently-used order until the total weight is
+	** within the budget. The most-recently-used item is never unloaded, so
+	** that something larger than the entire budget can still be used.
+	*/
+	protected void evict() {
+		for (;;) {
+			Item item;
+			synchronized (this) {
+				if (weight <= budget || items.size() <= 1) { return; }
+				Iterator<Map.Entry<K, Item>> it = items.entrySet().iterator();
+				item = it.next().getValue();
+				it.remove();
+				weight -= item.weight;
+				++evictions;
+			}
+			item.unload();
+		}
+	}
+
+	/**
+	** Unload everything.
+	*/
+	public void clear() {
+		for (;;) {
+			Item item;
+			synchronized (this) {
+				if (items.isEmpty()) { return; }
+				Iterator<Map.Entry<K, Item>> it = items.entrySet().iterator();
+				item = it.next().getValue();
+				it.remove();
+				weight -= item.weight;
+			}
+			item.unload();
+		}
+	}
+
+	@Override public synchronized String toString() {
+		return "SkeletonCache: " + items.size() + " items, weight " + weight + "/" + budget
+		     + "; hits: " + hits + "; misses: " + misses + "; evictions: " + evictions;
+	}
+
+}
@@ -45,8 +45,12 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	** {@link SkeletonValue} for a given key is never overwritten; only its
 	** contents are. This ensures correct behaviour for the {@link
 	** UnwrappingIterator} class.
+	**
+	** This is a {@link SortedArrayMap}, since these maps hold the entries of
+	** {@link SkeletonBTreeMap} nodes, and a {@link TreeMap} would cost an
+	** extra object for every entry.
 	*/
-	final protected TreeMap<K, SkeletonValue<V>> skmap;
+	final protected SortedArrayMap<K, SkeletonValue<V>> skmap;
 
 	/**
 	** The meta data for this skeleton.
@@ -59,31 +63,43 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	protected transient int ghosts;
 
 	public SkeletonTreeMap() {
-		skmap = new TreeMap<K, SkeletonValue<V>>();
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>();
 	}
 
 	public SkeletonTreeMap(Comparator<? super K> c) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(c);
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(c);
 	}
 
 	public SkeletonTreeMap(Map<? extends K,? extends V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>();
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>();
 		putAll(m);
 	}
 
 	public SkeletonTreeMap(SortedMap<K,? extends V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(m.comparator());
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(m.comparator());
 		putAll(m);
 	}
 
 	public SkeletonTreeMap(SkeletonTreeMap<K, V> m) {
-		skmap = new TreeMap<K, SkeletonValue<V>>(m.comparator());
+		m.expand();
+		skmap = new SortedArrayMap<K, SkeletonValue<V>>(m.comparator());
 		for (Map.Entry<K, SkeletonValue<V>> en: m.skmap.entrySet()) {
 			skmap.put(en.getKey(), en.getValue().clone());
 		}
 		ghosts = m.ghosts;
 	}
 
+	/**
+	** Makes sure that all the entries of this map are in {@link #skmap}.
+	**
+	** Subclasses may hold their entries in some other, more compact, form
+	** until they are needed. Such a subclass must override this method to
+	** move them into {@link #skmap}, and must call it before any method of
+	** this class that uses {@link #skmap}. This class calls it before using
+	** the {@link #skmap} of another map.
+	*/
+	protected void expand() { }
+
 	/**
 	** Set the metadata for the {@link SkeletonValue} for a given key.
 	*/
@@ -103,6 +119,23 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 		}
 	}
 
+	/**
+	** Revert the value for the given key to a ghost, using the metadata it
+	** was loaded from, without pushing it. This is only correct if the value
+	** has not been modified since it was loaded, eg. for a structure that is
+	** only ever read from.
+	**
+	** @return Whether the value was unloaded; this is {@code false} if it was
+	**         not loaded, or was not loaded from the serialiser.
+	*/
+	public boolean unload(K key) {
+		SkeletonValue<V> sk = skmap.get(key);
+		if (sk == null || !sk.isLoaded() || sk.meta() == null) { return false; }
+		sk.setGhost(sk.meta());
+		++ghosts;
+		return true;
+	}
+
 	protected MapSerialiser<K, V> serialiser;
 	public void setSerialiser(MapSerialiser<K, V> s) {
 		if (serialiser != null && !isLive()) {
@@ -114,6 +147,8 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	public static <K, V> void swapKey(K key, SkeletonTreeMap<K, V> src, SkeletonTreeMap<K, V> dst) {
 		if (dst.containsKey(key)) { throw new IllegalArgumentException("SkeletonTreeMap.swapKey: key " + key + " already exists in target map"); }
 		if (!src.containsKey(key)) { throw new IllegalArgumentException("SkeletonTreeMap.swapKey: key " + key + " does not exist in source map"); }
+		src.expand();
+		dst.expand();
 		SkeletonValue<V> sk = src.skmap.remove(key);
 		if (!sk.isLoaded()) { --src.ghosts; ++dst.ghosts; }
 		dst.skmap.put(key, sk);
@@ -198,9 +233,25 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	}
 
 	/*@Override**/ public void inflate(K key) throws TaskAbortException {
+		inflate(key, this);
+	}
+
+	/**
+	** Inflates the value for the given key, as for {@link #inflate(Object)},
+	** but only holds the given lock while the values are put into the map,
+	** and not while they are pulled. Readers that hold the same lock never
+	** see the map while it is being changed.
+	**
+	** @param key The key
+	** @param lock The lock that guards reads of this map
+	*/
+	public void inflate(K key, Object lock) throws TaskAbortException {
 		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
 
-		SkeletonValue<V> skel = skmap.get(key);
+		SkeletonValue<V> skel;
+		synchronized (lock) {
+			skel = skmap.get(key);
+		}
 		if (skel == null) {
 			throw new IllegalArgumentException("Key " + key + " does not belong to the map");
 		} else if (skel.isLoaded()) {
@@ -212,27 +263,8 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 
 		try {
 			serialiser.pull(tasks, mapmeta);
-
-			put(key, tasks.remove(key).data);
-			// TODO NORM atm old metadata is retained, could update?
-			if (tasks.isEmpty()) { return; }
-
-			for (Map.Entry<K, PullTask<V>> en: tasks.entrySet()) {
-				// other keys may also have been inflated, so add them, but only if the
-				// generated metadata match.
-				PullTask<V> t = en.getValue();
-				if(t.data == null)
-					throw new DataFormatException("Inflate got null from PullTask for "+key+" on "+this, null, null, tasks, en.getKey());
-				SkeletonValue<V> sk = skmap.get(en.getKey());
-				if (sk == null) { throw new DataFormatException("SkeletonTreeMap got unexpected extra data from the serialiser.", null, sk, tasks, en.getKey()); }
-				if (sk.meta().equals(t.meta)) {
-					if (!sk.isLoaded()) { --ghosts; }
-					sk.set(t.data);
-				}
-				// if they don't match, then the data was only partially inflated
-				// (note: at the time of coding, only SplitPacker does this, and
-				// that is deprecated) so ignore for now. (needs a new data
-				// structure to allow partial inflates of values...)
+			synchronized (lock) {
+				putPulled(key, tasks);
 			}
 
 		} catch (TaskCompleteException e) {
@@ -242,6 +274,33 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 		}
 	}
 
+	/**
+	** Puts the values pulled by {@link #inflate(Object, Object)} into the map.
+	*/
+	private void putPulled(K key, Map<K, PullTask<V>> tasks) throws DataFormatException {
+		put(key, tasks.remove(key).data);
+		// TODO NORM atm old metadata is retained, could update?
+		if (tasks.isEmpty()) { return; }
+
+		for (Map.Entry<K, PullTask<V>> en: tasks.entrySet()) {
+			// other keys may also have been inflated, so add them, but only if the
+			// generated metadata match.
+			PullTask<V> t = en.getValue();
+			if(t.data == null)
+				throw new DataFormatException("Inflate got null from PullTask for "+key+" on "+this, null, null, tasks, en.getKey());
+			SkeletonValue<V> sk = skmap.get(en.getKey());
+			if (sk == null) { throw new DataFormatException("SkeletonTreeMap got unexpected extra data from the serialiser.", null, sk, tasks, en.getKey()); }
+			if (sk.meta().equals(t.meta)) {
+				if (!sk.isLoaded()) { --ghosts; }
+				sk.set(t.data);
+			}
+			// if they don't match, then the data was only partially inflated
+			// (note: at the time of coding, only SplitPacker does this, and
+			// that is deprecated) so ignore for now. (needs a new data
+			// structure to allow partial inflates of values...)
+		}
+	}
+
 	/*@Override**/ public void deflate(K key) throws TaskAbortException {
 		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
 
@@ -300,6 +359,7 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 				throw new UnsupportedOperationException("Sorry, this translator does not (yet) support comparators");
 			}
 			// FIXME LOW maybe get rid of intm and just always use HashMap
+			map.expand();
 			if (ktr != null) {
 				for (Map.Entry<K, SkeletonValue<V>> en: map.skmap.entrySet()) {
 					intm.put(ktr.app(en.getKey()), en.getValue().meta());
@@ -402,6 +462,7 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 	@Override public void putAll(Map<? extends K,? extends V> map) {
 		SortedMap<K, SkeletonValue<V>> putmap;
 		if (map instanceof SkeletonTreeMap) {
+			((SkeletonTreeMap<?, ?>)map).expand();
 			putmap = ((SkeletonTreeMap<K, V>)map).skmap;
 		} else if (map instanceof SkeletonTreeMap.UnwrappingSortedSubMap) {
 			putmap = ((UnwrappingSortedSubMap)map).bkmap;
@@ -549,6 +610,7 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 
 	@Override public boolean equals(Object o) {
 		if (o instanceof SkeletonTreeMap) {
+			((SkeletonTreeMap<?, ?>)o).expand();
 			return skmap.equals(((SkeletonTreeMap<K, V>)o).skmap);
 		}
 		return super.equals(o);
@@ -0,0 +1,729 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.AbstractCollection;
+import java.util.NoSuchElementException;
+import java.util.ConcurrentModificationException;
+
+/**
+** A mutable {@link SortedMap} backed by two parallel sorted arrays, one for
+** the keys and one for the values. Lookups are binary searches; insertions
+** and removals shift the tail of the arrays along.
+**
+** This is meant for maps that hold at most a few thousand entries, such as
+** the entries and subnodes of a {@link BTreeMap.Node}. Compared to a {@link
+** java.util.TreeMap}, there is no per-entry object, and ranges of entries
+** can be moved between maps, or removed, with a single array copy (see
+** {@link #putAll(Map)} and {@link #moveHead(int, SortedMap)}, and {@code
+** clear()} on the views returned by {@link #headMap(Object)} etc).
+**
+** The arrays are not allocated until the first entry is added, so an empty
+** map costs only a few fields.
+**
+** JDK6 implement NavigableMap
+*/
+public class SortedArrayMap<K, V> extends AbstractMap<K, V>
+implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializable*/ {
+
+	/**
+	** Capacity of the arrays when they are first allocated.
+	*/
+	final public static int INITIAL_CAPACITY = 4;
+
+	/**
+	** The comparator used to sort the keys.
+	*/
+	final protected Comparator<? super K> comparator;
+
+	/**
+	** The keys, sorted. Only the first {@link #size} elements are used.
+	*/
+	protected K[] keys;
+
+	/**
+	** The values; {@code vals[i]} is the value for {@code keys[i]}.
+	*/
+	protected V[] vals;
+
+	/**
+	** Number of entries in the map.
+	*/
+	protected int size;
+
+	/**
+	** Number of structural modifications, for detecting concurrent changes
+	** during iteration.
+	*/
+	protected transient int modCount;
+
+	public SortedArrayMap() {
+		this(null);
+	}
+
+	/**
+	** @param cmp The comparator used for sorting. A {@code null} value means
+	**        {@linkplain Comparable natural ordering} is used.
+	*/
+	public SortedArrayMap(Comparator<? super K> cmp) {
+		comparator = cmp;
+	}
+
+	/**
+	** Compares two keys, using the comparator, or their natural ordering if
+	** it is {@code null}.
+	*/
+	// keys that aren't Ks throw ClassCastException here, as for TreeMap
+	@SuppressWarnings("unchecked")
+	protected int compare(Object k1, Object k2) {
+		return (comparator == null)? ((Comparable<Object>)k1).compareTo(k2): comparator.compare((K)k1, (K)k2);
+	}
+
+	/**
+	** Binary search between the given indexes.
+	**
+	** @return The index of the key, if it is present; otherwise {@code
+	**         (-(insertion point) - 1)}, like {@link Arrays#binarySearch(
+	**         Object[], int, int, Object, Comparator)}.
+	*/
+	// as for compare(Object, Object)
+	@SuppressWarnings("unchecked")
+	protected int search(Object key, int l, int r) {
+		if (key == null && comparator == null) { throw new NullPointerException(); }
+		return (l == r)? ~l: Arrays.binarySearch(keys, l, r, (K)key, comparator);
+	}
+
+	/**
+	** Returns the index of the given key in the arrays.
+	**
+	** @return The index of the key, if it is present; otherwise {@code
+	**         (-(insertion point) - 1)}
+	*/
+	public int indexOf(Object key) {
+		return search(key, 0, size);
+	}
+
+	/**
+	** Returns the index of the least key greater than or equal to the given
+	** key, or {@link #size()} if there is no such key.
+	*/
+	public int ceilingIndex(K key) {
+		int i = search(key, 0, size);
+		return (i < 0)? ~i: i;
+	}
+
+	/**
+	** Returns the key at the given index.
+	**
+	** @throws IndexOutOfBoundsException if the index is not less than {@link
+	**         #size()}
+	*/
+	public K keyAt(int i) {
+		if (i >= size) { throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size); }
+		return keys[i];
+	}
+
+	/**
+	** Returns the value at the given index.
+	**
+	** @throws IndexOutOfBoundsException if the index is not less than {@link
+	**         #size()}
+	*/
+	public V valueAt(int i) {
+		if (i >= size) { throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size); }
+		return vals[i];
+	}
+
+	// the arrays only ever hold Ks and Vs, and are never handed out
+	@SuppressWarnings("unchecked")
+	protected void ensureCapacity(int n) {
+		if (keys == null) {
+			int c = Math.max(n, INITIAL_CAPACITY);
+			keys = (K[])new Object[c];
+			vals = (V[])new Object[c];
+		} else if (n > keys.length) {
+			int c = Math.max(n, keys.length<<1);
+			keys = Arrays.copyOf(keys, c);
+			vals = Arrays.copyOf(vals, c);
+		}
+	}
+
+	/**
+	** Opens a gap of {@code n} slots at index {@code i}. The caller must fill
+	** them in.
+	*/
+	protected void openGap(int i, int n) {
+		ensureCapacity(size + n);
+		System.arraycopy(keys, i, keys, i+n, size-i);
+		System.arraycopy(vals, i, vals, i+n, size-i);
+		size += n;
+		++modCount;
+	}
+
+	protected void insertAt(int i, K key, V val) {
+		openGap(i, 1);
+		keys[i] = key;
+		vals[i] = val;
+	}
+
+	protected V removeAt(int i) {
+		V old = vals[i];
+		removeRange(i, i+1);
+		return old;
+	}
+
+	/**
+	** Removes the entries with indexes from {@code l} (inclusive) to {@code
+	** r} (exclusive).
+	*/
+	protected void removeRange(int l, int r) {
+		assert(0 <= l && l <= r && r <= size);
+		if (l == r) { return; }
+		if (l == 0 && r == size) {
+			// let a map that has been emptied out give back its memory
+			keys = null;
+			vals = null;
+		} else {
+			System.arraycopy(keys, r, keys, l, size-r);
+			System.arraycopy(vals, r, vals, l, size-r);
+			Arrays.fill(keys, size-(r-l), size, null);
+			Arrays.fill(vals, size-(r-l), size, null);
+		}
+		size -= r-l;
+		++modCount;
+	}
+
+	/**
+	** Whether the given map is sorted in the same order as this one.
+	*/
+	protected boolean sameOrder(Map<?, ?> m) {
+		if (!(m instanceof SortedMap)) { return false; }
+		Comparator<?> cmp = ((SortedMap<?, ?>)m).comparator();
+		return cmp == comparator || cmp != null && cmp.equals(comparator);
+	}
+
+	/**
+	** Moves the {@code n} smallest entries of this map into the given map.
+	** If that is also a {@link SortedArrayMap} and all of its keys are
+	** smaller (or greater) than the moved ones, this is just two array
+	** copies.
+	**
+	** @throws IndexOutOfBoundsException if {@code n} is greater than {@link
+	**         #size()}
+	*/
+	public void moveHead(int n, SortedMap<K, V> dst) {
+		if (n > size) { throw new IndexOutOfBoundsException("Index: " + n + ", size: " + size); }
+		if (n == 0) { return; }
+		int i;
+		if (dst instanceof SortedArrayMap && sameOrder(dst)
+		  && (i = ((SortedArrayMap<K, V>)dst).gapFor(keys[0], keys[n-1])) >= 0) {
+			SortedArrayMap<K, V> map = (SortedArrayMap<K, V>)dst;
+			map.openGap(i, n);
+			System.arraycopy(keys, 0, map.keys, i, n);
+			System.arraycopy(vals, 0, map.vals, i, n);
+		} else {
+			for (int j=0; j<n; ++j) { dst.put(keys[j], vals[j]); }
+		}
+		removeRange(0, n);
+	}
+
+	/**
+	** Returns the index at which a sorted run of keys from {@code first} to
+	** {@code last} could be inserted in one piece, or {@code -1} if some key
+	** of this map lies between them.
+	*/
+	protected int gapFor(K first, K last) {
+		int l = search(first, 0, size);
+		if (l >= 0) { return -1; }
+		l = ~l;
+		if (l < size && compare(keys[l], last) <= 0) { return -1; }
+		return l;
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
+	}
+
+	@Override public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override public boolean containsKey(Object key) {
+		return search(key, 0, size) >= 0;
+	}
+
+	@Override public V get(Object key) {
+		int i = search(key, 0, size);
+		return (i < 0)? null: vals[i];
+	}
+
+	@Override public V put(K key, V value) {
+		int i = search(key, 0, size);
+		if (i >= 0) {
+			V old = vals[i];
+			vals[i] = value;
+			return old;
+		}
+		insertAt(~i, key, value);
+		return null;
+	}
+
+	@Override public V remove(Object key) {
+		int i = search(key, 0, size);
+		return (i < 0)? null: removeAt(i);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If the given map is sorted in the same order as this one, and none of
+	** the keys of this map lies between its first and last keys, its entries
+	** are copied into a gap opened in one go, rather than inserted one at a
+	** time. This is the case when joining two adjacent ranges of keys.
+	*/
+	@Override public void putAll(Map<? extends K, ? extends V> m) {
+		int n = m.size(), i;
+		if (n > 1 && sameOrder(m)) {
+			SortedMap<? extends K, ? extends V> sm = (SortedMap<? extends K, ? extends V>)m;
+			if ((i = gapFor(sm.firstKey(), sm.lastKey())) >= 0) {
+				openGap(i, n);
+				int j = i;
+				for (Map.Entry<? extends K, ? extends V> en: sm.entrySet()) {
+					if (j == i+n) { throw new ConcurrentModificationException(); }
+					keys[j] = en.getKey();
+					vals[j] = en.getValue();
+					++j;
+				}
+				if (j != i+n) { throw new ConcurrentModificationException(); }
+				return;
+			}
+		}
+		for (Map.Entry<? extends K, ? extends V> en: m.entrySet()) {
+			put(en.getKey(), en.getValue());
+		}
+	}
+
+	@Override public void clear() {
+		removeRange(0, size);
+	}
+
+	private transient Set<Map.Entry<K, V>> entries;
+	@Override public Set<Map.Entry<K, V>> entrySet() {
+		if (entries == null) {
+			entries = new EntrySet(null);
+		}
+		return entries;
+	}
+
+	private transient Set<K> keyset;
+	@Override public Set<K> keySet() {
+		if (keyset == null) {
+			keyset = new KeySet(null);
+		}
+		return keyset;
+	}
+
+	private transient Collection<V> values;
+	@Override public Collection<V> values() {
+		if (values == null) {
+			values = new Values(null);
+		}
+		return values;
+	}
+
+	/*========================================================================
+	  public interface SortedMap
+	 ========================================================================*/
+
+	/*@Override**/ public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/*@Override**/ public K firstKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return keys[0];
+	}
+
+	/*@Override**/ public K lastKey() {
+		if (size == 0) { throw new NoSuchElementException(); }
+		return keys[size-1];
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The view is live; clearing it removes the whole range from this map
+	** with a single array copy.
+	*/
+	/*@Override**/ public SortedMap<K, V> headMap(K to) {
+		return new SubMap(null, false, to, true);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The view is live; clearing it removes the whole range from this map
+	** with a single array copy.
+	*/
+	/*@Override**/ public SortedMap<K, V> tailMap(K fr) {
+		return new SubMap(fr, true, null, false);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The view is live; clearing it removes the whole range from this map
+	** with a single array copy.
+	*/
+	/*@Override**/ public SortedMap<K, V> subMap(K fr, K to) {
+		if (compare(fr, to) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+		return new SubMap(fr, true, to, true);
+	}
+
+	/************************************************************************
+	** A view of the keys exclusively between two bounds. The indexes of the
+	** range are looked up again for each operation, so the view stays valid
+	** while the backing map changes.
+	*/
+	protected class SubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+		final K fr;
+		final boolean hasfr;
+		final K to;
+		final boolean hasto;
+
+		protected SubMap(K f, boolean hf, K t, boolean ht) {
+			fr = f; hasfr = hf;
+			to = t; hasto = ht;
+		}
+
+		int lo() {
+			return (hasfr)? ceilingIndex(fr): 0;
+		}
+
+		int hi() {
+			return (hasto)? ceilingIndex(to): size;
+		}
+
+		boolean inRange(Object key, boolean inclusive) {
+			return (!hasfr || compare(key, fr) >= 0)
+			    && (!hasto || compare(key, to) < (inclusive? 1: 0));
+		}
+
+		void checkRange(Object key) {
+			if (!inRange(key, true)) {
+				throw new IllegalArgumentException("Key not in this submap's range");
+			}
+		}
+
+		@Override public int size() {
+			return Math.max(0, hi() - lo());
+		}
+
+		@Override public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override public boolean containsKey(Object key) {
+			return inRange(key, false) && SortedArrayMap.this.containsKey(key);
+		}
+
+		@Override public V get(Object key) {
+			return (inRange(key, false))? SortedArrayMap.this.get(key): null;
+		}
+
+		@Override public V put(K key, V value) {
+			if (!inRange(key, false)) {
+				throw new IllegalArgumentException("Key not in this submap's range");
+			}
+			return SortedArrayMap.this.put(key, value);
+		}
+
+		@Override public V remove(Object key) {
+			return (inRange(key, false))? SortedArrayMap.this.remove(key): null;
+		}
+
+		@Override public void clear() {
+			int l = lo(), r = hi();
+			if (l < r) { removeRange(l, r); }
+		}
+
+		private transient Set<Map.Entry<K, V>> entries;
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			if (entries == null) {
+				entries = new EntrySet(this);
+			}
+			return entries;
+		}
+
+		private transient Set<K> keyset;
+		@Override public Set<K> keySet() {
+			if (keyset == null) {
+				keyset = new KeySet(this);
+			}
+			return keyset;
+		}
+
+		private transient Collection<V> values;
+		@Override public Collection<V> values() {
+			if (values == null) {
+				values = new Values(this);
+			}
+			return values;
+		}
+
+		/*@Override**/ public Comparator<? super K> comparator() {
+			return comparator;
+		}
+
+		/*@Override**/ public K firstKey() {
+			int l = lo();
+			if (l >= hi()) { throw new NoSuchElementException(); }
+			return keys[l];
+		}
+
+		/*@Override**/ public K lastKey() {
+			int r = hi();
+			if (lo() >= r) { throw new NoSuchElementException(); }
+			return keys[r-1];
+		}
+
+		/*@Override**/ public SortedMap<K, V> headMap(K t) {
+			checkRange(t);
+			return new SubMap(fr, hasfr, t, true);
+		}
+
+		/*@Override**/ public SortedMap<K, V> tailMap(K f) {
+			checkRange(f);
+			return new SubMap(f, true, to, hasto);
+		}
+
+		/*@Override**/ public SortedMap<K, V> subMap(K f, K t) {
+			checkRange(f);
+			checkRange(t);
+			if (compare(f, t) > 0) { throw new IllegalArgumentException("fromKey > toKey"); }
+			return new SubMap(f, true, t, true);
+		}
+
+	}
+
+	/************************************************************************
+	** Iterator over a range of indexes, which can remove the last element
+	** returned.
+	*/
+	abstract protected class RangeIterator<T> implements Iterator<T> {
+
+		int i;
+		int end;
+		int last = -1;
+		int expected = modCount;
+
+		protected RangeIterator(SubMap range) {
+			i = (range == null)? 0: range.lo();
+			end = (range == null)? size: range.hi();
+		}
+
+		abstract protected T get(int i);
+
+		public boolean hasNext() {
+			return i < end;
+		}
+
+		public T next() {
+			if (modCount != expected) { throw new ConcurrentModificationException(); }
+			if (i >= end) { throw new NoSuchElementException(); }
+			return get(last = i++);
+		}
+
+		public void remove() {
+			if (last < 0) { throw new IllegalStateException(); }
+			if (modCount != expected) { throw new ConcurrentModificationException(); }
+			removeAt(last);
+			i = last;
+			--end;
+			last = -1;
+			expected = modCount;
+		}
+
+	}
+
+	/************************************************************************
+	** An entry of the map. Its value is read from and written to the map, for
+	** as long as the key is in the map.
+	*/
+	protected class Entry implements Map.Entry<K, V> {
+
+		final K key;
+		V val;
+		int hint;
+
+		protected Entry(int i) {
+			key = keys[i];
+			val = vals[i];
+			hint = i;
+		}
+
+		protected int index() {
+			if (hint < size && keys[hint] == key) { return hint; }
+			return hint = search(key, 0, size);
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			int i = index();
+			return (i < 0)? val: (val = vals[i]);
+		}
+
+		public V setValue(V value) {
+			int i = index();
+			if (i < 0) { throw new IllegalStateException("Entry is no longer in the map"); }
+			V old = vals[i];
+			vals[i] = val = value;
+			return old;
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry<?, ?> en = (Map.Entry<?, ?>)o;
+			V v = getValue();
+			return (key == null? en.getKey() == null: key.equals(en.getKey()))
+			    && (v == null? en.getValue() == null: v.equals(en.getValue()));
+		}
+
+		@Override public int hashCode() {
+			V v = getValue();
+			return (key == null? 0: key.hashCode()) ^ (v == null? 0: v.hashCode());
+		}
+
+		@Override public String toString() {
+			return key + "=" + getValue();
+		}
+
+	}
+
+	/**
+	** Returns the index of the given key within the given range, or {@code
+	** -1} if it is not in the range.
+	*/
+	protected int indexIn(SubMap range, Object key) {
+		if (range != null && !range.inRange(key, false)) { return -1; }
+		int i = search(key, 0, size);
+		return (i < 0)? -1: i;
+	}
+
+	protected class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+		final SubMap range;
+
+		protected EntrySet(SubMap r) {
+			range = r;
+		}
+
+		@Override public int size() {
+			return (range == null)? size: range.size();
+		}
+
+		@Override public Iterator<Map.Entry<K, V>> iterator() {
+			return new RangeIterator<Map.Entry<K, V>>(range) {
+				@Override protected Map.Entry<K, V> get(int i) { return new Entry(i); }
+			};
+		}
+
+		@Override public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry)) { return false; }
+			Map.Entry<?, ?> en = (Map.Entry<?, ?>)o;
+			int i = indexIn(range, en.getKey());
+			if (i < 0) { return false; }
+			Object v = en.getValue();
+			return (v == null)? vals[i] == null: v.equals(vals[i]);
+		}
+
+		@Override public boolean remove(Object o) {
+			if (!contains(o)) { return false; }
+			removeAt(indexIn(range, ((Map.Entry<?, ?>)o).getKey()));
+			return true;
+		}
+
+		@Override public void clear() {
+			if (range == null) { SortedArrayMap.this.clear(); } else { range.clear(); }
+		}
+
+	}
+
+	protected class KeySet extends AbstractSet<K> {
+
+		final SubMap range;
+
+		protected KeySet(SubMap r) {
+			range = r;
+		}
+
+		@Override public int size() {
+			return (range == null)? size: range.size();
+		}
+
+		@Override public Iterator<K> iterator() {
+			return new RangeIterator<K>(range) {
+				@Override protected K get(int i) { return keys[i]; }
+			};
+		}
+
+		@Override public boolean contains(Object o) {
+			return indexIn(range, o) >= 0;
+		}
+
+		@Override public boolean remove(Object o) {
+			int i = indexIn(range, o);
+			if (i < 0) { return false; }
+			removeAt(i);
+			return true;
+		}
+
+		@Override public void clear() {
+			if (range == null) { SortedArrayMap.this.clear(); } else { range.clear(); }
+		}
+
+	}
+
+	protected class Values extends AbstractCollection<V> {
+
+		final SubMap range;
+
+		protected Values(SubMap r) {
+			range = r;
+		}
+
+		@Override public int size() {
+			return (range == null)? size: range.size();
+		}
+
+		@Override public Iterator<V> iterator() {
+			return new RangeIterator<V>(range) {
+				@Override protected V get(int i) { return vals[i]; }
+			};
+		}
+
+		@Override public void clear() {
+			if (range == null) { SortedArrayMap.this.clear(); } else { range.clear(); }
+		}
+
+	}
+
+}
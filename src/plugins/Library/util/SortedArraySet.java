@@ -19,8 +19,7 @@ import java.util.AbstractSet;
 **
 ** DOCUMENT
 **
-** OPT LOW make a SortedArrayMap out of this, and make the BTreeMap node
-** use that (or a SortedArrayTripleMap<K, V, L, R>) instead of TreeMap
+** For a mutable map backed by sorted arrays, see {@link SortedArrayMap}.
 **
 ** @author infinity0
 */
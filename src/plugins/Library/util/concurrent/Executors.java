@@ -8,8 +8,7 @@ import plugins.Library.util.func.SafeClosure;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy; // WORKAROUND javadoc bug #4464323
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -35,39 +34,91 @@ public class Executors {
 	};
 
 	/**
-	** A JVM-wide executor that objects/classes can reference when they don't
-	** want to create a new executor themselves. This is a wrapper around a
-	** real executor, which can be set ({@link #setDefaultExecutor(Executor)})
-	** without calling methods on every object/class that uses the wrapper.
+	** Name of the system property which, if "true", makes the tasks of {@link
+	** #SCHEDULER} run on virtual threads, on JVMs that have them.
+	*/
+	final public static String VIRTUAL_THREADS_PROPERTY = "plugins.Library.virtualThreads";
+
+	/**
+	** Runs the tasks of {@link #SCHEDULER}. This is a wrapper around a real
+	** executor, which can be set ({@link #setDefaultExecutor(Executor)}).
 	** If no backing executor has been set by the time the first call to {@link
-	** Executor#execute(Runnable)} is made, a {@link ThreadPoolExecutor} is
-	** created, with a thread-cache size of 64, timeout of 1s, and rejection
-	** policy of "{@link CallerRunsPolicy caller runs}".
+	** Executor#execute(Runnable)} is made, one is created which runs each task
+	** on a virtual thread if {@link #useVirtualThreads()}, or else on a thread
+	** from a cache that grows as needed; the scheduler limits how many run.
 	*/
-	final public static Executor DEFAULT_EXECUTOR = new Executor() {
+	final private static Executor BACKING_EXECUTOR = new Executor() {
 		/*@Override**/ public void execute(Runnable r) {
+			Executor exec;
 			synchronized (Executors.class) {
+				if (default_exec == null) {
+					default_exec = useVirtualThreads()? newVirtualThreadExecutor(): null;
+				}
 				if (default_exec == null) {
 					default_exec = new ThreadPoolExecutor(
-						1, 0x40, 60, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>(),
-						new ThreadPoolExecutor.CallerRunsPolicy()
+						0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+						new SynchronousQueue<Runnable>()
 					);
 				}
+				exec = default_exec;
 			}
-			default_exec.execute(r);
+			exec.execute(r);
 		}
 	};
 
+	/**
+	** A JVM-wide scheduler for all the tasks of the plugin, which objects and
+	** classes should use rather than creating executors of their own, so that
+	** one limit applies to all of them and searches are not held up by merges.
+	*/
+	final public static PriorityExecutor SCHEDULER = new PriorityExecutor(BACKING_EXECUTOR, PriorityExecutor.DEFAULT_GLOBAL_LIMIT);
+
+	/**
+	** A JVM-wide executor for worker tasks, which must not wait for other tasks
+	** to complete. These are run by {@link #SCHEDULER} at the priority of the
+	** task that submits them; see {@link PriorityExecutor#getInheritingExecutor()}.
+	*/
+	final public static Executor DEFAULT_EXECUTOR = SCHEDULER.getInheritingExecutor();
+
+	/**
+	** Sets the executor that runs the tasks of {@link #SCHEDULER}. It must
+	** not queue tasks given to it behind ones that are already running.
+	*/
 	public static synchronized void setDefaultExecutor(Executor e) {
 		default_exec = e;
 	}
 
 	/**
-	** The executor backing {@link #DEFAULT_EXECUTOR}.
+	** The executor backing {@link #SCHEDULER}.
 	*/
 	private static Executor default_exec = null;
 
+	/**
+	** Whether virtual threads were asked for with {@link
+	** #VIRTUAL_THREADS_PROPERTY}, and this JVM has them.
+	*/
+	public static boolean useVirtualThreads() {
+		if (!Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY)) { return false; }
+		try {
+			java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	** Creates an executor which runs each task on a new virtual thread, or
+	** returns null if this JVM doesn't have them.
+	*/
+	public static Executor newVirtualThreadExecutor() {
+		try {
+			return (Executor)java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	private Executors() { }
 
 }
@@ -9,7 +9,11 @@ public class Notifier {
 		notifyAll();
 	}
 	
-	public synchronized void waitUpdate(int maxWait) {
+	/**
+	 * Wait until notified, or until maxWait ms have passed.
+	 * @return true if notified, false if the wait timed out
+	 */
+	public synchronized boolean waitUpdate(int maxWait) {
 		long start = -1;
 		long now = -1;
 		while(!notified) {
@@ -18,7 +22,7 @@ public class Notifier {
 			} else {
 				now = System.currentTimeMillis();
 			}
-			if(start + maxWait <= now) return;
+			if(start + maxWait <= now) return false;
 			try {
 				wait((start + maxWait - now));
 			} catch (InterruptedException e) {
@@ -26,6 +30,7 @@ public class Notifier {
 			}
 		}
 		notified = false;
+		return true;
 	}
 
 }
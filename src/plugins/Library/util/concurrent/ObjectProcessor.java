@@ -6,12 +6,8 @@ package plugins.Library.util.concurrent;
 import static plugins.Library.util.func.Tuples.X2;
 import static plugins.Library.util.func.Tuples.X3;
 
-import java.lang.ref.WeakReference;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 
@@ -25,6 +21,9 @@ import freenet.support.Logger;
 ** secondary "deposit" object, which is returned with the object when it has
 ** been processed. Any exceptions thrown are also returned.
 **
+** Items can be dispatched to the executor by calling {@link #dispatchPoll()},
+** or the processor can dispatch them itself, see {@link #auto()}.
+**
 ** @param <T> Type of object to be processed
 ** @param <E> Type of object to be used as a deposit
 ** @param <X> Type of exception thrown by {@link #clo}
@@ -45,6 +44,16 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	protected int dispatched = 0;
 	protected int completed = 0;
 	protected int started = 0;
+
+	/**
+	** Whether items are dispatched as soon as they are submitted or there is
+	** room for them, see {@link #auto()}.
+	*/
+	protected volatile boolean auto = false;
+	/** Whether a thread is running {@link #dispatch()} */
+	private boolean dispatching = false;
+	/** Whether {@link #dispatch()} was called while a thread was running it */
+	private boolean redispatch = false;
 	
 	private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
@@ -53,10 +62,6 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		Logger.registerClass(ObjectProcessor.class);
 	}
 
-	// Most ObjectProcessor's are likely to be autostart()'ed, and this way we can
-	// still use ConcurrentMap for pending while having garbage collection.
-	private final WeakReference<ObjectProcessor> myRef = new WeakReference<ObjectProcessor>(this);
-
 	// TODO NORM make a more intelligent way of adjusting this
 	final public static int default_maxconc = 0x28;
 	int maxconc = default_maxconc;
@@ -70,6 +75,8 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 			} catch (InterruptedException e) {
 				throw new UnsupportedOperationException();
 			}
+			// there is room for another job now
+			if (auto) { dispatch(); }
 		}
 	};
 	
@@ -81,10 +88,6 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		return out.size();
 	}
 
-	final private static ConcurrentMap<WeakReference<ObjectProcessor>, Boolean> pending = new ConcurrentHashMap<WeakReference<ObjectProcessor>, Boolean>();
-	// This must only be modified in a static synchronized block
-	private static Thread auto = null;
-
 	/**
 	** Constructs a new processor. The processor itself will be thread-safe
 	** as long as the queues and deposit map are not exposed to other threads,
@@ -98,7 +101,6 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	** @param deposit Map for item deposits
 	** @param closure Closure to call on each item
 	** @param executor Executor to run each closure call
-	** @param autostart Whether to start an {@link #auto()} autohandler
 	** @param notifier A Notifier to tell whenever something has happened - e.g. results are ready.
 	*/
 	public ObjectProcessor(
@@ -126,8 +128,12 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		this.notifier = n;
 	}
 	
-	public synchronized void setMaxConc(int x) {
-		maxconc = x;
+	public void setMaxConc(int x) {
+		synchronized(this) {
+			maxconc = x;
+		}
+		// there may be room for more jobs now
+		if (auto) { dispatch(); }
 	}
 	
 	/**
@@ -164,6 +170,7 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		// Note that this can result in more stuff being in dep than is in in. This is okay, assuming that
 		// we don't have an infinite number of calling threads.
 		in.put(item);
+		if (auto) { dispatch(); }
 	}
 
 	/**
@@ -246,17 +253,46 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	**
 	** @return Whether a task was retrieved and executed
 	*/
-	public boolean dispatchPoll() {
-		synchronized(this) {
-			if (dispatched - completed >= maxconc) { return false; }
-		}
-		// DO NOT hold the lock while blocking on in.
+	public synchronized boolean dispatchPoll() {
+		if (dispatched - completed >= maxconc) { return false; }
+		// poll() doesn't block, so the lock can be held; this way, threads
+		// dispatching at the same time can't start more than maxconc jobs.
 		T item = in.poll();
+		if (item == null) { return false; }
+		exec.execute(createJobFor(item));
+		++dispatched;
+		return true;
+	}
+
+	/**
+	** Dispatches as many items as there is room for. If another thread is
+	** already doing this, it is told to go round again instead, so that jobs
+	** which complete (or items which are submitted) whilst it is dispatching
+	** aren't missed, and jobs that complete straight away don't recurse.
+	*/
+	protected void dispatch() {
 		synchronized(this) {
-			if (item == null) { return false; }
-			exec.execute(createJobFor(item));
-			++dispatched;
-			return true;
+			if (dispatching) { redispatch = true; return; }
+			dispatching = true;
+		}
+		boolean done = false;
+		try {
+			for (;;) {
+				while (dispatchPoll());
+				synchronized(this) {
+					if (!redispatch) { dispatching = false; done = true; return; }
+					redispatch = false;
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			// FIXME NORM
+			// neither Executors.DEFAULT_EXECUTOR nor Freenet's in-built executors
+			// throw this, so this is not a high priority
+			Logger.error(this, "REJECTED EXECUTION", e);
+		} finally {
+			if (!done) {
+				synchronized(this) { dispatching = false; redispatch = false; }
+			}
 		}
 	}
 
@@ -291,73 +327,22 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	}
 
 	/**
-	** Start a new thread to run the {@link #pending} processors, if one is not
-	** already running.
-	*/
-	private static synchronized void ensureAutoHandler() {
-		if (auto != null) { return; }
-		auto = new Thread() {
-			@Override public void run() {
-				final int timeout = 4;
-				int t = timeout;
-				while (!pending.isEmpty() && (t=timeout) == timeout || t-- > 0) {
-					for (Iterator<WeakReference<ObjectProcessor>> it = pending.keySet().iterator(); it.hasNext();) {
-						WeakReference<ObjectProcessor> ref = it.next();
-						ObjectProcessor proc = ref.get();
-						if(proc == null) {
-							it.remove();
-							continue;
-						}
-						try {
-							boolean o = proc.open;
-							while (proc.dispatchPoll());
-							if (!o) { it.remove(); }
-						} catch (RejectedExecutionException e) {
-							// FIXME NORM
-							// neither Executors.DEFAULT_EXECUTOR nor Freenet's in-built executors
-							// throw this, so this is not a high priority
-							Logger.error(this, "REJECTED EXECUTION", e);
-						}
-					}
-					try {
-					    // FIXME why do we sleep here at all?
-					    // FIXME for small jobs, such as merging to disk in SpiderIndexUploader, this can 
-					    // dominate the execution time!
-					    // FIXME the executors are perfectly capable of limiting the number of threads running...
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-						// TODO LOW log this somewhere
-					}
-					// System.out.println("pending " + pending.size());
-
-					if (t > 0) { continue; }
-					synchronized (ObjectProcessor.class) {
-						// if auto() was called just before we entered this synchronized block,
-						// then its ensureAutoHandler() would have done nothing. so we want to keep
-						// this thread running to take care of the new addition.
-						if (!pending.isEmpty()) { continue; }
-						// otherwise we can safely discard this thread, since ensureAutoHandler()
-						// cannot be called as long as we are in this block.
-						auto = null;
-						return;
-					}
-				}
-				throw new AssertionError("ObjectProcessor: bad exit in autohandler. this is a bug; please report.");
-			}
-		};
-		auto.start();
-	}
-
-	/**
-	** Add this processor to the collection of {@link #pending} processes, and
-	** makes sure there is a thread to handle them.
+	** Makes this processor dispatch items by itself: as soon as they are
+	** {@linkplain #submit(Object, Object) submitted}, and whenever a job
+	** completes and so makes room for another (see {@link #setMaxConc(int)}).
+	** No thread polls for them, so they don't wait to be dispatched.
 	**
-	** @return Whether the processor was not already being handled.
+	** @return Whether the processor was not already dispatching by itself.
 	*/
 	public boolean auto() {
-		Boolean r = ObjectProcessor.pending.put(myRef, Boolean.TRUE);
-		ObjectProcessor.ensureAutoHandler();
-		return r == null;
+		boolean was;
+		synchronized(this) {
+			was = auto;
+			auto = true;
+		}
+		// dispatch anything submitted before now
+		dispatch();
+		return !was;
 	}
 
 	/**
@@ -370,8 +355,9 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 
 	/**
 	** Stop accepting new submissions or deposit updates. Held items can still
-	** be processed and retrieved, and if an {@linkplain #auto() auto-handler}
-	** is running, it will run until all such items have been processed.
+	** be processed and retrieved, and if the processor was {@linkplain #auto()
+	** dispatching by itself}, it carries on until all such items have been
+	** processed.
 	*/
 	/*@Override**/ public void close() {
 		open = false;
@@ -0,0 +1,375 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+** Runs the tasks of the whole plugin on one backing {@link Executor}, with
+** limits on how many of them may run at once, and priorities between them.
+**
+** Each task belongs to a {@link TaskClass}. There are two kinds of these:
+**
+** - ''workers'', which must never wait for other tasks of this executor to
+**   complete. These share a global limit; when a slot is free, it is given to
+**   the queued task of the class with the highest priority, so that fetching
+**   blocks for a search is never queued behind fetching blocks for a merge.
+** - ''managers'', which may wait for other tasks to complete. These are not
+**   counted towards the global limit, so that they can never fill up the
+**   slots that the workers they are waiting for need. A manager started from
+**   inside another manager is run at once, even if its class is at its limit,
+**   since the outer one may be waiting for it (eg. the value handler of a
+**   {@link plugins.Library.util.SkeletonBTreeMap} calling {@code update()} on
+**   its value).
+**
+** The number of threads needed is therefore at most the global limit plus the
+** limits of the manager classes, plus any nested managers.
+**
+** Tasks submitted through {@link #getInheritingExecutor()} are run as workers
+** of the same priority as the task that submitted them, so that work started
+** on behalf of a search is not mistaken for work on behalf of a merge. Threads
+** which aren't running tasks of this executor can be marked with {@link
+** #as(TaskClass, Runnable)}.
+*/
+public class PriorityExecutor {
+
+	/**
+	** Classes of tasks, workers in order of priority.
+	*/
+	public enum TaskClass {
+		/** Searches, which wait for the blocks they need to be fetched. */
+		QUERY(true, true, 0x10),
+		/** Fetching and decoding blocks for a search. */
+		INTERACTIVE(false, true, 0x40),
+		/** Fetching, decoding and pushing blocks for a merge. */
+		MERGE(false, false, 0x30),
+		/** Value handlers of a merge, which may merge their values. */
+		VALUE(true, false, 0x20),
+		/** Deflating nodes during a merge, which waits for them to be pushed. */
+		DEFLATE(true, false, 0x10);
+
+		/** Whether tasks of this class may wait for other tasks */
+		final public boolean manager;
+		/** Whether the user is waiting for tasks of this class */
+		final public boolean interactive;
+		/** Default limit on tasks of this class running at once */
+		final public int default_limit;
+
+		TaskClass(boolean manager, boolean interactive, int default_limit) {
+			this.manager = manager;
+			this.interactive = interactive;
+			this.default_limit = default_limit;
+		}
+
+		/**
+		** The worker class for tasks started on behalf of a task of this class.
+		*/
+		public TaskClass worker() {
+			return interactive? INTERACTIVE: MERGE;
+		}
+	}
+
+	/** Default limit on workers running at once, of all classes */
+	final public static int DEFAULT_GLOBAL_LIMIT = 0x40;
+
+	/**
+	** The class of the task the current thread is running.
+	*/
+	final private static ThreadLocal<TaskClass> current = new ThreadLocal<TaskClass>();
+
+	final protected Executor backing;
+	final protected EnumMap<TaskClass, Lane> lanes = new EnumMap<TaskClass, Lane>(TaskClass.class);
+	final protected EnumMap<TaskClass, Executor> executors = new EnumMap<TaskClass, Executor>(TaskClass.class);
+
+	protected int global_limit;
+	protected int workers = 0;
+
+	final protected Executor inheriting = new Executor() {
+		/*@Override**/ public void execute(Runnable r) {
+			TaskClass cls = getClassOf(r);
+			PriorityExecutor.this.execute((cls == null)? TaskClass.INTERACTIVE: cls.worker(), r);
+		}
+	};
+
+	/**
+	** @param backing Runs the tasks, once they may start; this should start
+	**        a thread for each task given to it, or use a pool large enough
+	** @param global_limit Most workers to run at once
+	*/
+	public PriorityExecutor(Executor backing, int global_limit) {
+		if (backing == null) { throw new NullPointerException(); }
+		if (global_limit < 1) {
+			throw new IllegalArgumentException("Limit must be at least 1: " + global_limit);
+		}
+		this.backing = backing;
+		this.global_limit = global_limit;
+		for (final TaskClass cls: TaskClass.values()) {
+			lanes.put(cls, new Lane(cls));
+			executors.put(cls, new Executor() {
+				/*@Override**/ public void execute(Runnable r) {
+					PriorityExecutor.this.execute(cls, r);
+				}
+			});
+		}
+	}
+
+	/**
+	** @return The class of the task the current thread is running, or null
+	*/
+	public static TaskClass getCurrentClass() {
+		return current.get();
+	}
+
+	/**
+	** @return The class a task was wrapped with by {@link #as(TaskClass,
+	**         Runnable)}, or else the class of the task the current thread
+	**         is running, or null
+	*/
+	public static TaskClass getClassOf(Runnable r) {
+		return (r instanceof Classed)? ((Classed)r).cls: current.get();
+	}
+
+	/**
+	** Wraps a task so that the thread running it is marked as running a task
+	** of the given class, and so that {@link #getInheritingExecutor()} runs it
+	** as a worker of that class.
+	*/
+	public static Runnable as(TaskClass cls, Runnable r) {
+		return (cls == null)? r: new Classed(cls, r);
+	}
+
+	/**
+	** An executor for tasks of the given class.
+	*/
+	public Executor getExecutor(TaskClass cls) {
+		return executors.get(cls);
+	}
+
+	/**
+	** An executor for worker tasks of the same priority as the task which is
+	** submitting them, or {@link TaskClass#INTERACTIVE} if the thread isn't
+	** running any.
+	*/
+	public Executor getInheritingExecutor() {
+		return inheriting;
+	}
+
+	public void execute(TaskClass cls, Runnable r) {
+		TaskClass parent = current.get();
+		boolean nested = cls.manager && parent != null && parent.manager;
+		Lane lane = lanes.get(cls);
+		// a manager of a merge started by a search, eg. pulling the values of
+		// a node, starts its own workers at the priority of the search
+		Queued q = new Queued(lane, r, (cls.manager && !cls.interactive && parent != null && parent.interactive)? TaskClass.QUERY: cls);
+		synchronized (this) {
+			if (!nested && (!lane.queue.isEmpty() || !canStart(lane))) {
+				lane.queue.add(q);
+				return;
+			}
+			started(q);
+		}
+		start(q);
+	}
+
+	public void setGlobalLimit(int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limit must be at least 1: " + limit);
+		}
+		synchronized (this) { global_limit = limit; }
+		startQueued(null);
+	}
+
+	public synchronized int getGlobalLimit() {
+		return global_limit;
+	}
+
+	public void setLimit(TaskClass cls, int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limit must be at least 1: " + limit);
+		}
+		synchronized (this) { lanes.get(cls).limit = limit; }
+		startQueued(null);
+	}
+
+	public synchronized int getLimit(TaskClass cls) {
+		return lanes.get(cls).limit;
+	}
+
+	/**
+	** @return Number of workers running, of all classes
+	*/
+	public synchronized int getWorkersRunning() {
+		return workers;
+	}
+
+	public synchronized int getRunning(TaskClass cls) {
+		return lanes.get(cls).running;
+	}
+
+	/**
+	** @return Number of tasks of the class waiting to start
+	*/
+	public synchronized int getQueued(TaskClass cls) {
+		return lanes.get(cls).queue.size();
+	}
+
+	public synchronized long getCompleted(TaskClass cls) {
+		return lanes.get(cls).completed;
+	}
+
+	/**
+	** @return Mean time, in ms, that tasks of the class waited to start
+	*/
+	public synchronized long getMeanWait(TaskClass cls) {
+		Lane lane = lanes.get(cls);
+		return (lane.started == 0)? 0: lane.total_wait / lane.started;
+	}
+
+	/**
+	** @return Longest time, in ms, that a task of the class waited to start
+	*/
+	public synchronized long getMaxWait(TaskClass cls) {
+		return lanes.get(cls).max_wait;
+	}
+
+	@Override public synchronized String toString() {
+		StringBuilder s = new StringBuilder("PriorityExecutor: ").append(workers).append('/').append(global_limit).append(" workers");
+		for (Lane lane: lanes.values()) {
+			s.append("; ").append(lane.cls).append(": ").append(lane.running).append('/').append(lane.limit)
+			 .append(" running, ").append(lane.queue.size()).append(" queued, mean wait ")
+			 .append((lane.started == 0)? 0: lane.total_wait / lane.started).append("ms");
+		}
+		return s.toString();
+	}
+
+	protected boolean canStart(Lane lane) {
+		return lane.running < lane.limit && (lane.cls.manager || workers < global_limit);
+	}
+
+	/**
+	** Takes a slot for the task. The caller must hold the lock.
+	*/
+	protected void started(Queued q) {
+		Lane lane = q.lane;
+		++lane.running;
+		if (!lane.cls.manager) { ++workers; }
+		long wait = System.currentTimeMillis() - q.time;
+		++lane.started;
+		lane.total_wait += wait;
+		if (wait > lane.max_wait) { lane.max_wait = wait; }
+	}
+
+	/**
+	** Gives up the slot of a task. The caller must hold the lock.
+	*/
+	protected void finished(Lane lane) {
+		--lane.running;
+		if (!lane.cls.manager) { --workers; }
+	}
+
+	protected void start(final Queued q) {
+		try {
+			backing.execute(new Runnable() {
+				public void run() {
+					TaskClass prev = current.get();
+					current.set(q.run_as);
+					try {
+						q.task.run();
+					} finally {
+						current.set(prev);
+						startQueued(q.lane);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			synchronized (this) { finished(q.lane); }
+			throw e;
+		}
+	}
+
+	/**
+	** Gives up the slot of a task that has completed, if any, then starts as
+	** many queued tasks as there are free slots, highest priority first.
+	**
+	** If the backing executor refuses a task, its slot is given up and the
+	** rest are still started; the first error is thrown once they have been.
+	*/
+	protected void startQueued(Lane done) {
+		List<Queued> next = new ArrayList<Queued>();
+		synchronized (this) {
+			if (done != null) {
+				finished(done);
+				++done.completed;
+			}
+			for (Lane lane: lanes.values()) {
+				while (!lane.queue.isEmpty() && canStart(lane)) {
+					Queued q = lane.queue.poll();
+					started(q);
+					next.add(q);
+				}
+			}
+		}
+		RuntimeException error = null;
+		for (Queued q: next) {
+			try {
+				start(q);
+			} catch (RuntimeException e) {
+				if (error == null) { error = e; }
+			}
+		}
+		if (error != null) { throw error; }
+	}
+
+	protected static class Lane {
+		final protected TaskClass cls;
+		final protected LinkedList<Queued> queue = new LinkedList<Queued>();
+		protected int limit;
+		protected int running = 0;
+		protected long started = 0, completed = 0;
+		protected long total_wait = 0, max_wait = 0;
+
+		protected Lane(TaskClass cls) {
+			this.cls = cls;
+			this.limit = cls.default_limit;
+		}
+	}
+
+	protected static class Queued {
+		final protected Lane lane;
+		final protected Runnable task;
+		final protected TaskClass run_as;
+		final protected long time = System.currentTimeMillis();
+
+		protected Queued(Lane lane, Runnable task, TaskClass run_as) {
+			this.lane = lane;
+			this.task = task;
+			this.run_as = run_as;
+		}
+	}
+
+	protected static class Classed implements Runnable {
+		final protected TaskClass cls;
+		final protected Runnable task;
+
+		protected Classed(TaskClass cls, Runnable task) {
+			this.cls = cls;
+			this.task = task;
+		}
+
+		/*@Override**/ public void run() {
+			TaskClass prev = current.get();
+			current.set(cls);
+			try {
+				task.run();
+			} finally {
+				current.set(prev);
+			}
+		}
+	}
+
+}
@@ -34,7 +34,9 @@ public abstract class AbstractExecution<V> implements Execution<V> {
 	protected Date stop = null;
 
 	/**
-	** Keeps track of the acceptors.
+	** Keeps track of the acceptors. They are dropped once the execution has
+	** finished, since there is nothing more to tell them; so executions which
+	** are kept after they finish, eg. in a cache, don't keep them alive.
 	*/
 	final protected Set<ExecutionAcceptor<V>> accept = new HashSet<ExecutionAcceptor<V>>();
 
@@ -85,6 +87,7 @@ public abstract class AbstractExecution<V> implements Execution<V> {
 		stop = new Date();
 		notifyAll();
 		for (ExecutionAcceptor<V> acc: accept) { offerDone(acc); }
+		accept.clear();
 	}
 
 	protected void offerDone(ExecutionAcceptor<V> acc) {
@@ -101,6 +104,7 @@ public abstract class AbstractExecution<V> implements Execution<V> {
 		stop = new Date();
 		notifyAll();
 		for (ExecutionAcceptor<V> acc: accept) { offerAborted(acc); }
+		accept.clear();
 	}
 
 	protected void offerAborted(ExecutionAcceptor<V> acc) {
@@ -166,11 +170,11 @@ public abstract class AbstractExecution<V> implements Execution<V> {
 	}
 
 	/*@Override**/ public synchronized void addAcceptor(ExecutionAcceptor<V> acc) {
-		accept.add(acc);
+		if (stop == null) { accept.add(acc); }
 		// trigger the event if the task is already done/aborted
 		if (start != null) { offerStarted(acc); }
-		if (error != null) { offerDone(acc); }
-		if (result != null) { offerAborted(acc); }
+		if (error != null) { offerAborted(acc); }
+		if (result != null) { offerDone(acc); }
 	}
 
 }
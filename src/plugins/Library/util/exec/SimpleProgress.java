@@ -166,6 +166,19 @@ public class SimpleProgress implements Progress {
 		throw e;
 	}
 
+	/**
+	** Same as {@link #abort(TaskAbortException)}, but returns the exception
+	** instead of throwing it, for code that reports it through a callback.
+	*/
+	public TaskAbortException abortQuietly(TaskAbortException e) {
+		try {
+			abort(e);
+		} catch (TaskAbortException x) {
+			// always thrown
+		}
+		return e;
+	}
+
 	public void setSubject(String s) {
 		if (s == null) {
 			throw new IllegalArgumentException("Can't set a null progress subject");
@@ -210,7 +223,7 @@ public class SimpleProgress implements Progress {
 	/*@Override**/ public ProgressParts getParts() throws TaskAbortException {
 		// updates are made such that the ProgressParts contract isn't broken even
 		// in mid-update so we don't need to synchronize here.
-		if (abort != null) { throw new TaskAbortException("Task failed", abort); }
+		if (abort != null) { throw new TaskAbortException("Task failed : " + abort.getMessage(), abort, abort.isError(), abort.shouldRetry()); }
 		return new ProgressParts(pdone, known, known, estimate);
 	}
 
@@ -227,13 +240,13 @@ public class SimpleProgress implements Progress {
 	/*@Override**/ public boolean isDone() throws TaskAbortException {
 		// updates are made such that the ProgressParts contract isn't broken even
 		// in mid-update so we don't need to synchronize here.
-		if (abort != null) { throw new TaskAbortException("Task failed", abort); }
+		if (abort != null) { throw new TaskAbortException("Task failed : " + abort.getMessage(), abort, abort.isError(), abort.shouldRetry()); }
 		return finalizedTotal() && pdone == known;
 	}
 
 	/*@Override**/ public synchronized void join() throws InterruptedException, TaskAbortException {
 		while (inprogress) { wait(); }
-		if (abort != null) { throw new TaskAbortException("Task failed", abort); }
+		if (abort != null) { throw new TaskAbortException("Task failed : " + abort.getMessage(), abort, abort.isError(), abort.shouldRetry()); }
 	}
 
 }
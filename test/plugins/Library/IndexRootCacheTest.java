@@ -0,0 +1,117 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IndexRootCacheTest extends TestCase {
+
+	IndexRootCache<String> cache = new IndexRootCache<String>(null, 4);
+	AtomicInteger loaded = new AtomicInteger();
+
+	/**
+	** Loads a root named after the key and edition, once the gate is open.
+	*/
+	protected IndexRootCache.Loader<String> loader(final String key, final long edition, final CountDownLatch gate) {
+		return new IndexRootCache.Loader<String>() {
+			public String load() throws TaskAbortException {
+				try {
+					if (gate != null && !gate.await(5, TimeUnit.SECONDS)) { fail("gate was never opened"); }
+				} catch (InterruptedException e) {
+					throw new TaskAbortException("interrupted", e);
+				}
+				loaded.incrementAndGet();
+				return key + "/" + edition;
+			}
+		};
+	}
+
+	protected String get(String key, long edition) throws Exception {
+		Execution<String> root = cache.get(key, edition, loader(key, edition, null));
+		root.join();
+		return root.getResult();
+	}
+
+	public void testShared() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		Execution<String> a = cache.get("USK@index", 3, loader("USK@index", 3, gate));
+		Execution<String> b = cache.get("USK@index", 3, loader("USK@index", 3, gate));
+		// the second search doesn't load the root again while it is loading
+		assertSame(a, b);
+		assertFalse(a.isDone());
+		gate.countDown();
+		a.join();
+		assertEquals("USK@index/3", b.getResult());
+
+		// nor once it has loaded
+		for (int i=0; i<0x10; ++i) {
+			assertEquals("USK@index/3", get("USK@index", 3));
+		}
+		assertEquals(1, loaded.get());
+		assertEquals(1, cache.getLoads());
+		assertEquals(0x11, cache.getHits());
+	}
+
+	public void testEditions() throws Exception {
+		assertEquals("USK@index/3", get("USK@index", 3));
+		// a newer edition replaces the old one
+		assertEquals("USK@index/5", get("USK@index", 5));
+		assertEquals(Long.valueOf(5), cache.getEdition("USK@index"));
+		// an older one gets the newer one
+		assertEquals("USK@index/5", get("USK@index", 4));
+		assertEquals(2, loaded.get());
+
+		// invalidated by an older edition, nothing happens
+		assertFalse(cache.invalidate("USK@index", 5));
+		assertEquals("USK@index/5", get("USK@index", 5));
+		// by a newer one, it is loaded again
+		assertTrue(cache.invalidate("USK@index", 6));
+		assertNull(cache.getEdition("USK@index"));
+		assertEquals("USK@index/6", get("USK@index", 6));
+		assertEquals(3, loaded.get());
+	}
+
+	public void testFailureRetried() throws Exception {
+		final AtomicInteger attempts = new AtomicInteger();
+		IndexRootCache.Loader<String> flaky = new IndexRootCache.Loader<String>() {
+			public String load() throws TaskAbortException {
+				if (attempts.incrementAndGet() == 1) {
+					throw new TaskAbortException("network went away", null, true);
+				}
+				return "CHK@index";
+			}
+		};
+		Execution<String> root = cache.get("CHK@index", -1, flaky);
+		try {
+			root.join();
+			fail("load should have failed");
+		} catch (TaskAbortException e) {
+			// expected
+		}
+		assertEquals(0, cache.size());
+
+		root = cache.get("CHK@index", -1, flaky);
+		root.join();
+		assertEquals("CHK@index", root.getResult());
+		assertEquals(2, attempts.get());
+	}
+
+	public void testCapacity() throws Exception {
+		for (int i=0; i<8; ++i) {
+			get("CHK@index" + i, -1);
+			assertTrue(cache.size() <= 4);
+		}
+		// the least recently used were dropped
+		assertNull(cache.getEdition("CHK@index0"));
+		assertEquals(Long.valueOf(-1), cache.getEdition("CHK@index7"));
+	}
+
+}
@@ -305,6 +305,32 @@ public class BIndexTest extends TestCase {
 
 	}
 
+	public void testParallelSearch() throws TaskAbortException, InterruptedException {
+		newTestSkeleton();
+		fillRootTree(idx.ttab);
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		for (Map.Entry<String, SkeletonBTreeSet<TermEntry>> en: idx.ttab.entrySet()) {
+			sizes.put(en.getKey(), en.getValue().size());
+			en.getValue().deflate();
+		}
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task1 = new PushTask<ProtoIndex>(idx);
+		srl.push(task1);
+
+		// searches for all the terms at once share the same index
+		PullTask<ProtoIndex> task2 = new PullTask<ProtoIndex>(task1.meta);
+		srl.pull(task2);
+		idx = task2.data;
+		Map<String, Execution<Set<TermEntry>>> requests = new HashMap<String, Execution<Set<TermEntry>>>();
+		for (String key: sizes.keySet()) {
+			requests.put(key, idx.getTermEntries(key));
+		}
+		for (Map.Entry<String, Execution<Set<TermEntry>>> en: requests.entrySet()) {
+			en.getValue().join();
+			assertEquals(en.getKey(), sizes.get(en.getKey()).intValue(), en.getValue().getResult().size());
+		}
+	}
+
 	public void testPartialInflateMulti() throws TaskAbortException {
 		if (!extensive) { return; }
 		for (int i=0; i<it_partial; ++i) {
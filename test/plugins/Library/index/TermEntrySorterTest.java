@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.Generators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.io.File;
+import java.io.IOException;
+
+public class TermEntrySorterTest extends TestCase {
+
+	File dir;
+
+	@Override protected void setUp() throws IOException {
+		dir = File.createTempFile("library-test-", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override protected void tearDown() {
+		for (File f: dir.listFiles()) { f.delete(); }
+		dir.delete();
+	}
+
+	protected Map<String, SortedSet<TermEntry>> rndInput(List<TermEntry> in, int terms, int entries) {
+		String[] keys = new String[terms];
+		for (int i=0; i<terms; ++i) { keys[i] = Generators.rndKey(); }
+		Map<String, SortedSet<TermEntry>> exp = new TreeMap<String, SortedSet<TermEntry>>();
+		for (int i=0; i<entries; ++i) {
+			TermEntry en = Generators.rndEntry(keys[Generators.rand.nextInt(terms)]);
+			in.add(en);
+			// some duplicates, which will end up in different runs
+			if (Generators.rand.nextInt(8) == 0) { in.add(en); }
+			SortedSet<TermEntry> set = exp.get(en.subj);
+			if (set == null) { exp.put(en.subj, set = new TreeSet<TermEntry>()); }
+			set.add(en);
+		}
+		Collections.shuffle(in, Generators.rand);
+		return exp;
+	}
+
+	protected void check(int spill) throws IOException {
+		List<TermEntry> in = new ArrayList<TermEntry>();
+		Map<String, SortedSet<TermEntry>> exp = rndInput(in, 0x40, 0x1000);
+		TermEntrySorter sorter = new TermEntrySorter(dir, spill);
+		for (TermEntry en: in) { sorter.add(en); }
+		assertEquals(in.size(), sorter.size());
+		sorter.finish();
+		assertEquals(exp.keySet(), sorter.subjects());
+
+		// take in a different order from the subjects, like update() does
+		List<String> keys = new ArrayList<String>(exp.keySet());
+		Collections.shuffle(keys, Generators.rand);
+		for (String key: keys) {
+			assertEquals(exp.get(key), sorter.take(key));
+		}
+		assertNull(sorter.take("not there"));
+		sorter.close();
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	protected void checkInOrder(int spill) throws IOException {
+		List<TermEntry> in = new ArrayList<TermEntry>();
+		Map<String, SortedSet<TermEntry>> exp = rndInput(in, 0x40, 0x1000);
+		TermEntrySorter sorter = new TermEntrySorter(dir, spill);
+		for (TermEntry en: in) { sorter.add(en); }
+		sorter.finishInOrder();
+
+		for (SortedSet<TermEntry> set: exp.values()) {
+			assertEquals(set, sorter.next());
+		}
+		assertNull(sorter.next());
+		try {
+			sorter.take(exp.keySet().iterator().next());
+			fail("take() after finishInOrder()");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		sorter.close();
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	public void testInMemory() throws IOException {
+		check(0x10000);
+		checkInOrder(0x10000);
+	}
+
+	public void testSpill() throws IOException {
+		check(0x100);
+		check(1);
+		checkInOrder(0x100);
+		checkInOrder(1);
+	}
+
+}
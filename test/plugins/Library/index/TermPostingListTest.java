@@ -0,0 +1,228 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.DataNotLoadedException;
+import plugins.Library.util.Generators;
+import plugins.Library.util.SkeletonTreeMap;
+import plugins.Library.io.BinaryReaderWriter;
+import plugins.Library.io.YamlReaderWriter;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.io.*;
+
+public class TermPostingListTest extends TestCase {
+
+	final public static int list_size = 0x400;
+
+	public static TermPageEntry rndEntry(String subj, FreenetURI[] pages) {
+		FreenetURI page = pages[Generators.rand.nextInt(pages.length)];
+		float rel = Generators.rand.nextFloat();
+		String title = Generators.rand.nextInt(4) == 0? Generators.rndKey(): null;
+		switch (Generators.rand.nextInt(3)) {
+		case 0:
+			return new TermPageEntry(subj, rel, page, title, null);
+		case 1:
+			Map<Integer, String> frags = new HashMap<Integer, String>();
+			for (int i=Generators.rand.nextInt(8); i>=0; --i) {
+				frags.put(Generators.rand.nextInt(0x10000), Generators.rand.nextBoolean()? null: Generators.rndKey());
+			}
+			return new TermPageEntry(subj, rel, page, title, frags);
+		default:
+			int[] pos = new int[Generators.rand.nextInt(0x20)];
+			for (int i=0; i<pos.length; ++i) { pos[i] = Generators.rand.nextInt(0x100000); }
+			Arrays.sort(pos);
+			return new TermPageEntry(subj, rel, page, title, new freenet.support.SortedIntSet(pos), null);
+		}
+	}
+
+	public static TreeSet<TermEntry> rndEntries(String subj, int n) {
+		FreenetURI[] pages = new FreenetURI[n>>2];
+		for (int i=0; i<pages.length; ++i) { pages[i] = FreenetURI.generateRandomCHK(Generators.rand); }
+		TreeSet<TermEntry> entries = new TreeSet<TermEntry>();
+		while (entries.size() < n) { entries.add(rndEntry(subj, pages)); }
+		return entries;
+	}
+
+	public static void assertSamePostings(Collection<TermEntry> exp, TermPostingList list) {
+		assertEquals(exp.size(), list.size());
+		int i=0;
+		int[] buf = new int[0x20];
+		for (TermEntry en: exp) {
+			TermPageEntry e = (TermPageEntry)en, a = (TermPageEntry)list.get(i);
+			assertEquals(e, a);
+			assertEquals(e.title, a.title);
+			assertEquals(e.rel, list.relevance(i));
+			assertEquals(e.page, list.page(i));
+			assertEquals(e.hasPositions(), list.hasPositions(i));
+			if (e.hasPositions()) {
+				assertTrue(Arrays.equals(e.positionsRaw(), list.positions(i)));
+				int n = list.positions(i, buf);
+				assertTrue(Arrays.equals(e.positionsRaw(), Arrays.copyOf(buf, n)));
+			}
+			assertEquals(e.hasFragments(), a.hasFragments());
+			if (e.hasFragments()) {
+				assertEquals(e.posFragments, a.posFragments);
+			}
+			++i;
+		}
+	}
+
+	public void testFromEntries() {
+		TreeSet<TermEntry> entries = rndEntries("test", list_size);
+		TermPostingList list = TermPostingList.fromEntries(entries);
+		assertSamePostings(entries, list);
+		assertTrue(list.pageCount() <= list_size>>2);
+		for (TermEntry en: entries) { assertTrue(list.contains(en)); }
+		assertFalse(list.contains(rndEntry("test", new FreenetURI[]{FreenetURI.generateRandomCHK(Generators.rand)})));
+		assertEquals(entries, list.asSet());
+		assertEquals(list.asSet(), entries);
+
+		List<TermEntry> mixed = new ArrayList<TermEntry>(entries);
+		mixed.add(new TermTermEntry("test", 0.5f, "lol"));
+		assertNull(TermPostingList.fromEntries(mixed));
+		mixed.remove(mixed.size()-1);
+		mixed.add(new TermPageEntry("test2", 0.5f, FreenetURI.generateRandomCHK(Generators.rand), null));
+		assertNull(TermPostingList.fromEntries(mixed));
+	}
+
+	public void testContains() {
+		TreeSet<TermEntry> entries = rndEntries("test", list_size);
+		TermPostingList list = TermPostingList.fromEntries(entries);
+		// built from a sorted set, so it can be searched
+		assertTrue(list.isSorted());
+		int i=0;
+		for (TermEntry en: entries) { assertEquals(i++, list.indexOf(en)); }
+
+		List<TermEntry> shuffled = new ArrayList<TermEntry>(entries);
+		java.util.Collections.shuffle(shuffled, Generators.rand);
+		TermPostingList unsorted = TermPostingList.fromEntries(shuffled);
+		assertFalse(unsorted.isSorted());
+		for (TermEntry en: entries) {
+			assertEquals(list.contains(en), unsorted.contains(en));
+			assertEquals(shuffled.indexOf(en), unsorted.indexOf(en));
+		}
+
+		for (TermEntry en: entries) {
+			// same relevance, different page; and same page, different relevance
+			TermPageEntry pe = (TermPageEntry)en;
+			TermEntry other = new TermPageEntry("test", pe.rel, FreenetURI.generateRandomCHK(Generators.rand), null);
+			assertFalse(list.contains(other));
+			assertFalse(unsorted.contains(other));
+			other = new TermPageEntry("test", pe.rel / 2, pe.page, null);
+			assertEquals(entries.contains(other), list.contains(other));
+			assertEquals(entries.contains(other), unsorted.contains(other));
+		}
+		assertFalse(list.contains(new TermPageEntry("other", 0.5f, list.page(0), null)));
+	}
+
+	public void testRelAdjustment() {
+		TreeSet<TermEntry> entries = rndEntries("test", 0x40);
+		TermPostingList list = TermPostingList.fromEntries(entries, 0.5);
+		int i=0;
+		for (TermEntry en: entries) {
+			assertEquals((float)(0.5 * en.rel), list.relevance(i++));
+		}
+	}
+
+	public void testNodeTranslator() throws Exception {
+		TreeSet<TermEntry> entries = rndEntries("test", 0x100);
+		SkeletonTreeMap<TermEntry, TermEntry> node = new SkeletonTreeMap<TermEntry, TermEntry>();
+		for (TermEntry en: entries) { node.put(en, en); }
+		TermPostingList.NodeTranslator trans = new TermPostingList.NodeTranslator();
+		Collection<TermEntry> out = trans.app(node);
+		assertTrue(out instanceof TermPostingList);
+		assertSamePostings(entries, (TermPostingList)out);
+		SkeletonTreeMap<TermEntry, TermEntry> back = trans.rev(out);
+		assertEquals(entries, back.keySet());
+	}
+
+	public void testPostingMap() throws Exception {
+		TreeSet<TermEntry> entries = rndEntries("test", 0x100);
+		TermPostingList list = TermPostingList.fromEntries(entries);
+		TermPostingList.NodeTranslator trans = new TermPostingList.NodeTranslator();
+		SkeletonTreeMap<TermEntry, TermEntry> node = trans.rev(list);
+		assertTrue(node instanceof TermPostingMap);
+		TermPostingMap map = (TermPostingMap)node;
+		map.setSerialiser(ProtoIndexComponentSerialiser.term_dummy);
+
+		assertTrue(map.isBare());
+		assertEquals(entries.size(), map.size());
+		assertEquals(entries.first(), map.firstKey());
+		assertEquals(entries.last(), map.lastKey());
+		assertEquals(entries, map.keySet());
+		try {
+			map.get(entries.first());
+			fail("got a value that was not loaded");
+		} catch (DataNotLoadedException e) { }
+
+		map.inflate();
+		assertTrue(map.isLive());
+		for (TermEntry en: entries) {
+			assertTrue(map.containsKey(en));
+			assertEquals(en, map.get(en));
+		}
+		for (Map.Entry<TermEntry, TermEntry> en: map.entrySet()) {
+			assertEquals(en.getKey(), en.getValue());
+		}
+		map.deflate();
+		assertTrue(map.isBare());
+		// still in columnar form, so it is written out as it was read
+		assertSame(list, map.getPostings());
+		assertSame(list, trans.app(map));
+
+		// changing it expands it into an ordinary map
+		map.inflate();
+		TermEntry extra = rndEntry("test", new FreenetURI[]{FreenetURI.generateRandomCHK(Generators.rand)});
+		map.put(extra, extra);
+		entries.add(extra);
+		assertNull(map.getPostings());
+		assertTrue(map.isLive());
+		assertEquals(entries, map.keySet());
+		assertEquals(entries, new TreeSet<TermEntry>(map.values()));
+		map.deflate();
+		assertSamePostings(entries, (TermPostingList)trans.app(map));
+
+		// putting all of a columnar map into another expands it first
+		SkeletonTreeMap<TermEntry, TermEntry> copy = new SkeletonTreeMap<TermEntry, TermEntry>();
+		copy.putAll(trans.rev(list));
+		assertTrue(copy.isBare());
+		assertEquals(list.size(), copy.size());
+		assertSamePostings(copy.keySet(), list);
+	}
+
+	public void testSerialise() throws IOException {
+		TreeSet<TermEntry> entries = rndEntries("test", list_size);
+		TermPostingList list = TermPostingList.fromEntries(entries);
+		Map<String, Object> doc = new HashMap<String, Object>();
+		doc.put("entries", list);
+
+		BinaryReaderWriter binrw = new BinaryReaderWriter();
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		binrw.writeObject(doc, bo);
+		Map<String, Object> m = (Map<String, Object>)binrw.readObject(new ByteArrayInputStream(bo.toByteArray()));
+		assertTrue(m.get("entries") instanceof TermPostingList);
+		assertSamePostings(entries, (TermPostingList)m.get("entries"));
+
+		// YAML just sees a list of entries
+		YamlReaderWriter yamlrw = new YamlReaderWriter();
+		ByteArrayOutputStream yo = new ByteArrayOutputStream();
+		yamlrw.writeObject(doc, yo);
+		m = (Map<String, Object>)yamlrw.readObject(new ByteArrayInputStream(yo.toByteArray()));
+		assertEquals(new ArrayList<TermEntry>(entries), m.get("entries"));
+		assertTrue(bo.size() < yo.size());
+		System.out.println(list_size + " postings: " + bo.size() + " bytes binary, " + yo.size() + " bytes YAML");
+	}
+
+}
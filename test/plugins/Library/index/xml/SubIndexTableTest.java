@@ -0,0 +1,87 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.TermPageEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class SubIndexTableTest extends TestCase {
+
+	final static String KEYWORDS =
+		"<keywords>\n" +
+		"<word v=\"apple\" fileCount=\"2\"><file id=\"1\">3,7</file><file id=\"2\">1</file></word>\n" +
+		"<word v=\"pear\" fileCount=\"1\"><file id=\"2\">4</file></word>\n" +
+		"<word v=\"plum\" fileCount=\"1\"><file id=\"9\">2</file></word>\n" +
+		"</keywords>\n";
+
+	final static String FILES =
+		"<files totalFileCount=\"8\">\n" +
+		"<file id=\"1\" key=\"CHK@one\" title=\"One\" wordCount=\"10\"/>\n" +
+		"<file id=\"2\" key=\"CHK@two\" title=\"Two\" wordCount=\"20\"/>\n" +
+		"<file id=\"3\" key=\"CHK@three\" title=\"Three\" wordCount=\"30\"/>\n" +
+		"</files>\n";
+
+	protected SubIndexTable compile(String body) throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sub_index>\n" + body + "</sub_index>\n";
+		return SubIndexTable.compile(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+
+	protected Map<String, TermPageEntry> byTitle(Set<TermPageEntry> entries) {
+		Map<String, TermPageEntry> m = new HashMap<String, TermPageEntry>();
+		for (TermPageEntry e : entries)
+			m.put(e.title, e);
+		return m;
+	}
+
+	protected void checkTable(SubIndexTable t) {
+		assertEquals(3, t.size());
+
+		Map<String, TermPageEntry> apple = byTitle(t.lookup("apple"));
+		assertEquals(2, apple.size());
+		TermPageEntry one = apple.get("One");
+		assertEquals("apple", one.subj);
+		assertEquals(2, one.positionsMap().size());
+		assertTrue(one.positionsMap().containsKey(7));
+		assertEquals((float)(2 / 10.0 * Math.log(8 / 2.0)), one.rel, 0.0001);
+		assertEquals((float)(1 / 20.0 * Math.log(8 / 2.0)), apple.get("Two").rel, 0.0001);
+
+		assertEquals(1, t.lookup("pear").size());
+		// a file that isn't in the file list is left out
+		assertTrue(t.lookup("plum").isEmpty());
+		assertTrue(t.lookup("quince").isEmpty());
+	}
+
+	public void testCompile() throws Exception {
+		checkTable(compile(KEYWORDS + FILES));
+		// whichever order the lists are in
+		checkTable(compile(FILES + KEYWORDS));
+	}
+
+	public void testWriteRead() throws Exception {
+		SubIndexTable t = compile(KEYWORDS + FILES);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		t.writeTo(bytes);
+		SubIndexTable r = SubIndexTable.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+		checkTable(r);
+		assertEquals(t.estimateSize(), r.estimateSize());
+
+		byte[] data = bytes.toByteArray();
+		data[0] ^= 1;
+		try {
+			SubIndexTable.readFrom(new ByteArrayInputStream(data));
+			fail("read a table with a bad header");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
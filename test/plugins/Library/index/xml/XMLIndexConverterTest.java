@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.ProtoIndex;
+import plugins.Library.index.ProtoIndexSerialiser;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.io.serial.Serialiser.PullTask;
+import plugins.Library.util.SkeletonBTreeSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class XMLIndexConverterTest extends TestCase {
+
+	final static String MAIN =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<main_index>\n" +
+		"<prefix value=\"1\"/>\n" +
+		"<header><title>Fruit</title><owner>MikeB</owner></header>\n" +
+		"<keywords><subIndex key=\"a\"/><subIndex key=\"b\"/></keywords>\n" +
+		"</main_index>\n";
+
+	final static String SUB_A =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sub_index>\n" +
+		"<keywords>\n" +
+		"<word v=\"apple\" fileCount=\"2\"><file id=\"1\">3,7</file><file id=\"2\">1</file></word>\n" +
+		"<word v=\"apricot\" fileCount=\"1\"><file id=\"3\">4</file></word>\n" +
+		"</keywords>\n" +
+		"<files totalFileCount=\"3\">\n" +
+		"<file id=\"1\" key=\"CHK@one\" title=\"One\" wordCount=\"10\"/>\n" +
+		"<file id=\"2\" key=\"CHK@two\" title=\"Two\" wordCount=\"20\"/>\n" +
+		"<file id=\"3\" key=\"CHK@three\" title=\"Three\" wordCount=\"30\"/>\n" +
+		"</files>\n" +
+		"</sub_index>\n";
+
+	final static String SUB_B =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<sub_index>\n" +
+		"<keywords>\n" +
+		"<word v=\"banana\" fileCount=\"3\"><file id=\"1\">2</file><file id=\"2\">5</file><file id=\"3\">8</file></word>\n" +
+		"</keywords>\n" +
+		"<files totalFileCount=\"3\">\n" +
+		"<file id=\"1\" key=\"CHK@one\" title=\"One\" wordCount=\"10\"/>\n" +
+		"<file id=\"2\" key=\"CHK@two\" title=\"Two\" wordCount=\"20\"/>\n" +
+		"<file id=\"3\" key=\"CHK@three\" title=\"Three\" wordCount=\"30\"/>\n" +
+		"</files>\n" +
+		"</sub_index>\n";
+
+	File dir;
+
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("xmlindex", ".test");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	protected void tearDown() {
+		delete(dir);
+	}
+
+	protected void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+
+	protected void write(File f, String s) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try {
+			w.write(s);
+		} finally {
+			w.close();
+		}
+	}
+
+	protected void checkConvert(int spillSize, int batchSize) throws Exception {
+		File xml = new File(dir, "xml");
+		File out = new File(dir, "out" + spillSize + "-" + batchSize);
+		xml.mkdir();
+		write(new File(xml, "index.xml"), MAIN);
+		write(new File(xml, "index_a.xml"), SUB_A);
+		write(new File(xml, "index_b.xml"), SUB_B);
+
+		XMLIndexConverter conv = new XMLIndexConverter(xml.getPath(), null, dir, spillSize);
+		conv.batchSize = batchSize;
+		String root = conv.convert(out);
+		assertEquals(2, conv.getSubIndices());
+		assertEquals(6, conv.getEntries());
+		assertEquals(3, conv.getTerms());
+		assertTrue(new File(out, root + ProtoIndexSerialiser.FILE_EXTENSION).exists());
+
+		PullTask<ProtoIndex> pull = new PullTask<ProtoIndex>(root);
+		ProtoIndexSerialiser.forIndex(out).pull(pull);
+		ProtoIndex idx = pull.data;
+		assertEquals("Fruit", idx.getName());
+		idx.ttab.inflate();
+		assertEquals(new HashSet<String>(Arrays.asList("apple", "apricot", "banana")), idx.ttab.keySet());
+
+		SkeletonBTreeSet<TermEntry> tree = idx.ttab.get("banana");
+		tree.inflate();
+		assertEquals(3, tree.size());
+		HashSet<String> titles = new HashSet<String>();
+		for (TermEntry en : tree) {
+			assertEquals("banana", en.subj);
+			titles.add(((TermPageEntry)en).title);
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("One", "Two", "Three")), titles);
+
+		tree = idx.ttab.get("apple");
+		tree.inflate();
+		assertEquals(2, tree.size());
+
+		// nothing is left behind from the sorting
+		for (File f : dir.listFiles())
+			assertTrue(f.getName(), f.isDirectory());
+	}
+
+	public void testConvert() throws Exception {
+		checkConvert(XMLIndexConverter.DEFAULT_SPILL_SIZE, XMLIndexConverter.TTAB_BATCH_SIZE);
+	}
+
+	public void testConvertSpilled() throws Exception {
+		checkConvert(2, XMLIndexConverter.TTAB_BATCH_SIZE);
+	}
+
+	public void testConvertBatched() throws Exception {
+		checkConvert(2, 2);
+	}
+
+}
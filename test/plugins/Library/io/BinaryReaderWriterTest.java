@@ -0,0 +1,167 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.Generators;
+import plugins.Library.io.serial.Packer;
+import plugins.Library.index.TermEntry;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.Date;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class BinaryReaderWriterTest extends TestCase {
+
+	final public static int node_entries = 0x40;
+
+	final YamlReaderWriter yamlrw = new YamlReaderWriter();
+	final BinaryReaderWriter binrw = new BinaryReaderWriter(yamlrw);
+
+	/**
+	** Builds something that looks like the output of the translators for a
+	** node of the term table.
+	*/
+	public static Map<String, Object> rndNode() {
+		Map<String, Object> node = new LinkedHashMap<String, Object>();
+		node.put("lkey", Generators.rndKey());
+		node.put("rkey", null);
+		Map<String, Object> entries = new LinkedHashMap<String, Object>();
+		for (int i=0; i<node_entries; ++i) {
+			String key = Generators.rndKey();
+			List<TermEntry> postings = new ArrayList<TermEntry>();
+			for (int j=0; j<4; ++j) { postings.add(Generators.rndEntry(key)); }
+			entries.put(key, postings);
+		}
+		node.put("entries", entries);
+		Map<String, Object> subnodes = new LinkedHashMap<String, Object>();
+		subnodes.put(Generators.rndStr(), Generators.rand.nextInt());
+		subnodes.put(Generators.rndStr(), -1);
+		node.put("subnodes", subnodes);
+		node.put("size", Long.MAX_VALUE);
+		node.put("ok", Boolean.TRUE);
+		node.put("uri", FreenetURI.generateRandomCHK(Generators.rand));
+		node.put("date", new Date());
+		node.put("tags", new HashSet<String>(entries.keySet()));
+		return node;
+	}
+
+	protected byte[] write(ObjectStreamWriter w, Object o) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		w.writeObject(o, bos);
+		return bos.toByteArray();
+	}
+
+	protected Object read(ObjectStreamReader r, byte[] b) throws IOException {
+		return r.readObject(new ByteArrayInputStream(b));
+	}
+
+	public void testRoundTrip() throws IOException {
+		for (int i=0; i<0x10; ++i) {
+			Map<String, Object> node = rndNode();
+			byte[] bin = write(binrw, node);
+			assertEquals(node, read(binrw, bin));
+
+			byte[] yml = write(yamlrw, node);
+			assertTrue(bin.length < yml.length);
+		}
+	}
+
+	public void testBinInfo() throws IOException {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("bin", new Packer.BinInfo(Generators.rndStr(), 0x1234));
+		map.put("neg", new Packer.BinInfo(-7, 1));
+		Map<String, Object> got = (Map<String, Object>)read(binrw, write(binrw, map));
+		for (String k: map.keySet()) {
+			Packer.BinInfo exp = (Packer.BinInfo)map.get(k), act = (Packer.BinInfo)got.get(k);
+			assertEquals(exp.getID(), act.getID());
+			assertEquals(exp.getWeight(), act.getWeight());
+		}
+	}
+
+	public void testReadYaml() throws IOException {
+		Map<String, Object> node = rndNode();
+		node.remove("tags"); // YAML does not preserve Set
+		byte[] yml = write(yamlrw, node);
+		// YAML does not preserve everything exactly (eg. float precision), so
+		// only check that we get the same thing that YamlReaderWriter does
+		assertEquals(read(yamlrw, yml), read(binrw, yml));
+	}
+
+	public void testFallback() throws IOException {
+		Map<String, Object> node = rndNode();
+		node.remove("tags");
+		node.put("odd", new java.math.BigInteger("123456789012345678901234567890"));
+		byte[] out = write(binrw, node);
+		// written as YAML, so both readers agree
+		assertTrue(out[0] != 0);
+		assertEquals(read(yamlrw, out), read(binrw, out));
+	}
+
+	/**
+	** Makes a document with the given tag and size, followed by a few bytes.
+	*/
+	protected byte[] badSize(byte tag, int size) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		java.io.DataOutputStream dos = new java.io.DataOutputStream(bos);
+		dos.writeInt(BinaryReaderWriter.MAGIC);
+		dos.writeByte(BinaryReaderWriter.VERSION);
+		dos.writeByte(tag);
+		BinaryReaderWriter.writeVarInt(size, dos);
+		dos.write(new byte[]{BinaryReaderWriter.T_NULL, BinaryReaderWriter.T_NULL, BinaryReaderWriter.T_NULL});
+		dos.flush();
+		return bos.toByteArray();
+	}
+
+	public void testBadSizes() throws IOException {
+		byte[] tags = {BinaryReaderWriter.T_MAP, BinaryReaderWriter.T_LIST, BinaryReaderWriter.T_SET, BinaryReaderWriter.T_STRING};
+		// too big for the input, too big for anything, and overflowing when doubled
+		int[] sizes = {4, BinaryReaderWriter.MAX_SIZE + 1, 0x40000001, -1};
+		for (byte tag: tags) {
+			for (int size: sizes) {
+				try {
+					read(binrw, badSize(tag, size));
+					fail("read a size of " + size + " for tag " + tag);
+				} catch (DataFormatException e) {
+					// expected
+				}
+			}
+		}
+		// but a size that fits what is left is fine
+		assertEquals(java.util.Arrays.asList(null, null, null), read(binrw, badSize(BinaryReaderWriter.T_LIST, 3)));
+	}
+
+	public void testConcurrentRead() throws Exception {
+		final Map<String, Object> node = rndNode();
+		final byte[] bin = write(binrw, node);
+		final Throwable[] err = new Throwable[1];
+		Thread[] ths = new Thread[8];
+		for (int i=0; i<ths.length; ++i) {
+			ths[i] = new Thread() {
+				@Override public void run() {
+					try {
+						for (int j=0; j<0x40; ++j) {
+							if (!node.equals(read(binrw, bin))) { throw new AssertionError("mismatch"); }
+						}
+					} catch (Throwable t) {
+						synchronized (err) { err[0] = t; }
+					}
+				}
+			};
+			ths[i].start();
+		}
+		for (Thread th: ths) { th.join(); }
+		if (err[0] != null) { throw new AssertionError(err[0]); }
+	}
+
+}
@@ -0,0 +1,216 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.Generators;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class BlockCacheTest extends TestCase {
+
+	final public static int block = 0x400;
+
+	File dir;
+
+	@Override protected void setUp() throws IOException {
+		dir = File.createTempFile("blockcache", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override protected void tearDown() {
+		delete(dir);
+	}
+
+	protected static void delete(File f) {
+		File[] fs = f.listFiles();
+		if (fs != null) {
+			for (File c: fs) { delete(c); }
+		}
+		f.delete();
+	}
+
+	protected static byte[] rndBlock(int size) {
+		byte[] b = new byte[size];
+		Generators.rand.nextBytes(b);
+		return b;
+	}
+
+	/**
+	** Size of a block on disk, including its hash.
+	*/
+	protected static long onDisk(int size) {
+		return size + BlockCache.HASH_LENGTH;
+	}
+
+	public void testPutGet() throws IOException {
+		BlockCache cache = new BlockCache(new File(dir, "cache"), 1<<20);
+		byte[] a = rndBlock(block), b = rndBlock(block);
+		cache.put("CHK@a", a);
+		cache.put("CHK@b", b);
+		assertTrue(Arrays.equals(a, cache.get("CHK@a")));
+		assertTrue(Arrays.equals(b, cache.get("CHK@b")));
+		assertNull(cache.get("CHK@c"));
+		assertEquals(2, cache.size());
+		assertEquals(2*onDisk(block), cache.getBytes());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2*block, cache.getBytesServed());
+		assertEquals(2.0/3, cache.getHitRate(), 1e-9);
+
+		// replacing a block doesn't count it twice
+		cache.put("CHK@a", b);
+		assertTrue(Arrays.equals(b, cache.get("CHK@a")));
+		assertEquals(2*onDisk(block), cache.getBytes());
+
+		// blocks are sharded by hash
+		String h = BlockCache.hash("CHK@a");
+		assertTrue(new File(new File(cache.getDir(), h.substring(0, 2)), h).isFile());
+
+		assertTrue(cache.remove("CHK@a"));
+		assertNull(cache.get("CHK@a"));
+		assertEquals(onDisk(block), cache.getBytes());
+	}
+
+	public void testEviction() throws IOException {
+		BlockCache cache = new BlockCache(new File(dir, "cache"), 4*onDisk(block));
+		for (int i=0; i<4; ++i) { cache.put("CHK@" + i, rndBlock(block)); }
+		assertEquals(4, cache.size());
+
+		// use block 0, so block 1 is the least recently used
+		assertNotNull(cache.get("CHK@0"));
+		cache.put("CHK@4", rndBlock(block));
+		assertEquals(4, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get("CHK@1"));
+		assertNotNull(cache.get("CHK@0"));
+		assertTrue(cache.getBytes() <= cache.getBudget());
+
+		// too big to ever fit
+		cache.put("CHK@big", rndBlock(5*block));
+		assertNull(cache.get("CHK@big"));
+		assertEquals(4, cache.size());
+
+		cache.setBudget(2*onDisk(block));
+		assertEquals(2, cache.size());
+		assertTrue(cache.getBytes() <= cache.getBudget());
+	}
+
+	public void testCorruption() throws IOException {
+		BlockCache cache = new BlockCache(new File(dir, "cache"), 1<<20);
+		cache.put("CHK@a", rndBlock(block));
+		cache.put("CHK@b", rndBlock(block));
+
+		String h = BlockCache.hash("CHK@a");
+		RandomAccessFile raf = new RandomAccessFile(new File(new File(cache.getDir(), h.substring(0, 2)), h), "rw");
+		raf.seek(block / 2);
+		int x = raf.read();
+		raf.seek(block / 2);
+		raf.write(x ^ 1);
+		raf.close();
+
+		assertNull(cache.get("CHK@a"));
+		assertEquals(1, cache.getCorrupt());
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get("CHK@b"));
+	}
+
+	public void testStream() throws IOException {
+		BlockCache cache = new BlockCache(new File(dir, "cache"), 1<<20);
+		byte[] a = rndBlock(block*5 + 7), b = rndBlock(block);
+		cache.put("CHK@a", a);
+		cache.put("CHK@b", b);
+
+		ByteArrayOutputStream bs = new ByteArrayOutputStream();
+		assertTrue(cache.get("CHK@a", bs));
+		assertTrue(Arrays.equals(a, bs.toByteArray()));
+		assertFalse(cache.get("CHK@c", new ByteArrayOutputStream()));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(a.length, cache.getBytesServed());
+
+		String h = BlockCache.hash("CHK@b");
+		RandomAccessFile raf = new RandomAccessFile(new File(new File(cache.getDir(), h.substring(0, 2)), h), "rw");
+		raf.setLength(raf.length() - 1);
+		raf.close();
+		assertFalse(cache.get("CHK@b", new ByteArrayOutputStream()));
+		assertEquals(1, cache.getCorrupt());
+		assertEquals(1, cache.size());
+	}
+
+	public void testReopen() throws IOException {
+		File d = new File(dir, "cache");
+		BlockCache cache = new BlockCache(d, 1<<20);
+		byte[] a = rndBlock(block);
+		cache.put("CHK@a", a);
+		cache.put("CHK@b", rndBlock(block));
+		cache.put("CHK@c", rndBlock(2*block));
+		// leftover from an interrupted write
+		String h = BlockCache.hash("CHK@d");
+		File tmp = new File(new File(d, h.substring(0, 2)), h + ".1234" + BlockCache.TMP_SUFFIX);
+		tmp.getParentFile().mkdirs();
+		new FileOutputStream(tmp).close();
+
+		BlockCache again = new BlockCache(d, 1<<20);
+		assertEquals(3, again.size());
+		assertEquals(cache.getBytes(), again.getBytes());
+		assertTrue(Arrays.equals(a, again.get("CHK@a")));
+		assertFalse(tmp.exists());
+
+		// blocks that don't fit the new budget are dropped when it is opened
+		BlockCache small = new BlockCache(d, 2*onDisk(block));
+		assertTrue(small.getBytes() <= small.getBudget());
+		assertTrue(small.size() < 3);
+	}
+
+	public void testLegacy() throws IOException {
+		File legacy = new File(dir, "legacy");
+		legacy.mkdir();
+		byte[] a = rndBlock(block);
+		FileOutputStream os = new FileOutputStream(new File(legacy, "CHK@a"));
+		os.write(a);
+		os.close();
+
+		BlockCache cache = new BlockCache(new File(dir, "cache"), 1<<20);
+		assertNull(cache.get("CHK@a"));
+		cache.setLegacyDir(legacy);
+		assertTrue(Arrays.equals(a, cache.get("CHK@a")));
+		assertFalse(new File(legacy, "CHK@a").exists());
+		assertTrue(cache.contains("CHK@a"));
+		assertTrue(Arrays.equals(a, cache.get("CHK@a")));
+	}
+
+	public void testImportLegacy() throws IOException {
+		File legacy = new File(dir, "legacy");
+		legacy.mkdir();
+		byte[][] blocks = new byte[4][];
+		for (int i=0; i<blocks.length; ++i) {
+			blocks[i] = rndBlock(block);
+			File f = new File(legacy, "CHK@" + i);
+			FileOutputStream os = new FileOutputStream(f);
+			os.write(blocks[i]);
+			os.close();
+			f.setLastModified(1000000000000L + i*1000);
+		}
+
+		// only the most recently used legacy blocks fit
+		BlockCache cache = new BlockCache(new File(dir, "cache"), 2*onDisk(block));
+		cache.setLegacyDir(legacy);
+		assertEquals(blocks.length, cache.importLegacyDir());
+		assertFalse(legacy.exists());
+		assertTrue(cache.getBytes() <= cache.getBudget());
+		assertEquals(2, cache.size());
+		assertFalse(cache.contains("CHK@0"));
+		assertTrue(Arrays.equals(blocks[3], cache.get("CHK@3")));
+		assertNull(cache.get("CHK@0"));
+	}
+
+}
@@ -0,0 +1,154 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class MergeJournalTest extends TestCase {
+
+	File file;
+
+	protected void setUp() throws Exception {
+		file = File.createTempFile("merge-journal", ".test");
+		file.delete();
+	}
+
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testResume() throws Exception {
+		MergeJournal j = new MergeJournal(file, "index@1");
+		j.put("a", "CHK@a");
+		j.put("b", Arrays.asList("CHK@b", 2));
+		j.commit();
+		// not committed, so lost when the merge is interrupted
+		j.put("c", "CHK@c");
+		assertEquals("CHK@c", j.get("c"));
+		assertEquals(2, j.size());
+		assertEquals(1, j.getPending());
+		j.close();
+
+		j = new MergeJournal(file, "index@1");
+		assertEquals(2, j.getResumed());
+		assertEquals("CHK@a", j.get("a"));
+		assertEquals(Arrays.asList("CHK@b", 2), j.get("b"));
+		assertNull(j.get("c"));
+		assertEquals(2, j.getHits());
+
+		// and appending to a resumed journal keeps what was there
+		j.put("c", "CHK@c");
+		j.commit();
+		j.close();
+		j = new MergeJournal(file, "index@1");
+		assertEquals(3, j.size());
+		j.delete();
+		assertFalse(file.exists());
+	}
+
+	public void testOtherMerge() throws Exception {
+		MergeJournal j = new MergeJournal(file, "index@1");
+		j.put("a", "CHK@a");
+		j.commit();
+		j.close();
+
+		// a merge into another edition can't use the nodes of this one
+		j = new MergeJournal(file, "index@2");
+		assertEquals(0, j.size());
+		assertNull(j.get("a"));
+		j.close();
+		j = new MergeJournal(file, "index@1");
+		assertEquals(0, j.size());
+		j.close();
+	}
+
+	public void testPartialRecord() throws Exception {
+		MergeJournal j = new MergeJournal(file, "index@1");
+		j.put("a", "CHK@a");
+		j.commit();
+		long len = file.length();
+		j.put("b", "CHK@b");
+		j.commit();
+		j.close();
+
+		// as if the JVM stopped while the last record was being written
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(file.length() - 3);
+		raf.close();
+
+		j = new MergeJournal(file, "index@1");
+		assertEquals(1, j.size());
+		assertEquals("CHK@a", j.get("a"));
+		assertEquals(len, file.length());
+		j.put("c", "CHK@c");
+		j.commit();
+		j.close();
+		j = new MergeJournal(file, "index@1");
+		assertEquals(2, j.size());
+		assertEquals("CHK@c", j.get("c"));
+		j.close();
+	}
+
+	public void testBarrier() throws Exception {
+		// stamps count the inserts started, up to the first one that failed
+		final long[] started = new long[1], failed = { Long.MAX_VALUE };
+		final MergeJournal j = new MergeJournal(file, "index@1");
+		j.setBarrier(new MergeJournal.Barrier() {
+			/*@Override**/ public long mark() {
+				return started[0];
+			}
+			/*@Override**/ public long await(long mark) {
+				// entries put while waiting are left for the next commit
+				j.put("d", "CHK@d");
+				return Math.min(mark, failed[0]);
+			}
+		});
+		started[0] = 1;
+		j.put("a", "CHK@a");
+		started[0] = 2;
+		j.put("b", "CHK@b");
+		// the insert started after a was put fails, so b may point to it
+		failed[0] = 1;
+		started[0] = 3;
+		j.put("c", "CHK@c");
+		assertEquals(1, j.commit());
+		assertEquals(1, j.size());
+		assertEquals(3, j.getPending());
+
+		// the others stay pending, and can still be found
+		assertEquals("CHK@b", j.get("b"));
+		j.close();
+		MergeJournal jj = new MergeJournal(file, "index@1");
+		assertEquals(1, jj.size());
+		assertEquals("CHK@a", jj.get("a"));
+		assertNull(jj.get("b"));
+		jj.close();
+	}
+
+	public void testCorruptLength() throws Exception {
+		MergeJournal j = new MergeJournal(file, "index@1");
+		j.put("a", "CHK@a");
+		j.commit();
+		long len = file.length();
+		j.put("b", "CHK@b");
+		j.commit();
+		j.close();
+
+		// the length of the last record is garbage, and far more than is left
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(len + MergeJournal.utfLength("b"));
+		raf.writeInt(0x7fffffff);
+		raf.close();
+
+		j = new MergeJournal(file, "index@1");
+		assertEquals(1, j.size());
+		assertEquals(len, file.length());
+		j.close();
+	}
+
+}
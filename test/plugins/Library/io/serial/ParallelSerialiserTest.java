@@ -0,0 +1,273 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.concurrent.ObjectProcessor;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+import plugins.Library.util.func.Tuples.X3;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelSerialiserTest extends TestCase {
+
+	final public static int decoders = 4;
+	final public static int capacity = 2;
+
+	/**
+	** Archiver whose fetches wait a fixed time, and which counts how many
+	** fetches are running and how many decoded items have not been consumed.
+	*/
+	public static class StagedIntegers extends ParallelSerialiser<Integer, SimpleProgress>
+	implements StagedArchiver<Integer, SimpleProgress> {
+
+		int fetching, maxFetching;
+		int decoded, maxDecoded;
+
+		public StagedIntegers() {
+			super(new ProgressTracker<Integer, SimpleProgress>(SimpleProgress.class), decoders);
+		}
+
+		/*@Override**/ public Object pullFetch(PullTask<Integer> task, SimpleProgress p) throws TaskAbortException {
+			synchronized (this) { maxFetching = Math.max(maxFetching, ++fetching); }
+			try {
+				Thread.sleep(0x10);
+			} catch (InterruptedException e) {
+				p.abort(new TaskAbortException("interrupted", e, true));
+			} finally {
+				synchronized (this) { --fetching; }
+			}
+			if (task.meta.equals(-1)) { p.abort(new TaskAbortException("not found: " + task.meta, null, false)); }
+			return task.meta;
+		}
+
+		/*@Override**/ public void pullDecode(PullTask<Integer> task, SimpleProgress p, Object fetched) throws TaskAbortException {
+			synchronized (this) { maxDecoded = Math.max(maxDecoded, ++decoded); }
+			task.data = (Integer)fetched;
+			p.addPartKnown(1, true);
+			p.addPartDone();
+		}
+
+		/*@Override**/ public void pullLive(PullTask<Integer> task, SimpleProgress p) throws TaskAbortException {
+			pullDecode(task, p, pullFetch(task, p));
+		}
+
+		/*@Override**/ public void pushLive(PushTask<Integer> task, SimpleProgress p) throws TaskAbortException {
+			finishPush(task, p);
+		}
+
+		/**
+		** Completes a push, which gets the value pushed as its metadata, or
+		** fails if that is -1.
+		*/
+		protected void finishPush(PushTask<Integer> task, SimpleProgress p) throws TaskAbortException {
+			if (task.data.equals(-1)) { p.abort(new TaskAbortException("cannot push: " + task.data, null, false)); }
+			task.meta = task.data;
+			p.addPartKnown(1, true);
+			p.addPartDone();
+		}
+
+		public synchronized void consumed() {
+			--decoded;
+		}
+
+	}
+
+	/**
+	** Archiver whose fetches complete after a fixed time, on a single timer
+	** thread, and which counts how many fetches are in progress.
+	*/
+	public static class AsyncIntegers extends StagedIntegers
+	implements AsyncArchiver<Integer, SimpleProgress> {
+
+		final public static int latency = 0x100;
+
+		final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+
+		int inFlight, maxInFlight;
+
+		/*@Override**/ public void startPull(final PullTask<Integer> task, final SimpleProgress p, final SafeClosure<X2<Object, TaskAbortException>> done) {
+			synchronized (this) { maxInFlight = Math.max(maxInFlight, ++inFlight); }
+			timer.schedule(new Runnable() {
+				public void run() {
+					synchronized (AsyncIntegers.this) { --inFlight; }
+					if (task.meta.equals(-1)) {
+						done.invoke(X2((Object)null, p.abortQuietly(new TaskAbortException("not found: " + task.meta, null, false))));
+					} else {
+						done.invoke(X2((Object)task.meta, (TaskAbortException)null));
+					}
+				}
+			}, latency, TimeUnit.MILLISECONDS);
+		}
+
+		/*@Override**/ public void startPush(final PushTask<Integer> task, final SimpleProgress p, final SafeClosure<TaskAbortException> done) {
+			synchronized (this) { maxInFlight = Math.max(maxInFlight, ++inFlight); }
+			timer.schedule(new Runnable() {
+				public void run() {
+					synchronized (AsyncIntegers.this) { --inFlight; }
+					TaskAbortException ex = null;
+					try { finishPush(task, p); }
+					catch (TaskAbortException e) { ex = e; }
+					done.invoke(ex);
+				}
+			}, latency, TimeUnit.MILLISECONDS);
+		}
+
+	}
+
+	public void testBackPressure() throws Exception {
+		StagedIntegers srl = new StagedIntegers();
+		ObjectProcessor<PullTask<Integer>, Integer, TaskAbortException> proc = srl.pullSchedule(
+			new LinkedBlockingQueue<PullTask<Integer>>(),
+			new LinkedBlockingQueue<X2<PullTask<Integer>, TaskAbortException>>(capacity),
+			new HashMap<PullTask<Integer>, Integer>()
+		);
+		final int n = 0x40;
+		try {
+			for (int i=0; i<n; ++i) {
+				ObjectProcessor.submitSafe(proc, new PullTask<Integer>(i), i);
+			}
+			while (proc.dispatchPoll());
+
+			// a slow consumer
+			for (int i=0; i<n; ++i) {
+				X3<PullTask<Integer>, Integer, TaskAbortException> res = proc.accept();
+				assertNull(res._2);
+				assertEquals(res._1, res._0.data);
+				srl.consumed();
+				Thread.sleep(2);
+				while (proc.dispatchPoll());
+			}
+			assertFalse(proc.hasPending());
+		} finally {
+			proc.close();
+		}
+
+		// fetches are not held up by the decode stage...
+		assertTrue(srl.maxFetching > decoders);
+		// ...but decoded data is only created as fast as it is consumed; the +1
+		// is the item that the consumer has taken but not yet counted
+		assertTrue(srl.maxDecoded <= decoders + capacity + 1);
+	}
+
+	public void testFetchFailure() throws Exception {
+		StagedIntegers srl = new StagedIntegers();
+		PullTask<Integer> task = new PullTask<Integer>(-1);
+		try {
+			srl.pull(task);
+			fail("pull should have failed");
+		} catch (TaskAbortException e) {
+			assertNull(task.data);
+		}
+		// failed fetches don't take decode permits
+		assertEquals(decoders, srl.decoding.availablePermits());
+		task = new PullTask<Integer>(7);
+		srl.pull(task);
+		assertEquals(Integer.valueOf(7), task.data);
+	}
+
+	public void testAsyncInFlight() throws Exception {
+		AsyncIntegers srl = new AsyncIntegers();
+		ObjectProcessor<PullTask<Integer>, Integer, TaskAbortException> proc = srl.pullSchedule(
+			new LinkedBlockingQueue<PullTask<Integer>>(),
+			new LinkedBlockingQueue<X2<PullTask<Integer>, TaskAbortException>>(capacity),
+			new HashMap<PullTask<Integer>, Integer>()
+		);
+		final int n = 0x400;
+		long t = System.currentTimeMillis();
+		try {
+			for (int i=0; i<n; ++i) {
+				ObjectProcessor.submitSafe(proc, new PullTask<Integer>(i), i);
+			}
+			for (int i=0; i<n; ++i) {
+				while (proc.dispatchPoll());
+				X3<PullTask<Integer>, Integer, TaskAbortException> res = proc.accept();
+				assertNull(res._2);
+				assertEquals(res._1, res._0.data);
+				srl.consumed();
+			}
+			assertFalse(proc.hasPending());
+		} finally {
+			proc.close();
+			srl.timer.shutdown();
+		}
+		t = System.currentTimeMillis() - t;
+
+		// far more fetches were waiting at once than there are threads...
+		assertTrue(srl.maxInFlight > 0x100);
+		// ...so they took a few latencies, not one per thread-full
+		assertTrue(t < n / 0x40 * AsyncIntegers.latency / 2);
+		// and the decode stage still keeps up the back-pressure
+		assertTrue(srl.maxDecoded <= decoders + capacity + 1);
+	}
+
+	public void testAsyncPush() throws Exception {
+		AsyncIntegers srl = new AsyncIntegers();
+		ObjectProcessor<PushTask<Integer>, Integer, TaskAbortException> proc = srl.pushSchedule(
+			new LinkedBlockingQueue<PushTask<Integer>>(),
+			new LinkedBlockingQueue<X2<PushTask<Integer>, TaskAbortException>>(capacity),
+			new HashMap<PushTask<Integer>, Integer>()
+		);
+		final int n = 0x100;
+		try {
+			for (int i=0; i<n; ++i) {
+				ObjectProcessor.submitSafe(proc, new PushTask<Integer>(i), i);
+			}
+			for (int i=0; i<n; ++i) {
+				while (proc.dispatchPoll());
+				X3<PushTask<Integer>, Integer, TaskAbortException> res = proc.accept();
+				assertNull(res._2);
+				assertEquals(res._1, res._0.meta);
+			}
+			assertFalse(proc.hasPending());
+
+			// pushes are not run one per thread either
+			assertTrue(srl.maxInFlight > decoders);
+
+			// a single push, and one that fails; pushes are tracked by their
+			// data, so this must not be one of the values above
+			PushTask<Integer> task = new PushTask<Integer>(n);
+			srl.push(task);
+			assertEquals(Integer.valueOf(n), task.meta);
+			task = new PushTask<Integer>(-1);
+			try {
+				srl.push(task);
+				fail("push should have failed");
+			} catch (TaskAbortException e) {
+				assertNull(task.meta);
+			}
+		} finally {
+			proc.close();
+			srl.timer.shutdown();
+		}
+	}
+
+	public void testAsyncFailure() throws Exception {
+		AsyncIntegers srl = new AsyncIntegers();
+		try {
+			PullTask<Integer> task = new PullTask<Integer>(-1);
+			try {
+				srl.pull(task);
+				fail("pull should have failed");
+			} catch (TaskAbortException e) {
+				assertNull(task.data);
+			}
+			assertEquals(decoders, srl.decoding.availablePermits());
+			task = new PullTask<Integer>(7);
+			srl.pull(task);
+			assertEquals(Integer.valueOf(7), task.data);
+		} finally {
+			srl.timer.shutdown();
+		}
+	}
+
+}
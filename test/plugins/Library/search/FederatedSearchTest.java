@@ -0,0 +1,205 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.Generators;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+import plugins.Library.search.SearchTest.Pending;
+
+import freenet.keys.FreenetURI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+
+public class FederatedSearchTest extends TestCase {
+
+	final static List<String> NONE = Collections.emptyList();
+
+	protected void setUp() {
+		Search.setup(null, null);
+		FederatedSearch.clearStats();
+	}
+
+	protected void tearDown() {
+		FederatedSearch.setDefaultBudget(FederatedSearch.DEFAULT_INDEX_BUDGET);
+		for (String index : Arrays.asList("fast", "slow", "a", "b", "c"))
+			FederatedSearch.setBudget(index, -1);
+		FederatedSearch.setSkipSlowIndexes(false);
+		FederatedSearch.clearStats();
+		Search.setup(null, null);
+	}
+
+	protected Set<TermEntry> entries(String subj, FreenetURI... uris) {
+		Set<TermEntry> set = new HashSet<TermEntry>();
+		for (FreenetURI uri : uris) {
+			set.add(new TermPageEntry(subj, 0.5f, uri, null));
+		}
+		return set;
+	}
+
+	protected FreenetURI randomURI() {
+		return FreenetURI.generateRandomCHK(Generators.rand);
+	}
+
+	protected Map<String, Execution<Set<TermEntry>>> indexes(Pending... requests) {
+		Map<String, Execution<Set<TermEntry>>> map = new LinkedHashMap<String, Execution<Set<TermEntry>>>();
+		for (Pending request : requests) {
+			map.put(request.getSubject(), request);
+		}
+		return map;
+	}
+
+	/**
+	** Waits for the execution to finish, failing the test rather than hanging
+	** if it doesn't.
+	**
+	** @return The error, or null if it completed
+	*/
+	protected TaskAbortException joinWithin(final Execution<?> exec, long timeout) throws InterruptedException {
+		final TaskAbortException[] error = new TaskAbortException[1];
+		Thread joiner = new Thread() {
+			@Override public void run() {
+				try {
+					exec.join();
+				} catch (TaskAbortException e) {
+					error[0] = e;
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		joiner.start();
+		joiner.join(timeout);
+		assertFalse("execution wasn't finished in time", joiner.isAlive());
+		return error[0];
+	}
+
+	public void testDeadline() throws Exception {
+		FederatedSearch.setBudget("slow", 0x40);
+		Pending fast = new Pending("fast"), slow = new Pending("slow");
+		FederatedSearch fed = new FederatedSearch("q", indexes(fast, slow), NONE);
+
+		fast.finish(entries("fast", randomURI(), randomURI()));
+		assertTrue(fed.isPartiallyDone());
+		// the slow index doesn't hold up the results of the fast one
+		assertNull(joinWithin(fed, 5000));
+		assertEquals(2, fed.getResult().size());
+		assertTrue(fed.isPartial());
+		assertEquals(Collections.singleton("slow"), fed.getTimedOut());
+		assertTrue(fed.getFailed().isEmpty());
+
+		// answering too late doesn't change the results
+		slow.finish(entries("slow", randomURI()));
+		assertEquals(2, fed.getResult().size());
+		assertEquals(0, FederatedSearch.getStats("slow").getAnswered());
+		assertEquals(1, FederatedSearch.getStats("slow").getTimedOut());
+		assertEquals(1, FederatedSearch.getStats("fast").getAnswered());
+		assertTrue(FederatedSearch.getStats("fast").getMeanLatency() >= 0);
+	}
+
+	public void testMerge() throws Exception {
+		FreenetURI shared = randomURI();
+		Pending a = new Pending("a"), b = new Pending("b");
+		FederatedSearch fed = new FederatedSearch("q", indexes(a, b), NONE);
+		a.finish(entries("a", shared, randomURI()));
+		assertFalse(fed.isDone());
+		b.finish(entries("b", shared, randomURI(), randomURI()));
+		assertNull(joinWithin(fed, 5000));
+		assertFalse(fed.isPartial());
+
+		// the page found in both indexes is one result
+		Set<TermEntry> result = fed.getResult();
+		assertEquals(4, result.size());
+		int found = 0;
+		for (TermEntry entry : result) {
+			assertEquals("q", entry.subj);
+			if (((TermPageEntry)entry).page.equals(shared)) { ++found; }
+		}
+		assertEquals(1, found);
+	}
+
+	public void testFailures() throws Exception {
+		// an index which fails is left out...
+		Pending a = new Pending("a"), b = new Pending("b");
+		FederatedSearch fed = new FederatedSearch("q", indexes(a, b), NONE);
+		a.fail("a is broken");
+		b.finish(entries("b", randomURI()));
+		assertNull(joinWithin(fed, 5000));
+		assertEquals(1, fed.getResult().size());
+		assertTrue(fed.isPartial());
+		assertEquals(Collections.singleton("a"), fed.getFailed());
+
+		// ...but if every index fails or runs out of time, so does the search
+		FederatedSearch.setBudget("c", 0);
+		Pending a2 = new Pending("a"), c = new Pending("c");
+		FederatedSearch failed = new FederatedSearch("q", indexes(a2, c), NONE);
+		a2.fail("a is still broken");
+		assertNotNull(joinWithin(failed, 5000));
+		assertEquals(2, FederatedSearch.getStats("a").getFailed());
+	}
+
+	public void testPlan() throws Exception {
+		FederatedSearch.setBudget("slow", 0);
+		for (int i=0; i<FederatedSearch.SLOW_AFTER_TIMEOUTS; ++i) {
+			assertFalse(FederatedSearch.getStats("slow") != null && FederatedSearch.getStats("slow").isSlow());
+			Pending fast = new Pending("fast"), slow = new Pending("slow");
+			FederatedSearch fed = new FederatedSearch("q", indexes(slow, fast), NONE);
+			fast.finish(entries("fast", randomURI()));
+			assertNull(joinWithin(fed, 5000));
+		}
+		assertTrue(FederatedSearch.getStats("slow").isSlow());
+
+		// quickest first, then ones never searched, then slow ones
+		List<String> skipped = new ArrayList<String>();
+		assertEquals(Arrays.asList("fast", "new", "slow"), FederatedSearch.plan(Arrays.asList("slow", "new", "fast"), skipped));
+		assertTrue(skipped.isEmpty());
+
+		FederatedSearch.setSkipSlowIndexes(true);
+		assertEquals(Arrays.asList("fast", "new"), FederatedSearch.plan(Arrays.asList("slow", "new", "fast"), skipped));
+		assertEquals(Collections.singletonList("slow"), skipped);
+		// but something is always searched
+		skipped.clear();
+		assertEquals(Collections.singletonList("slow"), FederatedSearch.plan(Arrays.asList("slow"), skipped));
+		assertTrue(skipped.isEmpty());
+
+		// an answer in time makes it not slow any more
+		FederatedSearch.setBudget("slow", -1);
+		Pending fast = new Pending("fast"), slow = new Pending("slow");
+		FederatedSearch fed = new FederatedSearch("q", indexes(slow, fast), NONE);
+		fast.finish(entries("fast", randomURI()));
+		slow.finish(entries("slow", randomURI()));
+		assertNull(joinWithin(fed, 5000));
+		assertFalse(FederatedSearch.getStats("slow").isSlow());
+	}
+
+	public void testPartialSearch() throws Exception {
+		FederatedSearch.setBudget("slow", 0x40);
+		Pending fast = new Pending("fast"), slow = new Pending("slow");
+		Search search = new Search("p", "fast slow", Arrays.asList(fast, slow), ResultOperation.DIFFERENTINDEXES, Arrays.asList("skipped"));
+		fast.finish(entries("fast", randomURI()));
+		assertNull(joinWithin(search, 5000));
+		assertTrue(search.isPartial());
+		assertEquals(1, search.getResult().size());
+		assertEquals(Collections.singleton("slow"), search.getFederatedSearch().getTimedOut());
+		assertEquals(Collections.singleton("skipped"), search.getFederatedSearch().getSkipped());
+
+		// it can still be shown, but isn't used to answer the query again
+		assertSame(search, Search.getSearch(search.hashCode()));
+		assertNull(Search.getSearch("p", "fast slow"));
+		assertEquals(0, Search.getCache().size());
+	}
+
+}
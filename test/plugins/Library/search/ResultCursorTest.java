@@ -0,0 +1,73 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.Generators;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.ui.RelevanceComparator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class ResultCursorTest extends TestCase {
+
+	final public static int size = 0x400;
+
+	final RelevanceComparator cmp = RelevanceComparator.comparator;
+
+	Set<TermEntry> res = new HashSet<TermEntry>();
+	List<TermEntry> exp;
+
+	@Override protected void setUp() {
+		for (int i=0; i<size; ++i) {
+			TermPageEntry en = Generators.rndEntry("test");
+			res.add(en);
+			// some ties, which are broken by identity
+			if (i % 8 == 0) { res.add(new TermPageEntry("test", en.rel, Generators.rndEntry("test").page, null)); }
+		}
+		TreeSet<TermEntry> sorted = new TreeSet<TermEntry>(cmp);
+		sorted.addAll(res);
+		exp = new ArrayList<TermEntry>(sorted);
+	}
+
+	public void testTop() {
+		assertEquals(exp.subList(0, 10), ResultCursor.top(res, 10, cmp, null));
+		assertEquals(exp, ResultCursor.top(res, res.size() + 10, cmp, null));
+		assertEquals(exp.subList(11, 21), ResultCursor.top(res, 10, cmp, exp.get(10)));
+		assertTrue(ResultCursor.top(res, 0, cmp, null).isEmpty());
+		assertTrue(ResultCursor.top(res, 10, cmp, exp.get(exp.size()-1)).isEmpty());
+	}
+
+	public void testPages() {
+		ResultCursor cursor = new ResultCursor(res, 100);
+		assertEquals(res.size(), cursor.size());
+
+		// walk through all the pages
+		List<TermEntry> all = new ArrayList<TermEntry>();
+		while (cursor.hasNext()) {
+			List<TermEntry> page = cursor.next();
+			assertTrue(page.size() > 0 && page.size() <= 100);
+			all.addAll(page);
+			assertEquals(all.size(), cursor.getOffset());
+		}
+		assertEquals(exp, all);
+		assertTrue(cursor.next().isEmpty());
+
+		// jump around, as a browser might with back and reload
+		assertEquals(exp.subList(0, 100), cursor.page(0));
+		assertEquals(exp.subList(100, 200), cursor.page(100));
+		assertEquals(exp.subList(100, 200), cursor.page(100));
+		assertEquals(exp.subList(350, 450), cursor.page(350));
+		assertEquals(exp.subList(exp.size() - 50, exp.size()), cursor.page(exp.size() - 50));
+		assertTrue(cursor.page(exp.size() + 100).isEmpty());
+		assertEquals(exp.subList(200, 300), cursor.page(200));
+	}
+
+}
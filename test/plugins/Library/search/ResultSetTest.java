@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.Generators;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+public class ResultSetTest extends TestCase {
+
+	final public static int pages = 0x4000;
+
+	static class Done extends AbstractExecution<Set<TermEntry>> {
+		public Done(Set<TermEntry> res) {
+			super("test");
+			setResult(res);
+		}
+		@Override public String getStatus() { return "done"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(1, 1); }
+	}
+
+	FreenetURI[] uris = new FreenetURI[pages];
+	{
+		for (int i=0; i<pages; ++i) { uris[i] = FreenetURI.generateRandomCHK(Generators.rand); }
+	}
+
+	/**
+	** Every page whose index is a multiple of {@code step}, with the term at
+	** positions {@code 10*i+off} for each i less than the page index mod 8.
+	*/
+	protected Set<TermEntry> entries(String subj, int step, int off) {
+		Set<TermEntry> set = new HashSet<TermEntry>();
+		for (int p=0; p<pages; p+=step) {
+			Map<Integer, String> pos = new HashMap<Integer, String>();
+			for (int i=0; i<(p&7); ++i) { pos.put(10*i+off, null); }
+			set.add(new TermPageEntry(subj, 0.5f, uris[p], pos));
+		}
+		return set;
+	}
+
+	protected ResultSet run(ResultOperation op, Set<TermEntry>... sets) throws TaskAbortException {
+		List<Execution<Set<TermEntry>>> reqs = new ArrayList<Execution<Set<TermEntry>>>();
+		for (Set<TermEntry> set: sets) { reqs.add(set == null? null: new Done(set)); }
+		ResultSet rs = new ResultSet("result", op, reqs, false);
+		rs.run();
+		assertTrue(rs.isDone());
+		return rs;
+	}
+
+	protected Set<FreenetURI> pagesOf(Set<TermEntry> set) {
+		Set<FreenetURI> res = new HashSet<FreenetURI>();
+		for (TermEntry en: set) {
+			assertEquals("result", en.subj);
+			assertTrue(res.add(((TermPageEntry)en).page));
+		}
+		return res;
+	}
+
+	protected Set<FreenetURI> pagesWhere(int step, int mod) {
+		Set<FreenetURI> res = new HashSet<FreenetURI>();
+		for (int p=0; p<pages; p+=step) {
+			if (p % mod == 0) { res.add(uris[p]); }
+		}
+		return res;
+	}
+
+	public void testSetOperations() throws TaskAbortException {
+		Set<TermEntry> a = entries("a", 2, 0), b = entries("b", 3, 0), c = entries("c", 5, 0);
+
+		long t = System.currentTimeMillis();
+		ResultSet and = run(ResultOperation.INTERSECTION, a, b, c);
+		long taken = System.currentTimeMillis() - t;
+		assertEquals(pagesWhere(30, 1), pagesOf(and));
+		for (TermEntry en: and) { assertEquals(0.5f, en.rel); }
+		System.out.println("intersected " + (a.size() + b.size() + c.size()) + " entries in " + taken + " ms");
+
+		ResultSet or = run(ResultOperation.UNION, a, b);
+		Set<FreenetURI> exp = pagesWhere(2, 1);
+		exp.addAll(pagesWhere(3, 1));
+		assertEquals(exp, pagesOf(or));
+
+		ResultSet not = run(ResultOperation.REMOVE, a, b);
+		exp = pagesWhere(2, 1);
+		exp.removeAll(pagesWhere(3, 1));
+		assertEquals(exp.size(), not.size());
+		for (TermEntry en: not) { assertTrue(exp.contains(((TermPageEntry)en).page)); }
+	}
+
+	public void testPhrase() throws TaskAbortException {
+		// "a b" matches where b is at a+1, "a _ c" where c is at a+2
+		Set<TermEntry> a = entries("a", 1, 0), b = entries("b", 2, 1), c = entries("c", 1, 3);
+		ResultSet ph = run(ResultOperation.PHRASE, a, b);
+		Set<FreenetURI> exp = new HashSet<FreenetURI>();
+		for (int p=0; p<pages; p+=2) {
+			if ((p&7) > 0) { exp.add(uris[p]); }
+		}
+		assertEquals(exp, pagesOf(ph));
+		for (TermEntry en: ph) {
+			for (int pos: ((TermPageEntry)en).positionsRaw()) { assertEquals(0, pos % 10); }
+		}
+
+		ResultSet none = run(ResultOperation.PHRASE, a, null, c);
+		assertTrue(none.isEmpty());
+		ResultSet skip = run(ResultOperation.PHRASE, b, null, c);
+		assertEquals(exp, pagesOf(skip));
+	}
+
+	public void testRetainFollowed() {
+		int[] pos = new int[]{1, 4, 7, 9, 20};
+		int n = ResultSet.retainFollowed(pos, pos.length, new int[]{2, 3, 8, 10, 11, 22}, 1);
+		assertTrue(Arrays.equals(new int[]{1, 7, 9}, Arrays.copyOf(pos, n)));
+		n = ResultSet.retainFollowed(pos, n, new int[]{9}, 2);
+		assertTrue(Arrays.equals(new int[]{7}, Arrays.copyOf(pos, n)));
+		assertEquals(0, ResultSet.retainFollowed(pos, n, new int[0], 1));
+	}
+
+}
@@ -0,0 +1,235 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.Index;
+import plugins.Library.util.Generators;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.URIEntry;
+import plugins.Library.search.ResultSet.ResultOperation;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+public class SearchTest extends TestCase {
+
+	/**
+	** An execution which finishes or fails when the test says so.
+	*/
+	static class Pending extends AbstractExecution<Set<TermEntry>> {
+		public Pending(String subj) { super(subj); }
+		public void finish(Set<TermEntry> res) { setResult(res); }
+		public void fail(String msg) { setError(new TaskAbortException(msg, null, false)); }
+		@Override public String getStatus() { return "pending"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(0, 1); }
+	}
+
+	/**
+	** An execution which has already finished.
+	*/
+	static class Done<T> extends AbstractExecution<T> {
+		public Done(String subj, T res) { super(subj); setResult(res); }
+		@Override public String getStatus() { return "done"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(1, 1); }
+	}
+
+	protected void setUp() {
+		Search.setup(null, null);
+	}
+
+	protected void tearDown() {
+		Search.setCacheBudget(Search.DEFAULT_CACHE_BUDGET);
+		Search.setCacheTTL(Search.DEFAULT_CACHE_TTL);
+		Search.setup(null, null);
+	}
+
+	protected Set<TermEntry> entries(String subj, int n) {
+		Set<TermEntry> set = new HashSet<TermEntry>();
+		for (int i=0; i<n; ++i) {
+			set.add(new TermPageEntry(subj, 0.5f, FreenetURI.generateRandomCHK(Generators.rand), null));
+		}
+		return set;
+	}
+
+	/**
+	** Joins the search in another thread, so that the test fails rather than
+	** hangs if nothing finishes the search.
+	**
+	** @return The error, or null if the search completed
+	*/
+	protected TaskAbortException joinWithin(final Search search, long timeout) throws InterruptedException {
+		final TaskAbortException[] error = new TaskAbortException[1];
+		Thread joiner = new Thread() {
+			@Override public void run() {
+				try {
+					search.join();
+				} catch (TaskAbortException e) {
+					error[0] = e;
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		joiner.start();
+		joiner.join(timeout);
+		assertFalse("search wasn't finished by its subsearches", joiner.isAlive());
+		return error[0];
+	}
+
+	public void testAdvancesItself() throws Exception {
+		Pending a = new Pending("a"), b = new Pending("b");
+		Search search = new Search("a or b", "test", Arrays.asList(a, b), ResultOperation.UNION);
+		int changes = search.getChanges();
+
+		// nobody polls the search, it moves on when the subsearches finish
+		a.finish(entries("a", 3));
+		assertTrue(search.awaitChange(changes, 5000) != changes);
+		b.finish(entries("b", 4));
+		assertNull(joinWithin(search, 5000));
+		assertTrue(search.isDone());
+		assertEquals(7, search.getResult().size());
+	}
+
+	public void testAwaitChangeTimeout() throws Exception {
+		Pending a = new Pending("c"), b = new Pending("d");
+		Search search = new Search("c d", "test", Arrays.asList(a, b), ResultOperation.INTERSECTION);
+		int changes = search.getChanges();
+		long t = System.currentTimeMillis();
+		assertEquals(changes, search.awaitChange(changes, 0x40));
+		assertTrue(System.currentTimeMillis() - t >= 0x40);
+		search.remove();
+	}
+
+	public void testFailure() throws Exception {
+		// a union completes without the failed subsearch...
+		Pending a = new Pending("e"), b = new Pending("f");
+		Search union = new Search("e or f", "test", Arrays.asList(a, b), ResultOperation.UNION);
+		a.fail("e not found");
+		b.finish(entries("f", 2));
+		assertNull(joinWithin(union, 5000));
+		assertEquals(2, union.getResult().size());
+
+		// ...but an intersection fails with it
+		Pending c = new Pending("g"), d = new Pending("h");
+		Search intersection = new Search("g h", "test", Arrays.asList(c, d), ResultOperation.INTERSECTION);
+		d.finish(entries("h", 2));
+		c.fail("g not found");
+		assertNotNull(joinWithin(intersection, 5000));
+	}
+
+	public void testPrefixFailedTerm() throws Exception {
+		final Pending term = new Pending("freenet");
+		term.fail("freenet not found");
+		Index index = new Index() {
+			public Execution<Set<TermEntry>> getTermEntries(String t) { return term; }
+			public Execution<SortedSet<String>> getTermsWithPrefix(String prefix, int max) {
+				return new Done<SortedSet<String>>(prefix + "*", new TreeSet<String>(Arrays.asList("freenet")));
+			}
+			public Execution<URIEntry> getURIEntry(FreenetURI uri) { return null; }
+		};
+		// a prefix that only expands to a failed term finds nothing, as when
+		// it expands to several and some fail
+		PrefixQuery query = new PrefixQuery("freen*", new Done<Index>("test", index), "freen", 0x10);
+		query.run();
+		assertTrue(query.isDone());
+		assertTrue(query.getResult().isEmpty());
+	}
+
+	/**
+	** Runs a search for a union of two terms with the given number of results
+	** each, to completion.
+	*/
+	protected Search finishedSearch(String query, int n) throws Exception {
+		Pending a = new Pending(query + "-a"), b = new Pending(query + "-b");
+		Search search = new Search(query, "test", Arrays.asList(a, b), ResultOperation.UNION);
+		a.finish(entries(query + "-a", n));
+		b.finish(entries(query + "-b", n));
+		assertNull(joinWithin(search, 5000));
+		return search;
+	}
+
+	public void testCacheHit() throws Exception {
+		Search search = finishedSearch("popular", 4);
+		long hits = Search.getCache().getHits();
+		for (int i=0; i<0x10; ++i) {
+			assertSame(search, Search.getSearch("popular", "test"));
+			// reading the results doesn't drop them
+			assertEquals(8, search.getResult().size());
+		}
+		assertEquals(hits + 0x10, Search.getCache().getHits());
+
+		long misses = Search.getCache().getMisses();
+		assertNull(Search.getSearch("unpopular", "test"));
+		assertEquals(misses + 1, Search.getCache().getMisses());
+	}
+
+	public void testCacheBudget() throws Exception {
+		int n = 4, kept = 8;
+		long weight = Search.BYTES_PER_SEARCH + 2 * n * Search.BYTES_PER_RESULT;
+		Search.setCacheBudget(kept * weight);
+		long evictions = Search.getCache().getEvictions();
+
+		// memory stays within the budget however many searches are made
+		for (int i=0; i<0x100; ++i) {
+			finishedSearch("query " + i, n);
+			assertTrue(Search.getCache().getWeight() <= kept * weight);
+			assertTrue(Search.getAllSearches().size() <= kept);
+		}
+		assertEquals(kept, Search.getCache().size());
+		assertEquals(0x100 - kept, Search.getCache().getEvictions() - evictions);
+
+		// the least recently used were dropped
+		assertNull(Search.getSearch("query 0", "test"));
+		assertNotNull(Search.getSearch("query " + 0xFF, "test"));
+	}
+
+	public void testCacheTTL() throws Exception {
+		Search.setCacheTTL(0x20);
+		long expirations = Search.getCacheExpirations();
+		Search search = finishedSearch("short-lived", 1);
+		assertSame(search, Search.getSearch("short-lived", "test"));
+		Thread.sleep(0x40);
+		assertNull(Search.getSearch("short-lived", "test"));
+		assertEquals(expirations + 1, Search.getCacheExpirations());
+		assertEquals(0, Search.getCache().size());
+	}
+
+	public void testFailureNotCached() throws Exception {
+		Pending a = new Pending("l"), b = new Pending("m");
+		Search search = new Search("l m", "test", Arrays.asList(a, b), ResultOperation.INTERSECTION);
+		// in progress, so the same query joins it
+		assertSame(search, Search.getSearch("l m", "test"));
+		a.fail("l not found");
+		assertNotNull(joinWithin(search, 5000));
+		// a new search for it starts again
+		assertNull(Search.getSearch("l m", "test"));
+		assertEquals(0, Search.getCache().size());
+	}
+
+	public void testNested() throws Exception {
+		Pending a = new Pending("i"), b = new Pending("j"), c = new Pending("k");
+		Search inner = new Search("i or j", "test", Arrays.asList(a, b), ResultOperation.UNION);
+		List<Execution<Set<TermEntry>>> outer = Arrays.<Execution<Set<TermEntry>>>asList(inner, c);
+		Search search = new Search("(i or j) or k", "test", outer, ResultOperation.UNION);
+		c.finish(entries("k", 1));
+		a.finish(entries("i", 1));
+		b.finish(entries("j", 1));
+		assertNull(joinWithin(search, 5000));
+		assertEquals(3, search.getResult().size());
+	}
+
+}
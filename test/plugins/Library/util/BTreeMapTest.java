@@ -64,6 +64,14 @@ public class BTreeMapTest extends SortedMapTestSkeleton {
 			BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
 			testmap.putAll(backmap);
 			testmap.verifyTreeIntegrity();
+			assertEquals(backmap.size(), testmap.size());
+			assertEquals(backmap, testmap);
+
+			// sets are bulk-loaded from a sorted set in the same way
+			BTreeSet<String> testset = new BTreeSet<String>(2);
+			testset.addAll(new TreeSet<String>(backmap.keySet()));
+			assertEquals(backmap.size(), testset.size());
+			assertEquals(backmap.keySet(), testset);
 			//if (n<10) { System.out.println(testmap.toTreeString()); }
 		}
 
@@ -84,6 +92,104 @@ public class BTreeMapTest extends SortedMapTestSkeleton {
 
 	}
 
+	public void testKeysInRange() {
+		for (int node_min: new int[]{0x02, 0x04, 0x40}) {
+			BTreeMap<Integer, Integer> testmap = new BTreeMap<Integer, Integer>(node_min);
+			TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+			for (int i=0; i<0x1000; ++i) {
+				int k = Generators.rand.nextInt(0x4000);
+				testmap.put(k, k);
+				backmap.put(k, k);
+			}
+
+			for (int i=0; i<0x100; ++i) {
+				int lo = Generators.rand.nextInt(0x4000), hi = lo + 1 + Generators.rand.nextInt(0x400);
+				List<Integer> keys = new ArrayList<Integer>();
+				assertTrue(testmap.keysInRange(lo, hi, Integer.MAX_VALUE, keys));
+				assertEquals(new ArrayList<Integer>(backmap.subMap(lo, hi).keySet()), keys);
+
+				// only up to max keys are added, after which the scan stops
+				int max = keys.size() / 2;
+				keys.clear();
+				assertEquals(max == backmap.subMap(lo, hi).size(), testmap.keysInRange(lo, hi, max, keys));
+				assertEquals(new ArrayList<Integer>(backmap.subMap(lo, hi).keySet()).subList(0, max), keys);
+			}
+
+			// no upper bound
+			List<Integer> keys = new ArrayList<Integer>();
+			assertTrue(testmap.keysInRange(0x2000, null, Integer.MAX_VALUE, keys));
+			assertEquals(new ArrayList<Integer>(backmap.tailMap(0x2000).keySet()), keys);
+		}
+	}
+
+	public void testRemoveBetweenFullNodes() {
+		for (int node_min: new int[]{0x02, 0x03}) {
+			for (int i=0; i<0x100; ++i) {
+				BTreeMap<Integer, Integer> testmap = new BTreeMap<Integer, Integer>(node_min);
+				List<Integer> keys = new ArrayList<Integer>();
+				for (int j=0; j<0x40; ++j) {
+					int k = Generators.rand.nextInt(0x100);
+					if (testmap.put(k, k) == null) { keys.add(k); }
+				}
+				Collections.shuffle(keys, Generators.rand);
+				for (Integer k: keys) {
+					assertEquals(k, testmap.remove(k));
+					testmap.verifyTreeIntegrity();
+				}
+				assertTrue(testmap.isEmpty());
+			}
+		}
+	}
+
+	public void testOrderStatistics() {
+		for (int node_min: new int[]{0x02, 0x04, 0x40}) {
+			BTreeMap<Integer, Integer> testmap = new BTreeMap<Integer, Integer>(node_min);
+			TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+			// the cached offsets must follow changes made after they were used
+			for (int round=0; round<3; ++round) {
+				for (int i=0; i<0x800; ++i) {
+					int k = Generators.rand.nextInt(0x4000);
+					testmap.put(k, k);
+					backmap.put(k, k);
+				}
+				// sizes must still be right after removals
+				for (int i=0; i<0x200; ++i) {
+					int k = Generators.rand.nextInt(0x4000);
+					testmap.remove(k);
+					backmap.remove(k);
+				}
+				testmap.verifyTreeIntegrity();
+				checkOrderStatistics(testmap, backmap);
+			}
+		}
+	}
+
+	protected void checkOrderStatistics(BTreeMap<Integer, Integer> testmap, TreeMap<Integer, Integer> backmap) {
+		List<Integer> keys = new ArrayList<Integer>(backmap.keySet());
+		for (int i=0; i<keys.size(); ++i) {
+			assertEquals(keys.get(i), testmap.getEntry(i).getKey());
+			assertEquals(i, testmap.rank(keys.get(i)));
+		}
+
+		for (int i=0; i<0x100; ++i) {
+			int lo = Generators.rand.nextInt(0x4000), hi = lo + Generators.rand.nextInt(0x400);
+			assertEquals(backmap.headMap(lo).size(), testmap.rank(lo));
+			assertEquals(backmap.subMap(lo, hi).size(), testmap.countRange(lo, hi));
+			assertEquals(backmap.tailMap(lo).size(), testmap.countRange(lo, null));
+			assertEquals(backmap.headMap(hi).size(), testmap.countRange(null, hi));
+		}
+		assertEquals(0, testmap.rank(-1));
+		assertEquals(backmap.size(), testmap.rank(0x4000));
+		assertEquals(backmap.size(), testmap.countRange(null, null));
+
+		try {
+			testmap.getEntry(backmap.size());
+			fail("got an entry beyond the end of the map");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
 	public void testUtilityMethods() {
 		// TODO HIGH more of these, like node.subEntries etc
 		SortedSet<String> ts = (new BTreeMap<String, String>(0x40)).subSet(new TreeSet<String>(
@@ -0,0 +1,475 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.ProtoIndexComponentSerialiser.BTreeNodeSerialiser;
+import plugins.Library.index.ProtoIndexComponentSerialiser.DummySerialiser;
+import plugins.Library.io.MergeJournal;
+import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.concurrent.Notifier;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.io.File;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.UUID;
+
+public class SkeletonBTreeMapTest extends TestCase {
+
+	final public static int node_min = 2;
+	final public static int tree_size = 0x100;
+
+	/**
+	** In-memory archiver that waits a fixed time on each pull, to simulate
+	** the latency of the backing store.
+	*/
+	public static class LatencyArchiver implements LiveArchiver<Map<String, Object>, SimpleProgress> {
+
+		final protected Map<Object, Map<String, Object>> store = new HashMap<Object, Map<String, Object>>();
+		protected volatile int latency;
+		protected int fail_every, ops, failed;
+
+		public void setLatency(int ms) {
+			latency = ms;
+		}
+
+		/**
+		** Makes every {@code n}th pull or push abort with a retryable error,
+		** or none if {@code n} is 0.
+		*/
+		public synchronized void setFailEvery(int n) {
+			fail_every = n;
+		}
+
+		protected synchronized void maybeFail(Object what) throws TaskAbortException {
+			if (fail_every > 0 && ++ops % fail_every == 0) {
+				++failed;
+				throw new TaskAbortException("transient failure on " + what, null, true);
+			}
+		}
+
+		/*@Override**/ public void pull(PullTask<Map<String, Object>> task) throws TaskAbortException {
+			maybeFail(task.meta);
+			if (latency > 0) {
+				try {
+					Thread.sleep(latency);
+				} catch (InterruptedException e) {
+					throw new TaskAbortException("interrupted", e, true);
+				}
+			}
+			synchronized (store) { task.data = store.get(task.meta); }
+			if (task.data == null) { throw new TaskAbortException("not found: " + task.meta, null); }
+		}
+
+		/*@Override**/ public void push(PushTask<Map<String, Object>> task) throws TaskAbortException {
+			maybeFail(task.data);
+			task.meta = UUID.randomUUID().toString();
+			synchronized (store) { store.put(task.meta, task.data); }
+		}
+
+		/*@Override**/ public void pullLive(PullTask<Map<String, Object>> task, SimpleProgress p) throws TaskAbortException {
+			try {
+				pull(task);
+				p.addPartKnown(0, true);
+			} catch (TaskAbortException e) {
+				p.abort(e);
+			}
+		}
+
+		/*@Override**/ public void pushLive(PushTask<Map<String, Object>> task, SimpleProgress p) throws TaskAbortException {
+			try {
+				push(task);
+				p.addPartKnown(0, true);
+			} catch (TaskAbortException e) {
+				p.abort(e);
+			}
+		}
+
+	}
+
+	/**
+	** Value serialiser that waits a fixed time on each bulk pull, like {@link
+	** LatencyArchiver}.
+	*/
+	public static class LatencyValueSerialiser extends DummySerialiser<Integer, Integer> {
+
+		protected volatile int latency;
+		protected int pulls;
+		/** Number of pulls running now, and the most that ran at once */
+		protected int running, maxRunning;
+
+		public void setLatency(int ms) {
+			latency = ms;
+		}
+
+		@Override public void pull(Map<Integer, PullTask<Integer>> tasks, Object mapmeta) {
+			synchronized (this) {
+				++pulls;
+				if (++running > maxRunning) { maxRunning = running; }
+			}
+			try {
+				if (latency > 0) {
+					try {
+						Thread.sleep(latency);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				super.pull(tasks, mapmeta);
+			} finally {
+				synchronized (this) { --running; }
+			}
+		}
+
+	}
+
+	/**
+	** Notifier that counts how many times the inflate loop woke up.
+	*/
+	public static class CountingNotifier extends Notifier {
+
+		protected int waits, timeouts;
+
+		@Override public boolean waitUpdate(int maxWait) {
+			boolean notified = super.waitUpdate(maxWait);
+			synchronized (this) {
+				++waits;
+				if (!notified) { ++timeouts; }
+			}
+			return notified;
+		}
+
+	}
+
+	LatencyArchiver arx;
+	LatencyValueSerialiser vsrl;
+	SkeletonBTreeSet<Integer> tree;
+	TreeSet<Integer> orig;
+	List<Integer> added;
+	int height;
+	CountingNotifier notifier;
+
+	/**
+	** Makes a tree from the keys, added in the given order.
+	*/
+	protected SkeletonBTreeSet<Integer> makeTree(List<Integer> keys) {
+		SkeletonBTreeSet<Integer> tree = new SkeletonBTreeSet<Integer>(new SkeletonBTreeMap<Integer, Integer>(node_min) {
+			@Override protected Notifier newNotifier() {
+				return notifier = new CountingNotifier();
+			}
+		});
+		tree.setSerialiser(new BTreeNodeSerialiser<Integer, Integer>(
+			"test entries",
+			arx,
+			tree.makeNodeTranslator(null, new SkeletonBTreeSet.TreeSetTranslator<Integer>())
+		), vsrl);
+		for (Integer n: keys) {
+			tree.add(n);
+		}
+		return tree;
+	}
+
+	protected void setUp() throws TaskAbortException {
+		arx = new LatencyArchiver();
+		vsrl = new LatencyValueSerialiser();
+
+		orig = new TreeSet<Integer>();
+		added = new ArrayList<Integer>();
+		for (int i=0; i<tree_size; ++i) {
+			Integer n = Generators.rand.nextInt();
+			orig.add(n);
+			added.add(n);
+		}
+		tree = makeTree(added);
+		height = tree.bkmap.verifyTreeIntegrity(tree.bkmap.root) + 1;
+		tree.deflate();
+		assertTrue(tree.isBare());
+	}
+
+	public long timeInflate(int latency) throws TaskAbortException {
+		arx.setLatency(latency);
+		long t = System.currentTimeMillis();
+		tree.inflate();
+		t = System.currentTimeMillis() - t;
+		assertTrue(tree.isLive());
+		assertTrue(tree.equals(orig));
+		tree.deflate();
+		assertTrue(tree.isBare());
+		return t;
+	}
+
+	public void testUnloadCache() throws TaskAbortException {
+		final SkeletonBTreeMap<Integer, Integer> map = (SkeletonBTreeMap<Integer, Integer>)tree.bkmap;
+		tree.inflate();
+		int pushed = arx.store.size();
+
+		// weigh each node as 1, and keep a bit more than one path from root to leaf
+		final SkeletonCache<Object> cache = new SkeletonCache<Object>(8);
+		for (Integer key: orig) {
+			for (final SkeletonBTreeMap<Integer, Integer>.SkeletonNode node: map.loadedPath(key)) {
+				if (node == map.root || cache.touch(node)) { continue; }
+				cache.put(node, new SkeletonCache.Item(1) {
+					@Override public boolean unload() {
+						List<Object> detached = new ArrayList<Object>();
+						boolean u = node.unload(detached);
+						for (Object n: detached) { cache.remove(n); }
+						return u;
+					}
+				});
+				assertTrue(cache.getWeight() <= 8);
+			}
+		}
+		assertTrue(cache.getHits() > 0);
+		assertTrue(cache.getMisses() > 0);
+		assertTrue(cache.getEvictions() > 0);
+		assertFalse(tree.isLive());
+
+		// nothing was pushed, and the tree can be loaded again
+		assertEquals(pushed, arx.store.size());
+		tree.inflate();
+		assertTrue(tree.isLive());
+		assertTrue(tree.equals(orig));
+		map.verifyTreeIntegrity(map.root);
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+		assertEquals(pushed, arx.store.size());
+	}
+
+	protected int countNodes() throws TaskAbortException {
+		tree.inflate();
+		int n = 0;
+		List<SkeletonBTreeMap<Integer, Integer>.SkeletonNode> nodes = new ArrayList<SkeletonBTreeMap<Integer, Integer>.SkeletonNode>();
+		((SkeletonBTreeMap<Integer, Integer>.SkeletonNode)tree.bkmap.root).addLoadedSubnodes(nodes);
+		tree.deflate();
+		return nodes.size() + 1;
+	}
+
+	/**
+	** @return The number of nodes pushed by the update
+	*/
+	protected int checkUpdate(TreeSet<Integer> put, TreeSet<Integer> rem) throws TaskAbortException {
+		TreeSet<Integer> exp = new TreeSet<Integer>(orig);
+		exp.removeAll(rem);
+		exp.addAll(put);
+		int before = arx.store.size();
+		tree.update(put, rem);
+		int pushed = arx.store.size() - before;
+		assertTrue(tree.isBare());
+		assertEquals(exp.size(), tree.size());
+		tree.inflate();
+		assertTrue(tree.equals(exp));
+		tree.bkmap.verifyTreeIntegrity(tree.bkmap.root);
+		tree.deflate();
+		orig = exp;
+		return pushed;
+	}
+
+	public void testUpdateRemove() throws TaskAbortException {
+		int nodes = countNodes();
+
+		// removing a few keys only pushes the nodes on their paths, and maybe
+		// their siblings
+		TreeSet<Integer> rem = new TreeSet<Integer>();
+		rem.add(orig.first());
+		rem.add(orig.last());
+		int pushed = checkUpdate(new TreeSet<Integer>(), rem);
+		assertTrue(pushed > 0);
+		assertTrue(pushed < nodes / 2);
+
+		// remove and put at the same time, including keys that aren't there
+		rem.clear();
+		TreeSet<Integer> put = new TreeSet<Integer>();
+		for (Integer n: orig) {
+			if (Generators.rand.nextInt(3) == 0) { rem.add(n); }
+		}
+		for (int i=0; i<0x40; ++i) {
+			rem.add(Generators.rand.nextInt());
+			put.add(Generators.rand.nextInt());
+		}
+		put.add(rem.first());
+		checkUpdate(put, rem);
+		assertTrue(orig.contains(rem.first()));
+
+		// remove a whole range, and put keys back into the hole it leaves
+		Integer[] keys = orig.toArray(new Integer[orig.size()]);
+		rem = new TreeSet<Integer>(orig.subSet(keys[keys.length/4], keys[keys.length*3/4]));
+		put.clear();
+		for (Integer n: rem) {
+			if (Generators.rand.nextInt(8) == 0) { put.add(n); }
+		}
+		checkUpdate(put, rem);
+
+		// remove everything
+		checkUpdate(new TreeSet<Integer>(), new TreeSet<Integer>(orig));
+		assertTrue(tree.isEmpty());
+	}
+
+	public void testUpdateRetry() throws TaskAbortException {
+		long delay = SkeletonBTreeMap.UPDATE_RETRY_DELAY;
+		SkeletonBTreeMap.UPDATE_RETRY_DELAY = 1;
+		try {
+			TreeSet<Integer> put = new TreeSet<Integer>();
+			for (int i=0; i<0x40; ++i) {
+				put.add(Generators.rand.nextInt());
+			}
+			// some pulls and pushes abort, and are tried again
+			arx.setFailEvery(7);
+			tree.update(put, new TreeSet<Integer>());
+			arx.setFailEvery(0);
+			assertTrue(arx.failed > 0);
+			orig.addAll(put);
+			assertTrue(tree.isBare());
+			tree.inflate();
+			assertTrue(tree.equals(orig));
+			tree.bkmap.verifyTreeIntegrity(tree.bkmap.root);
+			tree.deflate();
+
+			// but not forever
+			arx.setFailEvery(1);
+			try {
+				tree.update(new TreeSet<Integer>(put.headSet(put.first() + 1)), put);
+				fail("update should have given up");
+			} catch (TaskAbortException e) {
+				// expected
+			}
+		} finally {
+			SkeletonBTreeMap.UPDATE_RETRY_DELAY = delay;
+		}
+	}
+
+	public void testUpdateJournal() throws Exception {
+		File file = File.createTempFile("merge-journal", ".test");
+		try {
+			MergeJournal journal = new MergeJournal(file, "test");
+			SkeletonBTreeSet<Integer> copy = makeTree(added);
+			copy.deflate();
+
+			TreeSet<Integer> put = new TreeSet<Integer>();
+			for (int i=0; i<0x40; ++i) {
+				put.add(Generators.rand.nextInt());
+			}
+			((SkeletonBTreeMap<Integer, Integer>)tree.bkmap).setJournal(journal);
+			int pushed = checkUpdate(put, new TreeSet<Integer>());
+			assertTrue(pushed > 0);
+			assertEquals(pushed, journal.getPending());
+			journal.commit();
+			journal.close();
+
+			// the same update of the same tree, eg. after the first was
+			// interrupted, reuses every node that was pushed
+			journal = new MergeJournal(file, "test");
+			((SkeletonBTreeMap<Integer, Integer>)copy.bkmap).setJournal(journal);
+			int before = arx.store.size();
+			copy.update(put, new TreeSet<Integer>());
+			assertEquals(before, arx.store.size());
+			assertEquals(pushed, journal.getHits());
+			copy.inflate();
+			assertTrue(copy.equals(orig));
+			copy.bkmap.verifyTreeIntegrity(copy.bkmap.root);
+			journal.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testKeysInRange() throws TaskAbortException {
+		int nodes = countNodes();
+		SkeletonBTreeMap<Integer, Integer> map = (SkeletonBTreeMap<Integer, Integer>)tree.bkmap;
+		Integer[] keys = orig.toArray(new Integer[orig.size()]);
+		int lo = keys[keys.length/3], hi = keys[keys.length/3 + 8];
+
+		List<Integer> range = new ArrayList<Integer>();
+		int inflated = 0;
+		for (;;) {
+			range.clear();
+			try {
+				assertTrue(map.keysInRange(lo, hi, Integer.MAX_VALUE, range));
+				break;
+			} catch (DataNotLoadedException d) {
+				Skeleton p = d.getParent();
+				p.inflate(d.getKey());
+				++inflated;
+			}
+		}
+		assertEquals(new ArrayList<Integer>(orig.subSet(lo, hi)), range);
+		// only the nodes around the range were loaded
+		assertTrue(inflated < nodes / 4);
+		assertFalse(tree.isLive());
+	}
+
+	public void testOrderStatistics() throws TaskAbortException {
+		int nodes = countNodes();
+		SkeletonBTreeMap<Integer, Integer> map = (SkeletonBTreeMap<Integer, Integer>)tree.bkmap;
+		List<Integer> keys = new ArrayList<Integer>(orig);
+		int i = keys.size()/3, j = 2*keys.size()/3;
+		Integer lo = keys.get(i), hi = keys.get(j);
+
+		int inflated = 0;
+		for (;;) {
+			try {
+				assertEquals(keys.get(i+1), map.getEntry(i+1).getKey());
+				assertEquals(i, map.rank(lo));
+				assertEquals(j-i, map.countRange(lo, hi));
+				assertEquals(orig.headSet(lo+1).size(), map.rank(lo+1));
+				break;
+			} catch (DataNotLoadedException d) {
+				Skeleton p = d.getParent();
+				p.inflate(d.getKey());
+				++inflated;
+			}
+		}
+		// only the nodes on the paths to the keys were loaded, however many
+		// keys there are between them
+		assertTrue(inflated <= 3 * (height - 1));
+		assertTrue(inflated < nodes / 4);
+		assertFalse(tree.isLive());
+	}
+
+	public void testInflateLatency() throws TaskAbortException {
+		int nodes = countNodes();
+		// every level below the root needs at least one round-trip to the store
+		assertTrue(height - 1 > 2);
+
+		for (int latency: new int[]{0, 0x02, 0x08}) {
+			long t = timeInflate(latency);
+			System.out.println("inflated " + tree_size + " entries (height " + height + ") in "
+			  + t + " ms at " + latency + " ms latency, " + notifier.waits + " wakeups");
+			// the loop only wakes up when a node or its values have been
+			// pulled, rather than polling on a timer
+			assertTrue(notifier.waits <= 2*nodes - 1);
+			if (latency > 0) { assertTrue(notifier.waits > 0); }
+		}
+	}
+
+	public void testInflateValuesLatency() throws TaskAbortException {
+		int nodes = countNodes();
+		vsrl.pulls = 0;
+		vsrl.maxRunning = 0;
+		vsrl.setLatency(0x10);
+		long t = timeInflate(0x02);
+		System.out.println("inflated " + tree_size + " entries (" + nodes + " nodes) in "
+		  + t + " ms at 16 ms latency per node's values, " + vsrl.maxRunning + " pulls at once");
+
+		// each node's values were pulled once, and not one after another
+		assertEquals(nodes, vsrl.pulls);
+		assertTrue(vsrl.maxRunning > 1);
+		assertTrue(vsrl.maxRunning <= SkeletonBTreeMap.INFLATE_VALUES_MAXCONC);
+
+		// the progress covers the pull of each non-root node, and the values of each node
+		ProgressParts parts = tree.getProgressInflate().getParts();
+		assertEquals(2*nodes - 1, parts.known);
+		assertTrue(parts.finalizedTotal());
+	}
+
+}
@@ -0,0 +1,134 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class SortedArrayMapTest extends SortedMapTestSkeleton {
+
+	@Override public SortedMap<String, Integer> makeTestMap() {
+		return new SortedArrayMap<String, Integer>();
+	}
+
+	protected static SortedArrayMap<Integer, Integer> range(int l, int r) {
+		SortedArrayMap<Integer, Integer> map = new SortedArrayMap<Integer, Integer>();
+		for (int i=l; i<r; ++i) { map.put(i, -i); }
+		return map;
+	}
+
+	public void testAgainstTreeMap() {
+		SortedArrayMap<String, Integer> map = new SortedArrayMap<String, Integer>();
+		TreeMap<String, Integer> backmap = new TreeMap<String, Integer>();
+		for (int i=0; i<0x1000; ++i) {
+			String k = Generators.rndKey();
+			Integer v = Generators.rand.nextInt();
+			assertEquals(backmap.put(k, v), map.put(k, v));
+			if (i % 3 == 0) {
+				String x = Generators.rndKey();
+				assertEquals(backmap.remove(x), map.remove(x));
+				assertEquals(backmap.remove(k), map.remove(k));
+			}
+		}
+		assertEquals(backmap, map);
+		assertEquals(backmap.firstKey(), map.firstKey());
+		assertEquals(backmap.lastKey(), map.lastKey());
+		String mid = Generators.rndKey();
+		assertEquals(backmap.headMap(mid), map.headMap(mid));
+		assertEquals(backmap.tailMap(mid), map.tailMap(mid));
+		for (String k: backmap.keySet()) {
+			int i = map.indexOf(k);
+			assertEquals(k, map.keyAt(i));
+			assertEquals(backmap.get(k), map.valueAt(i));
+		}
+	}
+
+	public void testViews() {
+		SortedArrayMap<Integer, Integer> map = range(0, 0x20);
+		SortedMap<Integer, Integer> head = map.headMap(8);
+		SortedMap<Integer, Integer> sub = map.subMap(8, 0x10);
+		SortedMap<Integer, Integer> tail = map.tailMap(0x10);
+		assertEquals(8, head.size());
+		assertEquals(8, sub.size());
+		assertEquals(0x10, tail.size());
+		assertEquals(Integer.valueOf(8), sub.firstKey());
+		assertEquals(Integer.valueOf(0xF), sub.lastKey());
+		assertNull(sub.get(0x10));
+		assertFalse(sub.containsKey(7));
+
+		// views are live
+		map.remove(9);
+		assertEquals(7, sub.size());
+		sub.put(9, 123);
+		assertEquals(Integer.valueOf(123), map.get(9));
+		try {
+			sub.put(0x10, 0);
+			fail("put a key outside the submap's range");
+		} catch (IllegalArgumentException e) { }
+		assertEquals(4, sub.headMap(0xC).size());
+		assertEquals(4, sub.tailMap(0xC).size());
+
+		// clearing a view splices out the range
+		sub.clear();
+		assertEquals(0x18, map.size());
+		assertTrue(sub.isEmpty());
+		assertEquals(8, head.size());
+		assertEquals(Integer.valueOf(7), head.lastKey());
+		assertEquals(Integer.valueOf(0x10), tail.firstKey());
+		head.keySet().clear();
+		tail.values().clear();
+		assertTrue(map.isEmpty());
+	}
+
+	public void testSplice() {
+		SortedArrayMap<Integer, Integer> map = range(0x10, 0x20);
+		// adjacent ranges go in with one copy, from either side
+		map.putAll(range(0, 0x10));
+		map.putAll(range(0x20, 0x30));
+		assertEquals(range(0, 0x30), map);
+		// overlapping ones fall back to a put for each entry
+		map.putAll(range(0x28, 0x38));
+		assertEquals(range(0, 0x38), map);
+
+		SortedArrayMap<Integer, Integer> dst = range(0x40, 0x50);
+		map.moveHead(0x20, dst);
+		assertEquals(range(0x20, 0x38), map);
+		assertEquals(0x30, dst.size());
+		assertEquals(range(0, 0x20), dst.headMap(0x20));
+		assertEquals(range(0x40, 0x50), dst.tailMap(0x20));
+
+		// moving to a different kind of map works too
+		TreeMap<Integer, Integer> tree = new TreeMap<Integer, Integer>();
+		map.moveHead(map.size(), tree);
+		assertTrue(map.isEmpty());
+		assertEquals(range(0x20, 0x38), tree);
+	}
+
+	public void testNullKeys() {
+		// like the subnode maps in BTreeMap.Node, where null means +infinity
+		SortedArrayMap<Integer, String> map = new SortedArrayMap<Integer, String>(new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return (i2 == null)? ((i1 == null)? 0: -1): (i1 == null)? 1: i1.compareTo(i2);
+			}
+		});
+		map.put(null, "inf");
+		map.put(3, "3");
+		map.put(1, "1");
+		assertNull(map.lastKey());
+		assertEquals("inf", map.get(null));
+		assertEquals(1, map.ceilingIndex(2));
+		assertEquals(2, map.ceilingIndex(4));
+		assertEquals("inf", map.valueAt(map.ceilingIndex(4)));
+		assertEquals(2, map.headMap(null).size());
+		try {
+			new SortedArrayMap<Integer, String>().put(null, "");
+			fail("put a null key in a naturally-ordered map");
+		} catch (NullPointerException e) { }
+	}
+
+}
@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.TaskAbortExceptionConvertor;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+import plugins.Library.util.func.Tuples.X3;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+public class ObjectProcessorTest extends TestCase {
+
+	int running, maxRunning;
+
+	protected ObjectProcessor<Integer, Integer, TaskAbortException> processor(final int sleep) {
+		return new ObjectProcessor<Integer, Integer, TaskAbortException>(
+			new PriorityBlockingQueue<Integer>(),
+			new LinkedBlockingQueue<X2<Integer, TaskAbortException>>(),
+			new HashMap<Integer, Integer>(),
+			new Closure<Integer, TaskAbortException>() {
+				/*@Override**/ public void invoke(Integer i) throws TaskAbortException {
+					synchronized (ObjectProcessorTest.this) {
+						if (++running > maxRunning) { maxRunning = running; }
+					}
+					try {
+						if (sleep > 0) { Thread.sleep(sleep); }
+					} catch (InterruptedException e) {
+						throw new TaskAbortException("interrupted", e);
+					} finally {
+						synchronized (ObjectProcessorTest.this) { --running; }
+					}
+					if (i < 0) { throw new TaskAbortException("negative: " + i, null, false); }
+				}
+			}, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()
+		);
+	}
+
+	public void testWakeOnSubmit() throws Exception {
+		ObjectProcessor<Integer, Integer, TaskAbortException> proc = processor(0).autostart();
+		// a pipeline where each item is only submitted once the last one is
+		// done; nobody polls, so each hop is only as slow as the job itself
+		final int hops = 0x100;
+		long t = System.currentTimeMillis();
+		try {
+			for (int i=0; i<hops; ++i) {
+				ObjectProcessor.submitSafe(proc, i, i);
+				X3<Integer, Integer, TaskAbortException> res = proc.accept();
+				assertEquals(Integer.valueOf(i), res._0);
+				assertEquals(Integer.valueOf(i), res._1);
+				assertNull(res._2);
+			}
+		} finally {
+			proc.close();
+		}
+		t = System.currentTimeMillis() - t;
+		// with a 100ms polling loop this would take at least hops * 100ms
+		assertTrue("took " + t + " ms for " + hops + " hops", t < hops * 4);
+		assertFalse(proc.hasPending());
+	}
+
+	public void testMaxConc() throws Exception {
+		ObjectProcessor<Integer, Integer, TaskAbortException> proc = processor(4);
+		proc.setMaxConc(4);
+		final int n = 0x40;
+		try {
+			// submitted before auto(), so dispatched by it
+			for (int i=0; i<n/2; ++i) {
+				ObjectProcessor.submitSafe(proc, i, i);
+			}
+			assertTrue(proc.auto());
+			assertFalse(proc.auto());
+			// each job that completes makes room for the next
+			for (int i=n/2; i<n; ++i) {
+				ObjectProcessor.submitSafe(proc, i, i);
+			}
+			for (int i=0; i<n; ++i) {
+				assertNull(proc.accept()._2);
+			}
+		} finally {
+			proc.close();
+		}
+		assertFalse(proc.hasPending());
+		assertTrue(maxRunning <= 4);
+		assertTrue(maxRunning > 1);
+	}
+
+	public void testErrors() throws Exception {
+		ObjectProcessor<Integer, Integer, TaskAbortException> proc = processor(0).autostart();
+		try {
+			ObjectProcessor.submitSafe(proc, -1, 1);
+			X3<Integer, Integer, TaskAbortException> res = proc.accept();
+			assertEquals(Integer.valueOf(-1), res._0);
+			assertNotNull(res._2);
+			// and it carries on after the error
+			ObjectProcessor.submitSafe(proc, 2, 2);
+			assertNull(proc.accept()._2);
+		} finally {
+			proc.close();
+		}
+	}
+
+}
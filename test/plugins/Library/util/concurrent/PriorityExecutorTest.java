@@ -0,0 +1,212 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.concurrent.PriorityExecutor.TaskClass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PriorityExecutorTest extends TestCase {
+
+	final static Executor THREADS = new Executor() {
+		/*@Override**/ public void execute(Runnable r) {
+			new Thread(r).start();
+		}
+	};
+
+	final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+	protected Runnable record(final String name, final CountDownLatch done) {
+		return new Runnable() {
+			public void run() {
+				order.add(name);
+				done.countDown();
+			}
+		};
+	}
+
+	protected Runnable block(final CountDownLatch gate, final CountDownLatch done) {
+		return new Runnable() {
+			public void run() {
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// let the test fail on its own latches
+				}
+				done.countDown();
+			}
+		};
+	}
+
+	protected void await(CountDownLatch latch) throws InterruptedException {
+		assertTrue("tasks weren't run in time", latch.await(5, TimeUnit.SECONDS));
+	}
+
+	public void testPriority() throws Exception {
+		PriorityExecutor exec = new PriorityExecutor(THREADS, 1);
+		CountDownLatch gate = new CountDownLatch(1), done = new CountDownLatch(5);
+		exec.execute(TaskClass.MERGE, block(gate, done));
+		exec.execute(TaskClass.MERGE, record("m1", done));
+		exec.execute(TaskClass.MERGE, record("m2", done));
+		exec.execute(TaskClass.INTERACTIVE, record("i1", done));
+		exec.execute(TaskClass.INTERACTIVE, record("i2", done));
+		assertEquals(1, exec.getWorkersRunning());
+		assertEquals(2, exec.getQueued(TaskClass.MERGE));
+		assertEquals(2, exec.getQueued(TaskClass.INTERACTIVE));
+
+		// searches go ahead of the merge that was there first
+		Thread.sleep(20);
+		gate.countDown();
+		await(done);
+		assertEquals(Arrays.asList("i1", "i2", "m1", "m2"), order);
+		assertTrue(exec.getMaxWait(TaskClass.MERGE) >= 20);
+		assertTrue(exec.getMeanWait(TaskClass.INTERACTIVE) >= 20);
+	}
+
+	public void testLimits() throws Exception {
+		PriorityExecutor exec = new PriorityExecutor(THREADS, 4);
+		exec.setLimit(TaskClass.MERGE, 2);
+		CountDownLatch gate = new CountDownLatch(1), done = new CountDownLatch(8);
+		for (int i=0; i<6; ++i) {
+			exec.execute(TaskClass.MERGE, block(gate, done));
+		}
+		// merges can't take every slot, so searches still run
+		assertEquals(2, exec.getRunning(TaskClass.MERGE));
+		assertEquals(4, exec.getQueued(TaskClass.MERGE));
+		exec.execute(TaskClass.INTERACTIVE, block(gate, done));
+		exec.execute(TaskClass.INTERACTIVE, block(gate, done));
+		assertEquals(2, exec.getRunning(TaskClass.INTERACTIVE));
+		assertEquals(4, exec.getWorkersRunning());
+
+		exec.setLimit(TaskClass.MERGE, 4);
+		assertEquals(2, exec.getRunning(TaskClass.MERGE));
+		gate.countDown();
+		await(done);
+	}
+
+	public void testRefused() throws Exception {
+		final int[] calls = new int[1];
+		PriorityExecutor exec = new PriorityExecutor(new Executor() {
+			/*@Override**/ public synchronized void execute(Runnable r) {
+				// refuse the second task to be started
+				if (++calls[0] == 2) { throw new RejectedExecutionException(); }
+				THREADS.execute(r);
+			}
+		}, 1);
+		CountDownLatch gate = new CountDownLatch(1), done = new CountDownLatch(3);
+		exec.execute(TaskClass.INTERACTIVE, block(gate, done));
+		exec.execute(TaskClass.INTERACTIVE, record("a", done));
+		exec.execute(TaskClass.INTERACTIVE, record("b", done));
+		exec.execute(TaskClass.INTERACTIVE, record("c", done));
+		assertEquals(3, exec.getQueued(TaskClass.INTERACTIVE));
+
+		// the task that was refused doesn't stop the others from starting
+		try {
+			exec.setGlobalLimit(4);
+			fail("refused task wasn't reported");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+		gate.countDown();
+		await(done);
+		assertEquals(new HashSet<String>(Arrays.asList("b", "c")), new HashSet<String>(order));
+
+		// and its slot was given up
+		for (int i=0; i<100 && exec.getWorkersRunning() > 0; ++i) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, exec.getWorkersRunning());
+	}
+
+	public void testManagers() throws Exception {
+		final PriorityExecutor exec = new PriorityExecutor(THREADS, 1);
+		final CountDownLatch done = new CountDownLatch(4);
+		final List<TaskClass> classes = Collections.synchronizedList(new ArrayList<TaskClass>());
+		// managers that each wait for a worker; if they were counted towards
+		// the limit of 1 worker, none of these would complete
+		for (int i=0; i<4; ++i) {
+			exec.execute(TaskClass.VALUE, new Runnable() {
+				public void run() {
+					final CountDownLatch worker = new CountDownLatch(1);
+					exec.getInheritingExecutor().execute(new Runnable() {
+						public void run() {
+							classes.add(PriorityExecutor.getCurrentClass());
+							worker.countDown();
+						}
+					});
+					try {
+						if (worker.await(5, TimeUnit.SECONDS)) { done.countDown(); }
+					} catch (InterruptedException e) { }
+				}
+			});
+		}
+		await(done);
+		// the workers of a merge run at the priority of a merge
+		assertEquals(Collections.nCopies(4, TaskClass.MERGE), classes);
+	}
+
+	public void testNestedManagers() throws Exception {
+		final PriorityExecutor exec = new PriorityExecutor(THREADS, 1);
+		exec.setLimit(TaskClass.VALUE, 1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final List<TaskClass> classes = Collections.synchronizedList(new ArrayList<TaskClass>());
+		// a search which waits for a value handler, which waits for another
+		exec.execute(TaskClass.QUERY, new Runnable() {
+			public void run() {
+				final CountDownLatch outer = new CountDownLatch(1);
+				exec.execute(TaskClass.VALUE, new Runnable() {
+					public void run() {
+						final CountDownLatch inner = new CountDownLatch(1);
+						exec.execute(TaskClass.VALUE, new Runnable() {
+							public void run() {
+								exec.getInheritingExecutor().execute(new Runnable() {
+									public void run() {
+										classes.add(PriorityExecutor.getCurrentClass());
+										inner.countDown();
+									}
+								});
+							}
+						});
+						try {
+							if (inner.await(5, TimeUnit.SECONDS)) { outer.countDown(); }
+						} catch (InterruptedException e) { }
+					}
+				});
+				try {
+					if (outer.await(5, TimeUnit.SECONDS)) { done.countDown(); }
+				} catch (InterruptedException e) { }
+			}
+		});
+		await(done);
+		// and the worker of it all was run at the priority of the search
+		assertEquals(Collections.singletonList(TaskClass.INTERACTIVE), classes);
+	}
+
+	public void testAs() throws Exception {
+		PriorityExecutor exec = new PriorityExecutor(THREADS, 1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final TaskClass[] cls = new TaskClass[1];
+		// eg. a callback from the node, for a merge
+		exec.getInheritingExecutor().execute(PriorityExecutor.as(TaskClass.MERGE, new Runnable() {
+			public void run() {
+				cls[0] = PriorityExecutor.getCurrentClass();
+				done.countDown();
+			}
+		}));
+		await(done);
+		assertEquals(TaskClass.MERGE, cls[0]);
+		assertNull(PriorityExecutor.getCurrentClass());
+	}
+
+}